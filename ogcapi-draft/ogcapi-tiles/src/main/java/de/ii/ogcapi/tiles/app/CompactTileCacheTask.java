@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app;
+
+import com.github.azahnen.dagger.annotations.AutoBind;
+import de.ii.ogcapi.foundation.domain.OgcApi;
+import de.ii.ogcapi.tiles.domain.TilesProviders;
+import de.ii.ogcapi.tiles.domain.provider.TileProvider;
+import de.ii.xtraplatform.base.domain.AppConfiguration;
+import de.ii.xtraplatform.base.domain.LogContext;
+import de.ii.xtraplatform.store.domain.entities.EntityRegistry;
+import de.ii.xtraplatform.web.domain.DropwizardPlugin;
+import io.dropwizard.servlets.tasks.Task;
+import io.dropwizard.setup.Environment;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Deduplicates the tiles in the MBTiles caches of an API and reclaims the space of deleted tiles.
+ */
+@Singleton
+@AutoBind
+public class CompactTileCacheTask extends Task implements DropwizardPlugin {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompactTileCacheTask.class);
+
+  private final EntityRegistry entityRegistry;
+  private final TilesProviders tilesProviders;
+
+  @Inject
+  protected CompactTileCacheTask(EntityRegistry entityRegistry, TilesProviders tilesProviders) {
+    super("compact-tile-cache");
+    this.entityRegistry = entityRegistry;
+    this.tilesProviders = tilesProviders;
+  }
+
+  @Override
+  public void init(AppConfiguration configuration, Environment environment) {
+    environment.admin().addTask(this);
+  }
+
+  @Override
+  public void execute(Map<String, List<String>> parameters, PrintWriter output) throws Exception {
+    if (LOGGER.isTraceEnabled()) {
+      LOGGER.trace("Compact tile cache request: {}", parameters);
+    }
+
+    Optional<String> apiId =
+        Optional.ofNullable(parameters.get("api")).flatMap(values -> values.stream().findFirst());
+
+    if (apiId.isEmpty()) {
+      output.println("No api id given");
+      output.flush();
+      return;
+    }
+
+    Optional<OgcApi> ogcApi = entityRegistry.getEntity(OgcApi.class, apiId.get());
+
+    if (ogcApi.isEmpty()) {
+      output.println("No api with the given id found");
+      output.flush();
+      return;
+    }
+
+    Optional<TileProvider> tileProvider =
+        tilesProviders.getTileProvider(ogcApi.get().getData());
+
+    if (tileProvider.isEmpty()) {
+      output.println("No tile provider found for the api");
+      output.flush();
+      return;
+    }
+
+    try (MDC.MDCCloseable closeable =
+        LogContext.putCloseable(LogContext.CONTEXT.SERVICE, apiId.get())) {
+      List<String> report = tileProvider.get().compactCache();
+
+      if (report.isEmpty()) {
+        output.println("No MBTiles cache found");
+      }
+      report.stream().filter(Objects::nonNull).forEach(output::println);
+      output.flush();
+    }
+  }
+}
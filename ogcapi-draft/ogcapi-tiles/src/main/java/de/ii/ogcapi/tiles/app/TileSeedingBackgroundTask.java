@@ -7,6 +7,7 @@
  */
 package de.ii.ogcapi.tiles.app;
 
+import static de.ii.ogcapi.foundation.domain.FoundationConfiguration.CACHE_DIR;
 import static de.ii.ogcapi.tiles.app.TilesBuildingBlock.DATASET_TILES;
 
 import com.github.azahnen.dagger.annotations.AutoBind;
@@ -25,27 +26,46 @@ import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimitsGenerator;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetRepository;
+import de.ii.ogcapi.tiles.app.TileSeedingJob.Range;
+import de.ii.ogcapi.tiles.app.TileSeedingJob.Visit;
 import de.ii.ogcapi.tiles.domain.SeedingOptions;
 import de.ii.ogcapi.tiles.domain.TileFormatExtension;
 import de.ii.ogcapi.tiles.domain.TileFormatWithQuerySupportExtension;
 import de.ii.ogcapi.tiles.domain.TilesConfiguration;
 import de.ii.ogcapi.tiles.domain.TilesProviders;
+import de.ii.ogcapi.tiles.domain.provider.Cache.Storage;
 import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileArchiveWriter;
 import de.ii.ogcapi.tiles.domain.provider.TileProvider;
 import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import de.ii.ogcapi.tiles.domain.provider.WithCaches;
+import de.ii.xtraplatform.base.domain.AppContext;
+import de.ii.xtraplatform.base.domain.LogContext;
+import de.ii.xtraplatform.crs.domain.BoundingBox;
 import de.ii.xtraplatform.features.domain.FeatureProvider2;
 import de.ii.xtraplatform.services.domain.ServicesContext;
 import de.ii.xtraplatform.services.domain.TaskContext;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.ws.rs.ServiceUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +78,8 @@ import org.slf4j.LoggerFactory;
 public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TileSeedingBackgroundTask.class);
+  private static final long JOIN_TIMEOUT_MILLIS = 60_000;
+  private static final long RETRY_DELAY_MILLIS = 1_000;
 
   private final ExtensionRegistry extensionRegistry;
   private final TileMatrixSetLimitsGenerator limitsGenerator;
@@ -65,9 +87,15 @@ public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
   private final FeaturesCoreProviders providers;
   private final TilesProviders tilesProviders;
   private final TileMatrixSetRepository tileMatrixSetRepository;
+  private final Path seedingDir;
+  private final ConcurrentMap<String, TileSeedingJob> jobs;
+  // the tile archives that are written by a job, per layer and tile matrix set
+  private final ConcurrentMap<String, Map<String, TileArchiveWriter>> archiveWriters;
+  private final ExecutorService reseedingExecutor;
 
   @Inject
   public TileSeedingBackgroundTask(
+      AppContext appContext,
       ExtensionRegistry extensionRegistry,
       TileMatrixSetLimitsGenerator limitsGenerator,
       ServicesContext servicesContext,
@@ -80,6 +108,19 @@ public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
     this.providers = providers;
     this.tilesProviders = tilesProviders;
     this.tileMatrixSetRepository = tileMatrixSetRepository;
+    this.seedingDir = appContext.getDataDir().resolve(CACHE_DIR).resolve("seeding");
+    this.jobs = new ConcurrentHashMap<>();
+    this.archiveWriters = new ConcurrentHashMap<>();
+    this.reseedingExecutor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "tiles-reseeding");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            });
+
+    tilesProviders.addInvalidationListener(this::reseedTiles);
   }
 
   @Override
@@ -176,6 +217,8 @@ public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
     if (shouldPurge(api) && taskContext.isFirstPartial()) {
       taskContext.setStatusMessage("purging cache");
       tilesProviders.deleteTiles(api, Optional.empty(), Optional.empty(), Optional.empty());
+      // an interrupted seeding cannot be resumed after the cache was purged
+      deleteProgress(api.getData());
       taskContext.setStatusMessage("purged cache successfully");
     }
 
@@ -219,96 +262,75 @@ public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
             .filter(format -> tileProvider.generator().supports(format.getMediaType().type()))
             .collect(Collectors.toList());
 
-    long numberOfTiles = getNumberOfTiles2(api, seedingFormats, seedingMap, taskContext);
-    final double[] currentTile = {0.0};
-
-    walkCollectionsAndTiles(
-        api,
-        seedingFormats,
-        seedingMap,
-        taskContext,
-        (api1, collectionId, outputFormat, tileMatrixSet, level, row, col) -> {
-          // skip collections without layer
-          if (!tileProvider.getData().getLayers().containsKey(collectionId)) {
-            return true;
-          }
+    // skip collections without layer
+    List<Range> ranges =
+        getRanges(api, seedingFormats, seedingMap).stream()
+            .filter(range -> tileProvider.getData().getLayers().containsKey(range.layer))
+            .collect(Collectors.toList());
+    Optional<TileSeedingJob> job =
+        getJob(api, "single-layer", tileProvider, ranges, shouldPruneFull(api), taskContext);
+
+    if (job.isEmpty()) {
+      return;
+    }
 
-          URI uri =
-              URI.create(
-                  String.format(
-                      "%s/%s/collections/%s/tiles/%s/%s/%s/%s",
-                      servicesUri,
-                      apiData.getId(),
+    TileSeedingJob seedingJob = job.get();
+    Map<String, TileArchiveWriter> writers =
+        archiveWriters.getOrDefault(seedingJob.getId(), Map.of());
+    // the status Full is not stored in tile archives, so the children have to be added, too
+    boolean pruneFull = shouldPruneFull(api) && writers.isEmpty();
+    boolean completed = false;
+
+    try {
+      completed =
+          seedingJob.work(
+              taskContext,
+              (range, level, row, col) -> {
+                String collectionId = range.layer;
+                TileFormatExtension outputFormat = range.outputFormat;
+                TileMatrixSet tileMatrixSet = range.tileMatrixSet;
+
+                TileQuery tile =
+                    getSingleLayerTileQuery(
+                        api, collectionId, outputFormat, tileMatrixSet, level, row, col);
+
+                taskContext.setStatusMessage(
+                    String.format(
+                        "currently processing -> %s, %s/%s/%s/%s, %s, skipped tiles: %d",
+                        collectionId,
+                        tileMatrixSet.getId(),
+                        level,
+                        row,
+                        col,
+                        outputFormat.getExtension(),
+                        seedingJob.getPruned()));
+
+                TileResult result = getTile(tileProvider, tile, taskContext::isStopped);
+
+                // the tile was not generated, because the task was stopped
+                if (result.isError() && !taskContext.isStopped()) {
+                  LOGGER.warn(
+                      "{}: processing failed -> {}, {}/{}/{}/{}, {} | {}",
+                      getLabel(),
                       collectionId,
                       tileMatrixSet.getId(),
                       level,
                       row,
-                      col));
-
-          ApiRequestContext requestContext =
-              new ImmutableRequestContext.Builder()
-                  .api(api)
-                  .requestUri(uri)
-                  .mediaType(outputFormat.getMediaType())
-                  .build();
-
-          TileQuery tileQuery =
-              ImmutableTileQuery.builder()
-                  .layer(collectionId)
-                  .mediaType(outputFormat.getMediaType().type())
-                  .tileMatrixSet(tileMatrixSet)
-                  .level(level)
-                  .row(row)
-                  .col(col)
-                  .build();
-          ImmutableTileQuery.Builder tileQueryBuilder =
-              ImmutableTileQuery.builder().from(tileQuery);
-          tileQueryBuilder
-              .generationParametersBuilder()
-              .clipBoundingBox(
-                  api1.getSpatialExtent(collectionId, tileQuery.getBoundingBox().getEpsgCrs()))
-              .propertyTransformations(
-                  api1.getData()
-                      .getCollectionData(collectionId)
-                      .flatMap(cd -> cd.getExtension(FeaturesCoreConfiguration.class))
-                      .map(
-                          pt ->
-                              pt.withSubstitutions(
-                                  FeaturesCoreProviders.DEFAULT_SUBSTITUTIONS.apply(
-                                      requestContext.getApiUri()))));
-
-          TileQuery tile = tileQueryBuilder.build();
-
-          taskContext.setStatusMessage(
-              String.format(
-                  "currently processing -> %s, %s/%s/%s/%s, %s",
-                  collectionId,
-                  tileMatrixSet.getId(),
-                  level,
-                  row,
-                  col,
-                  outputFormat.getExtension()));
-
-          TileResult result = tileProvider.getTile(tile);
-
-          if (result.isError()) {
-            LOGGER.warn(
-                "{}: processing failed -> {}, {}/{}/{}/{}, {} | {}",
-                getLabel(),
-                collectionId,
-                tileMatrixSet.getId(),
-                level,
-                row,
-                col,
-                outputFormat.getExtension(),
-                result.getError().get());
-          }
-
-          currentTile[0] += 1;
-          taskContext.setCompleteness(currentTile[0] / numberOfTiles);
-
-          return !taskContext.isStopped();
-        });
+                      col,
+                      outputFormat.getExtension(),
+                      result.getError().get());
+                }
+
+                TileArchiveWriter writer = writers.get(archiveKey(range));
+                if (Objects.nonNull(writer)) {
+                  writer.put(tile, result);
+                }
+
+                return nextVisit(result, pruneFull, taskContext::isStopped);
+              });
+    } finally {
+      finishArchives(seedingJob.getId(), completed);
+    }
   }
 
   private void seedMultiLayerTiles(
@@ -330,84 +352,176 @@ public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
             .filter(format -> tileProvider.generator().supports(format.getMediaType().type()))
             .collect(Collectors.toList());
 
-    long numberOfTiles = getNumberOfTiles(api, seedingFormats, seedingConfig, taskContext);
-    final double[] currentTile = {0.0};
-
-    walkTiles(
-        api,
-        DATASET_TILES,
-        seedingFormats,
-        seedingConfig,
-        taskContext,
-        (api1, layerName, outputFormat, tileMatrixSet, level, row, col) -> {
-          // skip collections without layer
-          if (!tileProvider.getData().getLayers().containsKey(DATASET_TILES)) {
-            return true;
-          }
+    // skip collections without layer
+    if (!tileProvider.getData().getLayers().containsKey(DATASET_TILES)) {
+      return;
+    }
 
-          URI uri =
-              URI.create(
-                  String.format(
-                      "%s/%s/tiles/%s/%s/%s/%s",
-                      servicesUri, apiData.getId(), tileMatrixSet.getId(), level, row, col));
-
-          ApiRequestContext requestContext =
-              new ImmutableRequestContext.Builder()
-                  .api(api)
-                  .requestUri(uri)
-                  .mediaType(outputFormat.getMediaType())
-                  .build();
-
-          TileQuery tileQuery =
-              ImmutableTileQuery.builder()
-                  .layer(layerName)
-                  .mediaType(outputFormat.getMediaType().type())
-                  .tileMatrixSet(tileMatrixSet)
-                  .level(level)
-                  .row(row)
-                  .col(col)
-                  .build();
-          ImmutableTileQuery.Builder tileQueryBuilder =
-              ImmutableTileQuery.builder().from(tileQuery);
-          tileQueryBuilder
-              .generationParametersBuilder()
-              .clipBoundingBox(api1.getSpatialExtent(tileQuery.getBoundingBox().getEpsgCrs()))
-              .propertyTransformations(
-                  api1.getData()
-                      .getExtension(FeaturesCoreConfiguration.class)
-                      .map(
-                          pt ->
-                              pt.withSubstitutions(
-                                  FeaturesCoreProviders.DEFAULT_SUBSTITUTIONS.apply(
-                                      requestContext.getApiUri()))));
-
-          TileQuery tile = tileQueryBuilder.build();
-
-          taskContext.setStatusMessage(
-              String.format(
-                  "currently processing -> %s, %s/%s/%s/%s, %s",
-                  layerName, tileMatrixSet.getId(), level, row, col, outputFormat.getExtension()));
-
-          TileResult result = tileProvider.getTile(tile);
-
-          if (result.isError()) {
-            LOGGER.warn(
-                "{}: processing failed -> {}, {}/{}/{}/{}, {} | {}",
-                getLabel(),
-                layerName,
+    List<Range> ranges = getRanges(api, DATASET_TILES, seedingFormats, seedingConfig);
+    Optional<TileSeedingJob> job =
+        getJob(api, "multi-layer", tileProvider, ranges, shouldPruneFull(api), taskContext);
+
+    if (job.isEmpty()) {
+      return;
+    }
+
+    TileSeedingJob seedingJob = job.get();
+    Map<String, TileArchiveWriter> writers =
+        archiveWriters.getOrDefault(seedingJob.getId(), Map.of());
+    // the status Full is not stored in tile archives, so the children have to be added, too
+    boolean pruneFull = shouldPruneFull(api) && writers.isEmpty();
+    boolean completed = false;
+
+    try {
+      completed =
+          seedingJob.work(
+              taskContext,
+              (range, level, row, col) -> {
+                String layerName = range.layer;
+                TileFormatExtension outputFormat = range.outputFormat;
+                TileMatrixSet tileMatrixSet = range.tileMatrixSet;
+
+                TileQuery tile =
+                    getMultiLayerTileQuery(api, outputFormat, tileMatrixSet, level, row, col);
+
+                taskContext.setStatusMessage(
+                    String.format(
+                        "currently processing -> %s, %s/%s/%s/%s, %s, skipped tiles: %d",
+                        layerName,
+                        tileMatrixSet.getId(),
+                        level,
+                        row,
+                        col,
+                        outputFormat.getExtension(),
+                        seedingJob.getPruned()));
+
+                TileResult result = getTile(tileProvider, tile, taskContext::isStopped);
+
+                // the tile was not generated, because the task was stopped
+                if (result.isError() && !taskContext.isStopped()) {
+                  LOGGER.warn(
+                      "{}: processing failed -> {}, {}/{}/{}/{}, {} | {}",
+                      getLabel(),
+                      layerName,
+                      tileMatrixSet.getId(),
+                      level,
+                      row,
+                      col,
+                      outputFormat.getExtension(),
+                      result.getError().get());
+                }
+
+                TileArchiveWriter writer = writers.get(archiveKey(range));
+                if (Objects.nonNull(writer)) {
+                  writer.put(tile, result);
+                }
+
+                return nextVisit(result, pruneFull, taskContext::isStopped);
+              });
+    } finally {
+      finishArchives(seedingJob.getId(), completed);
+    }
+  }
+
+  private TileQuery getSingleLayerTileQuery(
+      OgcApi api,
+      String collectionId,
+      TileFormatExtension outputFormat,
+      TileMatrixSet tileMatrixSet,
+      int level,
+      int row,
+      int col) {
+    OgcApiDataV2 apiData = api.getData();
+    URI uri =
+        URI.create(
+            String.format(
+                "%s/%s/collections/%s/tiles/%s/%s/%s/%s",
+                servicesUri,
+                apiData.getId(),
+                collectionId,
                 tileMatrixSet.getId(),
                 level,
                 row,
-                col,
-                outputFormat.getExtension(),
-                result.getError().get());
-          }
-
-          currentTile[0] += 1;
-          taskContext.setCompleteness(currentTile[0] / numberOfTiles);
+                col));
+
+    ApiRequestContext requestContext =
+        new ImmutableRequestContext.Builder()
+            .api(api)
+            .requestUri(uri)
+            .mediaType(outputFormat.getMediaType())
+            .build();
+
+    TileQuery tileQuery =
+        ImmutableTileQuery.builder()
+            .layer(collectionId)
+            .mediaType(outputFormat.getMediaType().type())
+            .tileMatrixSet(tileMatrixSet)
+            .level(level)
+            .row(row)
+            .col(col)
+            .build();
+    ImmutableTileQuery.Builder tileQueryBuilder = ImmutableTileQuery.builder().from(tileQuery);
+    tileQueryBuilder
+        .generationParametersBuilder()
+        .clipBoundingBox(
+            api.getSpatialExtent(collectionId, tileQuery.getBoundingBox().getEpsgCrs()))
+        .propertyTransformations(
+            api.getData()
+                .getCollectionData(collectionId)
+                .flatMap(cd -> cd.getExtension(FeaturesCoreConfiguration.class))
+                .map(
+                    pt ->
+                        pt.withSubstitutions(
+                            FeaturesCoreProviders.DEFAULT_SUBSTITUTIONS.apply(
+                                requestContext.getApiUri()))));
+
+    return tileQueryBuilder.build();
+  }
 
-          return !taskContext.isStopped();
-        });
+  private TileQuery getMultiLayerTileQuery(
+      OgcApi api,
+      TileFormatExtension outputFormat,
+      TileMatrixSet tileMatrixSet,
+      int level,
+      int row,
+      int col) {
+    OgcApiDataV2 apiData = api.getData();
+    URI uri =
+        URI.create(
+            String.format(
+                "%s/%s/tiles/%s/%s/%s/%s",
+                servicesUri, apiData.getId(), tileMatrixSet.getId(), level, row, col));
+
+    ApiRequestContext requestContext =
+        new ImmutableRequestContext.Builder()
+            .api(api)
+            .requestUri(uri)
+            .mediaType(outputFormat.getMediaType())
+            .build();
+
+    TileQuery tileQuery =
+        ImmutableTileQuery.builder()
+            .layer(DATASET_TILES)
+            .mediaType(outputFormat.getMediaType().type())
+            .tileMatrixSet(tileMatrixSet)
+            .level(level)
+            .row(row)
+            .col(col)
+            .build();
+    ImmutableTileQuery.Builder tileQueryBuilder = ImmutableTileQuery.builder().from(tileQuery);
+    tileQueryBuilder
+        .generationParametersBuilder()
+        .clipBoundingBox(api.getSpatialExtent(tileQuery.getBoundingBox().getEpsgCrs()))
+        .propertyTransformations(
+            api.getData()
+                .getExtension(FeaturesCoreConfiguration.class)
+                .map(
+                    pt ->
+                        pt.withSubstitutions(
+                            FeaturesCoreProviders.DEFAULT_SUBSTITUTIONS.apply(
+                                requestContext.getApiUri()))));
+
+    return tileQueryBuilder.build();
   }
 
   /**
@@ -433,119 +547,446 @@ public class TileSeedingBackgroundTask implements OgcApiBackgroundTask {
     return minMaxMap;
   }
 
-  private long getNumberOfTiles2(
+  private List<Range> getRanges(
       OgcApi api,
       List<TileFormatExtension> outputFormats,
-      Map<String, Map<String, MinMax>> seeding,
-      TaskContext taskContext) {
-    final long[] numberOfTiles = {0};
+      Map<String, Map<String, MinMax>> seeding) {
+    List<Range> ranges = new ArrayList<>();
 
-    try {
-      walkCollectionsAndTiles(
-          api,
-          outputFormats,
-          seeding,
-          taskContext,
-          (ignore1, collectionId, ignore2, ignore3, ignore4, ignore5, ignore6) -> {
-            numberOfTiles[0]++;
-            return true;
-          });
-    } catch (IOException e) {
-      // ignore
+    for (Map.Entry<String, Map<String, MinMax>> entry : seeding.entrySet()) {
+      String collectionId = entry.getKey();
+      Map<String, MinMax> seedingConfig = entry.getValue();
+      Optional<TilesConfiguration> tilesConfiguration =
+          getTilesConfiguration(api.getData(), collectionId);
+      if (tilesConfiguration.isPresent()) {
+        ranges.addAll(getRanges(api, collectionId, outputFormats, seedingConfig));
+      }
     }
 
-    return numberOfTiles[0];
+    return ranges;
   }
 
-  private long getNumberOfTiles(
+  private List<Range> getRanges(
       OgcApi api,
+      String layer,
       List<TileFormatExtension> outputFormats,
-      Map<String, MinMax> seeding,
+      Map<String, MinMax> seeding) {
+    List<Range> ranges = new ArrayList<>();
+
+    for (TileFormatExtension outputFormat : outputFormats) {
+      for (Map.Entry<String, MinMax> entry : seeding.entrySet()) {
+        TileMatrixSet tileMatrixSet = getTileMatrixSetById(entry.getKey());
+        MinMax zoomLevels = entry.getValue();
+        List<TileMatrixSetLimits> allLimits =
+            limitsGenerator.getTileMatrixSetLimits(
+                api, tileMatrixSet, zoomLevels, Optional.empty());
+
+        ranges.add(new Range(layer, outputFormat, tileMatrixSet, allLimits));
+      }
+    }
+
+    return ranges;
+  }
+
+  /**
+   * The first partial starts a new seeding job or resumes an interrupted one, the other partials
+   * join the job and steal blocks from each other.
+   *
+   * <p>If the tiles are cached in archives that are only written as a whole, a new job writes new
+   * archives and cannot resume an interrupted one.
+   *
+   * @return the job or empty, if no job was started within {@link #JOIN_TIMEOUT_MILLIS}
+   */
+  private Optional<TileSeedingJob> getJob(
+      OgcApi api,
+      String type,
+      TileProvider tileProvider,
+      List<Range> ranges,
+      boolean pruneFull,
       TaskContext taskContext) {
-    final long[] numberOfTiles = {0};
+    String jobId = String.format("%s/%s", api.getData().getId(), type);
+
+    if (!taskContext.isPartial() || taskContext.isFirstPartial()) {
+      return Optional.of(
+          jobs.compute(
+              jobId,
+              (id, job) -> {
+                if (Objects.nonNull(job) && job.isActive()) {
+                  return job;
+                }
+
+                Map<String, TileArchiveWriter> writers = getArchiveWriters(tileProvider, ranges);
+                Optional.ofNullable(archiveWriters.put(id, writers))
+                    .ifPresent(previous -> previous.values().forEach(TileArchiveWriter::abort));
+                Path progressFile = getProgressFile(api.getData(), type);
+
+                if (!writers.isEmpty()) {
+                  try {
+                    Files.deleteIfExists(progressFile);
+                  } catch (IOException e) {
+                    LOGGER.warn(
+                        "Failed to delete the seeding progress file '{}'. Reason: {}",
+                        progressFile,
+                        e.getMessage());
+                  }
+                }
+
+                try {
+                  return new TileSeedingJob(
+                      id, ranges, pruneFull && writers.isEmpty(), progressFile);
+                } catch (RuntimeException e) {
+                  // otherwise the open writers keep the layers blocked
+                  archiveWriters.remove(id, writers);
+                  writers.values().forEach(TileArchiveWriter::abort);
+                  throw e;
+                }
+              }));
+    }
+
+    long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+
+    while (!taskContext.isStopped() && System.currentTimeMillis() < deadline) {
+      TileSeedingJob job = jobs.get(jobId);
+      if (Objects.nonNull(job) && job.isActive()) {
+        return Optional.of(job);
+      }
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  private static Map<String, TileArchiveWriter> getArchiveWriters(
+      TileProvider tileProvider, List<Range> ranges) {
+    Map<String, TileArchiveWriter> writers = new HashMap<>();
 
     try {
-      walkTiles(
-          api,
-          "",
-          outputFormats,
-          seeding,
-          taskContext,
-          (ignore1, collectionId, ignore2, ignore3, ignore4, ignore5, ignore6) -> {
-            numberOfTiles[0]++;
-            return true;
-          });
-    } catch (IOException e) {
-      // ignore
+      for (Range range : ranges) {
+        if (!writers.containsKey(archiveKey(range))) {
+          tileProvider
+              .getArchiveWriter(
+                  range.layer, range.tileMatrixSet, range.outputFormat.getMediaType().type())
+              .ifPresent(writer -> writers.put(archiveKey(range), writer));
+        }
+      }
+    } catch (RuntimeException e) {
+      writers.values().forEach(TileArchiveWriter::abort);
+      throw e;
     }
 
-    return numberOfTiles[0];
+    return writers;
   }
 
-  interface TileWalker {
-    boolean visit(
-        OgcApi api,
-        String collectionId,
-        TileFormatExtension outputFormat,
-        TileMatrixSet tileMatrixSet,
-        int level,
-        int row,
-        int col)
-        throws IOException;
+  private static String archiveKey(Range range) {
+    return String.join("/", range.layer, range.tileMatrixSet.getId());
   }
 
-  private void walkCollectionsAndTiles(
-      OgcApi api,
-      List<TileFormatExtension> outputFormats,
-      Map<String, Map<String, MinMax>> seeding,
-      TaskContext taskContext,
-      TileWalker tileWalker)
-      throws IOException {
-    for (Map.Entry<String, Map<String, MinMax>> entry : seeding.entrySet()) {
-      String collectionId = entry.getKey();
-      Map<String, MinMax> seedingConfig = entry.getValue();
-      Optional<TilesConfiguration> tilesConfiguration =
-          getTilesConfiguration(api.getData(), collectionId);
-      if (tilesConfiguration.isPresent()) {
-        walkTiles(api, collectionId, outputFormats, seedingConfig, taskContext, tileWalker);
+  /**
+   * The archives are only written, if the job was completed, otherwise the previous archives are
+   * kept. Only the first partial that returns from the job finishes the archives.
+   */
+  private void finishArchives(String jobId, boolean completed) {
+    Map<String, TileArchiveWriter> writers = archiveWriters.remove(jobId);
+
+    if (Objects.isNull(writers)) {
+      return;
+    }
+
+    for (Map.Entry<String, TileArchiveWriter> entry : writers.entrySet()) {
+      if (!completed) {
+        entry.getValue().abort();
+        continue;
+      }
+      try {
+        entry.getValue().finish();
+      } catch (IOException e) {
+        LOGGER.warn(
+            "{}: failed to write the tile archive for {}. Reason: {}",
+            getLabel(),
+            entry.getKey(),
+            e.getMessage());
+        if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+          LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+        }
       }
     }
   }
 
-  private void walkTiles(
+  private Path getProgressFile(OgcApiDataV2 apiData, String type) {
+    return seedingDir.resolve(apiData.getId()).resolve(String.format("%s.progress", type));
+  }
+
+  private void deleteProgress(OgcApiDataV2 apiData) {
+    for (String type : List.of("multi-layer", "single-layer")) {
+      try {
+        Files.deleteIfExists(getProgressFile(apiData, type));
+      } catch (IOException e) {
+        LOGGER.warn(
+            "Failed to delete the seeding progress file '{}'. Reason: {}",
+            getProgressFile(apiData, type),
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Background tasks do not give up, if the tile generation is overloaded by requests, they wait
+   * until the generation of the tile has been accepted or the task is stopped.
+   */
+  private static TileResult getTile(
+      TileProvider tileProvider, TileQuery tile, BooleanSupplier isStopped) {
+    while (true) {
+      try {
+        return tileProvider.getTile(tile);
+      } catch (ServiceUnavailableException e) {
+        if (isStopped.getAsBoolean()) {
+          return TileResult.error("Stopped while waiting for tile generation.");
+        }
+        Date retryTime = e.getRetryTime(new Date());
+        long delay =
+            Objects.nonNull(retryTime)
+                ? Math.max(0, retryTime.getTime() - System.currentTimeMillis())
+                : RETRY_DELAY_MILLIS;
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return TileResult.error("Interrupted while waiting for tile generation.");
+        }
+      }
+    }
+  }
+
+  static Visit nextVisit(TileResult result, boolean pruneFull, BooleanSupplier isStopped) {
+    if (isStopped.getAsBoolean()) {
+      return Visit.STOP;
+    }
+    if (result.isEmpty() || (pruneFull && result.isFull())) {
+      return Visit.PRUNE;
+    }
+    return Visit.NEXT;
+  }
+
+  /**
+   * Seeds the tiles again that were deleted after a change of features. The tiles are generated by
+   * a single thread with low priority, one after another. Tiles that are requested before are
+   * generated by the request as usual.
+   */
+  private void reseedTiles(OgcApi api, String collectionId, Optional<BoundingBox> boundingBox) {
+    if (!isEnabledForApi(api.getData()) || !shouldReseedOnChange(api)) {
+      return;
+    }
+
+    reseedingExecutor.execute(
+        () -> {
+          try {
+            reseed(api, collectionId, boundingBox);
+          } catch (Throwable e) {
+            LOGGER.warn(
+                "Failed to seed the tiles of collection '{}' after a change. Reason: {}",
+                collectionId,
+                e.getMessage());
+            if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+              LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+            }
+          }
+        });
+  }
+
+  private void reseed(OgcApi api, String collectionId, Optional<BoundingBox> boundingBox)
+      throws IOException {
+    OgcApiDataV2 apiData = api.getData();
+
+    // a running seeding generates the tiles anyway
+    if (isSeeding(apiData)) {
+      return;
+    }
+
+    TileProvider tileProvider = tilesProviders.getTileProviderOrThrow(apiData);
+
+    // tile archives are only replaced by the seeding, so there are no deleted tiles
+    if (!hasDeletableCache(tileProvider)) {
+      return;
+    }
+
+    List<TileFormatExtension> seedingFormats =
+        extensionRegistry.getExtensionsForType(TileFormatExtension.class).stream()
+            .filter(format -> tileProvider.generator().supports(format.getMediaType().type()))
+            .collect(Collectors.toList());
+    Map<String, MinMax> multiLayerSeeding =
+        apiData
+            .getExtension(TilesConfiguration.class)
+            .filter(TilesConfiguration::isMultiCollectionEnabled)
+            .map(TilesConfiguration::getEffectiveSeeding)
+            .orElse(Map.of());
+    Map<String, MinMax> singleLayerSeeding =
+        getSeedingConfig(apiData).getOrDefault(collectionId, Map.of());
+    boolean pruneFull = shouldPruneFull(api);
+    // the reseeding stops, if a seeding is started or if the tile provider is stopped or replaced
+    BooleanSupplier isStopped =
+        () ->
+            Thread.currentThread().isInterrupted()
+                || isSeeding(apiData)
+                || tilesProviders
+                    .getTileProvider(apiData)
+                    .filter(current -> current == tileProvider)
+                    .isEmpty();
+    long tiles = 0;
+
+    if (tileProvider.getData().getLayers().containsKey(DATASET_TILES)) {
+      tiles +=
+          reseed(
+              String.format("%s/reseed-multi-layer", apiData.getId()),
+              getReseedingRanges(
+                  api, DATASET_TILES, seedingFormats, multiLayerSeeding, boundingBox),
+              pruneFull,
+              isStopped,
+              tileProvider,
+              (range, level, row, col) ->
+                  getMultiLayerTileQuery(
+                      api, range.outputFormat, range.tileMatrixSet, level, row, col));
+    }
+
+    if (tileProvider.getData().getLayers().containsKey(collectionId)) {
+      tiles +=
+          reseed(
+              String.format("%s/reseed-single-layer", apiData.getId()),
+              getReseedingRanges(
+                  api, collectionId, seedingFormats, singleLayerSeeding, boundingBox),
+              pruneFull,
+              isStopped,
+              tileProvider,
+              (range, level, row, col) ->
+                  getSingleLayerTileQuery(
+                      api,
+                      collectionId,
+                      range.outputFormat,
+                      range.tileMatrixSet,
+                      level,
+                      row,
+                      col));
+    }
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(
+          "Seeded {} tiles of collection '{}' after a change{}",
+          tiles,
+          collectionId,
+          isStopped.getAsBoolean() ? ", stopped before completion" : "");
+    }
+  }
+
+  interface TileQueryFactory {
+    TileQuery get(Range range, int level, int row, int col);
+  }
+
+  /**
+   * The tiles are visited top-down like in the seeding, the children of empty tiles and, if
+   * enabled, of full tiles are skipped.
+   *
+   * @return the number of tiles that were processed
+   */
+  private long reseed(
+      String id,
+      List<Range> ranges,
+      boolean pruneFull,
+      BooleanSupplier isStopped,
+      TileProvider tileProvider,
+      TileQueryFactory tileQueryFactory)
+      throws IOException {
+    if (ranges.isEmpty()) {
+      return 0;
+    }
+
+    TileSeedingJob job = new TileSeedingJob(id, ranges, pruneFull);
+
+    job.work(
+        isStopped,
+        completeness -> {},
+        (range, level, row, col) -> {
+          TileResult result =
+              getTile(tileProvider, tileQueryFactory.get(range, level, row, col), isStopped);
+
+          // the tile was not generated, because the reseeding was stopped
+          if (result.isError() && !isStopped.getAsBoolean()) {
+            LOGGER.warn(
+                "{}: processing failed -> {}, {}/{}/{}/{}, {} | {}",
+                getLabel(),
+                range.layer,
+                range.tileMatrixSet.getId(),
+                level,
+                row,
+                col,
+                range.outputFormat.getExtension(),
+                result.getError().get());
+          }
+
+          return nextVisit(result, pruneFull, isStopped);
+        });
+
+    return job.getProcessed();
+  }
+
+  private boolean isSeeding(OgcApiDataV2 apiData) {
+    String jobPrefix = String.format("%s/", apiData.getId());
+
+    return jobs.values().stream()
+        .anyMatch(job -> job.isActive() && job.getId().startsWith(jobPrefix));
+  }
+
+  private static boolean hasDeletableCache(TileProvider tileProvider) {
+    if (!(tileProvider.getData() instanceof WithCaches)) {
+      return false;
+    }
+
+    return ((WithCaches) tileProvider.getData())
+        .getCaches().stream().anyMatch(cache -> cache.getStorage() != Storage.PMTILES);
+  }
+
+  private List<Range> getReseedingRanges(
       OgcApi api,
-      String collectionId,
+      String layer,
       List<TileFormatExtension> outputFormats,
       Map<String, MinMax> seeding,
-      TaskContext taskContext,
-      TileWalker tileWalker)
-      throws IOException {
+      Optional<BoundingBox> boundingBox) {
+    List<Range> ranges = new ArrayList<>();
+
     for (TileFormatExtension outputFormat : outputFormats) {
       for (Map.Entry<String, MinMax> entry : seeding.entrySet()) {
         TileMatrixSet tileMatrixSet = getTileMatrixSetById(entry.getKey());
-        MinMax zoomLevels = entry.getValue();
         List<TileMatrixSetLimits> allLimits =
-            limitsGenerator.getTileMatrixSetLimits(
-                api, tileMatrixSet, zoomLevels, Optional.empty());
+            boundingBox.isPresent()
+                ? limitsGenerator.getTileMatrixSetLimits(
+                    boundingBox.get(), tileMatrixSet, entry.getValue())
+                : limitsGenerator.getTileMatrixSetLimits(
+                    api, tileMatrixSet, entry.getValue(), Optional.empty());
 
-        for (TileMatrixSetLimits limits : allLimits) {
-          int level = Integer.parseInt(limits.getTileMatrix());
-
-          for (int row = limits.getMinTileRow(); row <= limits.getMaxTileRow(); row++) {
-            for (int col = limits.getMinTileCol(); col <= limits.getMaxTileCol(); col++) {
-              if (taskContext.isPartial() && !taskContext.matchesPartialModulo(col)) {
-                continue;
-              }
-              boolean shouldContinue =
-                  tileWalker.visit(api, collectionId, outputFormat, tileMatrixSet, level, row, col);
-              if (!shouldContinue) {
-                return;
-              }
-            }
-          }
-        }
+        ranges.add(new Range(layer, outputFormat, tileMatrixSet, allLimits));
       }
     }
+
+    return ranges;
+  }
+
+  private boolean shouldReseedOnChange(OgcApi api) {
+    return api.getData()
+        .getExtension(TilesConfiguration.class)
+        .flatMap(TilesConfiguration::getSeedingOptions)
+        .map(SeedingOptions::shouldReseedOnChange)
+        .orElse(false);
+  }
+
+  private boolean shouldPruneFull(OgcApi api) {
+    return api.getData()
+        .getExtension(TilesConfiguration.class)
+        .flatMap(TilesConfiguration::getSeedingOptions)
+        .filter(SeedingOptions::shouldPruneFull)
+        .isPresent();
   }
 
   private Optional<TilesConfiguration> getTilesConfiguration(
@@ -0,0 +1,679 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app;
+
+import com.google.common.hash.Hashing;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
+import de.ii.ogcapi.tiles.domain.TileFormatExtension;
+import de.ii.xtraplatform.base.domain.LogContext;
+import de.ii.xtraplatform.services.domain.TaskContext;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A seeding run for a list of tile ranges, that is shared by the partials of the seeding task.
+ *
+ * <p>The tiles are split into blocks of 16x16 tiles. Every partial takes the blocks from its own
+ * queue and steals blocks from the shared queue or from other partials, when its own queue is
+ * empty. If each tile has four children at the next level, only the blocks of the first level are
+ * queued initially and processing a block queues the blocks with the children of the tiles that
+ * were not pruned.
+ *
+ * <p>The queued and completed blocks are written to a progress file, so that an interrupted run
+ * resumes with the incomplete blocks, as long as the seeding configuration did not change.
+ */
+class TileSeedingJob {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileSeedingJob.class);
+
+  static final int BLOCK_SIZE = 16;
+  private static final long ALL_PARENTS = -1L;
+  private static final long IDLE_MILLIS = 10;
+
+  enum Visit {
+    // continue with the children of the tile
+    NEXT,
+    // skip the children of the tile
+    PRUNE,
+    // stop the walk
+    STOP
+  }
+
+  interface TileVisitor {
+    Visit visit(Range range, int level, int row, int col) throws IOException;
+  }
+
+  /** The tiles of one layer, format and tile matrix set that should be seeded. */
+  static class Range {
+    final String layer;
+    final TileFormatExtension outputFormat;
+    final TileMatrixSet tileMatrixSet;
+    final NavigableMap<Integer, TileMatrixSetLimits> limits;
+    final boolean quadtree;
+
+    Range(
+        String layer,
+        TileFormatExtension outputFormat,
+        TileMatrixSet tileMatrixSet,
+        List<TileMatrixSetLimits> allLimits) {
+      this.layer = layer;
+      this.outputFormat = outputFormat;
+      this.tileMatrixSet = tileMatrixSet;
+      this.limits = new TreeMap<>();
+
+      for (TileMatrixSetLimits levelLimits : allLimits) {
+        limits.put(Integer.parseInt(levelLimits.getTileMatrix()), levelLimits);
+      }
+
+      this.quadtree = isQuadtree();
+    }
+
+    private boolean isQuadtree() {
+      if (limits.isEmpty()) {
+        return false;
+      }
+      for (int level = limits.firstKey(); level < limits.lastKey(); level++) {
+        if (!limits.containsKey(level)
+            || tileMatrixSet.getCols(level + 1) != 2 * tileMatrixSet.getCols(level)
+            || tileMatrixSet.getRows(level + 1) != 2 * tileMatrixSet.getRows(level)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return the number of tiles within the limits below the given tiles at the more detailed
+     *     levels
+     */
+    long countDescendants(int level, int minRow, int maxRow, int minCol, int maxCol) {
+      long descendants = 0;
+
+      for (Map.Entry<Integer, TileMatrixSetLimits> entry :
+          limits.tailMap(level, false).entrySet()) {
+        int diff = entry.getKey() - level;
+        TileMatrixSetLimits levelLimits = entry.getValue();
+        long rows =
+            Math.min((((long) maxRow + 1) << diff) - 1, levelLimits.getMaxTileRow())
+                - Math.max((long) minRow << diff, levelLimits.getMinTileRow())
+                + 1;
+        long cols =
+            Math.min((((long) maxCol + 1) << diff) - 1, levelLimits.getMaxTileCol())
+                - Math.max((long) minCol << diff, levelLimits.getMinTileCol())
+                + 1;
+        descendants += Math.max(0, rows) * Math.max(0, cols);
+      }
+
+      return descendants;
+    }
+
+    String describe() {
+      StringBuilder description =
+          new StringBuilder()
+              .append(layer)
+              .append('|')
+              .append(outputFormat.getExtension())
+              .append('|')
+              .append(tileMatrixSet.getId());
+      limits.forEach(
+          (level, levelLimits) ->
+              description
+                  .append('|')
+                  .append(level)
+                  .append(':')
+                  .append(levelLimits.getMinTileRow())
+                  .append(',')
+                  .append(levelLimits.getMaxTileRow())
+                  .append(',')
+                  .append(levelLimits.getMinTileCol())
+                  .append(',')
+                  .append(levelLimits.getMaxTileCol()));
+      return description.toString();
+    }
+  }
+
+  /**
+   * A block of up to 16x16 tiles. The parents are a bit mask of the 8x8 tiles at the previous level
+   * that cover the block, only the children of the parents in the mask are visited.
+   */
+  static class Block {
+    final int range;
+    final int level;
+    final int blockRow;
+    final int blockCol;
+    final long parents;
+
+    Block(int range, int level, int blockRow, int blockCol, long parents) {
+      this.range = range;
+      this.level = level;
+      this.blockRow = blockRow;
+      this.blockCol = blockCol;
+      this.parents = parents;
+    }
+
+    String key() {
+      return String.format("%d/%d/%d/%d", range, level, blockRow, blockCol);
+    }
+
+    static Block parse(String key, String parents) {
+      String[] parts = key.split("/");
+      return new Block(
+          Integer.parseInt(parts[0]),
+          Integer.parseInt(parts[1]),
+          Integer.parseInt(parts[2]),
+          Integer.parseInt(parts[3]),
+          Long.parseUnsignedLong(parents, 16));
+    }
+  }
+
+  private final String id;
+  private final List<Range> ranges;
+  // null, if the progress is not recorded
+  private final Path progressFile;
+  private final Deque<Block> shared;
+  private final List<Deque<Block>> workers;
+  private final AtomicLong pending;
+  private final AtomicLong processed;
+  private final AtomicLong pruned;
+  private final AtomicBoolean finished;
+  private final AtomicBoolean stopped;
+  private final long total;
+  private BufferedWriter progressWriter;
+
+  /** A job without a progress file, an interrupted run cannot be resumed. */
+  TileSeedingJob(String id, List<Range> ranges, boolean pruneFull) {
+    this(id, ranges, pruneFull, null);
+  }
+
+  TileSeedingJob(String id, List<Range> ranges, boolean pruneFull, Path progressFile) {
+    this.id = id;
+    this.ranges = ranges;
+    this.progressFile = progressFile;
+    this.shared = new ConcurrentLinkedDeque<>();
+    this.workers = new CopyOnWriteArrayList<>();
+    this.processed = new AtomicLong();
+    this.pruned = new AtomicLong();
+    this.finished = new AtomicBoolean(false);
+    this.stopped = new AtomicBoolean(false);
+
+    String fingerprint = fingerprint(ranges, pruneFull);
+    Map<String, Block> blocks = new LinkedHashMap<>();
+
+    for (int i = 0; i < ranges.size(); i++) {
+      addInitialBlocks(i, blocks);
+    }
+
+    Set<String> initialBlocks = Set.copyOf(blocks.keySet());
+    boolean resumed = resume(fingerprint, blocks);
+    long estimate = 0;
+
+    for (Block block : blocks.values()) {
+      shared.add(block);
+      estimate += estimate(block);
+    }
+
+    this.pending = new AtomicLong(shared.size());
+    this.total = estimate;
+
+    if (resumed && LOGGER.isDebugEnabled()) {
+      LOGGER.debug(
+          "Resuming tile seeding '{}' with {} incomplete blocks, about {} tiles",
+          id,
+          shared.size(),
+          total);
+    }
+
+    openProgressFile(fingerprint, initialBlocks, blocks, resumed);
+  }
+
+  String getId() {
+    return id;
+  }
+
+  long getTotal() {
+    return total;
+  }
+
+  long getProcessed() {
+    return processed.get();
+  }
+
+  long getPruned() {
+    return pruned.get();
+  }
+
+  /**
+   * @return false, if the job was completed or stopped
+   */
+  boolean isActive() {
+    return !finished.get() && !stopped.get();
+  }
+
+  double getCompleteness() {
+    return total > 0 ? Math.min(1.0, (double) (processed.get() + pruned.get()) / total) : 1.0;
+  }
+
+  /**
+   * Processes blocks until all blocks are completed or the task is stopped.
+   *
+   * @return false, if the task was stopped
+   */
+  boolean work(TaskContext taskContext, TileVisitor visitor) throws IOException {
+    return work(taskContext::isStopped, taskContext::setCompleteness, visitor);
+  }
+
+  /**
+   * Processes blocks until all blocks are completed or the stop check is true.
+   *
+   * @return false, if the work was stopped
+   */
+  boolean work(BooleanSupplier isStopped, DoubleConsumer onProgress, TileVisitor visitor)
+      throws IOException {
+    Deque<Block> own = new ConcurrentLinkedDeque<>();
+    workers.add(own);
+    boolean completed = false;
+
+    try {
+      while (!isStopped.getAsBoolean() && !stopped.get()) {
+        Block block = next(own);
+
+        if (Objects.isNull(block)) {
+          if (pending.get() == 0) {
+            completed = true;
+            finish();
+            return true;
+          }
+          try {
+            Thread.sleep(IDLE_MILLIS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+          continue;
+        }
+
+        List<Block> children = process(block, visitor, isStopped, onProgress);
+
+        if (Objects.isNull(children)) {
+          // the block is not completed, it will be processed again when the seeding is resumed
+          return false;
+        }
+
+        pending.addAndGet(children.size());
+        // depth-first, the children are processed next by the same partial, unless stolen
+        children.forEach(own::push);
+        record(block, children);
+        pending.decrementAndGet();
+      }
+    } finally {
+      workers.remove(own);
+      // the queued blocks are lost, so the job cannot be continued by other partials
+      if (!completed) {
+        stop();
+      }
+    }
+
+    return false;
+  }
+
+  private Block next(Deque<Block> own) {
+    Block block = own.poll();
+    if (Objects.nonNull(block)) {
+      return block;
+    }
+
+    block = shared.poll();
+    if (Objects.nonNull(block)) {
+      return block;
+    }
+
+    // steal the oldest block, that is the one with the largest subtree
+    for (Deque<Block> other : workers) {
+      if (other != own) {
+        block = other.pollLast();
+        if (Objects.nonNull(block)) {
+          return block;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the child blocks or null, if the task was stopped
+   */
+  private List<Block> process(
+      Block block, TileVisitor visitor, BooleanSupplier isStopped, DoubleConsumer onProgress)
+      throws IOException {
+    Range range = ranges.get(block.range);
+    TileMatrixSetLimits limits = range.limits.get(block.level);
+    int rowOffset = block.blockRow * BLOCK_SIZE;
+    int colOffset = block.blockCol * BLOCK_SIZE;
+    int minRow = Math.max(rowOffset, limits.getMinTileRow());
+    int maxRow = Math.min(rowOffset + BLOCK_SIZE - 1, limits.getMaxTileRow());
+    int minCol = Math.max(colOffset, limits.getMinTileCol());
+    int maxCol = Math.min(colOffset + BLOCK_SIZE - 1, limits.getMaxTileCol());
+    // the tiles of the block that were not pruned, one bit per tile
+    long[] next = new long[BLOCK_SIZE * BLOCK_SIZE / Long.SIZE];
+
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int col = minCol; col <= maxCol; col++) {
+        int r = row - rowOffset;
+        int c = col - colOffset;
+        if ((block.parents & (1L << ((r >> 1) * 8 + (c >> 1)))) == 0) {
+          continue;
+        }
+
+        if (isStopped.getAsBoolean()) {
+          return null;
+        }
+
+        Visit visit = visitor.visit(range, block.level, row, col);
+        processed.incrementAndGet();
+        onProgress.accept(getCompleteness());
+
+        if (visit == Visit.STOP) {
+          return null;
+        }
+        if (visit == Visit.PRUNE) {
+          pruned.addAndGet(range.countDescendants(block.level, row, row, col, col));
+          continue;
+        }
+
+        int index = r * BLOCK_SIZE + c;
+        next[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+      }
+    }
+
+    return children(block, range, next);
+  }
+
+  private static List<Block> children(Block block, Range range, long[] next) {
+    List<Block> children = new ArrayList<>();
+    TileMatrixSetLimits childLimits = range.limits.get(block.level + 1);
+
+    if (!range.quadtree || Objects.isNull(childLimits)) {
+      return children;
+    }
+
+    for (int quadrantRow = 0; quadrantRow < 2; quadrantRow++) {
+      for (int quadrantCol = 0; quadrantCol < 2; quadrantCol++) {
+        long parents = 0;
+        for (int r = 0; r < 8; r++) {
+          for (int c = 0; c < 8; c++) {
+            int index = (quadrantRow * 8 + r) * BLOCK_SIZE + quadrantCol * 8 + c;
+            if ((next[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0) {
+              parents |= 1L << (r * 8 + c);
+            }
+          }
+        }
+
+        Block child =
+            new Block(
+                block.range,
+                block.level + 1,
+                block.blockRow * 2 + quadrantRow,
+                block.blockCol * 2 + quadrantCol,
+                parents);
+
+        if (parents != 0 && intersects(child, childLimits)) {
+          children.add(child);
+        }
+      }
+    }
+
+    return children;
+  }
+
+  private static boolean intersects(Block block, TileMatrixSetLimits limits) {
+    int minRow = block.blockRow * BLOCK_SIZE;
+    int minCol = block.blockCol * BLOCK_SIZE;
+    return minRow <= limits.getMaxTileRow()
+        && minRow + BLOCK_SIZE - 1 >= limits.getMinTileRow()
+        && minCol <= limits.getMaxTileCol()
+        && minCol + BLOCK_SIZE - 1 >= limits.getMinTileCol();
+  }
+
+  private void addInitialBlocks(int rangeIndex, Map<String, Block> blocks) {
+    Range range = ranges.get(rangeIndex);
+    if (range.limits.isEmpty()) {
+      return;
+    }
+
+    // for a quadtree the blocks of the more detailed levels are queued while seeding
+    Iterable<TileMatrixSetLimits> levels =
+        range.quadtree
+            ? List.of(range.limits.firstEntry().getValue())
+            : range.limits.values();
+
+    for (TileMatrixSetLimits limits : levels) {
+      int level = Integer.parseInt(limits.getTileMatrix());
+      for (int blockRow = limits.getMinTileRow() / BLOCK_SIZE;
+          blockRow <= limits.getMaxTileRow() / BLOCK_SIZE;
+          blockRow++) {
+        for (int blockCol = limits.getMinTileCol() / BLOCK_SIZE;
+            blockCol <= limits.getMaxTileCol() / BLOCK_SIZE;
+            blockCol++) {
+          Block block = new Block(rangeIndex, level, blockRow, blockCol, ALL_PARENTS);
+          blocks.put(block.key(), block);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of tiles within the limits in the block and, for a quadtree, below it
+   */
+  private long estimate(Block block) {
+    Range range = ranges.get(block.range);
+    TileMatrixSetLimits limits = range.limits.get(block.level);
+    int minRow = Math.max(block.blockRow * BLOCK_SIZE, limits.getMinTileRow());
+    int maxRow = Math.min(block.blockRow * BLOCK_SIZE + BLOCK_SIZE - 1, limits.getMaxTileRow());
+    int minCol = Math.max(block.blockCol * BLOCK_SIZE, limits.getMinTileCol());
+    int maxCol = Math.min(block.blockCol * BLOCK_SIZE + BLOCK_SIZE - 1, limits.getMaxTileCol());
+    long tiles =
+        Math.max(0L, (long) maxRow - minRow + 1) * Math.max(0L, (long) maxCol - minCol + 1);
+
+    return range.quadtree
+        ? tiles + range.countDescendants(block.level, minRow, maxRow, minCol, maxCol)
+        : tiles;
+  }
+
+  /**
+   * Replays the progress file of an interrupted run with the same fingerprint.
+   *
+   * @return true, if the blocks were replaced with the incomplete blocks of the interrupted run
+   */
+  private boolean resume(String fingerprint, Map<String, Block> blocks) {
+    if (Objects.isNull(progressFile) || !Files.exists(progressFile)) {
+      return false;
+    }
+
+    try {
+      List<String> lines = Files.readAllLines(progressFile, StandardCharsets.UTF_8);
+      if (lines.isEmpty() || !Objects.equals(lines.get(0), "fingerprint " + fingerprint)) {
+        return false;
+      }
+
+      Map<String, Block> incomplete = new LinkedHashMap<>(blocks);
+
+      for (Iterator<String> iterator = lines.listIterator(1); iterator.hasNext(); ) {
+        String[] line = iterator.next().split(" ");
+        if (line.length == 3 && Objects.equals(line[0], "push")) {
+          incomplete.put(line[1], Block.parse(line[1], line[2]));
+        } else if (line.length == 2 && Objects.equals(line[0], "done")) {
+          incomplete.remove(line[1]);
+        }
+        // an incomplete last line is ignored
+      }
+
+      // a completed run is not resumed, the next run starts over
+      if (incomplete.isEmpty()) {
+        return false;
+      }
+
+      blocks.clear();
+      blocks.putAll(incomplete);
+
+      return true;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn(
+          "Failed to read the progress of tile seeding '{}', starting over. Reason: {}",
+          id,
+          e.getMessage());
+      if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+        LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A resumed run starts a new progress file, that is replayed like the file of the first run: the
+   * initial blocks that were completed before are marked as done and the incomplete blocks are
+   * queued again.
+   */
+  private synchronized void openProgressFile(
+      String fingerprint, Set<String> initialBlocks, Map<String, Block> blocks, boolean resumed) {
+    if (Objects.isNull(progressFile)) {
+      return;
+    }
+
+    try {
+      Files.createDirectories(progressFile.getParent());
+      this.progressWriter =
+          Files.newBufferedWriter(
+              progressFile,
+              StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+      // the resumed state is written as a new file, so that it does not grow with every resume
+      progressWriter.write("fingerprint " + fingerprint);
+      progressWriter.newLine();
+      if (resumed) {
+        for (String key : initialBlocks) {
+          if (!blocks.containsKey(key)) {
+            writeDone(key);
+          }
+        }
+        for (Block block : blocks.values()) {
+          writePush(block);
+        }
+      }
+      progressWriter.flush();
+    } catch (IOException e) {
+      disableProgress(e);
+    }
+  }
+
+  private synchronized void record(Block block, List<Block> children) {
+    if (Objects.isNull(progressWriter)) {
+      return;
+    }
+
+    try {
+      for (Block child : children) {
+        writePush(child);
+      }
+      writeDone(block.key());
+      progressWriter.flush();
+    } catch (IOException e) {
+      disableProgress(e);
+    }
+  }
+
+  private void writePush(Block block) throws IOException {
+    progressWriter.write("push " + block.key() + " " + Long.toHexString(block.parents));
+    progressWriter.newLine();
+  }
+
+  private void writeDone(String key) throws IOException {
+    progressWriter.write("done " + key);
+    progressWriter.newLine();
+  }
+
+  private void disableProgress(IOException e) {
+    LOGGER.warn(
+        "Failed to write the progress of tile seeding '{}', an interrupted run will start over. Reason: {}",
+        id,
+        e.getMessage());
+    if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+      LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+    }
+    closeProgressFile();
+  }
+
+  private void finish() {
+    if (finished.compareAndSet(false, true)) {
+      closeProgressFile();
+      try {
+        if (Objects.nonNull(progressFile)) {
+          Files.deleteIfExists(progressFile);
+        }
+      } catch (IOException e) {
+        // ignore, a completed run is not resumed
+      }
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug(
+            "Tile seeding '{}' finished, processed tiles: {}, skipped tiles: {}",
+            id,
+            processed.get(),
+            pruned.get());
+      }
+    }
+  }
+
+  private void stop() {
+    if (stopped.compareAndSet(false, true)) {
+      closeProgressFile();
+    }
+  }
+
+  private synchronized void closeProgressFile() {
+    if (Objects.nonNull(progressWriter)) {
+      try {
+        progressWriter.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      this.progressWriter = null;
+    }
+  }
+
+  @SuppressWarnings("UnstableApiUsage")
+  private static String fingerprint(List<Range> ranges, boolean pruneFull) {
+    StringBuilder description = new StringBuilder().append(pruneFull);
+    ranges.forEach(range -> description.append('\n').append(range.describe()));
+
+    return Hashing.murmur3_128().hashString(description, StandardCharsets.UTF_8).toString();
+  }
+}
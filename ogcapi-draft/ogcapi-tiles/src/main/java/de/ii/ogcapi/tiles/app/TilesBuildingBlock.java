@@ -771,6 +771,7 @@ public class TilesBuildingBlock implements ApiBuildingBlock {
                 .featureLimit(tilesConfiguration.getLimitDerived())
                 .minimumSizeInPixel(tilesConfiguration.getMinimumSizeInPixelDerived())
                 .ignoreInvalidGeometries(tilesConfiguration.isIgnoreInvalidGeometriesDerived())
+                .metatileSize(tilesConfiguration.getMetatileSizeDerived())
                 .build())
         .putAllLayers(
             tilesConfiguration.isMultiCollectionEnabled()
@@ -816,6 +817,14 @@ public class TilesBuildingBlock implements ApiBuildingBlock {
               .putAllLevels(
                   tilesConfiguration.getZoomLevelsDerived()) // TODO: per collection/layer?
               .build());
+    } else if (Objects.equals(tilesConfiguration.getCache(), TileCacheType.PMTILES)) {
+      return List.of(
+          new ImmutableCache.Builder()
+              .type(Type.DYNAMIC)
+              .storage(Storage.PMTILES)
+              .putAllLevels(
+                  tilesConfiguration.getZoomLevelsDerived()) // TODO: per collection/layer?
+              .build());
     }
 
     return List.of();
@@ -841,6 +850,7 @@ public class TilesBuildingBlock implements ApiBuildingBlock {
         .featureLimit(cfg.getLimitDerived())
         .minimumSizeInPixel(cfg.getMinimumSizeInPixelDerived())
         .ignoreInvalidGeometries(cfg.isIgnoreInvalidGeometriesDerived())
+        .metatileSize(cfg.getMetatileSizeDerived())
         .build();
   }
 
@@ -850,21 +860,11 @@ public class TilesBuildingBlock implements ApiBuildingBlock {
       for (String featureType : change.getFeatureTypes()) {
         String collectionId = getCollectionId(api.getData().getCollections().values(), featureType);
 
-        try {
-          tilesProviders.deleteTiles(
-              api, Optional.of(collectionId), Optional.empty(), Optional.empty());
-        } catch (Exception e) {
-          if (LOGGER.isErrorEnabled()) {
-            LOGGER.error(
-                "Error while deleting tiles from the tile cache after a dataset change.", e);
-          }
-        }
-        ;
+        tilesProviders.invalidateTiles(api, collectionId, Optional.empty());
       }
     };
   }
 
-  // TODO: seeding not triggered?
   private FeatureChangeListener onFeatureChange(OgcApi api) {
     return change -> {
       String collectionId =
@@ -875,18 +875,7 @@ public class TilesBuildingBlock implements ApiBuildingBlock {
           change
               .getBoundingBox()
               .ifPresent(
-                  bbox -> {
-                    try {
-                      tilesProviders.deleteTiles(
-                          api, Optional.of(collectionId), Optional.empty(), Optional.of(bbox));
-                    } catch (Exception e) {
-                      if (LOGGER.isErrorEnabled()) {
-                        LOGGER.error(
-                            "Error while deleting tiles from the tile cache after a feature change.",
-                            e);
-                      }
-                    }
-                  });
+                  bbox -> tilesProviders.invalidateTiles(api, collectionId, Optional.of(bbox)));
           break;
         case DELETE:
           // TODO we would need the extent of the deleted feature to update the cache
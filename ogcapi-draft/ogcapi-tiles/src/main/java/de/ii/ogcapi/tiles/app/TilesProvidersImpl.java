@@ -20,9 +20,11 @@ import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimitsGenerator;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetRepository;
+import de.ii.ogcapi.tiles.domain.SeedingOptions;
 import de.ii.ogcapi.tiles.domain.TilesConfiguration;
 import de.ii.ogcapi.tiles.domain.TilesProviders;
 import de.ii.ogcapi.tiles.domain.provider.TileProvider;
+import de.ii.xtraplatform.base.domain.LogContext;
 import de.ii.xtraplatform.crs.domain.BoundingBox;
 import de.ii.xtraplatform.store.domain.entities.EntityRegistry;
 import java.util.AbstractMap.SimpleImmutableEntry;
@@ -31,6 +33,13 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -42,10 +51,16 @@ import org.slf4j.LoggerFactory;
 public class TilesProvidersImpl implements TilesProviders {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TilesProvidersImpl.class);
+  private static final int DEFAULT_INVALIDATION_DELAY = 10;
 
   private final EntityRegistry entityRegistry;
   private final TileMatrixSetLimitsGenerator limitsGenerator;
   private final TileMatrixSetRepository tileMatrixSetRepository;
+  private final ScheduledExecutorService invalidationExecutor;
+  private final ConcurrentMap<String, Invalidation> invalidations;
+  private final List<InvalidationListener> invalidationListeners;
+  private final AtomicLong invalidationsInProgress;
+  private final AtomicLong invalidationLagMillis;
 
   @Inject
   public TilesProvidersImpl(
@@ -55,6 +70,17 @@ public class TilesProvidersImpl implements TilesProviders {
     this.entityRegistry = entityRegistry;
     this.limitsGenerator = limitsGenerator;
     this.tileMatrixSetRepository = tileMatrixSetRepository;
+    this.invalidationExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "tiles-invalidation");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.invalidations = new ConcurrentHashMap<>();
+    this.invalidationListeners = new CopyOnWriteArrayList<>();
+    this.invalidationsInProgress = new AtomicLong();
+    this.invalidationLagMillis = new AtomicLong();
   }
 
   @Override
@@ -221,4 +247,140 @@ public class TilesProvidersImpl implements TilesProviders {
           .deleteFromCache(collectionId.orElse(DATASET_TILES), tileMatrixSet, limits);
     }
   }
+
+  @Override
+  public void invalidateTiles(OgcApi api, String collectionId, Optional<BoundingBox> boundingBox) {
+    String key = String.format("%s/%s", api.getData().getId(), collectionId);
+    boolean[] isNew = {false};
+
+    invalidations.compute(
+        key,
+        (k, invalidation) -> {
+          if (Objects.isNull(invalidation)) {
+            isNew[0] = true;
+            return new Invalidation(api, collectionId, boundingBox);
+          }
+          return invalidation.merge(api, boundingBox);
+        });
+
+    if (isNew[0]) {
+      int delay =
+          api.getData()
+              .getExtension(TilesConfiguration.class)
+              .flatMap(TilesConfiguration::getSeedingOptions)
+              .map(SeedingOptions::getEffectiveInvalidationDelay)
+              .orElse(DEFAULT_INVALIDATION_DELAY);
+
+      invalidationExecutor.schedule(() -> invalidate(key), delay, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public void addInvalidationListener(InvalidationListener listener) {
+    invalidationListeners.add(listener);
+  }
+
+  @Override
+  public long getInvalidationQueueDepth() {
+    return invalidations.size() + invalidationsInProgress.get();
+  }
+
+  @Override
+  public long getInvalidationLagMillis() {
+    return invalidationLagMillis.get();
+  }
+
+  private void invalidate(String key) {
+    invalidationsInProgress.incrementAndGet();
+    // changes that are queued from now on are handled by the next invalidation
+    Invalidation invalidation = invalidations.remove(key);
+
+    try {
+      if (Objects.isNull(invalidation)) {
+        return;
+      }
+
+      deleteTiles(
+          invalidation.api,
+          Optional.of(invalidation.collectionId),
+          Optional.empty(),
+          invalidation.boundingBox);
+
+      long lag = System.currentTimeMillis() - invalidation.firstChange;
+      invalidationLagMillis.set(lag);
+
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug(
+            "Invalidated tiles of collection '{}' after {} changes, lag: {}ms, queue depth: {}",
+            invalidation.collectionId,
+            invalidation.changes,
+            lag,
+            getInvalidationQueueDepth() - 1);
+      }
+
+      for (InvalidationListener listener : invalidationListeners) {
+        listener.onInvalidated(
+            invalidation.api, invalidation.collectionId, invalidation.boundingBox);
+      }
+    } catch (Throwable e) {
+      LOGGER.error(
+          "Error while deleting tiles from the tile cache after a change of collection '{}'. Reason: {}",
+          Objects.nonNull(invalidation) ? invalidation.collectionId : key,
+          e.getMessage());
+      if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+        LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+      }
+    } finally {
+      invalidationsInProgress.decrementAndGet();
+    }
+  }
+
+  /** The combined changes of a collection that are waiting for deletion. */
+  private static class Invalidation {
+    private final OgcApi api;
+    private final String collectionId;
+    private final Optional<BoundingBox> boundingBox;
+    private final long firstChange;
+    private final int changes;
+
+    Invalidation(OgcApi api, String collectionId, Optional<BoundingBox> boundingBox) {
+      this(api, collectionId, boundingBox, System.currentTimeMillis(), 1);
+    }
+
+    private Invalidation(
+        OgcApi api,
+        String collectionId,
+        Optional<BoundingBox> boundingBox,
+        long firstChange,
+        int changes) {
+      this.api = api;
+      this.collectionId = collectionId;
+      this.boundingBox = boundingBox;
+      this.firstChange = firstChange;
+      this.changes = changes;
+    }
+
+    /**
+     * @return the invalidation with the union of both extents, or the whole collection if one of
+     *     them is the whole collection or the extents use different coordinate reference systems
+     */
+    Invalidation merge(OgcApi latestApi, Optional<BoundingBox> other) {
+      Optional<BoundingBox> union = Optional.empty();
+
+      if (boundingBox.isPresent()
+          && other.isPresent()
+          && Objects.equals(boundingBox.get().getEpsgCrs(), other.get().getEpsgCrs())) {
+        union =
+            Optional.of(
+                BoundingBox.of(
+                    Math.min(boundingBox.get().getXmin(), other.get().getXmin()),
+                    Math.min(boundingBox.get().getYmin(), other.get().getYmin()),
+                    Math.max(boundingBox.get().getXmax(), other.get().getXmax()),
+                    Math.max(boundingBox.get().getYmax(), other.get().getYmax()),
+                    boundingBox.get().getEpsgCrs()));
+      }
+
+      return new Invalidation(latestApi, collectionId, union, firstChange, changes + 1);
+    }
+  }
 }
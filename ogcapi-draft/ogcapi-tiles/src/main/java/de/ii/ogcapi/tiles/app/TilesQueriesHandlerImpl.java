@@ -42,13 +42,16 @@ import de.ii.ogcapi.tiles.domain.TileSets;
 import de.ii.ogcapi.tiles.domain.TileSetsFormatExtension;
 import de.ii.ogcapi.tiles.domain.TilesProviders;
 import de.ii.ogcapi.tiles.domain.TilesQueriesHandler;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileGenerationParameters;
 import de.ii.ogcapi.tiles.domain.provider.ImmutableTileGenerationParametersTransient;
 import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileGenerationParameters;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationParametersTransient;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationSchema;
 import de.ii.ogcapi.tiles.domain.provider.TileProvider;
 import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import de.ii.xtraplatform.crs.domain.BoundingBox;
 import de.ii.xtraplatform.crs.domain.CrsTransformerFactory;
 import de.ii.xtraplatform.store.domain.entities.EntityRegistry;
 import de.ii.xtraplatform.web.domain.ETag;
@@ -59,6 +62,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -68,6 +72,7 @@ import javax.ws.rs.ServerErrorException;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Variant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,6 +93,7 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
   private final TileMatrixSetRepository tileMatrixSetRepository;
   // TODO
   private final FeaturesQuery featuresQuery;
+  private final Map<String, TileSetContext> tileSetContexts;
 
   @Inject
   public TilesQueriesHandlerImpl(
@@ -109,6 +115,7 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
     this.tilesProviders = tilesProviders;
     this.tileMatrixSetRepository = tileMatrixSetRepository;
     this.featuresQuery = featuresQuery;
+    this.tileSetContexts = new ConcurrentHashMap<>();
 
     this.queryHandlers =
         ImmutableMap.<Query, QueryHandler<? extends QueryInput>>builder()
@@ -368,8 +375,17 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
       }
     }
 
-    byte[] content = result.getContent().get();
-    EntityTag eTag = ETag.from(content);
+    // stored gzip content is sent as is, if the client accepts it
+    Optional<byte[]> gzipContent =
+        result.getGzipContent().filter(ignore -> acceptsGzip(requestContext));
+    // cached tiles have a stored hash, so the content is not needed for conditional requests
+    String contentHash =
+        result.getContentHash().orElseGet(() -> TileResult.contentHash(result.getContent().get()));
+    EntityTag eTag =
+        new EntityTag(
+            gzipContent.isPresent()
+                ? String.format("%s-%s", contentHash, TileResult.GZIP)
+                : contentHash);
     Response.ResponseBuilder response = evaluatePreconditions(requestContext, null, eTag);
 
     if (Objects.nonNull(response)) {
@@ -391,7 +407,9 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
                 i18n,
                 requestContext.getLanguage());
 
-    return prepareSuccessResponse(
+    byte[] content = gzipContent.or(result::getContent).get();
+    Response.ResponseBuilder success =
+        prepareSuccessResponse(
             requestContext,
             queryInput.getIncludeLinkHeader() ? links : null,
             HeaderCaching.of(null, eTag, queryInput),
@@ -404,49 +422,48 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
                     tileQuery.getLevel(),
                     tileQuery.getRow(),
                     tileQuery.getCol(),
-                    queryInput.getOutputFormat().getMediaType().fileExtension())))
-        .entity(result.getContent().get())
-        .build();
+                    queryInput.getOutputFormat().getMediaType().fileExtension())));
+
+    if (gzipContent.isPresent()) {
+      // responses with a content encoding are not compressed again
+      success.encoding(TileResult.GZIP);
+    }
+
+    return success.entity(content).build();
+  }
+
+  private static boolean acceptsGzip(ApiRequestContext requestContext) {
+    if (requestContext.getRequest().isEmpty()) {
+      return false;
+    }
+
+    try {
+      // identity first, so that gzip is only selected if it is explicitly accepted
+      Variant variant =
+          requestContext
+              .getRequest()
+              .get()
+              .selectVariant(Variant.encodings("identity", TileResult.GZIP).build());
+
+      return Objects.nonNull(variant) && Objects.equals(variant.getEncoding(), TileResult.GZIP);
+    } catch (Exception e) {
+      // could not parse headers, send uncompressed content
+      LOGGER.debug("Ignoring invalid Accept-Encoding header: {}", e.getMessage());
+      return false;
+    }
   }
 
   private TileQuery getTileQuery(
       QueryInputTile queryInput, ApiRequestContext requestContext, TileProvider tileProvider) {
-    OgcApiDataV2 apiData = requestContext.getApi().getData();
-    Optional<FeatureTypeConfigurationOgcApi> collectionData =
-        queryInput.getCollectionId().flatMap(apiData::getCollectionData);
-    // TODO: get layer name from cfg
-    String layer = queryInput.getCollectionId().orElse(DATASET_TILES);
-    TileFormatExtension outputFormat = queryInput.getOutputFormat();
+    TileSetContext context = getTileSetContext(queryInput, requestContext, tileProvider);
 
     ImmutableTileQuery.Builder tileQueryBuilder =
         ImmutableTileQuery.builder()
             .from(queryInput)
-            .layer(layer)
-            .mediaType(outputFormat.getMediaType().type());
-
-    tileQueryBuilder
-        .generationParametersBuilder()
-        .clipBoundingBox(
-            requestContext
-                .getApi()
-                .getSpatialExtent(
-                    queryInput.getCollectionId(), queryInput.getBoundingBox().getEpsgCrs()))
-        .propertyTransformations(
-            collectionData
-                .flatMap(cd -> cd.getExtension(FeaturesCoreConfiguration.class))
-                .map(
-                    pt ->
-                        pt.withSubstitutions(
-                            FeaturesCoreProviders.DEFAULT_SUBSTITUTIONS.apply(
-                                requestContext.getApiUri()))));
+            .layer(context.layer)
+            .mediaType(queryInput.getOutputFormat().getMediaType().type())
+            .generationParameters(context.generationParameters);
 
-    // TODO: TilesProviders along the line of FeaturesCoreProviders
-    Map<String, String> queryableTypes =
-        collectionData.map(cd -> featuresQuery.getQueryableTypes(apiData, cd)).orElse(Map.of());
-    Optional<TileGenerationSchema> generationSchema =
-        tileProvider.supportsGeneration()
-            ? Optional.of(tileProvider.generator().getGenerationSchema(layer, queryableTypes))
-            : Optional.empty();
     ImmutableTileGenerationParametersTransient.Builder userParametersBuilder =
         new ImmutableTileGenerationParametersTransient.Builder();
     queryInput
@@ -455,7 +472,7 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
             TileGenerationUserParameter.class,
             parameter ->
                 parameter.applyTo(
-                    userParametersBuilder, queryInput.getParameters(), generationSchema));
+                    userParametersBuilder, queryInput.getParameters(), context.generationSchema));
     TileGenerationParametersTransient userParameters = userParametersBuilder.build();
     if (!userParameters.isEmpty()) {
       tileQueryBuilder.generationParametersTransient(userParameters);
@@ -463,10 +480,122 @@ public class TilesQueriesHandlerImpl implements TilesQueriesHandler {
     return tileQueryBuilder.build();
   }
 
+  /**
+   * The parts of a tile query that only depend on the configuration are derived once per API,
+   * layer and tile matrix set. They are derived again, when the API or the tile provider was
+   * reloaded or when the spatial extent changed, which is updated in place after feature changes.
+   */
+  private TileSetContext getTileSetContext(
+      QueryInputTile queryInput, ApiRequestContext requestContext, TileProvider tileProvider) {
+    OgcApiDataV2 apiData = requestContext.getApi().getData();
+    // TODO: get layer name from cfg
+    String layer = queryInput.getCollectionId().orElse(DATASET_TILES);
+    String key =
+        String.format("%s/%s/%s", apiData.getId(), layer, queryInput.getTileMatrixSet().getId());
+
+    Optional<BoundingBox> spatialExtent =
+        requestContext.getApi().getSpatialExtent(queryInput.getCollectionId());
+    TileSetContext context = tileSetContexts.get(key);
+
+    if (Objects.isNull(context)
+        || !context.isValid(apiData, tileProvider, requestContext, spatialExtent)) {
+      context =
+          createTileSetContext(queryInput, requestContext, tileProvider, layer, spatialExtent);
+      tileSetContexts.put(key, context);
+    }
+
+    return context;
+  }
+
+  private TileSetContext createTileSetContext(
+      QueryInputTile queryInput,
+      ApiRequestContext requestContext,
+      TileProvider tileProvider,
+      String layer,
+      Optional<BoundingBox> spatialExtent) {
+    OgcApiDataV2 apiData = requestContext.getApi().getData();
+    Optional<FeatureTypeConfigurationOgcApi> collectionData =
+        queryInput.getCollectionId().flatMap(apiData::getCollectionData);
+
+    TileGenerationParameters generationParameters =
+        ImmutableTileGenerationParameters.builder()
+            .clipBoundingBox(
+                requestContext
+                    .getApi()
+                    .getSpatialExtent(
+                        queryInput.getCollectionId(), queryInput.getBoundingBox().getEpsgCrs()))
+            .propertyTransformations(
+                collectionData
+                    .flatMap(cd -> cd.getExtension(FeaturesCoreConfiguration.class))
+                    .map(
+                        pt ->
+                            pt.withSubstitutions(
+                                FeaturesCoreProviders.DEFAULT_SUBSTITUTIONS.apply(
+                                    requestContext.getApiUri()))))
+            .build();
+
+    // TODO: TilesProviders along the line of FeaturesCoreProviders
+    Map<String, String> queryableTypes =
+        collectionData.map(cd -> featuresQuery.getQueryableTypes(apiData, cd)).orElse(Map.of());
+    Optional<TileGenerationSchema> generationSchema =
+        tileProvider.supportsGeneration()
+            ? Optional.of(tileProvider.generator().getGenerationSchema(layer, queryableTypes))
+            : Optional.empty();
+
+    return new TileSetContext(
+        apiData,
+        tileProvider,
+        requestContext.getApiUri(),
+        spatialExtent,
+        layer,
+        generationParameters,
+        generationSchema);
+  }
+
   private TileMatrixSet getTileMatrixSetById(String tileMatrixSetId) {
     return tileMatrixSetRepository
         .get(tileMatrixSetId)
         .orElseThrow(
             () -> new ServerErrorException("TileMatrixSet not found: " + tileMatrixSetId, 500));
   }
+
+  private static final class TileSetContext {
+    private final OgcApiDataV2 apiData;
+    private final TileProvider tileProvider;
+    private final String apiUri;
+    private final Optional<BoundingBox> spatialExtent;
+    private final String layer;
+    private final TileGenerationParameters generationParameters;
+    private final Optional<TileGenerationSchema> generationSchema;
+
+    private TileSetContext(
+        OgcApiDataV2 apiData,
+        TileProvider tileProvider,
+        String apiUri,
+        Optional<BoundingBox> spatialExtent,
+        String layer,
+        TileGenerationParameters generationParameters,
+        Optional<TileGenerationSchema> generationSchema) {
+      this.apiData = apiData;
+      this.tileProvider = tileProvider;
+      this.apiUri = apiUri;
+      this.spatialExtent = spatialExtent;
+      this.layer = layer;
+      this.generationParameters = generationParameters;
+      this.generationSchema = generationSchema;
+    }
+
+    // a reload creates new instances of the API data and the tile provider, the spatial extent is
+    // changed in place, e.g. when it is computed after the start or after feature changes
+    private boolean isValid(
+        OgcApiDataV2 currentApiData,
+        TileProvider currentTileProvider,
+        ApiRequestContext requestContext,
+        Optional<BoundingBox> currentSpatialExtent) {
+      return apiData == currentApiData
+          && tileProvider == currentTileProvider
+          && Objects.equals(apiUri, requestContext.getApiUri())
+          && Objects.equals(spatialExtent, currentSpatialExtent);
+    }
+  }
 }
@@ -10,6 +10,7 @@ package de.ii.ogcapi.tiles.app.provider;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
 import de.ii.ogcapi.tiles.domain.MvtFeature;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -17,6 +18,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
 
 class ClusterAnalysis {
 
@@ -24,18 +26,34 @@ class ClusterAnalysis {
   Map<MvtFeature, MvtFeature> inCluster = new HashMap<>();
   Set<MvtFeature> standalone = new HashSet<>();
 
+  /**
+   * Determines clusters of connected features. Each feature is compared with all following
+   * features in the list, a spatial index is used to skip the features that cannot intersect.
+   *
+   * @param features the features
+   * @param boundary compare the boundaries of the geometries instead of the geometries
+   * @return the clusters and the standalone features
+   */
   static ClusterAnalysis analyse(List<MvtFeature> features, boolean boundary) {
+    List<Geometry> geometries = new ArrayList<>(features.size());
+    STRtree index = new STRtree();
+    for (int i = 0; i < features.size(); i++) {
+      Geometry geometry = features.get(i).getGeometry();
+      geometries.add(boundary ? geometry.getBoundary() : geometry);
+      // the envelope of the boundary is within the envelope of the geometry
+      index.insert(geometry.getEnvelopeInternal(), i);
+    }
+
     // determine clusters of connected features
     ClusterAnalysis clusterResult = new ClusterAnalysis();
     for (int i = 0; i < features.size(); i++) {
       MvtFeature fi = features.get(i);
-      Geometry gi = fi.getGeometry();
+      Geometry gi = geometries.get(i);
       Optional<MvtFeature> cluster = Optional.ofNullable(clusterResult.inCluster.get(fi));
-      for (int j = i + 1; j < features.size(); j++) {
+      for (int j : getCandidates(index, fi.getGeometry(), i)) {
         MvtFeature fj = features.get(j);
-        Geometry gj = fj.getGeometry();
-        boolean clustered =
-            boundary ? gi.getBoundary().intersects(gj.getBoundary()) : gi.intersects(gj);
+        Geometry gj = geometries.get(j);
+        boolean clustered = gi.intersects(gj);
         if (clustered) {
           if (cluster.isPresent()) {
             // already in a cluster, add to the new feature to the cluster
@@ -56,4 +74,14 @@ class ClusterAnalysis {
     }
     return clusterResult;
   }
+
+  // the following features with an intersecting envelope in the order of the list
+  private static int[] getCandidates(STRtree index, Geometry geometry, int i) {
+    return ((List<?>) index.query(geometry.getEnvelopeInternal()))
+        .stream()
+        .mapToInt(candidate -> (Integer) candidate)
+        .filter(j -> j > i)
+        .sorted()
+        .toArray();
+  }
 }
@@ -15,6 +15,7 @@ import de.ii.ogcapi.tiles.domain.provider.LevelTransformation;
 import de.ii.ogcapi.tiles.domain.provider.TileCoordinates;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationContext;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationOptions;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import de.ii.xtraplatform.base.domain.LogContext;
 import de.ii.xtraplatform.crs.domain.BoundingBox;
 import java.util.HashSet;
@@ -24,7 +25,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import javax.ws.rs.core.MediaType;
-import no.ecc.vectortile.VectorTileEncoder;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
 import org.locationtech.jts.geom.CoordinateXY;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
@@ -38,40 +39,48 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(FeatureEncoderMVT.class);
   public static final MediaType FORMAT = new MediaType("application", "vnd.mapbox-vector-tile");
+  // buffer around the tile in pixels, features are clipped to the buffered tile
+  static final int BUFFER = 8;
 
   private final TileGenerationOptions parameters;
   private final TileCoordinates tile;
-  private final VectorTileEncoder tileEncoder;
-  private final AffineTransformation affineTransformation;
-  private final String layerName;
+  private final MvtLayerWriter tileEncoder;
+  private final CoordinateSequenceFilter tileTransformation;
   private final PrecisionModel tilePrecisionModel;
   private final GeometryFactory geometryFactoryTile;
   private final GeometryFactory geometryFactoryWorld;
   private final Polygon clipGeometry;
   private final List<String> groupBy;
   private final Set<MvtFeature> mergeFeatures;
+  private final boolean detectEmptyAndFull;
 
   private long mergeCount = 0;
   private long featureCount = 0;
   private boolean full = true;
+  private TileResult.Status status = TileResult.Status.Found;
 
   // TODO: TilesConfiguration not available in xtraplatform, but new TileProviderData
   public FeatureEncoderMVT(TileGenerationContext encodingContext) {
     super(encodingContext);
     this.parameters = encodingContext.getParameters();
     this.tile = encodingContext.getCoordinates();
-    this.tileEncoder = new VectorTileEncoder(tile.getTileMatrixSet().getTileExtent());
-    this.affineTransformation = createTransformNativeToTile();
-    this.layerName = Objects.requireNonNullElse(collectionId, "layer");
     this.tilePrecisionModel =
         new PrecisionModel(
             (double) tile.getTileMatrixSet().getTileExtent()
                 / (double) tile.getTileMatrixSet().getTileSize());
+    this.tileEncoder =
+        new MvtLayerWriter(
+            Objects.requireNonNullElse(collectionId, "layer"),
+            tile.getTileMatrixSet().getTileExtent(),
+            tilePrecisionModel.getScale());
+    // the grid of the precision model are the integer coordinates of the tile extent
+    this.tileTransformation =
+        TileGeometryUtil.toTileGrid(createTransformNativeToTile(), tilePrecisionModel);
     this.geometryFactoryTile = new GeometryFactory(tilePrecisionModel);
     this.geometryFactoryWorld = new GeometryFactory();
 
     final int size = tile.getTileMatrixSet().getTileSize();
-    final int buffer = 8;
+    final int buffer = BUFFER;
     CoordinateXY[] coords = new CoordinateXY[5];
     coords[0] = new CoordinateXY(-buffer, size + buffer);
     coords[1] = new CoordinateXY(size + buffer, size + buffer);
@@ -94,6 +103,7 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
                 .orElse(null)
             : null;
     this.mergeFeatures = new HashSet<>();
+    this.detectEmptyAndFull = encodingContext.getDetectEmptyAndFull();
   }
 
   @Override
@@ -122,20 +132,21 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
     }
 
     try {
+      Geometry geometry = featureGeometry.get();
+      // convert to the tile coordinate system and the tile grid, in place
+      geometry.apply(tileTransformation);
+
+      // in "full" tiles all features cover the whole tile, this is decided before small holes are
+      // removed and the geometry is simplified
+      full = full && TileGeometryUtil.coversTile(geometry, clipGeometry);
+
       Geometry tileGeometry =
           TileGeometryUtil.getTileGeometry(
-              featureGeometry.get(),
-              affineTransformation,
-              clipGeometry,
-              tilePrecisionModel,
-              parameters.getMinimumSizeInPixel());
+              geometry, clipGeometry, tilePrecisionModel, parameters.getMinimumSizeInPixel());
       if (Objects.isNull(tileGeometry)) {
         return;
       }
 
-      // in "full" tiles all features cover then whole tile
-      full = full && tileGeometry.equals(clipGeometry);
-
       // if polygons have to be merged, store them for now and process at the end
       if (Objects.nonNull(groupBy) && tileGeometry.getGeometryType().contains("Polygon")) {
         mergeFeatures.add(
@@ -173,12 +184,8 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
         }
       }
 
-      // Add the feature with the layer name, a Map with attributes and the JTS Geometry.
-      if (Objects.nonNull(id)) {
-        tileEncoder.addFeature(layerName, feature.getPropertiesAsMap(), tileGeometry, id);
-      } else {
-        tileEncoder.addFeature(layerName, feature.getPropertiesAsMap(), tileGeometry);
-      }
+      // Add the feature with a Map with attributes and the JTS Geometry.
+      tileEncoder.addFeature(tileGeometry, feature.getPropertiesAsMap(), id);
       written++;
 
     } catch (Exception e) {
@@ -199,6 +206,10 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
 
   @Override
   public void onEnd(ModifiableContext context) {
+    push(encodeTile(context));
+  }
+
+  byte[] encodeTile(ModifiableContext context) {
     long mergerStart = System.nanoTime();
     if (Objects.nonNull(groupBy) && mergeCount > 0) {
       FeatureMerger merger =
@@ -232,7 +243,7 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
                       mergedFeature.getProperties());
                   if (parameters.getIgnoreInvalidGeometries()) return;
                 }
-                tileEncoder.addFeature(layerName, mergedFeature.getProperties(), geom);
+                tileEncoder.addFeature(geom, mergedFeature.getProperties(), null);
                 written++;
               });
     }
@@ -241,10 +252,9 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
     long encoderStart = System.nanoTime();
 
     byte[] mvt = tileEncoder.encode();
-    push(mvt);
 
-    if (featureCount == 0) {
-      // TODO header/trailer/field "OATiles-hint: empty", also include info in tile cache
+    if (detectEmptyAndFull && featureCount == 0) {
+      this.status = TileResult.Status.Empty;
       if (LOGGER.isTraceEnabled()) {
         LOGGER.trace(
             "Collection {}, tile {}/{}/{}/{} is empty.",
@@ -254,8 +264,8 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
             tile.getRow(),
             tile.getCol());
       }
-    } else if (featureCount == written && full) {
-      // TODO header/trailer/field "OATiles-hint: full", also include info in tile cache
+    } else if (detectEmptyAndFull && featureCount == written && full) {
+      this.status = TileResult.Status.Full;
       if (LOGGER.isTraceEnabled()) {
         LOGGER.trace(
             "Collection {}, tile {}/{}/{}/{} is full.",
@@ -295,6 +305,23 @@ public class FeatureEncoderMVT extends FeatureEncoderSfFlat {
         LOGGER.trace(text);
       }
     }
+
+    return mvt;
+  }
+
+  /**
+   * @return the encoded tile with status Empty or Full, if detection is enabled and the tile
+   *     qualifies, otherwise with status Found
+   */
+  TileResult toResult(byte[] mvt) {
+    switch (status) {
+      case Empty:
+        return TileResult.empty(mvt);
+      case Full:
+        return TileResult.full(mvt);
+      default:
+        return TileResult.found(mvt);
+    }
   }
 
   private AffineTransformation createTransformNativeToTile() {
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import de.ii.ogcapi.features.core.domain.FeatureEncoderSfFlat;
+import de.ii.ogcapi.features.core.domain.FeatureSfFlat;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileGenerationContext;
+import de.ii.ogcapi.tiles.domain.provider.TileCoordinates;
+import de.ii.ogcapi.tiles.domain.provider.TileGenerationContext;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import de.ii.xtraplatform.crs.domain.BoundingBox;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes all tiles of a metatile from a single feature stream. Every feature is passed on to the
+ * encoders of the tiles that it intersects, until the feature limit of the tile is reached. The
+ * tile from the encoding context is pushed downstream, all tiles of the metatile are available
+ * from {@link #getTiles()} after the stream has ended.
+ */
+public class FeatureEncoderMVTMetatile extends FeatureEncoderSfFlat {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FeatureEncoderMVTMetatile.class);
+
+  private final TileCoordinates tile;
+  private final Map<TileQuery, FeatureEncoderMVT> encoders;
+  private final Map<TileQuery, Envelope> envelopes;
+  private final Map<TileQuery, TileResult> tiles;
+  private final Map<TileQuery, Integer> featureCounts;
+  private final int featureLimit;
+  private final GeometryFactory geometryFactoryWorld;
+  private TileQuery current;
+  private int featureCount;
+
+  /**
+   * @param featureLimit the maximum number of features in a single tile of the metatile
+   */
+  public FeatureEncoderMVTMetatile(
+      TileGenerationContext encodingContext, List<TileQuery> metatile, int featureLimit) {
+    super(encodingContext);
+    this.tile = encodingContext.getCoordinates();
+    this.encoders = new LinkedHashMap<>();
+    this.envelopes = new LinkedHashMap<>();
+    this.tiles = new LinkedHashMap<>();
+    this.featureCounts = new LinkedHashMap<>();
+    this.featureLimit = featureLimit;
+    this.geometryFactoryWorld = new GeometryFactory();
+
+    for (TileQuery child : metatile) {
+      TileGenerationContext childContext =
+          new ImmutableTileGenerationContext.Builder()
+              .from(encodingContext)
+              .coordinates(child)
+              .build();
+      encoders.put(child, new FeatureEncoderMVT(childContext));
+      envelopes.put(child, getBufferedEnvelope(child));
+      featureCounts.put(child, 0);
+
+      if (isTile(child)) {
+        this.current = child;
+      }
+    }
+
+    if (Objects.isNull(current)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Tile %s/%d/%d/%d is not part of the metatile.",
+              tile.getTileMatrixSet().getId(),
+              tile.getLevel(),
+              tile.getRow(),
+              tile.getCol()));
+    }
+  }
+
+  @Override
+  public void onStart(ModifiableContext context) {
+    if (LOGGER.isTraceEnabled()) {
+      LOGGER.trace(
+          "Start generating metatile with {} tiles for collection {}, tile {}/{}/{}/{}.",
+          encoders.size(),
+          collectionId,
+          tile.getTileMatrixSet().getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol());
+    }
+    this.processingStart = System.nanoTime();
+
+    encoders.values().forEach(encoder -> encoder.onStart(context));
+  }
+
+  @Override
+  public void onFeature(FeatureSfFlat feature) {
+    featureCount++;
+
+    Optional<Geometry> featureGeometry = feature.getJtsGeometry(geometryFactoryWorld);
+
+    if (featureGeometry.isEmpty()) {
+      return;
+    }
+
+    Envelope featureEnvelope = featureGeometry.get().getEnvelopeInternal();
+
+    // the tile encoders create their own copy of the geometry, since it is transformed in place;
+    // the features are in the same order as in the query of a single tile, so a tile that reaches
+    // its limit has the same features as if it was generated on its own
+    encoders.forEach(
+        (child, encoder) -> {
+          if (featureCounts.get(child) < featureLimit
+              && envelopes.get(child).intersects(featureEnvelope)) {
+            featureCounts.merge(child, 1, Integer::sum);
+            encoder.onFeature(feature);
+          }
+        });
+  }
+
+  @Override
+  public void onEnd(ModifiableContext context) {
+    encoders.forEach(
+        (child, encoder) -> tiles.put(child, encoder.toResult(encoder.encodeTile(context))));
+
+    if (LOGGER.isDebugEnabled()) {
+      long processingDuration = (System.nanoTime() - processingStart) / 1000000;
+      LOGGER.debug(
+          "Collection {}, metatile with {} tiles for tile {}/{}/{}/{} written. Features returned: {}, processing: {}ms.",
+          collectionId,
+          tiles.size(),
+          tile.getTileMatrixSet().getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol(),
+          context.metadata().getNumberReturned().orElse(0),
+          processingDuration);
+    }
+
+    push(tiles.get(current).getContent().get());
+  }
+
+  /**
+   * @return all tiles of the metatile including their status, only available after the feature
+   *     stream has ended
+   */
+  public Map<TileQuery, TileResult> getTiles() {
+    return tiles;
+  }
+
+  /**
+   * @return true, if the tile has reached its feature limit and further features were skipped
+   */
+  public boolean isLimitReached(TileQuery child) {
+    return featureCounts.getOrDefault(child, 0) >= featureLimit;
+  }
+
+  /**
+   * @return the number of features in the feature stream of the metatile
+   */
+  public int getFeatureCount() {
+    return featureCount;
+  }
+
+  private boolean isTile(TileCoordinates other) {
+    return other.getLevel() == tile.getLevel()
+        && other.getRow() == tile.getRow()
+        && other.getCol() == tile.getCol();
+  }
+
+  private static Envelope getBufferedEnvelope(TileCoordinates tile) {
+    BoundingBox bbox = tile.getBoundingBox();
+    double bufferX =
+        (bbox.getXmax() - bbox.getXmin())
+            * FeatureEncoderMVT.BUFFER
+            / tile.getTileMatrixSet().getTileSize();
+    double bufferY =
+        (bbox.getYmax() - bbox.getYmin())
+            * FeatureEncoderMVT.BUFFER
+            / tile.getTileMatrixSet().getTileSize();
+
+    return new Envelope(
+        bbox.getXmin() - bufferX,
+        bbox.getXmax() + bufferX,
+        bbox.getYmin() - bufferY,
+        bbox.getYmax() + bufferY);
+  }
+}
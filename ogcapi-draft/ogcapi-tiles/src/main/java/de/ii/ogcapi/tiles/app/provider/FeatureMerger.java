@@ -10,13 +10,12 @@ package de.ii.ogcapi.tiles.app.provider;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import de.ii.ogcapi.tiles.domain.ImmutableMvtFeature.Builder;
 import de.ii.ogcapi.tiles.domain.MvtFeature;
 import de.ii.xtraplatform.base.domain.LogContext;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -29,9 +28,12 @@ import org.locationtech.jts.geom.MultiLineString;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.locationtech.jts.geom.util.GeometryFixer;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.operation.linemerge.LineMerger;
-import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.UnaryUnionNG;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,38 +66,39 @@ class FeatureMerger {
   }
 
   List<MvtFeature> merge(Set<MvtFeature> mergeFeatures) {
-    ImmutableList<ImmutableList<Object>> valueGroups =
-        groupBy.stream()
-            .map(
-                att ->
-                    mergeFeatures.stream()
-                        .map(props -> props.getProperties().getOrDefault(att, NULL))
-                        .distinct()
-                        .collect(ImmutableList.toImmutableList()))
-            .collect(ImmutableList.toImmutableList());
+    // group the features by the values of the groupBy attributes in a single pass
+    Map<List<Object>, List<MvtFeature>> polygonGroups = new LinkedHashMap<>();
+    Map<List<Object>, List<MvtFeature>> lineStringGroups = new LinkedHashMap<>();
+    for (MvtFeature feature : mergeFeatures) {
+      Geometry geometry = feature.getGeometry();
+      if (geometry instanceof Polygon || geometry instanceof MultiPolygon) {
+        polygonGroups
+            .computeIfAbsent(getGroupValues(feature), ignore -> new ArrayList<>())
+            .add(feature);
+      } else if (geometry instanceof LineString || geometry instanceof MultiLineString) {
+        lineStringGroups
+            .computeIfAbsent(getGroupValues(feature), ignore -> new ArrayList<>())
+            .add(feature);
+      }
+    }
 
     List<MvtFeature> polygonFeatures = new ArrayList<>();
     List<MvtFeature> lineStringFeatures = new ArrayList<>();
-    if (mergeFeatures.stream()
-        .anyMatch(
-            feature ->
-                feature.getGeometry() instanceof Polygon
-                    || feature.getGeometry() instanceof MultiPolygon)) {
-      Lists.cartesianProduct(valueGroups)
-          .forEach(
-              values -> {
-                try {
-                  polygonFeatures.addAll(mergePolygons(mergeFeatures, values));
-                } catch (Exception e) {
-                  LOGGER.error(
-                      "{}: Error while merging polygon geometries grouped by {}. The features are skipped.",
-                      context,
-                      values);
-                  if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
-                    LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
-                  }
-                }
-              });
+    if (!polygonGroups.isEmpty()) {
+      polygonGroups.forEach(
+          (values, features) -> {
+            try {
+              polygonFeatures.addAll(mergePolygons(features, values));
+            } catch (Exception e) {
+              LOGGER.error(
+                  "{}: Error while merging polygon geometries grouped by {}. The features are skipped.",
+                  context,
+                  values);
+              if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+                LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
+              }
+            }
+          });
       LOGGER.trace(
           "{}: {} merged polygon features, total pixel area: {}.",
           context,
@@ -103,26 +106,21 @@ class FeatureMerger {
           polygonFeatures.stream().mapToDouble(f -> f.getGeometry().getArea()).sum());
     }
 
-    if (mergeFeatures.stream()
-        .anyMatch(
-            feature ->
-                feature.getGeometry() instanceof LineString
-                    || feature.getGeometry() instanceof MultiLineString)) {
-      Lists.cartesianProduct(valueGroups)
-          .forEach(
-              values -> {
-                try {
-                  lineStringFeatures.addAll(mergeLineStrings(mergeFeatures, values));
-                } catch (Exception e) {
-                  LOGGER.error(
-                      "{}: Error while merging line string geometries grouped by {}. The features are skipped.",
-                      context,
-                      values);
-                  if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
-                    LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
-                  }
-                }
-              });
+    if (!lineStringGroups.isEmpty()) {
+      lineStringGroups.forEach(
+          (values, features) -> {
+            try {
+              lineStringFeatures.addAll(mergeLineStrings(features, values));
+            } catch (Exception e) {
+              LOGGER.error(
+                  "{}: Error while merging line string geometries grouped by {}. The features are skipped.",
+                  context,
+                  values);
+              if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+                LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
+              }
+            }
+          });
       LOGGER.trace(
           "{}: {} merged line string features, total pixel length: {}.",
           context,
@@ -134,178 +132,155 @@ class FeatureMerger {
     return polygonFeatures;
   }
 
-  private List<MvtFeature> mergePolygons(Set<MvtFeature> mergeFeatures, List<Object> values) {
-    // merge all polygons with the values for the groupBy attributes
-    ImmutableList.Builder<MvtFeature> result = ImmutableList.builder();
+  private List<Object> getGroupValues(MvtFeature feature) {
+    List<Object> values = new ArrayList<>(groupBy.size());
+    for (String att : groupBy) {
+      values.add(feature.getProperties().getOrDefault(att, NULL));
+    }
+    return values;
+  }
 
-    // identify features that match the values
-    List<MvtFeature> features =
-        mergeFeatures.stream()
-            .filter(
-                feature ->
-                    feature.getGeometry() instanceof Polygon
-                        || feature.getGeometry() instanceof MultiPolygon)
-            .filter(
-                feature -> {
-                  int i = 0;
-                  boolean match = true;
-                  for (String att : groupBy) {
-                    if (values.get(i).equals(NULL)) {
-                      if (feature.getProperties().containsKey(att)) {
-                        match = false;
-                        break;
-                      }
-                    } else if (!values.get(i).equals(feature.getProperties().get(att))) {
-                      match = false;
-                      break;
-                    }
-                    i++;
-                  }
-                  return match;
-                })
-            .collect(Collectors.toUnmodifiableList());
+  // merge all polygons with the values for the groupBy attributes
+  private List<MvtFeature> mergePolygons(List<MvtFeature> features, List<Object> values) {
+    ImmutableList.Builder<MvtFeature> result = ImmutableList.builder();
 
     // nothing to merge?
-    if (features.isEmpty()) {
-      return result.build();
-    } else if (features.size() == 1) {
-      return result.add(features.iterator().next()).build();
+    if (features.size() == 1) {
+      return result.add(features.get(0)).build();
     }
 
-    // determine clusters of connected features
-    ClusterAnalysis clusterResult = ClusterAnalysis.analyse(features, false);
+    // process each set of connected features, the first feature is the main feature
+    for (List<MvtFeature> component : getConnectedComponents(features)) {
+      MvtFeature main = component.get(0);
 
-    // process the standalone features
-    clusterResult.standalone.forEach(result::add);
+      // standalone feature
+      if (component.size() == 1) {
+        result.add(main);
+        continue;
+      }
 
-    // process each cluster
-    clusterResult
-        .clusters
-        .asMap()
-        .forEach(
-            (key, value) -> {
-              ImmutableSet.Builder<Polygon> polygonBuilder = new ImmutableSet.Builder<>();
-              polygonBuilder.addAll(
-                  value.stream()
-                      .map(MvtFeature::getGeometry)
-                      .map(
-                          g ->
-                              g instanceof MultiPolygon
-                                  ? TileGeometryUtil.splitMultiPolygon((MultiPolygon) g)
-                                  : ImmutableList.of(g))
-                      .flatMap(Collection::stream)
-                      .map(Polygon.class::cast)
-                      .collect(Collectors.toSet()));
-              if (key.getGeometry() instanceof MultiPolygon)
-                polygonBuilder.addAll(
-                    TileGeometryUtil.splitMultiPolygon((MultiPolygon) key.getGeometry()));
-              else polygonBuilder.add((Polygon) key.getGeometry());
-              ImmutableSet<Polygon> polygons = polygonBuilder.build();
-              Geometry geom;
-              switch (polygons.size()) {
-                case 0:
-                  return;
-                case 1:
-                  geom = polygons.iterator().next();
-                  break;
-                default:
-                  try {
-                    Iterator<Polygon> iter = polygons.iterator();
-                    geom = iter.next();
-                    while (iter.hasNext()) {
-                      // TODO use OverlayNGRobust instead?
-                      // geom = OverlayNGRobust.overlay(geom, iter.next(), OverlayNG.SYMDIFFERENCE);
-                      OverlayNG overlay =
-                          new OverlayNG(geom, iter.next(), precisionModel, OverlayNG.SYMDIFFERENCE);
-                      overlay.setStrictMode(true);
-                      geom = overlay.getResult();
-                    }
-                  } catch (Exception e) {
-                    geom = geometryFactory.createMultiPolygon(polygons.toArray(Polygon[]::new));
-                  }
-              }
-              LOGGER.trace(
-                  "{} grouped by {}: {} polygons", context, values, geom.getNumGeometries());
-              if (!geom.isValid()) {
-                geom = new GeometryFixer(geom).getResult();
-              }
+      ImmutableSet<Polygon> polygons =
+          component.stream()
+              .map(MvtFeature::getGeometry)
+              .map(
+                  g ->
+                      g instanceof MultiPolygon
+                          ? TileGeometryUtil.splitMultiPolygon((MultiPolygon) g)
+                          : ImmutableList.of(g))
+              .flatMap(Collection::stream)
+              .map(Polygon.class::cast)
+              .collect(ImmutableSet.toImmutableSet());
 
-              if (Objects.isNull(geom)
-                  || geom.isEmpty()
-                  || geom.getNumGeometries() == 0
-                  || !geom.isValid()) {
-                LOGGER.debug(
-                    "{}: Merged polygon feature grouped by {} has no or an invalid geometry. Using {} unmerged features.",
-                    context,
-                    values,
-                    value.size() + 1);
-                result.add(key);
-                value.forEach(result::add);
+      Geometry geom;
+      if (polygons.size() == 1) {
+        geom = polygons.iterator().next();
+      } else {
+        Geometry multiPolygon =
+            geometryFactory.createMultiPolygon(polygons.toArray(Polygon[]::new));
+        try {
+          // cascaded union in the precision model of the tile
+          geom = UnaryUnionNG.union(multiPolygon, precisionModel);
+        } catch (Exception e) {
+          geom = multiPolygon;
+        }
+      }
+      LOGGER.trace("{} grouped by {}: {} polygons", context, values, geom.getNumGeometries());
+      if (!geom.isValid()) {
+        geom = new GeometryFixer(geom).getResult();
+      }
 
-              } else {
-                // add merged feature
-                Map<String, Object> mainClusterFeatureProperties = key.getProperties();
-                ImmutableMap.Builder<String, Object> propertiesBuilder = ImmutableMap.builder();
-                mainClusterFeatureProperties.entrySet().stream()
-                    .filter(prop -> allProperties || properties.contains(prop.getKey()))
-                    .filter(
-                        prop ->
-                            value.stream()
-                                .allMatch(
-                                    f ->
-                                        f.getProperties().containsKey(prop.getKey())
-                                            && f.getProperties()
-                                                .get(prop.getKey())
-                                                .equals(prop.getValue())))
-                    .forEach(prop -> propertiesBuilder.put(prop.getKey(), prop.getValue()));
-
-                result.add(
-                    new Builder()
-                        .id(key.getId())
-                        .properties(propertiesBuilder.build())
-                        .geometry(geom)
-                        .build());
-              }
-            });
+      if (Objects.isNull(geom)
+          || geom.isEmpty()
+          || geom.getNumGeometries() == 0
+          || !geom.isValid()) {
+        LOGGER.debug(
+            "{}: Merged polygon feature grouped by {} has no or an invalid geometry. Using {} unmerged features.",
+            context,
+            values,
+            component.size());
+        result.addAll(component);
+      } else {
+        // add merged feature
+        result.add(
+            new Builder()
+                .id(main.getId())
+                .properties(getMergedProperties(main, component))
+                .geometry(geom)
+                .build());
+      }
+    }
 
     return result.build();
   }
 
-  // merge all polygons with the values for the groupBy attributes
-  private List<MvtFeature> mergeLineStrings(Set<MvtFeature> mergeFeatures, List<Object> values) {
-    ImmutableList.Builder<MvtFeature> result = ImmutableList.builder();
+  /**
+   * Determines the sets of connected features, using a spatial index to find the candidates and
+   * union-find to join the sets. The features in each set are in the order of the input list.
+   */
+  private static Collection<List<MvtFeature>> getConnectedComponents(List<MvtFeature> features) {
+    int[] parent = new int[features.size()];
+    STRtree index = new STRtree();
+    for (int i = 0; i < features.size(); i++) {
+      parent[i] = i;
+      index.insert(features.get(i).getGeometry().getEnvelopeInternal(), i);
+    }
 
-    // identify features that match the values
-    List<MvtFeature> features =
-        mergeFeatures.stream()
-            .filter(
-                feature ->
-                    feature.getGeometry() instanceof LineString
-                        || feature.getGeometry() instanceof MultiLineString)
-            .filter(
-                feature -> {
-                  int i = 0;
-                  boolean match = true;
-                  for (String att : groupBy) {
-                    if (values.get(i).equals(NULL)) {
-                      if (feature.getProperties().containsKey(att)) {
-                        match = false;
-                        break;
-                      }
-                    } else if (!values.get(i).equals(feature.getProperties().get(att))) {
-                      match = false;
-                      break;
-                    }
-                    i++;
-                  }
-                  return match;
-                })
-            .collect(Collectors.toUnmodifiableList());
+    for (int i = 0; i < features.size(); i++) {
+      Geometry geometry = features.get(i).getGeometry();
+      PreparedGeometry prepared = null;
+      for (Object candidate : index.query(geometry.getEnvelopeInternal())) {
+        int j = (Integer) candidate;
+        if (j <= i || find(parent, i) == find(parent, j)) {
+          continue;
+        }
+        if (Objects.isNull(prepared)) {
+          prepared = PreparedGeometryFactory.prepare(geometry);
+        }
+        if (prepared.intersects(features.get(j).getGeometry())) {
+          parent[find(parent, i)] = find(parent, j);
+        }
+      }
+    }
+
+    Map<Integer, List<MvtFeature>> components = new LinkedHashMap<>();
+    for (int i = 0; i < features.size(); i++) {
+      components.computeIfAbsent(find(parent, i), ignore -> new ArrayList<>()).add(features.get(i));
+    }
+
+    return components.values();
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  // only properties of the main feature that have the same value in all features are kept
+  private Map<String, Object> getMergedProperties(
+      MvtFeature main, Collection<MvtFeature> features) {
+    ImmutableMap.Builder<String, Object> propertiesBuilder = ImmutableMap.builder();
+    main.getProperties().entrySet().stream()
+        .filter(prop -> allProperties || properties.contains(prop.getKey()))
+        .filter(
+            prop ->
+                features.stream()
+                    .allMatch(
+                        f ->
+                            f.getProperties().containsKey(prop.getKey())
+                                && f.getProperties().get(prop.getKey()).equals(prop.getValue())))
+        .forEach(prop -> propertiesBuilder.put(prop.getKey(), prop.getValue()));
+    return propertiesBuilder.build();
+  }
+
+  // merge all line strings with the values for the groupBy attributes
+  private List<MvtFeature> mergeLineStrings(List<MvtFeature> features, List<Object> values) {
+    ImmutableList.Builder<MvtFeature> result = ImmutableList.builder();
 
     // nothing to merge?
-    if (features.isEmpty()) {
-      return result.build();
-    } else if (features.size() == 1) {
+    if (features.size() == 1) {
       return result.add(features.iterator().next()).build();
     }
 
@@ -376,25 +351,10 @@ class FeatureMerger {
 
               } else {
                 // add merged feature
-                Map<String, Object> mainClusterFeatureProperties = key.getProperties();
-                ImmutableMap.Builder<String, Object> propertiesBuilder = ImmutableMap.builder();
-                mainClusterFeatureProperties.entrySet().stream()
-                    .filter(prop -> allProperties || properties.contains(prop.getKey()))
-                    .filter(
-                        prop ->
-                            value.stream()
-                                .allMatch(
-                                    f ->
-                                        f.getProperties().containsKey(prop.getKey())
-                                            && f.getProperties()
-                                                .get(prop.getKey())
-                                                .equals(prop.getValue())))
-                    .forEach(prop -> propertiesBuilder.put(prop.getKey(), prop.getValue()));
-
                 result.add(
                     new Builder()
                         .id(key.getId())
-                        .properties(propertiesBuilder.build())
+                        .properties(getMergedProperties(key, value))
                         .geometry(geom)
                         .build());
               }
@@ -16,13 +16,17 @@ import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
 import de.ii.ogcapi.tiles.app.provider.ImmutableMbtilesMetadata.Builder;
 import de.ii.ogcapi.tiles.domain.ImmutableVectorLayer;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileResult;
 import de.ii.ogcapi.tiles.domain.provider.TileCoordinates;
 import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import de.ii.xtraplatform.base.domain.LogContext;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,29 +37,92 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Access to a MBTiles file. Reads use a small pool of read-only connections, writes are serialized
+ * and use a single connection. Once the file has been written to, it is in WAL mode, so that reads
+ * neither block each other nor the writer.
+ *
+ * <p>Identical tiles share a single blob. Blobs are identified by a hash of the tile content, a
+ * blob is only deleted when no tile references it anymore.
+ */
 public class MbtilesTileset {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MbtilesTileset.class);
   private static final int EMPTY_TILE_ID = 1;
-  private Connection connection = null;
+  private static final long EMPTY_HASH = hash(new byte[0]);
+  private static final int READ_CONNECTIONS =
+      Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  private static final long CONNECTION_TIMEOUT_SECONDS = 5;
+  private static final String SELECT_TILE_DATA =
+      "SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_row=? AND tile_column=?";
+  private static final String SELECT_TILE_DATA_AND_HASH =
+      "SELECT tile_blobs.tile_data, tile_blobs.tile_hash FROM tile_map INNER JOIN tile_blobs ON tile_map.tile_id = tile_blobs.tile_id WHERE tile_map.zoom_level=? AND tile_map.tile_row=? AND tile_map.tile_column=?";
+  private static final String SELECT_TILE_ID =
+      "SELECT tile_id FROM tile_map WHERE zoom_level=? AND tile_row=? AND tile_column=?";
+  private static final String INSERT_TILE_ID =
+      "INSERT INTO tile_map (tile_id,zoom_level,tile_row,tile_column) VALUES(?,?,?,?)";
+  private static final String UPDATE_TILE_ID =
+      "UPDATE tile_map SET tile_id=? WHERE zoom_level=? AND tile_row=? AND tile_column=?";
+  private static final String DELETE_TILE_ID =
+      "DELETE FROM tile_map WHERE zoom_level=? AND tile_row=? AND tile_column=?";
+  private static final String INSERT_BLOB =
+      "INSERT INTO tile_blobs (tile_data,tile_hash) VALUES(?,?)";
+  private static final String SELECT_BLOBS_WITH_HASH =
+      "SELECT tile_id, tile_data FROM tile_blobs WHERE tile_hash=?";
+  private static final String DELETE_BLOB_IF_UNUSED =
+      "DELETE FROM tile_blobs WHERE tile_id=? AND NOT EXISTS (SELECT 1 FROM tile_map WHERE tile_id=?)";
+  private static final String SELECT_LAST_ID = "SELECT last_insert_rowid()";
+  private static final String SELECT_MARKER =
+      "SELECT marker FROM tile_markers WHERE zoom_level=? AND tile_row=? AND tile_column=?";
+  private static final String INSERT_MARKER =
+      "INSERT INTO tile_markers (zoom_level,tile_row,tile_column,marker) VALUES(?,?,?,?)";
+  private static final String DELETE_MARKER =
+      "DELETE FROM tile_markers WHERE zoom_level=? AND tile_row=? AND tile_column=?";
+  private static final String SELECT_MARKER_TABLE =
+      "SELECT name FROM sqlite_master WHERE type='table' AND name='tile_markers'";
+  private static final String RANGE =
+      "WHERE zoom_level=? AND tile_row>=? AND tile_column>=? AND tile_row<=? AND tile_column<=?";
+
   private final Path tilesetPath;
   private final Semaphore mutex = new Semaphore(1);
   private final MbtilesMetadata metadata;
+  private final BlockingQueue<CachedConnection> readers = new LinkedBlockingQueue<>();
+  private final AtomicInteger openReaders = new AtomicInteger();
+  // incremented when the file is recreated, connections of older generations are discarded
+  private final AtomicInteger generation = new AtomicInteger();
+  // guarded by the mutex
+  private CachedConnection writer = null;
+  // the table for the Empty and Full markers is not part of the MBTiles specification, it is
+  // only created when the first marker is written, the result of the lookup is kept either way
+  private volatile Boolean markerTableExists = null;
+  // files that are not written by us or that have not been migrated yet have no hashes
+  private volatile Boolean hashesExist = null;
+  private final AtomicLong blobWrites = new AtomicLong();
+  private final AtomicLong deduplicatedWrites = new AtomicLong();
+  private final AtomicLong deduplicatedBytes = new AtomicLong();
 
   public MbtilesTileset(Path tilesetPath) {
     if (!Files.exists(tilesetPath)) {
@@ -79,7 +146,12 @@ public class MbtilesTileset {
     this.metadata = metadata;
 
     // create and init MBTiles DB
-    releaseConnection(getConnection(true));
+    try {
+      write("create", writer -> null);
+    } catch (SQLException e) {
+      throw new IllegalStateException(
+          String.format("Could not create new Mbtiles file: %s", tilesetPath), e);
+    }
   }
 
   private void initMbtilesDb(MbtilesMetadata metadata, Connection connection) {
@@ -94,7 +166,10 @@ public class MbtilesTileset {
           connection,
           "CREATE UNIQUE INDEX tile_index on tile_map (zoom_level, tile_column, tile_row)");
       SqlHelper.execute(
-          connection, "CREATE TABLE tile_blobs (tile_id integer primary key, tile_data blob)");
+          connection,
+          "CREATE TABLE tile_blobs (tile_id integer primary key, tile_data blob, tile_hash integer)");
+      SqlHelper.execute(connection, "CREATE INDEX tile_blobs_hash on tile_blobs (tile_hash)");
+      SqlHelper.execute(connection, "CREATE INDEX tile_map_tile_id on tile_map (tile_id)");
       SqlHelper.execute(
           connection,
           "CREATE VIEW tiles AS SELECT zoom_level, tile_column, tile_row, tile_data FROM tile_map INNER JOIN tile_blobs ON tile_map.tile_id = tile_blobs.tile_id");
@@ -151,12 +226,14 @@ public class MbtilesTileset {
       // create empty MVT tile with rowid=1
       if (metadata.getFormat().equals(MbtilesMetadata.MbtilesFormat.pbf)) {
         PreparedStatement statement =
-            connection.prepareStatement("INSERT INTO tile_blobs (tile_id,tile_data) VALUES(?,?)");
+            connection.prepareStatement(
+                "INSERT INTO tile_blobs (tile_id,tile_data,tile_hash) VALUES(?,?,?)");
         statement.setInt(1, EMPTY_TILE_ID);
         ByteArrayOutputStream mvt = new ByteArrayOutputStream(0);
         GZIPOutputStream gzipStream = new GZIPOutputStream(mvt);
         gzipStream.close();
         statement.setBytes(2, mvt.toByteArray());
+        statement.setLong(3, EMPTY_HASH);
         statement.executeUpdate();
         statement.close();
       }
@@ -168,229 +245,523 @@ public class MbtilesTileset {
     }
   }
 
-  private Connection getConnection(boolean aquireMutexOnCreate) throws IOException {
-    // we use a single connection per database to avoid multi-threading conflicts
+  @FunctionalInterface
+  private interface SqlOperation<T> {
+    T run(CachedConnection connection) throws SQLException, IOException;
+  }
 
-    // check, if the file exists
-    if (!Files.exists(tilesetPath)) {
-      // aquire the mutex, if necessary (for write operations we already have it)
-      boolean aquired = false;
+  /** A connection with its prepared statements, only used by one thread at a time. */
+  private static final class CachedConnection {
+    private final Connection connection;
+    private final int generation;
+    private final Map<String, PreparedStatement> statements;
+
+    private CachedConnection(Connection connection, int generation) {
+      this.connection = connection;
+      this.generation = generation;
+      this.statements = new HashMap<>();
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+
+      if (Objects.isNull(statement)) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+
+      return statement;
+    }
+
+    private void close() {
       try {
-        aquired = aquireMutexOnCreate && mutex.tryAcquire(5, TimeUnit.SECONDS);
-        if (aquireMutexOnCreate)
-          LOGGER.trace("getConnection: Trying to aquite mutex: '{}'.", aquired);
-        if (aquireMutexOnCreate && !aquired)
-          throw new IllegalStateException(
-              String.format("Could not aquire mutex to create MBTiles file: %s", tilesetPath));
-        // now that we have the mutex, check again, if the file exists, it may have been
-        // created by a parallel request
-        if (!Files.exists(tilesetPath)) {
-          // recreate an empty MBTiles container
-          LOGGER.trace("Creating MBTiles file '{}'.", tilesetPath);
-          Files.createDirectories(tilesetPath.getParent());
-          connection = SqlHelper.getConnection(tilesetPath.toFile());
-          initMbtilesDb(metadata, connection);
-        } else if (Objects.isNull(connection)) {
-          connection = SqlHelper.getConnection(tilesetPath.toFile());
-        }
-      } catch (InterruptedException e) {
-        LOGGER.debug("getConnection: Thread has been interrupted.");
-      } finally {
-        if (aquired) {
-          LOGGER.trace("getConnection: Releasing mutex.");
-          mutex.release();
-        }
+        // also closes the prepared statements
+        connection.close();
+      } catch (SQLException e) {
+        LOGGER.debug("Failed to close MBTiles connection: {}", e.getMessage());
+      }
+    }
+  }
+
+  private <T> T read(SqlOperation<T> operation) throws SQLException, IOException {
+    CachedConnection reader = acquireReader();
+    try {
+      return operation.run(reader);
+    } finally {
+      releaseReader(reader);
+    }
+  }
+
+  /**
+   * Runs the operation in a transaction of the writer connection. Only one write operation is
+   * active at a time.
+   */
+  private <T> T write(String name, SqlOperation<T> operation) throws SQLException, IOException {
+    boolean aquired = false;
+    try {
+      aquired = mutex.tryAcquire(CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      LOGGER.trace("{}: Trying to aquire mutex: '{}'.", name, aquired);
+      if (!aquired)
+        throw new IllegalStateException(
+            String.format("Could not aquire mutex to write to MBTiles file: %s", tilesetPath));
+      CachedConnection connection = getWriter();
+      try {
+        T result = operation.run(connection);
+        connection.connection.commit();
+        return result;
+      } catch (SQLException | IOException | RuntimeException e) {
+        connection.connection.rollback();
+        throw e;
       }
-    } else if (Objects.isNull(connection)) {
-      connection = SqlHelper.getConnection(tilesetPath.toFile());
+    } catch (InterruptedException e) {
+      LOGGER.debug("{}: Thread has been interrupted.", name);
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      if (aquired) {
+        LOGGER.trace("{}: Releasing mutex.", name);
+        mutex.release();
+      }
+    }
+  }
+
+  private CachedConnection acquireReader() throws SQLException, IOException {
+    if (!Files.exists(tilesetPath)) {
+      // recreates the file
+      write("recreate", writer -> null);
+    }
+
+    CachedConnection reader = readers.poll();
+
+    if (Objects.nonNull(reader)) {
+      return reader;
+    }
+
+    if (openReaders.incrementAndGet() <= READ_CONNECTIONS) {
+      return new CachedConnection(
+          SqlHelper.getConnection(tilesetPath.toFile(), true), generation.get());
+    }
+    openReaders.decrementAndGet();
+
+    try {
+      reader = readers.poll(CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
 
-    return connection;
+    if (Objects.isNull(reader)) {
+      throw new IllegalStateException(
+          String.format(
+              "Could not aquire a connection to read from MBTiles file: %s", tilesetPath));
+    }
+
+    return reader;
   }
 
-  private void releaseConnection(@Nullable Connection connection) {
-    // nothing to do
+  private void releaseReader(CachedConnection reader) {
+    if (reader.generation != generation.get()) {
+      reader.close();
+      openReaders.decrementAndGet();
+      return;
+    }
+
+    readers.offer(reader);
+  }
+
+  // must only be called while holding the mutex
+  private CachedConnection getWriter() throws SQLException, IOException {
+    if (!Files.exists(tilesetPath)) {
+      // connections to a deleted file are discarded
+      if (Objects.nonNull(writer)) {
+        writer.close();
+      }
+      generation.incrementAndGet();
+      List<CachedConnection> idleReaders = new ArrayList<>();
+      readers.drainTo(idleReaders);
+      idleReaders.forEach(
+          reader -> {
+            reader.close();
+            openReaders.decrementAndGet();
+          });
+      this.markerTableExists = null;
+      this.hashesExist = null;
+
+      // recreate an empty MBTiles container
+      LOGGER.trace("Creating MBTiles file '{}'.", tilesetPath);
+      Files.createDirectories(tilesetPath.getParent());
+      Connection connection = SqlHelper.getConnection(tilesetPath.toFile(), false);
+      initMbtilesDb(metadata, connection);
+      connection.setAutoCommit(false);
+      this.writer = new CachedConnection(connection, generation.get());
+    } else if (Objects.isNull(writer)) {
+      Connection connection = SqlHelper.getConnection(tilesetPath.toFile(), false);
+      migrateMbtilesDb(connection);
+      connection.setAutoCommit(false);
+      this.writer = new CachedConnection(connection, generation.get());
+    }
+
+    return writer;
+  }
+
+  /**
+   * Files that were created before tiles were deduplicated have no content hashes. The hashes of
+   * existing blobs are only computed by {@link #compact()}, new blobs are deduplicated right away.
+   */
+  private void migrateMbtilesDb(Connection connection) throws SQLException {
+    boolean hasHashes = false;
+    try (Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("PRAGMA table_info(tile_blobs)")) {
+      while (rs.next()) {
+        hasHashes = hasHashes || Objects.equals(rs.getString("name"), "tile_hash");
+      }
+    }
+
+    this.hashesExist = true;
+
+    if (!hasHashes) {
+      LOGGER.debug("Adding content hashes to MBTiles file '{}'.", tilesetPath);
+      SqlHelper.execute(connection, "ALTER TABLE tile_blobs ADD COLUMN tile_hash integer");
+      SqlHelper.execute(
+          connection, "CREATE INDEX IF NOT EXISTS tile_blobs_hash on tile_blobs (tile_hash)");
+      SqlHelper.execute(
+          connection, "CREATE INDEX IF NOT EXISTS tile_map_tile_id on tile_map (tile_id)");
+    }
   }
 
   public MbtilesMetadata getMetadata() throws SQLException, IOException {
     Builder builder = ImmutableMbtilesMetadata.builder();
-    Connection connection = getConnection(true);
-    ResultSet rs = SqlHelper.executeQuery(connection, "SELECT name, value FROM metadata");
-    while (rs.next()) {
-      final String name = rs.getString("name");
-      final String value = rs.getString("value");
-      if (Objects.nonNull(value)) {
-        switch (name) {
-          case "name":
-            builder.name(value);
-            break;
-          case "format":
-            MbtilesMetadata.MbtilesFormat format = MbtilesMetadata.MbtilesFormat.of(value);
-            if (Objects.isNull(format))
-              throw new IllegalArgumentException(
-                  String.format(
-                      "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
-                      name, value));
-            builder.format(format);
-            break;
-          case "bounds":
-            List<Double> bounds =
-                Splitter.on(',')
-                    .trimResults()
-                    .omitEmptyStrings()
-                    .splitToStream(value)
-                    .map(Double::parseDouble)
-                    .collect(Collectors.toUnmodifiableList());
-            if (bounds.size() != 4)
-              throw new IllegalArgumentException(
-                  String.format(
-                      "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
-                      name, value));
-            builder.bounds(bounds);
-            break;
-          case "center":
-            List<Double> center =
-                Splitter.on(',')
-                    .trimResults()
-                    .omitEmptyStrings()
-                    .splitToStream(value)
-                    .map(Double::parseDouble)
-                    .collect(Collectors.toUnmodifiableList());
-            if (center.size() != 3)
-              throw new IllegalArgumentException(
-                  String.format(
-                      "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
-                      name, value));
-            builder.center(center);
-            break;
-          case "minzoom":
-            builder.minzoom(Integer.parseInt(value));
-            break;
-          case "maxzoom":
-            builder.maxzoom(Integer.parseInt(value));
-            break;
-          case "description":
-            builder.description(value);
-            break;
-          case "attribution":
-            builder.attribution(value);
-            break;
-          case "type":
-            MbtilesMetadata.MbtilesType type = MbtilesMetadata.MbtilesType.of(value);
-            if (Objects.isNull(type))
-              throw new IllegalArgumentException(
-                  String.format(
-                      "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
-                      name, value));
-            builder.type(type);
-            break;
-          case "version":
-            try {
-              int v = Integer.parseInt(value);
-              builder.version(v);
-            } catch (NumberFormatException e) {
-              builder.version(Float.parseFloat(value));
-            }
-            break;
-          case "json":
-            ObjectMapper mapper = new ObjectMapper();
-            try {
-              ArrayNode layers = (ArrayNode) mapper.readTree(value).get("vector_layers");
-              for (JsonNode node : layers) {
-                ObjectNode layer = (ObjectNode) node;
-                ImmutableVectorLayer.Builder builder2 =
-                    ImmutableVectorLayer.builder().id(layer.get("id").asText());
-                if (layer.has("description")) {
-                  builder2.description(layer.get("description").asText());
+    CachedConnection reader = acquireReader();
+    try (Statement statement = reader.connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT name, value FROM metadata")) {
+      while (rs.next()) {
+        final String name = rs.getString("name");
+        final String value = rs.getString("value");
+        if (Objects.nonNull(value)) {
+          switch (name) {
+            case "name":
+              builder.name(value);
+              break;
+            case "format":
+              MbtilesMetadata.MbtilesFormat format = MbtilesMetadata.MbtilesFormat.of(value);
+              if (Objects.isNull(format))
+                throw new IllegalArgumentException(
+                    String.format(
+                        "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
+                        name, value));
+              builder.format(format);
+              break;
+            case "bounds":
+              List<Double> bounds =
+                  Splitter.on(',')
+                      .trimResults()
+                      .omitEmptyStrings()
+                      .splitToStream(value)
+                      .map(Double::parseDouble)
+                      .collect(Collectors.toUnmodifiableList());
+              if (bounds.size() != 4)
+                throw new IllegalArgumentException(
+                    String.format(
+                        "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
+                        name, value));
+              builder.bounds(bounds);
+              break;
+            case "center":
+              List<Double> center =
+                  Splitter.on(',')
+                      .trimResults()
+                      .omitEmptyStrings()
+                      .splitToStream(value)
+                      .map(Double::parseDouble)
+                      .collect(Collectors.toUnmodifiableList());
+              if (center.size() != 3)
+                throw new IllegalArgumentException(
+                    String.format(
+                        "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
+                        name, value));
+              builder.center(center);
+              break;
+            case "minzoom":
+              builder.minzoom(Integer.parseInt(value));
+              break;
+            case "maxzoom":
+              builder.maxzoom(Integer.parseInt(value));
+              break;
+            case "description":
+              builder.description(value);
+              break;
+            case "attribution":
+              builder.attribution(value);
+              break;
+            case "type":
+              MbtilesMetadata.MbtilesType type = MbtilesMetadata.MbtilesType.of(value);
+              if (Objects.isNull(type))
+                throw new IllegalArgumentException(
+                    String.format(
+                        "The metadata entry '%s' in an Mbtiles container has an invalid value '%s'",
+                        name, value));
+              builder.type(type);
+              break;
+            case "version":
+              try {
+                int v = Integer.parseInt(value);
+                builder.version(v);
+              } catch (NumberFormatException e) {
+                builder.version(Float.parseFloat(value));
+              }
+              break;
+            case "json":
+              ObjectMapper mapper = new ObjectMapper();
+              try {
+                ArrayNode layers = (ArrayNode) mapper.readTree(value).get("vector_layers");
+                for (JsonNode node : layers) {
+                  ObjectNode layer = (ObjectNode) node;
+                  ImmutableVectorLayer.Builder builder2 =
+                      ImmutableVectorLayer.builder().id(layer.get("id").asText());
+                  if (layer.has("description")) {
+                    builder2.description(layer.get("description").asText());
+                  }
+                  if (layer.has("minzoom")) {
+                    builder2.minzoom(layer.get("minzoom").asDouble());
+                  }
+                  if (layer.has("maxzoom")) {
+                    builder2.minzoom(layer.get("maxzoom").asDouble());
+                  }
+                  ObjectNode fields = (ObjectNode) layer.get("fields");
+                  for (Iterator<Entry<String, JsonNode>> it = fields.fields(); it.hasNext(); ) {
+                    Entry<String, JsonNode> field = it.next();
+                    builder2.putFields(field.getKey(), field.getValue().textValue());
+                  }
+                  builder.addVectorLayers(builder2.build());
                 }
-                if (layer.has("minzoom")) {
-                  builder2.minzoom(layer.get("minzoom").asDouble());
+              } catch (IOException e) {
+                if (LOGGER.isErrorEnabled()) {
+                  LOGGER.error(
+                      "Could not parse Vector Layers object from MBTiles metadata, the vector layers are ignored: {}",
+                      e.getMessage());
                 }
-                if (layer.has("maxzoom")) {
-                  builder2.minzoom(layer.get("maxzoom").asDouble());
+              }
+              break;
+          }
+        }
+      }
+    } finally {
+      releaseReader(reader);
+    }
+    return builder.build();
+  }
+
+  public Optional<InputStream> getTile(TileQuery tile) throws SQLException, IOException {
+    Optional<byte[]> data = getEncodedTile(tile);
+
+    if (data.isEmpty()) {
+      return Optional.empty();
+    }
+
+    return Optional.of(
+        isGzipped(tile)
+            ? new GZIPInputStream(new ByteArrayInputStream(data.get()))
+            : new ByteArrayInputStream(data.get()));
+  }
+
+  /**
+   * @return the tile as stored in the file with the marker and the content hash, if available
+   */
+  public TileResult getTileResult(TileQuery tile) throws SQLException, IOException {
+    int level = tile.getLevel();
+    int row = tile.getTileMatrixSet().getTmsRow(level, tile.getRow());
+    int col = tile.getCol();
+
+    TileResult result =
+        read(
+            reader -> {
+              boolean withHash = hasHashes(reader);
+              PreparedStatement statement =
+                  reader.prepare(withHash ? SELECT_TILE_DATA_AND_HASH : SELECT_TILE_DATA);
+              setTile(statement, 1, level, row, col);
+
+              ImmutableTileResult.Builder builder = new ImmutableTileResult.Builder();
+              try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                  return TileResult.notFound();
                 }
-                ObjectNode fields = (ObjectNode) layer.get("fields");
-                for (Iterator<Entry<String, JsonNode>> it = fields.fields(); it.hasNext(); ) {
-                  Entry<String, JsonNode> field = it.next();
-                  builder2.putFields(field.getKey(), field.getValue().textValue());
+                builder.encodedContent(rs.getBytes(1));
+                if (withHash) {
+                  long hash = rs.getLong(2);
+                  if (!rs.wasNull()) {
+                    builder.contentHash(formatHash(hash));
+                  }
+                }
+              }
+
+              builder.status(TileResult.Status.Found);
+              if (hasMarkerTable(reader)) {
+                PreparedStatement marker = reader.prepare(SELECT_MARKER);
+                setTile(marker, 1, level, row, col);
+                try (ResultSet rs = marker.executeQuery()) {
+                  if (rs.next()) {
+                    builder.status(TileResult.Status.valueOf(rs.getString("marker")));
+                  }
                 }
-                builder.addVectorLayers(builder2.build());
               }
-            } catch (IOException e) {
-              if (LOGGER.isErrorEnabled()) {
-                LOGGER.error(
-                    "Could not parse Vector Layers object from MBTiles metadata, the vector layers are ignored: {}",
-                    e.getMessage());
+              if (isGzipped(tile)) {
+                builder.contentEncoding(TileResult.GZIP);
               }
-            }
-            break;
+
+              return builder.build();
+            });
+
+    return Objects.requireNonNullElseGet(
+        result, () -> TileResult.error("Interrupted while reading tile."));
+  }
+
+  private boolean hasHashes(CachedConnection connection) throws SQLException {
+    if (Objects.isNull(hashesExist)) {
+      boolean found = false;
+      try (Statement statement = connection.connection.createStatement();
+          ResultSet rs = statement.executeQuery("PRAGMA table_info(tile_blobs)")) {
+        while (rs.next()) {
+          found = found || Objects.equals(rs.getString("name"), "tile_hash");
         }
       }
+      this.hashesExist = found;
     }
-    releaseConnection(connection);
-    return builder.build();
+    return hashesExist;
   }
 
-  public Optional<InputStream> getTile(TileQuery tile) throws SQLException, IOException {
-    Optional<InputStream> result = Optional.empty();
+  /**
+   * @return the tile as stored in the file, see {@link #isGzipped(TileQuery)}
+   */
+  public Optional<byte[]> getEncodedTile(TileCoordinates tile) throws SQLException, IOException {
     int level = tile.getLevel();
     int row = tile.getTileMatrixSet().getTmsRow(level, tile.getRow());
     int col = tile.getCol();
-    boolean gzip = Objects.equals(tile.getMediaType(), FeatureEncoderMVT.FORMAT);
-    Connection connection = getConnection(true);
-    String sql =
-        String.format(
-            "SELECT tile_data FROM tiles WHERE zoom_level=%d AND tile_row=%d AND tile_column=%d",
-            level, row, col);
-    ResultSet rs = SqlHelper.executeQuery(connection, sql);
-    if (rs.next()) {
-      result =
-          Optional.of(
-              gzip
-                  ? new GZIPInputStream(rs.getBinaryStream("tile_data"))
-                  : rs.getBinaryStream("tile_data"));
-    }
-    releaseConnection(connection);
-    return result;
+
+    return Optional.ofNullable(
+        read(
+            reader -> {
+              PreparedStatement statement = reader.prepare(SELECT_TILE_DATA);
+              setTile(statement, 1, level, row, col);
+              try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getBytes("tile_data") : null;
+              }
+            }));
+  }
+
+  /**
+   * @return true, if the tiles of the given format are stored gzip compressed, which is the case
+   *     for Mapbox Vector Tiles
+   */
+  public boolean isGzipped(TileQuery tile) {
+    return Objects.equals(tile.getMediaType(), FeatureEncoderMVT.FORMAT);
   }
 
   public Optional<Boolean> tileIsEmpty(TileCoordinates tile) throws SQLException, IOException {
-    Optional<Boolean> result = Optional.empty();
-    Connection connection = getConnection(true);
+    return getTileId(tile).map(tileId -> tileId == EMPTY_TILE_ID);
+  }
+
+  public boolean tileExists(TileCoordinates tile) throws SQLException, IOException {
+    return getTileId(tile).isPresent();
+  }
+
+  private Optional<Integer> getTileId(TileCoordinates tile) throws SQLException, IOException {
     int level = tile.getLevel();
     int row = tile.getTileMatrixSet().getTmsRow(level, tile.getRow());
     int col = tile.getCol();
-    String sql =
-        String.format(
-            "SELECT tile_id FROM tile_map WHERE zoom_level=%d AND tile_row=%d AND tile_column=%d",
-            level, row, col);
-    ResultSet rs = SqlHelper.executeQuery(connection, sql);
-    if (rs.next()) {
-      result = Optional.of(rs.getInt("tile_id") == EMPTY_TILE_ID);
-    }
-    releaseConnection(connection);
-    return result;
+
+    return read(
+        reader -> {
+          PreparedStatement statement = reader.prepare(SELECT_TILE_ID);
+          setTile(statement, 1, level, row, col);
+          try (ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? Optional.of(rs.getInt("tile_id")) : Optional.empty();
+          }
+        });
   }
 
-  public boolean tileExists(TileCoordinates tile) throws SQLException, IOException {
-    Connection connection = getConnection(true);
+  /**
+   * @return Empty or Full, if the tile was written with that marker
+   */
+  public Optional<TileResult.Status> getMarker(TileCoordinates tile)
+      throws SQLException, IOException {
     int level = tile.getLevel();
     int row = tile.getTileMatrixSet().getTmsRow(level, tile.getRow());
     int col = tile.getCol();
-    String sql =
-        String.format(
-            "SELECT tile_data FROM tiles WHERE zoom_level=%d AND tile_row=%d AND tile_column=%d",
-            level, row, col);
-    boolean exists = SqlHelper.executeQuery(connection, sql).next();
-    releaseConnection(connection);
-    return exists;
+
+    return read(
+        reader -> {
+          if (!hasMarkerTable(reader)) {
+            return Optional.empty();
+          }
+          PreparedStatement statement = reader.prepare(SELECT_MARKER);
+          setTile(statement, 1, level, row, col);
+          try (ResultSet rs = statement.executeQuery()) {
+            return rs.next()
+                ? Optional.of(TileResult.Status.valueOf(rs.getString("marker")))
+                : Optional.empty();
+          }
+        });
+  }
+
+  private boolean hasMarkerTable(CachedConnection connection) throws SQLException {
+    if (Objects.isNull(markerTableExists)) {
+      try (ResultSet rs = connection.prepare(SELECT_MARKER_TABLE).executeQuery()) {
+        this.markerTableExists = rs.next();
+      }
+    }
+    return markerTableExists;
+  }
+
+  private void createMarkerTable(CachedConnection connection) {
+    SqlHelper.execute(
+        connection.connection,
+        "CREATE TABLE IF NOT EXISTS tile_markers (zoom_level integer, tile_column integer, tile_row integer, marker text)");
+    SqlHelper.execute(
+        connection.connection,
+        "CREATE UNIQUE INDEX IF NOT EXISTS tile_markers_index on tile_markers (zoom_level, tile_column, tile_row)");
+    this.markerTableExists = true;
   }
 
   public void writeTile(TileQuery tile, byte[] content) throws SQLException, IOException {
+    writeTile(tile, content, Optional.empty());
+  }
+
+  public void writeTile(TileQuery tile, byte[] content, Optional<TileResult.Status> marker)
+      throws SQLException, IOException {
+    boolean gzip = isGzipped(tile);
+
+    writeTile(tile, gzip ? gzip(content) : content, hash(content), content.length == 0, marker);
+  }
+
+  /**
+   * Writes a tile as it is stored in the file, i.e. without compressing it again, see {@link
+   * #isGzipped(TileQuery)}.
+   *
+   * @param contentHash the hash of the uncompressed content, computed if not available
+   */
+  public void writeEncodedTile(
+      TileQuery tile,
+      byte[] data,
+      Optional<String> contentHash,
+      Optional<TileResult.Status> marker)
+      throws SQLException, IOException {
+    long hash =
+        contentHash
+            .map(h -> Long.parseUnsignedLong(h, 16))
+            .orElseGet(() -> hash(getContent(data, isGzipped(tile))));
+
+    writeTile(tile, data, hash, hash == EMPTY_HASH, marker);
+  }
+
+  private void writeTile(
+      TileQuery tile,
+      byte[] data,
+      long hash,
+      boolean emptyContent,
+      Optional<TileResult.Status> marker)
+      throws SQLException, IOException {
     int level = tile.getLevel();
     int row = tile.getTileMatrixSet().getTmsRow(level, tile.getRow());
     int col = tile.getCol();
-    boolean gzip = Objects.equals(tile.getMediaType(), FeatureEncoderMVT.FORMAT);
     boolean supportsEmtpyTile = Objects.equals(tile.getMediaType(), FeatureEncoderMVT.FORMAT);
     LOGGER.trace(
         "Write tile {}/{}/{}/{} to MBTiles cache {}.",
@@ -399,63 +770,52 @@ public class MbtilesTileset {
         tile.getRow(),
         col,
         tilesetPath);
-    Connection connection = null;
-    boolean aquired = false;
     try {
-      aquired = mutex.tryAcquire(5, TimeUnit.SECONDS);
-      LOGGER.trace("writeTile: Trying to aquite mutex: '{}'.", aquired);
-      if (!aquired)
-        throw new IllegalStateException(
-            String.format("Could not aquire mutex to create MBTiles file: %s", tilesetPath));
-      connection = getConnection(false);
-      // do we have an old blob?
-      boolean exists = false;
-      Integer old_tile_id = null;
-      String sql =
-          String.format(
-              "SELECT tile_id FROM tile_map WHERE zoom_level=%d AND tile_row=%d AND tile_column=%d",
-              level, row, col);
-      ResultSet rs = SqlHelper.executeQuery(connection, sql);
-      if (rs.next()) {
-        exists = true;
-        old_tile_id = rs.getInt(1);
-      }
-      // add the new tile
-      int tile_id = EMPTY_TILE_ID;
-      if (content.length > 0 || !supportsEmtpyTile) {
-        PreparedStatement statement =
-            connection.prepareStatement("INSERT INTO tile_blobs (tile_data) VALUES(?)");
-        ByteArrayOutputStream mvt = new ByteArrayOutputStream(content.length);
-        if (gzip) {
-          GZIPOutputStream gzipStream = new GZIPOutputStream(mvt);
-          gzipStream.write(content);
-          gzipStream.close();
-        } else {
-          mvt.write(content);
-        }
-        statement.setBytes(1, mvt.toByteArray());
-        statement.executeUpdate();
-        statement.close();
-        rs = SqlHelper.executeQuery(connection, "SELECT last_insert_rowid()");
-        tile_id = rs.getInt(1);
-      }
-      PreparedStatement statement =
-          exists
-              ? connection.prepareStatement(
-                  "UPDATE tile_map SET tile_id=? WHERE zoom_level=? AND tile_row=? AND tile_column=?")
-              : connection.prepareStatement(
-                  "INSERT INTO tile_map (tile_id,zoom_level,tile_row,tile_column) VALUES(?,?,?,?)");
-      statement.setInt(1, tile_id);
-      statement.setInt(2, level);
-      statement.setInt(3, row);
-      statement.setInt(4, col);
-      statement.executeUpdate();
-      statement.close();
-      // finally remove any old blob
-      if (Objects.nonNull(old_tile_id) && (old_tile_id != EMPTY_TILE_ID || !supportsEmtpyTile)) {
-        SqlHelper.execute(
-            connection, String.format("DELETE FROM tile_map WHERE tile_id = %d", old_tile_id));
-      }
+      write(
+          "writeTile",
+          writer -> {
+            // do we have an old blob?
+            Integer oldTileId = null;
+            PreparedStatement select = writer.prepare(SELECT_TILE_ID);
+            setTile(select, 1, level, row, col);
+            try (ResultSet rs = select.executeQuery()) {
+              if (rs.next()) {
+                oldTileId = rs.getInt(1);
+              }
+            }
+            // add the new tile, unless an identical blob exists
+            int tileId = EMPTY_TILE_ID;
+            if (!emptyContent || !supportsEmtpyTile) {
+              tileId = getOrInsertBlob(writer, hash, data);
+            }
+            PreparedStatement statement =
+                writer.prepare(Objects.nonNull(oldTileId) ? UPDATE_TILE_ID : INSERT_TILE_ID);
+            statement.setInt(1, tileId);
+            setTile(statement, 2, level, row, col);
+            statement.executeUpdate();
+            // finally remove the old blob, if no other tile uses it
+            if (Objects.nonNull(oldTileId)
+                && oldTileId != tileId
+                && (oldTileId != EMPTY_TILE_ID || !supportsEmtpyTile)) {
+              deleteBlobIfUnused(writer, oldTileId);
+            }
+            // replace any old marker
+            if (marker.isPresent() && !hasMarkerTable(writer)) {
+              createMarkerTable(writer);
+            }
+            if (hasMarkerTable(writer)) {
+              PreparedStatement deleteMarker = writer.prepare(DELETE_MARKER);
+              setTile(deleteMarker, 1, level, row, col);
+              deleteMarker.executeUpdate();
+            }
+            if (marker.isPresent()) {
+              PreparedStatement insertMarker = writer.prepare(INSERT_MARKER);
+              setTile(insertMarker, 1, level, row, col);
+              insertMarker.setString(4, marker.get().name());
+              insertMarker.executeUpdate();
+            }
+            return null;
+          });
     } catch (SQLException e) {
       throw new IllegalStateException(
           String.format(
@@ -467,14 +827,6 @@ public class MbtilesTileset {
               tile.getLayer(),
               e.getMessage()),
           e);
-    } catch (InterruptedException e) {
-      LOGGER.debug("writeTile: Thread has been interrupted.");
-    } finally {
-      releaseConnection(connection);
-      if (aquired) {
-        LOGGER.trace("writeTile: Releasing mutex.");
-        mutex.release();
-      }
     }
   }
 
@@ -490,41 +842,32 @@ public class MbtilesTileset {
         tile.getRow(),
         col,
         tilesetPath);
-    Connection connection = null;
-    boolean aquired = false;
-    try {
-      aquired = mutex.tryAcquire(5, TimeUnit.SECONDS);
-      LOGGER.trace("deleteTile: Trying to aquite mutex: '{}'.", aquired);
-      if (!aquired)
-        throw new IllegalStateException(
-            String.format("Could not aquire mutex to create MBTiles file: %s", tilesetPath));
-      connection = getConnection(false);
-      String sql =
-          String.format(
-              "SELECT tile_id FROM tile_map WHERE zoom_level=%d AND tile_row=%d AND tile_column=%d",
-              level, row, col);
-      ResultSet rs = SqlHelper.executeQuery(connection, sql);
-      if (rs.next()) {
-        int tile_id = rs.getInt(1);
-        SqlHelper.execute(
-            connection,
-            String.format(
-                "DELETE FROM tile_map WHERE zoom_level=%d AND tile_row=%d AND tile_column=%d",
-                level, row, col));
-        if (tile_id != EMPTY_TILE_ID || !supportsEmtpyTile) {
-          SqlHelper.execute(
-              connection, String.format("DELETE FROM tile_blobs WHERE tile_id=%d", tile_id));
-        }
-      }
-    } catch (InterruptedException e) {
-      LOGGER.debug("deleteTile: Thread has been interrupted.");
-    } finally {
-      releaseConnection(connection);
-      if (aquired) {
-        LOGGER.trace("deleteTile: Releasing mutex.");
-        mutex.release();
-      }
-    }
+    write(
+        "deleteTile",
+        writer -> {
+          PreparedStatement select = writer.prepare(SELECT_TILE_ID);
+          setTile(select, 1, level, row, col);
+          Integer tileId = null;
+          try (ResultSet rs = select.executeQuery()) {
+            if (rs.next()) {
+              tileId = rs.getInt(1);
+            }
+          }
+          if (Objects.nonNull(tileId)) {
+            PreparedStatement delete = writer.prepare(DELETE_TILE_ID);
+            setTile(delete, 1, level, row, col);
+            delete.executeUpdate();
+            if (tileId != EMPTY_TILE_ID || !supportsEmtpyTile) {
+              deleteBlobIfUnused(writer, tileId);
+            }
+          }
+          if (hasMarkerTable(writer)) {
+            PreparedStatement deleteMarker = writer.prepare(DELETE_MARKER);
+            setTile(deleteMarker, 1, level, row, col);
+            deleteMarker.executeUpdate();
+          }
+          return null;
+        });
   }
 
   public void deleteTiles(TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits)
@@ -532,41 +875,327 @@ public class MbtilesTileset {
     int level = Integer.parseInt(limits.getTileMatrix());
     LOGGER.trace(
         "Delete tiles {}/{}/*/* from MBTiles cache {}.", tileMatrixSet.getId(), level, tilesetPath);
-    Connection connection = null;
-    boolean aquired = false;
-    try {
-      aquired = mutex.tryAcquire(5, TimeUnit.SECONDS);
-      LOGGER.trace("deleteTiles: Trying to aquite mutex: '{}'.", aquired);
-      if (!aquired)
-        throw new IllegalStateException(
-            String.format("Could not aquire mutex to create MBTiles file: %s", tilesetPath));
-      connection = getConnection(false);
-      String sqlFrom =
-          String.format(
-              "FROM tile_map WHERE zoom_level=%d AND tile_row>=%d AND tile_column>=%d AND tile_row<=%d AND tile_column<=%d",
-              level,
-              tileMatrixSet.getTmsRow(level, limits.getMaxTileRow()),
-              limits.getMinTileCol(),
-              tileMatrixSet.getTmsRow(level, limits.getMinTileRow()),
-              limits.getMaxTileCol());
-      ResultSet rs =
-          SqlHelper.executeQuery(connection, String.format("SELECT DISTINCT tile_id %s", sqlFrom));
+    write(
+        "deleteTiles",
+        writer -> {
+          PreparedStatement select =
+              writer.prepare(String.format("SELECT DISTINCT tile_id FROM tile_map %s", RANGE));
+          setRange(select, tileMatrixSet, level, limits);
+          List<Integer> tileIds = new ArrayList<>();
+          try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+              if (rs.getInt(1) != EMPTY_TILE_ID) {
+                tileIds.add(rs.getInt(1));
+              }
+            }
+          }
+          PreparedStatement delete =
+              writer.prepare(String.format("DELETE FROM tile_map %s", RANGE));
+          setRange(delete, tileMatrixSet, level, limits);
+          delete.executeUpdate();
+          // blobs that are shared with tiles outside of the range are kept
+          PreparedStatement deleteBlobs = writer.prepare(DELETE_BLOB_IF_UNUSED);
+          for (int tileId : tileIds) {
+            deleteBlobs.setInt(1, tileId);
+            deleteBlobs.setInt(2, tileId);
+            deleteBlobs.addBatch();
+          }
+          deleteBlobs.executeBatch();
+          if (hasMarkerTable(writer)) {
+            PreparedStatement deleteMarkers =
+                writer.prepare(String.format("DELETE FROM tile_markers %s", RANGE));
+            setRange(deleteMarkers, tileMatrixSet, level, limits);
+            deleteMarkers.executeUpdate();
+          }
+          return null;
+        });
+  }
+
+  private int getOrInsertBlob(CachedConnection writer, long hash, byte[] data)
+      throws SQLException {
+    blobWrites.incrementAndGet();
+
+    // compare the content to rule out hash collisions
+    PreparedStatement select = writer.prepare(SELECT_BLOBS_WITH_HASH);
+    select.setLong(1, hash);
+    try (ResultSet rs = select.executeQuery()) {
       while (rs.next()) {
-        int tile_id = rs.getInt(1);
-        if (tile_id != EMPTY_TILE_ID) {
-          SqlHelper.execute(
-              connection, String.format("DELETE FROM tile_blobs WHERE tile_id=%d", tile_id));
+        if (Arrays.equals(data, rs.getBytes("tile_data"))) {
+          deduplicatedWrites.incrementAndGet();
+          deduplicatedBytes.addAndGet(data.length);
+          return rs.getInt("tile_id");
         }
       }
-      SqlHelper.execute(connection, String.format("DELETE %s", sqlFrom));
-    } catch (InterruptedException e) {
-      LOGGER.debug("deleteTile: Thread has been interrupted.");
-    } finally {
-      releaseConnection(connection);
-      if (aquired) {
-        LOGGER.trace("deleteTiles: Releasing mutex.");
-        mutex.release();
+    }
+
+    PreparedStatement insert = writer.prepare(INSERT_BLOB);
+    insert.setBytes(1, data);
+    insert.setLong(2, hash);
+    insert.executeUpdate();
+    try (ResultSet rs = writer.prepare(SELECT_LAST_ID).executeQuery()) {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  private void deleteBlobIfUnused(CachedConnection writer, int tileId) throws SQLException {
+    PreparedStatement delete = writer.prepare(DELETE_BLOB_IF_UNUSED);
+    delete.setInt(1, tileId);
+    delete.setInt(2, tileId);
+    delete.executeUpdate();
+  }
+
+  /**
+   * Computes the missing content hashes, merges identical blobs, removes blobs that are not used by
+   * any tile and finally reclaims the free space of the file.
+   */
+  public Compaction compact() throws SQLException, IOException {
+    boolean gzip = metadata.getFormat() == MbtilesMetadata.MbtilesFormat.pbf;
+    long bytesBefore = getFileSize();
+    long start = System.nanoTime();
+
+    Compaction compaction =
+        write(
+            "compact",
+            writer -> {
+              long blobsBefore = countBlobs(writer);
+              addMissingHashes(writer, gzip);
+              mergeDuplicateBlobs(writer, gzip);
+              SqlHelper.execute(
+                  writer.connection,
+                  String.format(
+                      "DELETE FROM tile_blobs WHERE tile_id!=%d AND NOT EXISTS (SELECT 1 FROM tile_map WHERE tile_map.tile_id=tile_blobs.tile_id)",
+                      EMPTY_TILE_ID));
+              return new Compaction(tilesetPath, blobsBefore, countBlobs(writer), bytesBefore);
+            });
+
+    if (Objects.isNull(compaction)) {
+      throw new IllegalStateException(
+          String.format("Compaction of MBTiles file was interrupted: %s", tilesetPath));
+    }
+
+    write(
+        "vacuum",
+        writer -> {
+          // VACUUM cannot run inside of a transaction
+          writer.connection.commit();
+          writer.connection.setAutoCommit(true);
+          try {
+            SqlHelper.execute(writer.connection, "VACUUM");
+            SqlHelper.execute(writer.connection, "PRAGMA wal_checkpoint(TRUNCATE)");
+          } finally {
+            writer.connection.setAutoCommit(false);
+          }
+          return null;
+        });
+
+    compaction.bytesAfter = getFileSize();
+    compaction.durationMs = (System.nanoTime() - start) / 1_000_000;
+
+    return compaction;
+  }
+
+  private long getFileSize() throws IOException {
+    Path wal = tilesetPath.resolveSibling(tilesetPath.getFileName() + "-wal");
+
+    return Files.size(tilesetPath) + (Files.exists(wal) ? Files.size(wal) : 0);
+  }
+
+  private static long countBlobs(CachedConnection writer) throws SQLException {
+    try (Statement statement = writer.connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM tile_blobs")) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  private static void addMissingHashes(CachedConnection writer, boolean gzip)
+      throws SQLException {
+    PreparedStatement select =
+        writer.prepare(
+            String.format(
+                "SELECT tile_id, tile_data FROM tile_blobs WHERE tile_hash IS NULL AND tile_id!=%d LIMIT 1000",
+                EMPTY_TILE_ID));
+    PreparedStatement update =
+        writer.prepare("UPDATE tile_blobs SET tile_hash=? WHERE tile_id=?");
+
+    // the updated blobs no longer match the query
+    boolean found = true;
+    while (found) {
+      found = false;
+      try (ResultSet rs = select.executeQuery()) {
+        while (rs.next()) {
+          found = true;
+          update.setLong(1, hash(getContent(rs.getBytes("tile_data"), gzip)));
+          update.setInt(2, rs.getInt("tile_id"));
+          update.addBatch();
+        }
+      }
+      update.executeBatch();
+    }
+  }
+
+  private static void mergeDuplicateBlobs(CachedConnection writer, boolean gzip)
+      throws SQLException {
+    List<Long> hashes = new ArrayList<>();
+    try (Statement statement = writer.connection.createStatement();
+        ResultSet rs =
+            statement.executeQuery(
+                "SELECT tile_hash FROM tile_blobs WHERE tile_hash IS NOT NULL GROUP BY tile_hash HAVING COUNT(*) > 1")) {
+      while (rs.next()) {
+        hashes.add(rs.getLong(1));
+      }
+    }
+
+    PreparedStatement select =
+        writer.prepare(
+            "SELECT tile_id, tile_data FROM tile_blobs WHERE tile_hash=? ORDER BY tile_id");
+    PreparedStatement remap = writer.prepare("UPDATE tile_map SET tile_id=? WHERE tile_id=?");
+    PreparedStatement delete = writer.prepare("DELETE FROM tile_blobs WHERE tile_id=?");
+
+    for (long hash : hashes) {
+      // the first blob with the same content is kept
+      Map<Integer, byte[]> kept = new HashMap<>();
+      select.setLong(1, hash);
+      try (ResultSet rs = select.executeQuery()) {
+        while (rs.next()) {
+          int tileId = rs.getInt("tile_id");
+          byte[] content = getContent(rs.getBytes("tile_data"), gzip);
+          Optional<Integer> same =
+              kept.entrySet().stream()
+                  .filter(entry -> Arrays.equals(entry.getValue(), content))
+                  .map(Map.Entry::getKey)
+                  .findFirst();
+          if (same.isPresent()) {
+            remap.setInt(1, same.get());
+            remap.setInt(2, tileId);
+            remap.addBatch();
+            delete.setInt(1, tileId);
+            delete.addBatch();
+          } else {
+            kept.put(tileId, content);
+          }
+        }
       }
+      remap.executeBatch();
+      delete.executeBatch();
+    }
+  }
+
+  private static byte[] getContent(byte[] data, boolean gzip) {
+    if (!gzip) {
+      return data;
+    }
+    try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data))) {
+      return inputStream.readAllBytes();
+    } catch (IOException e) {
+      // not compressed, use the blob as is
+      return data;
+    }
+  }
+
+  // must be the same as TileResult.contentHash, so that the hashes can be used as entity tags
+  @SuppressWarnings("UnstableApiUsage")
+  private static long hash(byte[] content) {
+    return Hashing.murmur3_128().hashBytes(content).asLong();
+  }
+
+  private static String formatHash(long hash) {
+    return String.format("%016x", hash);
+  }
+
+  /**
+   * @return the number of blobs that have been written since the file was opened, including the
+   *     deduplicated ones
+   */
+  public long getBlobWrites() {
+    return blobWrites.get();
+  }
+
+  /**
+   * @return the number of blobs that have not been written since the file was opened, because an
+   *     identical blob already existed
+   */
+  public long getDeduplicatedWrites() {
+    return deduplicatedWrites.get();
+  }
+
+  /**
+   * @return the number of bytes that have not been written since the file was opened, because an
+   *     identical blob already existed
+   */
+  public long getDeduplicatedBytes() {
+    return deduplicatedBytes.get();
+  }
+
+  public static final class Compaction {
+    private final Path path;
+    private final long blobsBefore;
+    private final long blobsAfter;
+    private final long bytesBefore;
+    private long bytesAfter;
+    private long durationMs;
+
+    private Compaction(Path path, long blobsBefore, long blobsAfter, long bytesBefore) {
+      this.path = path;
+      this.blobsBefore = blobsBefore;
+      this.blobsAfter = blobsAfter;
+      this.bytesBefore = bytesBefore;
+    }
+
+    public long getBlobsBefore() {
+      return blobsBefore;
+    }
+
+    public long getBlobsAfter() {
+      return blobsAfter;
+    }
+
+    public long getBytesBefore() {
+      return bytesBefore;
+    }
+
+    public long getBytesAfter() {
+      return bytesAfter;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s: blobs %d -> %d, size %dkB -> %dkB, duration %dms",
+          path,
+          blobsBefore,
+          blobsAfter,
+          bytesBefore / 1024,
+          bytesAfter / 1024,
+          durationMs);
+    }
+  }
+
+  private static void setTile(PreparedStatement statement, int index, int level, int row, int col)
+      throws SQLException {
+    statement.setInt(index, level);
+    statement.setInt(index + 1, row);
+    statement.setInt(index + 2, col);
+  }
+
+  private static void setRange(
+      PreparedStatement statement,
+      TileMatrixSet tileMatrixSet,
+      int level,
+      TileMatrixSetLimits limits)
+      throws SQLException {
+    statement.setInt(1, level);
+    statement.setInt(2, tileMatrixSet.getTmsRow(level, limits.getMaxTileRow()));
+    statement.setInt(3, limits.getMinTileCol());
+    statement.setInt(4, tileMatrixSet.getTmsRow(level, limits.getMinTileRow()));
+    statement.setInt(5, limits.getMaxTileCol());
+  }
+
+  private static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream mvt = new ByteArrayOutputStream(content.length);
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(mvt)) {
+      gzipStream.write(content);
     }
+    return mvt.toByteArray();
   }
 }
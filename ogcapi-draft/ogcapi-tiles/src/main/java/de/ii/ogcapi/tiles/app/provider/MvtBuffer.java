@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import java.util.Arrays;
+
+/** A growable byte buffer with the protobuf encodings used in MVT tiles. */
+final class MvtBuffer {
+
+  static final int WIRE_TYPE_VARINT = 0;
+  static final int WIRE_TYPE_FIXED64 = 1;
+  static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+  static final int WIRE_TYPE_FIXED32 = 5;
+
+  private byte[] bytes;
+  private int size;
+
+  MvtBuffer(int capacity) {
+    this.bytes = new byte[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void reset() {
+    size = 0;
+  }
+
+  void tag(int field, int wireType) {
+    varint((field << 3) | wireType);
+  }
+
+  void varint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[size++] = (byte) value;
+  }
+
+  void fixed32(int value) {
+    ensureCapacity(4);
+    for (int i = 0; i < 4; i++) {
+      bytes[size++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  void fixed64(long value) {
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      bytes[size++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  void lengthDelimited(int field, MvtBuffer message) {
+    tag(field, WIRE_TYPE_LENGTH_DELIMITED);
+    varint(message.size);
+    write(message);
+  }
+
+  void lengthDelimited(int field, byte[] source, int offset, int length) {
+    tag(field, WIRE_TYPE_LENGTH_DELIMITED);
+    varint(length);
+    write(source, offset, length);
+  }
+
+  void write(MvtBuffer source) {
+    write(source.bytes, 0, source.size);
+  }
+
+  void write(byte[] source, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(source, offset, bytes, size, length);
+    size += length;
+  }
+
+  byte[] toByteArray() {
+    return bytes.length == size ? bytes : Arrays.copyOf(bytes, size);
+  }
+
+  private void ensureCapacity(int additional) {
+    if (bytes.length - size < additional) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+    }
+  }
+}
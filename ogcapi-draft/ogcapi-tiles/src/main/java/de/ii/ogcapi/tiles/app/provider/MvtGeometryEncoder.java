@@ -0,0 +1,217 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import java.util.Arrays;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Writes the MoveTo, LineTo and ClosePath commands of a MVT feature geometry directly from the
+ * coordinates of a JTS geometry. The coordinates are multiplied by the scale to get the integer
+ * coordinates of the tile extent, repeated points are skipped and the orientation of the rings is
+ * fixed.
+ */
+final class MvtGeometryEncoder {
+
+  static final int TYPE_POINT = 1;
+  static final int TYPE_LINESTRING = 2;
+  static final int TYPE_POLYGON = 3;
+  static final int MOVE_TO = 1;
+  static final int LINE_TO = 2;
+  static final int CLOSE_PATH = 7;
+
+  private final double scale;
+  private MvtBuffer commands;
+  private int[] xs;
+  private int[] ys;
+  private int cursorX;
+  private int cursorY;
+
+  /**
+   * @param scale the factor to convert the coordinates of the geometries to the tile extent
+   */
+  MvtGeometryEncoder(double scale) {
+    this.scale = scale;
+    this.xs = new int[64];
+    this.ys = new int[64];
+  }
+
+  /**
+   * @param commands the buffer for the commands, it is reset
+   * @return the MVT geometry type or 0, if no command has been written
+   */
+  int encode(Geometry geom, MvtBuffer commands) {
+    this.commands = commands;
+    commands.reset();
+    cursorX = 0;
+    cursorY = 0;
+
+    if (geom instanceof Point || geom instanceof MultiPoint) {
+      encodePoints(geom);
+      return commands.size() > 0 ? TYPE_POINT : 0;
+    } else if (geom instanceof LineString || geom instanceof MultiLineString) {
+      for (int i = 0; i < geom.getNumGeometries(); i++) {
+        encodeLineString((LineString) geom.getGeometryN(i));
+      }
+      return commands.size() > 0 ? TYPE_LINESTRING : 0;
+    } else if (geom instanceof Polygon || geom instanceof MultiPolygon) {
+      for (int i = 0; i < geom.getNumGeometries(); i++) {
+        encodePolygon((Polygon) geom.getGeometryN(i));
+      }
+      return commands.size() > 0 ? TYPE_POLYGON : 0;
+    }
+
+    return 0;
+  }
+
+  static int command(int id, int count) {
+    return (id & 0x7) | (count << 3);
+  }
+
+  static int zigzag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  private void encodePoints(Geometry geom) {
+    int count = 0;
+    for (int i = 0; i < geom.getNumGeometries(); i++) {
+      Point point = (Point) geom.getGeometryN(i);
+      if (!point.isEmpty()) {
+        ensureCapacity(count + 1);
+        xs[count] = toTile(point.getX());
+        ys[count] = toTile(point.getY());
+        count++;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+
+    commands.varint(command(MOVE_TO, count));
+    for (int i = 0; i < count; i++) {
+      moveCursor(xs[i], ys[i]);
+    }
+  }
+
+  private void encodeLineString(LineString line) {
+    int count = readCoordinates(line.getCoordinateSequence(), false);
+    if (count < 2) {
+      return;
+    }
+
+    writePath(count, false);
+  }
+
+  private void encodePolygon(Polygon polygon) {
+    // the exterior ring has a positive area in the tile coordinate system, the interior rings a
+    // negative area; if the exterior ring collapses, the holes are dropped, too
+    if (!encodeRing(polygon.getExteriorRing(), true)) {
+      return;
+    }
+    for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+      encodeRing(polygon.getInteriorRingN(i), false);
+    }
+  }
+
+  private boolean encodeRing(LineString ring, boolean exterior) {
+    int count = readCoordinates(ring.getCoordinateSequence(), true);
+    if (count < 3) {
+      return false;
+    }
+
+    long area = 0;
+    for (int i = 0, j = count - 1; i < count; j = i++) {
+      area += (long) xs[j] * ys[i] - (long) xs[i] * ys[j];
+    }
+    if (area == 0) {
+      return false;
+    }
+    if ((area > 0) != exterior) {
+      reverse(count);
+    }
+
+    writePath(count, true);
+
+    return true;
+  }
+
+  /**
+   * Converts the coordinates to the tile extent. Repeated points are skipped and for rings the
+   * closing point is skipped.
+   *
+   * @return the number of points in {@link #xs} and {@link #ys}
+   */
+  private int readCoordinates(CoordinateSequence sequence, boolean ring) {
+    int count = 0;
+    ensureCapacity(sequence.size());
+    for (int i = 0; i < sequence.size(); i++) {
+      int x = toTile(sequence.getX(i));
+      int y = toTile(sequence.getY(i));
+      if (count > 0 && xs[count - 1] == x && ys[count - 1] == y) {
+        continue;
+      }
+      xs[count] = x;
+      ys[count] = y;
+      count++;
+    }
+    if (ring && count > 1 && xs[count - 1] == xs[0] && ys[count - 1] == ys[0]) {
+      count--;
+    }
+
+    return count;
+  }
+
+  private void writePath(int count, boolean close) {
+    commands.varint(command(MOVE_TO, 1));
+    moveCursor(xs[0], ys[0]);
+    commands.varint(command(LINE_TO, count - 1));
+    for (int i = 1; i < count; i++) {
+      moveCursor(xs[i], ys[i]);
+    }
+    if (close) {
+      commands.varint(command(CLOSE_PATH, 1));
+    }
+  }
+
+  private void moveCursor(int x, int y) {
+    commands.varint(zigzag(x - cursorX));
+    commands.varint(zigzag(y - cursorY));
+    cursorX = x;
+    cursorY = y;
+  }
+
+  private void reverse(int count) {
+    for (int i = 0, j = count - 1; i < j; i++, j--) {
+      int x = xs[i];
+      int y = ys[i];
+      xs[i] = xs[j];
+      ys[i] = ys[j];
+      xs[j] = x;
+      ys[j] = y;
+    }
+  }
+
+  private int toTile(double coordinate) {
+    return (int) Math.round(coordinate * scale);
+  }
+
+  private void ensureCapacity(int count) {
+    if (xs.length < count) {
+      int length = Math.max(count, xs.length * 2);
+      xs = Arrays.copyOf(xs, length);
+      ys = Arrays.copyOf(ys, length);
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_FIXED32;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_FIXED64;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_LENGTH_DELIMITED;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_VARINT;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+
+/**
+ * Writes a MVT tile with a single layer. The features are encoded when they are added: the
+ * geometry commands are written directly from the coordinates of the geometry and the keys and
+ * values of the properties are added to the dictionaries of the layer. The result is the same tile
+ * as from {@link no.ecc.vectortile.VectorTileEncoder}, without building the intermediate objects
+ * and without walking the geometries again.
+ *
+ * <p>The coordinates of the geometries are in the tile coordinate system (0/0 is top left) and are
+ * multiplied by the scale to get the integer coordinates of the tile extent. Geometries are not
+ * clipped, this has to be done by the caller.
+ */
+final class MvtLayerWriter {
+
+  private static final int TILE_LAYERS = 3;
+  private static final int LAYER_NAME = 1;
+  private static final int LAYER_FEATURES = 2;
+  private static final int LAYER_KEYS = 3;
+  private static final int LAYER_VALUES = 4;
+  private static final int LAYER_EXTENT = 5;
+  private static final int LAYER_VERSION = 15;
+  private static final int FEATURE_ID = 1;
+  private static final int FEATURE_TAGS = 2;
+  private static final int FEATURE_TYPE = 3;
+  private static final int FEATURE_GEOMETRY = 4;
+  private static final int VALUE_STRING = 1;
+  private static final int VALUE_FLOAT = 2;
+  private static final int VALUE_DOUBLE = 3;
+  private static final int VALUE_SINT = 6;
+  private static final int VALUE_BOOL = 7;
+  private static final int VERSION = 2;
+
+  private final byte[] name;
+  private final int extent;
+
+  // the encoded features, keys and values of the layer
+  private final MvtBuffer features;
+  private final MvtBuffer keys;
+  private final MvtBuffer values;
+
+  // reused for each feature
+  private final MvtGeometryEncoder geometryEncoder;
+  private final MvtBuffer feature;
+  private final MvtBuffer commands;
+  private final MvtBuffer tags;
+  private final MvtBuffer value;
+
+  private final Map<String, Integer> keyIndex;
+  private final Map<String, Integer> stringIndex;
+  private final LongIntMap sintIndex;
+  private final LongIntMap doubleIndex;
+  private final LongIntMap floatIndex;
+  private final int[] boolIndex;
+  private int valueCount;
+  private int featureCount;
+
+  /**
+   * @param name the name of the layer
+   * @param extent the extent of the tile in integer coordinates
+   * @param scale the factor to convert the coordinates of the geometries to the tile extent
+   */
+  MvtLayerWriter(String name, int extent, double scale) {
+    this.name = name.getBytes(StandardCharsets.UTF_8);
+    this.extent = extent;
+    this.features = new MvtBuffer(4096);
+    this.keys = new MvtBuffer(256);
+    this.values = new MvtBuffer(1024);
+    this.geometryEncoder = new MvtGeometryEncoder(scale);
+    this.feature = new MvtBuffer(256);
+    this.commands = new MvtBuffer(256);
+    this.tags = new MvtBuffer(64);
+    this.value = new MvtBuffer(32);
+    this.keyIndex = new HashMap<>();
+    this.stringIndex = new HashMap<>();
+    this.sintIndex = new LongIntMap();
+    this.doubleIndex = new LongIntMap();
+    this.floatIndex = new LongIntMap();
+    this.boolIndex = new int[] {-1, -1};
+  }
+
+  /**
+   * @param geometry the geometry in the tile coordinate system, the members of a geometry
+   *     collection are added as separate features
+   * @param properties the properties, properties without a value are ignored
+   * @param id the feature id or {@code null}, negative ids are ignored
+   * @return {@code true}, if the feature has been added, {@code false}, if the geometry is empty or
+   *     collapses in the tile extent
+   */
+  boolean addFeature(Geometry geometry, Map<String, Object> properties, Long id) {
+    if (geometry instanceof GeometryCollection
+        && !(geometry instanceof MultiPoint)
+        && !(geometry instanceof MultiLineString)
+        && !(geometry instanceof MultiPolygon)) {
+      boolean added = false;
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        added = addFeature(geometry.getGeometryN(i), properties, id) || added;
+      }
+      return added;
+    }
+
+    int type = geometryEncoder.encode(geometry, commands);
+    if (type == 0) {
+      return false;
+    }
+
+    tags.reset();
+    properties.forEach(
+        (key, val) -> {
+          if (Objects.nonNull(key) && Objects.nonNull(val)) {
+            tags.varint(key(key));
+            tags.varint(value(val));
+          }
+        });
+
+    feature.reset();
+    if (Objects.nonNull(id) && id >= 0) {
+      feature.tag(FEATURE_ID, WIRE_TYPE_VARINT);
+      feature.varint(id);
+    }
+    if (tags.size() > 0) {
+      feature.lengthDelimited(FEATURE_TAGS, tags);
+    }
+    feature.tag(FEATURE_TYPE, WIRE_TYPE_VARINT);
+    feature.varint(type);
+    feature.lengthDelimited(FEATURE_GEOMETRY, commands);
+
+    features.lengthDelimited(LAYER_FEATURES, feature);
+    featureCount++;
+
+    return true;
+  }
+
+  int getFeatureCount() {
+    return featureCount;
+  }
+
+  /**
+   * @return the encoded tile, a tile without features has no layer and is empty
+   */
+  byte[] encode() {
+    if (featureCount == 0) {
+      return new byte[0];
+    }
+
+    MvtBuffer layer =
+        new MvtBuffer(name.length + features.size() + keys.size() + values.size() + 16);
+    layer.lengthDelimited(LAYER_NAME, name, 0, name.length);
+    layer.write(features);
+    layer.write(keys);
+    layer.write(values);
+    layer.tag(LAYER_EXTENT, WIRE_TYPE_VARINT);
+    layer.varint(extent);
+    layer.tag(LAYER_VERSION, WIRE_TYPE_VARINT);
+    layer.varint(VERSION);
+
+    MvtBuffer tile = new MvtBuffer(layer.size() + 6);
+    tile.lengthDelimited(TILE_LAYERS, layer);
+
+    return tile.toByteArray();
+  }
+
+  // dictionaries
+
+  private int key(String key) {
+    Integer index = keyIndex.get(key);
+    if (Objects.isNull(index)) {
+      index = keyIndex.size();
+      keyIndex.put(key, index);
+      byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+      keys.lengthDelimited(LAYER_KEYS, bytes, 0, bytes.length);
+    }
+    return index;
+  }
+
+  // the value types are the same as in VectorTileEncoder
+  private int value(Object val) {
+    if (val instanceof Integer || val instanceof Long) {
+      long sint = ((Number) val).longValue();
+      int index = sintIndex.get(sint);
+      if (index < 0) {
+        index = addValue(VALUE_SINT, WIRE_TYPE_VARINT);
+        value.varint((sint << 1) ^ (sint >> 63));
+        sintIndex.put(sint, index);
+        writeValue();
+      }
+      return index;
+    } else if (val instanceof Float) {
+      int bits = Float.floatToIntBits((Float) val);
+      int index = floatIndex.get(bits);
+      if (index < 0) {
+        index = addValue(VALUE_FLOAT, WIRE_TYPE_FIXED32);
+        value.fixed32(bits);
+        floatIndex.put(bits, index);
+        writeValue();
+      }
+      return index;
+    } else if (val instanceof Number && !(val instanceof BigDecimal)) {
+      long bits = Double.doubleToLongBits(((Number) val).doubleValue());
+      int index = doubleIndex.get(bits);
+      if (index < 0) {
+        index = addValue(VALUE_DOUBLE, WIRE_TYPE_FIXED64);
+        value.fixed64(bits);
+        doubleIndex.put(bits, index);
+        writeValue();
+      }
+      return index;
+    } else if (val instanceof Boolean) {
+      int bool = (Boolean) val ? 1 : 0;
+      if (boolIndex[bool] < 0) {
+        boolIndex[bool] = addValue(VALUE_BOOL, WIRE_TYPE_VARINT);
+        value.varint(bool);
+        writeValue();
+      }
+      return boolIndex[bool];
+    }
+
+    String string = val.toString();
+    Integer index = stringIndex.get(string);
+    if (Objects.isNull(index)) {
+      index = addValue(VALUE_STRING, WIRE_TYPE_LENGTH_DELIMITED);
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      value.varint(bytes.length);
+      value.write(bytes, 0, bytes.length);
+      stringIndex.put(string, index);
+      writeValue();
+    }
+    return index;
+  }
+
+  private int addValue(int field, int wireType) {
+    value.reset();
+    value.tag(field, wireType);
+    return valueCount++;
+  }
+
+  private void writeValue() {
+    values.lengthDelimited(LAYER_VALUES, value);
+  }
+
+  /** An open addressing map from long keys to non-negative int values, -1 is not found. */
+  private static final class LongIntMap {
+    private long[] keys = new long[16];
+    private int[] values = new int[16];
+    private boolean[] used = new boolean[16];
+    private int size;
+
+    private int get(long key) {
+      int mask = keys.length - 1;
+      for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return values[i];
+        }
+      }
+      return -1;
+    }
+
+    private void put(long key, int value) {
+      if (2 * (size + 1) > keys.length) {
+        grow();
+      }
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      while (used[i] && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      if (!used[i]) {
+        used[i] = true;
+        keys[i] = key;
+        size++;
+      }
+      values[i] = value;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      boolean[] oldUsed = used;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldKeys.length * 2];
+      used = new boolean[oldKeys.length * 2];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldUsed[i]) {
+          put(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+
+    private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_LENGTH_DELIMITED;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_VARINT;
+import static de.ii.ogcapi.tiles.app.provider.MvtGeometryEncoder.CLOSE_PATH;
+import static de.ii.ogcapi.tiles.app.provider.MvtGeometryEncoder.LINE_TO;
+import static de.ii.ogcapi.tiles.app.provider.MvtGeometryEncoder.MOVE_TO;
+import static de.ii.ogcapi.tiles.app.provider.MvtGeometryEncoder.TYPE_LINESTRING;
+import static de.ii.ogcapi.tiles.app.provider.MvtGeometryEncoder.TYPE_POINT;
+import static de.ii.ogcapi.tiles.app.provider.MvtGeometryEncoder.TYPE_POLYGON;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Derives a MVT tile at a more detailed zoom level from an encoded ancestor tile. Only the
+ * geometries of the features are decoded, they are scaled to the extent of the tile, clipped to
+ * the buffered tile and encoded again. The other fields of the layers and features, e.g. the keys,
+ * values and tags, are copied unchanged.
+ */
+final class MvtOverzoom {
+
+  private static final int TILE_LAYERS = 3;
+  private static final int LAYER_FEATURES = 2;
+  private static final int LAYER_EXTENT = 5;
+  private static final int FEATURE_TYPE = 3;
+  private static final int FEATURE_GEOMETRY = 4;
+  private static final int DEFAULT_EXTENT = 4096;
+
+  // the coordinates are integers in the extent of the tile
+  private static final PrecisionModel PRECISION_MODEL = new PrecisionModel(1.0);
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(PRECISION_MODEL);
+
+  private final int factor;
+  private final int row;
+  private final int col;
+  private final int buffer;
+  private final MvtGeometryEncoder geometryEncoder;
+  private final MvtBuffer commands;
+  private final MvtBuffer feature;
+
+  private MvtOverzoom(int levels, int row, int col, int buffer) {
+    this.factor = 1 << levels;
+    this.row = row;
+    this.col = col;
+    this.buffer = buffer;
+    this.geometryEncoder = new MvtGeometryEncoder(1.0);
+    this.commands = new MvtBuffer(256);
+    this.feature = new MvtBuffer(256);
+  }
+
+  /**
+   * @param tile the encoded ancestor tile, gzip compressed tiles are not supported
+   * @param levels the number of levels between the ancestor and the tile
+   * @param row the row of the tile within the ancestor, between 0 and 2^levels - 1
+   * @param col the column of the tile within the ancestor, between 0 and 2^levels - 1
+   * @param buffer the buffer around the tile in units of the tile extent
+   * @return the encoded tile, layers without features in the tile are dropped
+   * @throws IllegalArgumentException if the ancestor is not a valid MVT tile
+   */
+  static byte[] overzoom(byte[] tile, int levels, int row, int col, int buffer) {
+    return new MvtOverzoom(levels, row, col, buffer).overzoom(tile);
+  }
+
+  private byte[] overzoom(byte[] tile) {
+    MvtBuffer result = new MvtBuffer(tile.length);
+    MvtBuffer layer = new MvtBuffer(tile.length);
+    MvtReader reader = new MvtReader(tile, 0, tile.length);
+
+    while (reader.hasNext()) {
+      long tag = reader.varint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+
+      if (field != TILE_LAYERS || wireType != WIRE_TYPE_LENGTH_DELIMITED) {
+        // the tile message has no other fields, unknown fields are dropped
+        reader.skip(wireType);
+        continue;
+      }
+
+      int length = reader.length();
+      int layerStart = reader.pos();
+      reader.advance(length);
+
+      if (overzoomLayer(tile, layerStart, reader.pos(), layer)) {
+        result.lengthDelimited(TILE_LAYERS, layer);
+      }
+    }
+
+    return result.toByteArray();
+  }
+
+  /**
+   * @return {@code true}, if the layer has features in the tile
+   */
+  private boolean overzoomLayer(byte[] tile, int start, int end, MvtBuffer layer) {
+    int extent = getExtent(tile, start, end);
+    Envelope clipEnvelope = new Envelope(-buffer, extent + buffer, -buffer, extent + buffer);
+    RectangleClipper clipper = new RectangleClipper(clipEnvelope, PRECISION_MODEL);
+    MvtReader reader = new MvtReader(tile, start, end);
+    boolean hasFeatures = false;
+
+    layer.reset();
+
+    while (reader.hasNext()) {
+      int fieldStart = reader.pos();
+      long tag = reader.varint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+
+      if (field == LAYER_FEATURES && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+        int length = reader.length();
+        int featureStart = reader.pos();
+        reader.advance(length);
+
+        if (overzoomFeature(tile, featureStart, reader.pos(), extent, clipper)) {
+          layer.lengthDelimited(LAYER_FEATURES, feature);
+          hasFeatures = true;
+        }
+        continue;
+      }
+
+      reader.skip(wireType);
+      layer.write(tile, fieldStart, reader.pos() - fieldStart);
+    }
+
+    return hasFeatures;
+  }
+
+  /**
+   * @return {@code true}, if the feature is in the tile, the feature is written to {@link
+   *     #feature}
+   */
+  private boolean overzoomFeature(
+      byte[] tile, int start, int end, int extent, RectangleClipper clipper) {
+    int type = getType(tile, start, end);
+    MvtReader reader = new MvtReader(tile, start, end);
+    boolean hasGeometry = false;
+
+    feature.reset();
+
+    while (reader.hasNext()) {
+      int fieldStart = reader.pos();
+      long tag = reader.varint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+
+      if (field == FEATURE_GEOMETRY && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+        int length = reader.length();
+        int geometryStart = reader.pos();
+        reader.advance(length);
+
+        Geometry geometry = decode(tile, geometryStart, reader.pos(), type, extent);
+        if (Objects.isNull(geometry) || geometry.isEmpty()) {
+          return false;
+        }
+        geometry = clipper.clip(geometry);
+        if (Objects.isNull(geometry) || geometryEncoder.encode(geometry, commands) == 0) {
+          return false;
+        }
+        feature.lengthDelimited(FEATURE_GEOMETRY, commands);
+        hasGeometry = true;
+        continue;
+      }
+
+      reader.skip(wireType);
+      feature.write(tile, fieldStart, reader.pos() - fieldStart);
+    }
+
+    return hasGeometry;
+  }
+
+  /**
+   * Decodes the geometry commands and converts the coordinates to the tile.
+   *
+   * @return the geometry or null, if the geometry type is not supported
+   */
+  private Geometry decode(byte[] tile, int start, int end, int type, int extent) {
+    MvtReader reader = new MvtReader(tile, start, end);
+    List<List<Coordinate>> parts = new ArrayList<>();
+    List<Coordinate> current = null;
+    long offsetX = (long) col * extent;
+    long offsetY = (long) row * extent;
+    int x = 0;
+    int y = 0;
+
+    while (reader.hasNext()) {
+      int command = (int) reader.varint();
+      int id = command & 0x7;
+      int count = command >>> 3;
+
+      if (id == MOVE_TO || id == LINE_TO) {
+        for (int i = 0; i < count; i++) {
+          x += unzigzag(reader.varint());
+          y += unzigzag(reader.varint());
+          if (Objects.isNull(current) || (id == MOVE_TO && type != TYPE_POINT)) {
+            current = new ArrayList<>();
+            parts.add(current);
+          }
+          current.add(
+              new CoordinateXY((long) x * factor - offsetX, (long) y * factor - offsetY));
+        }
+      } else if (id == CLOSE_PATH) {
+        if (Objects.nonNull(current) && !current.isEmpty()) {
+          current.add(new CoordinateXY(current.get(0)));
+        }
+      } else {
+        throw new IllegalArgumentException("Unknown geometry command: " + id);
+      }
+    }
+
+    switch (type) {
+      case TYPE_POINT:
+        return toPoints(parts);
+      case TYPE_LINESTRING:
+        return toLineStrings(parts);
+      case TYPE_POLYGON:
+        return toPolygons(parts);
+      default:
+        return null;
+    }
+  }
+
+  private static Geometry toPoints(List<List<Coordinate>> parts) {
+    if (parts.isEmpty()) {
+      return null;
+    }
+    List<Coordinate> coordinates = parts.get(0);
+
+    return coordinates.size() == 1
+        ? GEOMETRY_FACTORY.createPoint(coordinates.get(0))
+        : GEOMETRY_FACTORY.createMultiPointFromCoords(coordinates.toArray(Coordinate[]::new));
+  }
+
+  private static Geometry toLineStrings(List<List<Coordinate>> parts) {
+    List<LineString> lines = new ArrayList<>();
+    for (List<Coordinate> part : parts) {
+      if (part.size() >= 2) {
+        lines.add(GEOMETRY_FACTORY.createLineString(part.toArray(Coordinate[]::new)));
+      }
+    }
+
+    return lines.size() == 1
+        ? lines.get(0)
+        : GEOMETRY_FACTORY.createMultiLineString(lines.toArray(LineString[]::new));
+  }
+
+  /**
+   * A ring with a positive area starts a new polygon, a ring with a negative area is a hole in the
+   * current polygon.
+   */
+  private static Geometry toPolygons(List<List<Coordinate>> parts) {
+    List<Polygon> polygons = new ArrayList<>();
+    LinearRing shell = null;
+    List<LinearRing> holes = new ArrayList<>();
+
+    for (List<Coordinate> part : parts) {
+      if (part.size() < 4 || !part.get(0).equals2D(part.get(part.size() - 1))) {
+        continue;
+      }
+      double area = signedArea(part);
+      if (area > 0) {
+        if (Objects.nonNull(shell)) {
+          polygons.add(GEOMETRY_FACTORY.createPolygon(shell, holes.toArray(LinearRing[]::new)));
+        }
+        shell = GEOMETRY_FACTORY.createLinearRing(part.toArray(Coordinate[]::new));
+        holes.clear();
+      } else if (area < 0 && Objects.nonNull(shell)) {
+        holes.add(GEOMETRY_FACTORY.createLinearRing(part.toArray(Coordinate[]::new)));
+      }
+    }
+    if (Objects.nonNull(shell)) {
+      polygons.add(GEOMETRY_FACTORY.createPolygon(shell, holes.toArray(LinearRing[]::new)));
+    }
+
+    return polygons.size() == 1
+        ? polygons.get(0)
+        : GEOMETRY_FACTORY.createMultiPolygon(polygons.toArray(Polygon[]::new));
+  }
+
+  // the same orientation as in MvtGeometryEncoder, the exterior rings are positive
+  private static double signedArea(List<Coordinate> ring) {
+    double area = 0;
+    for (int i = 1; i < ring.size(); i++) {
+      Coordinate previous = ring.get(i - 1);
+      Coordinate current = ring.get(i);
+      area += previous.x * current.y - current.x * previous.y;
+    }
+    return area;
+  }
+
+  private static int unzigzag(long n) {
+    int value = (int) n;
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int getExtent(byte[] tile, int start, int end) {
+    MvtReader reader = new MvtReader(tile, start, end);
+
+    while (reader.hasNext()) {
+      long tag = reader.varint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+
+      if (field == LAYER_EXTENT && wireType == WIRE_TYPE_VARINT) {
+        return (int) reader.varint();
+      }
+
+      reader.skip(wireType);
+    }
+
+    return DEFAULT_EXTENT;
+  }
+
+  private static int getType(byte[] tile, int start, int end) {
+    MvtReader reader = new MvtReader(tile, start, end);
+
+    while (reader.hasNext()) {
+      long tag = reader.varint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+
+      if (field == FEATURE_TYPE && wireType == WIRE_TYPE_VARINT) {
+        return (int) reader.varint();
+      }
+
+      reader.skip(wireType);
+    }
+
+    return 0;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_FIXED32;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_FIXED64;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_LENGTH_DELIMITED;
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_VARINT;
+
+/**
+ * Reads the protobuf fields of a MVT message in a byte array without copying. Malformed input is
+ * reported with an {@link IllegalArgumentException}.
+ */
+final class MvtReader {
+  private final byte[] buffer;
+  private final int end;
+  private int pos;
+
+  MvtReader(byte[] buffer, int start, int end) {
+    this.buffer = buffer;
+    this.pos = start;
+    this.end = end;
+  }
+
+  boolean hasNext() {
+    return pos < end;
+  }
+
+  int pos() {
+    return pos;
+  }
+
+  long varint() {
+    long value = 0;
+
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (pos >= end) {
+        throw new IllegalArgumentException("Truncated varint.");
+      }
+      byte b = buffer[pos++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+
+    throw new IllegalArgumentException("Malformed varint.");
+  }
+
+  int length() {
+    long length = varint();
+
+    if (length < 0 || length > end - pos) {
+      throw new IllegalArgumentException("Invalid length.");
+    }
+
+    return (int) length;
+  }
+
+  void skip(int wireType) {
+    switch (wireType) {
+      case WIRE_TYPE_VARINT:
+        varint();
+        break;
+      case WIRE_TYPE_FIXED64:
+        advance(8);
+        break;
+      case WIRE_TYPE_LENGTH_DELIMITED:
+        advance(length());
+        break;
+      case WIRE_TYPE_FIXED32:
+        advance(4);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported wire type: " + wireType);
+    }
+  }
+
+  void advance(int bytes) {
+    if (bytes > end - pos) {
+      throw new IllegalArgumentException("Truncated field.");
+    }
+    pos += bytes;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import static de.ii.ogcapi.tiles.app.provider.MvtBuffer.WIRE_TYPE_LENGTH_DELIMITED;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Combines MVT tiles by copying the encoded layer messages of the tiles unchanged. A tile is a
+ * sequence of layers (field 3 of the tile message), so the layers of multiple tiles can be
+ * concatenated without decoding and encoding the features.
+ */
+final class MvtSplicer {
+
+  private static final int TILE_LAYERS = 3;
+  private static final int LAYER_NAME = 1;
+
+  private MvtSplicer() {}
+
+  /**
+   * @param tiles the encoded tiles, gzip compressed tiles are not supported
+   * @return the combined tile or empty, if the tiles cannot be combined by copying the layers, i.e.
+   *     if multiple tiles have a layer with the same name or if a tile is not a valid MVT tile
+   */
+  static Optional<byte[]> splice(List<byte[]> tiles) {
+    Set<String> layerNames = new HashSet<>();
+    ByteArrayOutputStream combined =
+        new ByteArrayOutputStream(tiles.stream().mapToInt(tile -> tile.length).sum());
+
+    try {
+      for (byte[] tile : tiles) {
+        MvtReader reader = new MvtReader(tile, 0, tile.length);
+
+        while (reader.hasNext()) {
+          int start = reader.pos();
+          long tag = reader.varint();
+          int field = (int) (tag >>> 3);
+          int wireType = (int) (tag & 0x7);
+
+          if (field != TILE_LAYERS || wireType != WIRE_TYPE_LENGTH_DELIMITED) {
+            // the tile message has no other fields, unknown fields are dropped
+            reader.skip(wireType);
+            continue;
+          }
+
+          int length = reader.length();
+          int layerStart = reader.pos();
+          reader.advance(length);
+
+          String layerName = getLayerName(tile, layerStart, reader.pos());
+          if (!layerNames.add(layerName)) {
+            return Optional.empty();
+          }
+
+          combined.write(tile, start, reader.pos() - start);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      return Optional.empty();
+    }
+
+    return Optional.of(combined.toByteArray());
+  }
+
+  private static String getLayerName(byte[] tile, int start, int end) {
+    MvtReader reader = new MvtReader(tile, start, end);
+
+    while (reader.hasNext()) {
+      long tag = reader.varint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 0x7);
+
+      if (field == LAYER_NAME && wireType == WIRE_TYPE_LENGTH_DELIMITED) {
+        int length = reader.length();
+        return new String(tile, reader.pos(), length, StandardCharsets.UTF_8);
+      }
+
+      reader.skip(wireType);
+    }
+
+    throw new IllegalArgumentException("Layer without name.");
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The binary layout of PMTiles v3 archives: the fixed size header, the directories with the tile
+ * entries and the tile ids on the Hilbert curve.
+ *
+ * <p>An archive starts with the header and the root directory within the first 16 KiB, followed
+ * by the metadata, the leaf directories and the tile data. The tiles are addressed in the Web
+ * Mercator XYZ scheme, i.e. the column is x and the row is y.
+ */
+final class PmTiles {
+
+  static final int HEADER_LENGTH = 127;
+  // the header and the root directory have to fit into the first 16 KiB
+  static final int MAX_ROOT_LENGTH = 16_384 - HEADER_LENGTH;
+  static final int MAX_ZOOM = 26;
+
+  static final byte COMPRESSION_NONE = 1;
+  static final byte COMPRESSION_GZIP = 2;
+  static final byte TILE_TYPE_MVT = 1;
+
+  private static final byte[] MAGIC = "PMTiles".getBytes(StandardCharsets.US_ASCII);
+  private static final byte VERSION = 3;
+
+  private PmTiles() {}
+
+  /**
+   * @return the position of the tile on the Hilbert curve, after all tiles of the previous levels
+   */
+  static long tileId(int z, long x, long y) {
+    if (z < 0 || z > MAX_ZOOM) {
+      throw new IllegalArgumentException("Zoom level not supported in PMTiles: " + z);
+    }
+    long n = 1L << z;
+    if (x < 0 || y < 0 || x >= n || y >= n) {
+      throw new IllegalArgumentException(
+          String.format("Tile %d/%d/%d is outside of the zoom level.", z, x, y));
+    }
+
+    long tileId = ((1L << (2 * z)) - 1) / 3;
+
+    for (long s = n >> 1; s > 0; s >>= 1) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      tileId += s * s * ((3 * rx) ^ ry);
+      if (ry == 0) {
+        if (rx == 1) {
+          x = n - 1 - x;
+          y = n - 1 - y;
+        }
+        long t = x;
+        x = y;
+        y = t;
+      }
+    }
+
+    return tileId;
+  }
+
+  /** The fixed size header at the start of an archive, all numbers are little-endian. */
+  static final class Header {
+    long rootOffset;
+    long rootLength;
+    long metadataOffset;
+    long metadataLength;
+    long leafDirectoriesOffset;
+    long leafDirectoriesLength;
+    long tileDataOffset;
+    long tileDataLength;
+    long addressedTiles;
+    long tileEntries;
+    long tileContents;
+    boolean clustered;
+    byte internalCompression;
+    byte tileCompression;
+    byte tileType;
+    int minZoom;
+    int maxZoom;
+    int minLonE7;
+    int minLatE7;
+    int maxLonE7;
+    int maxLatE7;
+    int centerZoom;
+    int centerLonE7;
+    int centerLatE7;
+
+    static Header read(ByteBuffer buffer) throws IOException {
+      if (buffer.remaining() < HEADER_LENGTH) {
+        throw new IOException("Not a PMTiles archive, the header is incomplete.");
+      }
+
+      ByteBuffer bytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+      byte[] magic = new byte[MAGIC.length];
+      bytes.get(magic);
+
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not a PMTiles archive.");
+      }
+      byte version = bytes.get();
+      if (version != VERSION) {
+        throw new IOException("PMTiles version not supported: " + version);
+      }
+
+      Header header = new Header();
+      header.rootOffset = bytes.getLong();
+      header.rootLength = bytes.getLong();
+      header.metadataOffset = bytes.getLong();
+      header.metadataLength = bytes.getLong();
+      header.leafDirectoriesOffset = bytes.getLong();
+      header.leafDirectoriesLength = bytes.getLong();
+      header.tileDataOffset = bytes.getLong();
+      header.tileDataLength = bytes.getLong();
+      header.addressedTiles = bytes.getLong();
+      header.tileEntries = bytes.getLong();
+      header.tileContents = bytes.getLong();
+      header.clustered = bytes.get() == 1;
+      header.internalCompression = bytes.get();
+      header.tileCompression = bytes.get();
+      header.tileType = bytes.get();
+      header.minZoom = Byte.toUnsignedInt(bytes.get());
+      header.maxZoom = Byte.toUnsignedInt(bytes.get());
+      header.minLonE7 = bytes.getInt();
+      header.minLatE7 = bytes.getInt();
+      header.maxLonE7 = bytes.getInt();
+      header.maxLatE7 = bytes.getInt();
+      header.centerZoom = Byte.toUnsignedInt(bytes.get());
+      header.centerLonE7 = bytes.getInt();
+      header.centerLatE7 = bytes.getInt();
+
+      return header;
+    }
+
+    byte[] write() {
+      ByteBuffer bytes = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      bytes.put(MAGIC);
+      bytes.put(VERSION);
+      bytes.putLong(rootOffset);
+      bytes.putLong(rootLength);
+      bytes.putLong(metadataOffset);
+      bytes.putLong(metadataLength);
+      bytes.putLong(leafDirectoriesOffset);
+      bytes.putLong(leafDirectoriesLength);
+      bytes.putLong(tileDataOffset);
+      bytes.putLong(tileDataLength);
+      bytes.putLong(addressedTiles);
+      bytes.putLong(tileEntries);
+      bytes.putLong(tileContents);
+      bytes.put((byte) (clustered ? 1 : 0));
+      bytes.put(internalCompression);
+      bytes.put(tileCompression);
+      bytes.put(tileType);
+      bytes.put((byte) minZoom);
+      bytes.put((byte) maxZoom);
+      bytes.putInt(minLonE7);
+      bytes.putInt(minLatE7);
+      bytes.putInt(maxLonE7);
+      bytes.putInt(maxLatE7);
+      bytes.put((byte) centerZoom);
+      bytes.putInt(centerLonE7);
+      bytes.putInt(centerLatE7);
+
+      return bytes.array();
+    }
+  }
+
+  /**
+   * The entries of a directory, sorted by tile id. An entry with a run length of 0 points to a
+   * leaf directory, otherwise the tile content is used for the given number of consecutive tile
+   * ids.
+   */
+  static final class Directory {
+    final long[] tileIds;
+    final long[] offsets;
+    final int[] lengths;
+    final int[] runLengths;
+
+    Directory(long[] tileIds, long[] offsets, int[] lengths, int[] runLengths) {
+      this.tileIds = tileIds;
+      this.offsets = offsets;
+      this.lengths = lengths;
+      this.runLengths = runLengths;
+    }
+
+    int size() {
+      return tileIds.length;
+    }
+
+    /**
+     * @return the index of the entry that contains the tile or points to the leaf directory that
+     *     may contain it, -1 if there is no such entry
+     */
+    int find(long tileId) {
+      int low = 0;
+      int high = tileIds.length - 1;
+
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (tileIds[mid] < tileId) {
+          low = mid + 1;
+        } else if (tileIds[mid] > tileId) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+
+      // the entry with the next smaller tile id
+      if (high >= 0 && (runLengths[high] == 0 || tileId - tileIds[high] < runLengths[high])) {
+        return high;
+      }
+
+      return -1;
+    }
+
+    /** Serializes the entries from {@code from} (inclusive) to {@code to} (exclusive). */
+    byte[] serialize(int from, int to, byte compression) throws IOException {
+      MvtBuffer buffer = new MvtBuffer(Math.max(16, (to - from) * 8));
+      buffer.varint(to - from);
+
+      long lastTileId = 0;
+      for (int i = from; i < to; i++) {
+        buffer.varint(tileIds[i] - lastTileId);
+        lastTileId = tileIds[i];
+      }
+      for (int i = from; i < to; i++) {
+        buffer.varint(runLengths[i]);
+      }
+      for (int i = from; i < to; i++) {
+        buffer.varint(lengths[i]);
+      }
+      for (int i = from; i < to; i++) {
+        // 0 means that the tile directly follows the previous tile
+        if (i > from && offsets[i] == offsets[i - 1] + lengths[i - 1]) {
+          buffer.varint(0);
+        } else {
+          buffer.varint(offsets[i] + 1);
+        }
+      }
+
+      return compress(buffer.toByteArray(), compression);
+    }
+
+    static Directory deserialize(byte[] bytes, byte compression) throws IOException {
+      byte[] directory = decompress(bytes, compression);
+
+      try {
+        MvtReader reader = new MvtReader(directory, 0, directory.length);
+        long size = reader.varint();
+
+        if (size < 0 || size > directory.length) {
+          throw new IOException("Invalid PMTiles directory.");
+        }
+
+        int n = (int) size;
+        long[] tileIds = new long[n];
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+        int[] runLengths = new int[n];
+
+        long lastTileId = 0;
+        for (int i = 0; i < n; i++) {
+          lastTileId += reader.varint();
+          tileIds[i] = lastTileId;
+        }
+        for (int i = 0; i < n; i++) {
+          runLengths[i] = (int) reader.varint();
+        }
+        for (int i = 0; i < n; i++) {
+          lengths[i] = (int) reader.varint();
+        }
+        for (int i = 0; i < n; i++) {
+          long offset = reader.varint();
+          if (offset == 0 && i > 0) {
+            offsets[i] = offsets[i - 1] + lengths[i - 1];
+          } else {
+            offsets[i] = offset - 1;
+          }
+        }
+
+        return new Directory(tileIds, offsets, lengths, runLengths);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid PMTiles directory. Reason: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  static byte[] compress(byte[] bytes, byte compression) throws IOException {
+    if (compression == COMPRESSION_NONE) {
+      return bytes;
+    }
+    if (compression == COMPRESSION_GZIP) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 16);
+      try (OutputStream outputStream = new GZIPOutputStream(compressed)) {
+        outputStream.write(bytes);
+      }
+      return compressed.toByteArray();
+    }
+    throw new IOException("PMTiles compression not supported: " + compression);
+  }
+
+  static byte[] decompress(byte[] bytes, byte compression) throws IOException {
+    if (compression == COMPRESSION_NONE) {
+      return bytes;
+    }
+    if (compression == COMPRESSION_GZIP) {
+      try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+        return inputStream.readAllBytes();
+      }
+    }
+    throw new IOException("PMTiles compression not supported: " + compression);
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import de.ii.ogcapi.tiles.app.provider.PmTiles.Directory;
+import de.ii.ogcapi.tiles.app.provider.PmTiles.Header;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Reads tiles from a PMTiles v3 archive. The file is memory-mapped, so that the tiles are read
+ * from the page cache of the operating system without copying them to the heap first. The root
+ * directory is read when the archive is opened, the leaf directories that were used last are
+ * kept in memory.
+ */
+final class PmTilesArchive implements Closeable {
+
+  // a mapped buffer is limited to 2 GiB, larger files are mapped in segments
+  private static final long SEGMENT_SIZE = 1L << 30;
+  private static final int MAX_LEAF_DIRECTORIES = 64;
+  // the number of nested leaf directories is not limited by the spec, the reference
+  // implementations use at most one level of leaf directories
+  private static final int MAX_DEPTH = 4;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long size;
+  private final MappedByteBuffer[] segments;
+  private final Header header;
+  private final Directory root;
+  private final Map<Long, Directory> leafDirectories;
+
+  private PmTilesArchive(Path path, FileChannel channel) throws IOException {
+    this.path = path;
+    this.channel = channel;
+    this.size = channel.size();
+    this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+    for (int i = 0; i < segments.length; i++) {
+      long position = i * SEGMENT_SIZE;
+      segments[i] =
+          channel.map(MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+    }
+
+    this.header =
+        Header.read(ByteBuffer.wrap(read(0, (int) Math.min(PmTiles.HEADER_LENGTH, size))));
+    this.root =
+        Directory.deserialize(
+            read(header.rootOffset, toInt(header.rootLength)), header.internalCompression);
+    this.leafDirectories =
+        new LinkedHashMap<>(MAX_LEAF_DIRECTORIES, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, Directory> eldest) {
+            return size() > MAX_LEAF_DIRECTORIES;
+          }
+        };
+  }
+
+  /**
+   * @throws IOException if the file cannot be read or is not a PMTiles v3 archive
+   */
+  static PmTilesArchive open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+    try {
+      return new PmTilesArchive(path, channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  int getMinZoom() {
+    return header.minZoom;
+  }
+
+  int getMaxZoom() {
+    return header.maxZoom;
+  }
+
+  byte getTileCompression() {
+    return header.tileCompression;
+  }
+
+  byte getTileType() {
+    return header.tileType;
+  }
+
+  /**
+   * @return the content of the tile as stored, i.e. compressed according to {@link
+   *     #getTileCompression()}, or empty, if the archive does not contain the tile
+   */
+  Optional<byte[]> getTile(int z, int x, int y) throws IOException {
+    if (z < header.minZoom
+        || z > header.maxZoom
+        || x < 0
+        || y < 0
+        || x >= 1L << z
+        || y >= 1L << z) {
+      return Optional.empty();
+    }
+
+    long tileId = PmTiles.tileId(z, x, y);
+    Directory directory = root;
+
+    for (int depth = 0; depth < MAX_DEPTH; depth++) {
+      int entry = directory.find(tileId);
+
+      if (entry < 0) {
+        return Optional.empty();
+      }
+      if (directory.runLengths[entry] > 0) {
+        return Optional.of(
+            read(header.tileDataOffset + directory.offsets[entry], directory.lengths[entry]));
+      }
+
+      directory =
+          getLeafDirectory(
+              header.leafDirectoriesOffset + directory.offsets[entry], directory.lengths[entry]);
+    }
+
+    throw new IOException("Invalid PMTiles archive, the leaf directories are nested too deep.");
+  }
+
+  private Directory getLeafDirectory(long offset, int length) throws IOException {
+    synchronized (leafDirectories) {
+      Directory directory = leafDirectories.get(offset);
+      if (Objects.nonNull(directory)) {
+        return directory;
+      }
+    }
+
+    // concurrent requests may read the same directory, the last one wins
+    Directory directory = Directory.deserialize(read(offset, length), header.internalCompression);
+
+    synchronized (leafDirectories) {
+      leafDirectories.put(offset, directory);
+    }
+
+    return directory;
+  }
+
+  private byte[] read(long offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > size) {
+      throw new IOException(
+          String.format(
+              "Invalid PMTiles archive, the range %d-%d is outside of the file.",
+              offset, offset + length));
+    }
+
+    byte[] bytes = new byte[length];
+    int copied = 0;
+
+    while (copied < length) {
+      long position = offset + copied;
+      // the buffers are shared by all threads, each read uses a duplicate with its own position
+      ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+      int segmentOffset = (int) (position % SEGMENT_SIZE);
+      int count = Math.min(length - copied, segment.limit() - segmentOffset);
+      segment.position(segmentOffset);
+      segment.get(bytes, copied, count);
+      copied += count;
+    }
+
+    return bytes;
+  }
+
+  private static int toInt(long length) throws IOException {
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid PMTiles archive, directory too large.");
+    }
+    return (int) length;
+  }
+
+  /** The mapped buffers stay valid until they are garbage collected. */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
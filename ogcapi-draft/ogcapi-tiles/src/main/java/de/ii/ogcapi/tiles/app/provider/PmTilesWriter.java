@@ -0,0 +1,424 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import de.ii.ogcapi.tiles.app.provider.PmTiles.Directory;
+import de.ii.ogcapi.tiles.app.provider.PmTiles.Header;
+import de.ii.ogcapi.tiles.domain.provider.TileArchiveWriter;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a PMTiles v3 archive. The tiles may be added in any order and concurrently, the content
+ * of each distinct tile is appended to a spool file once. When the writer is finished, the entries
+ * are sorted by their position on the Hilbert curve, consecutive tiles with the same content are
+ * merged into a single entry (run-length encoding) and the archive is written to a temporary file
+ * that replaces the previous archive atomically.
+ */
+final class PmTilesWriter implements TileArchiveWriter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PmTilesWriter.class);
+  private static final int MIN_LEAF_SIZE = 4096;
+  private static final byte INTERNAL_COMPRESSION = PmTiles.COMPRESSION_GZIP;
+
+  private final Path target;
+  private final byte[] metadata;
+  private final Runnable onClose;
+  private final Path spoolFile;
+  private final Map<HashCode, Long> contents;
+  private FileChannel spool;
+  private long spoolSize;
+  private long[] tileIds;
+  private long[] spoolOffsets;
+  private int[] lengths;
+  private int count;
+  private int minZoom;
+  private int maxZoom;
+  // the tile range at the maximum zoom level for the bounds in the header
+  private long minX;
+  private long maxX;
+  private long minY;
+  private long maxY;
+  private long failed;
+  private boolean closed;
+
+  /**
+   * @param target the archive
+   * @param metadata the JSON metadata of the archive
+   * @param onClose called when the writer was finished or aborted
+   */
+  PmTilesWriter(Path target, byte[] metadata, Runnable onClose) throws IOException {
+    this.target = target;
+    this.metadata = metadata;
+    this.onClose = onClose;
+    this.spoolFile = target.resolveSibling(target.getFileName() + ".tiles");
+    this.contents = new HashMap<>();
+    this.tileIds = new long[1024];
+    this.spoolOffsets = new long[1024];
+    this.lengths = new int[1024];
+    this.minZoom = Integer.MAX_VALUE;
+    this.maxZoom = -1;
+
+    Files.createDirectories(target.getParent());
+    this.spool =
+        FileChannel.open(
+            spoolFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+  }
+
+  @Override
+  public void put(TileQuery tile, TileResult result) throws IOException {
+    if (result.isError()) {
+      synchronized (this) {
+        failed++;
+      }
+      return;
+    }
+    if (!result.isAvailable()) {
+      return;
+    }
+
+    int z = tile.getLevel();
+    long tileId = PmTiles.tileId(z, tile.getCol(), tile.getRow());
+    byte[] content = result.getContent().orElseThrow();
+    // tiles that are not in the archive are empty
+    boolean empty = result.isEmpty() || content.length == 0;
+    HashCode hash = empty ? null : Hashing.murmur3_128().hashBytes(content);
+
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      addToRange(z, tile.getCol(), tile.getRow());
+
+      if (empty) {
+        return;
+      }
+
+      Long spoolOffset = contents.get(hash);
+      if (Objects.isNull(spoolOffset)) {
+        spoolOffset = spoolSize;
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+          spool.write(buffer, spoolSize + buffer.position());
+        }
+        spoolSize += content.length;
+        contents.put(hash, spoolOffset);
+      }
+
+      add(tileId, spoolOffset, content.length);
+    }
+  }
+
+  private void addToRange(int z, long x, long y) {
+    minZoom = Math.min(minZoom, z);
+    if (z > maxZoom) {
+      maxZoom = z;
+      minX = x;
+      maxX = x;
+      minY = y;
+      maxY = y;
+    } else if (z == maxZoom) {
+      minX = Math.min(minX, x);
+      maxX = Math.max(maxX, x);
+      minY = Math.min(minY, y);
+      maxY = Math.max(maxY, y);
+    }
+  }
+
+  private void add(long tileId, long spoolOffset, int length) {
+    if (count == tileIds.length) {
+      tileIds = Arrays.copyOf(tileIds, count * 2);
+      spoolOffsets = Arrays.copyOf(spoolOffsets, count * 2);
+      lengths = Arrays.copyOf(lengths, count * 2);
+    }
+    tileIds[count] = tileId;
+    spoolOffsets[count] = spoolOffset;
+    lengths[count] = length;
+    count++;
+  }
+
+  @Override
+  public void finish() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      this.closed = true;
+    }
+
+    try {
+      if (failed > 0) {
+        throw new IOException(
+            String.format(
+                "%d tiles could not be generated, the archive '%s' was not written.",
+                failed, target));
+      }
+
+      write();
+    } finally {
+      closeSpool();
+      onClose.run();
+    }
+  }
+
+  @Override
+  public void abort() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      this.closed = true;
+    }
+
+    closeSpool();
+    onClose.run();
+  }
+
+  private void write() throws IOException {
+    // sorted by tile id, a tile that was added more than once is only used once
+    int[] order =
+        IntStream.range(0, count)
+            .boxed()
+            .sorted(Comparator.comparingLong(i -> tileIds[i]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+
+    long[] entryTileIds = new long[count];
+    long[] entryOffsets = new long[count];
+    int[] entryLengths = new int[count];
+    int[] entryRunLengths = new int[count];
+    int entries = 0;
+    // the spool offsets of the distinct contents in the order of the tile data
+    long[] dataOrder = new long[contents.size()];
+    int[] dataLengths = new int[contents.size()];
+    int dataCount = 0;
+    Map<Long, Long> dataOffsets = new HashMap<>();
+    long dataLength = 0;
+    long addressedTiles = 0;
+
+    for (int k = 0; k < order.length; k++) {
+      int i = order[k];
+      if (k + 1 < order.length && tileIds[order[k + 1]] == tileIds[i]) {
+        continue;
+      }
+
+      Long dataOffset = dataOffsets.get(spoolOffsets[i]);
+      if (Objects.isNull(dataOffset)) {
+        dataOffset = dataLength;
+        dataOffsets.put(spoolOffsets[i], dataOffset);
+        dataOrder[dataCount] = spoolOffsets[i];
+        dataLengths[dataCount] = lengths[i];
+        dataCount++;
+        dataLength += lengths[i];
+      }
+
+      addressedTiles++;
+
+      int last = entries - 1;
+      if (last >= 0
+          && entryOffsets[last] == dataOffset
+          && entryTileIds[last] + entryRunLengths[last] == tileIds[i]) {
+        entryRunLengths[last]++;
+        continue;
+      }
+
+      entryTileIds[entries] = tileIds[i];
+      entryOffsets[entries] = dataOffset;
+      entryLengths[entries] = lengths[i];
+      entryRunLengths[entries] = 1;
+      entries++;
+    }
+
+    Directory directory =
+        new Directory(
+            Arrays.copyOf(entryTileIds, entries),
+            Arrays.copyOf(entryOffsets, entries),
+            Arrays.copyOf(entryLengths, entries),
+            Arrays.copyOf(entryRunLengths, entries));
+    byte[][] directories = writeDirectories(directory);
+    byte[] root = directories[0];
+    byte[] leaves = directories[1];
+    byte[] compressedMetadata = PmTiles.compress(metadata, INTERNAL_COMPRESSION);
+
+    Header header = new Header();
+    header.rootOffset = PmTiles.HEADER_LENGTH;
+    header.rootLength = root.length;
+    header.metadataOffset = header.rootOffset + header.rootLength;
+    header.metadataLength = compressedMetadata.length;
+    header.leafDirectoriesOffset = header.metadataOffset + header.metadataLength;
+    header.leafDirectoriesLength = leaves.length;
+    header.tileDataOffset = header.leafDirectoriesOffset + header.leafDirectoriesLength;
+    header.tileDataLength = dataLength;
+    header.addressedTiles = addressedTiles;
+    header.tileEntries = entries;
+    header.tileContents = dataCount;
+    header.clustered = true;
+    header.internalCompression = INTERNAL_COMPRESSION;
+    header.tileCompression = PmTiles.COMPRESSION_NONE;
+    header.tileType = PmTiles.TILE_TYPE_MVT;
+    writeZoomAndBounds(header);
+
+    Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+
+    try (FileChannel archive =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      writeFully(archive, header.write());
+      writeFully(archive, root);
+      writeFully(archive, compressedMetadata);
+      writeFully(archive, leaves);
+
+      for (int i = 0; i < dataCount; i++) {
+        long transferred = 0;
+        while (transferred < dataLengths[i]) {
+          transferred +=
+              spool.transferTo(dataOrder[i] + transferred, dataLengths[i] - transferred, archive);
+        }
+      }
+      archive.force(false);
+    }
+
+    try {
+      Files.move(
+          temporary,
+          target,
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(
+          "Wrote PMTiles archive '{}' with {} tiles, {} entries and {} distinct tiles",
+          target,
+          addressedTiles,
+          entries,
+          dataCount);
+    }
+  }
+
+  /**
+   * If the root directory with all entries is too large, the entries are split into leaf
+   * directories. The leaf size is increased until the root directory with an entry per leaf
+   * directory fits into the first 16 KiB of the archive.
+   *
+   * @return the root directory and the leaf directories
+   */
+  private static byte[][] writeDirectories(Directory directory) throws IOException {
+    byte[] root = directory.serialize(0, directory.size(), INTERNAL_COMPRESSION);
+
+    if (root.length <= PmTiles.MAX_ROOT_LENGTH) {
+      return new byte[][] {root, new byte[0]};
+    }
+
+    for (int leafSize = MIN_LEAF_SIZE; ; leafSize *= 2) {
+      int leafCount = (directory.size() + leafSize - 1) / leafSize;
+      long[] rootTileIds = new long[leafCount];
+      long[] rootOffsets = new long[leafCount];
+      int[] rootLengths = new int[leafCount];
+      ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+
+      for (int leaf = 0; leaf < leafCount; leaf++) {
+        int from = leaf * leafSize;
+        int to = Math.min(directory.size(), from + leafSize);
+        byte[] bytes = directory.serialize(from, to, INTERNAL_COMPRESSION);
+        rootTileIds[leaf] = directory.tileIds[from];
+        rootOffsets[leaf] = leaves.size();
+        rootLengths[leaf] = bytes.length;
+        leaves.write(bytes);
+      }
+
+      root =
+          new Directory(rootTileIds, rootOffsets, rootLengths, new int[leafCount])
+              .serialize(0, leafCount, INTERNAL_COMPRESSION);
+
+      if (root.length <= PmTiles.MAX_ROOT_LENGTH) {
+        return new byte[][] {root, leaves.toByteArray()};
+      }
+    }
+  }
+
+  private void writeZoomAndBounds(Header header) {
+    if (maxZoom < 0) {
+      header.minZoom = 0;
+      header.maxZoom = 0;
+      minX = 0;
+      maxX = 0;
+      minY = 0;
+      maxY = 0;
+    } else {
+      header.minZoom = minZoom;
+      header.maxZoom = maxZoom;
+    }
+
+    int z = header.maxZoom;
+    header.minLonE7 = toE7(lon(minX, z));
+    header.maxLonE7 = toE7(lon(maxX + 1, z));
+    header.minLatE7 = toE7(lat(maxY + 1, z));
+    header.maxLatE7 = toE7(lat(minY, z));
+    header.centerZoom = header.minZoom;
+    header.centerLonE7 = (int) (((long) header.minLonE7 + header.maxLonE7) / 2);
+    header.centerLatE7 = (int) (((long) header.minLatE7 + header.maxLatE7) / 2);
+  }
+
+  private static double lon(long x, int z) {
+    return (double) x / (1L << z) * 360.0 - 180.0;
+  }
+
+  private static double lat(long y, int z) {
+    return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2.0 * y / (1L << z)))));
+  }
+
+  private static int toE7(double degrees) {
+    return (int) Math.round(degrees * 10_000_000);
+  }
+
+  private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private void closeSpool() {
+    try {
+      spool.close();
+      Files.deleteIfExists(spoolFile);
+    } catch (IOException e) {
+      LOGGER.debug("Failed to delete spool file '{}'. Reason: {}", spoolFile, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.locationtech.jts.algorithm.Area;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Clips geometries to an axis-aligned rectangle without an overlay operation. Line strings are
+ * clipped segment by segment (Liang–Barsky), the rings of polygons are clipped against the four
+ * edges of the rectangle (Sutherland–Hodgman).
+ *
+ * <p>Parts of a concave polygon that are only connected outside of the rectangle stay connected by
+ * edges on the boundary of the rectangle. These edges are not removed, if the result is not valid,
+ * it has to be fixed by the caller.
+ */
+class RectangleClipper {
+
+  private static final int LEFT = 0;
+  private static final int RIGHT = 1;
+  private static final int BOTTOM = 2;
+  private static final int TOP = 3;
+
+  private final double minX;
+  private final double maxX;
+  private final double minY;
+  private final double maxY;
+  private final PrecisionModel precisionModel;
+
+  /**
+   * @param precisionModel the new coordinates on the boundary of the rectangle are snapped to the
+   *     grid of the precision model
+   */
+  RectangleClipper(Envelope rectangle, PrecisionModel precisionModel) {
+    this.minX = rectangle.getMinX();
+    this.maxX = rectangle.getMaxX();
+    this.minY = rectangle.getMinY();
+    this.maxY = rectangle.getMaxY();
+    this.precisionModel = precisionModel;
+  }
+
+  /**
+   * @return true, if the geometry is a point, line string or polygon or a homogeneous collection of
+   *     these
+   */
+  static boolean canClip(Geometry geometry) {
+    return geometry instanceof Point
+        || geometry instanceof MultiPoint
+        || geometry instanceof LineString
+        || geometry instanceof MultiLineString
+        || geometry instanceof Polygon
+        || geometry instanceof MultiPolygon;
+  }
+
+  /** @return the clipped geometry or null, if nothing is left */
+  Geometry clip(Geometry geometry) {
+    GeometryFactory factory = geometry.getFactory();
+
+    if (geometry.isEmpty()) {
+      return null;
+    } else if (geometry instanceof Point) {
+      return isInside(geometry.getCoordinate()) ? geometry : null;
+    } else if (geometry instanceof MultiPoint) {
+      List<Point> points = new ArrayList<>();
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        Point point = (Point) geometry.getGeometryN(i);
+        if (!point.isEmpty() && isInside(point.getCoordinate())) {
+          points.add(point);
+        }
+      }
+      return points.isEmpty() ? null : factory.createMultiPoint(points.toArray(Point[]::new));
+    } else if (geometry instanceof LineString) {
+      List<LineString> lines = new ArrayList<>();
+      clipLine(geometry.getCoordinates(), factory, lines);
+      return toLineal(lines, factory);
+    } else if (geometry instanceof MultiLineString) {
+      List<LineString> lines = new ArrayList<>();
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        clipLine(geometry.getGeometryN(i).getCoordinates(), factory, lines);
+      }
+      return toLineal(lines, factory);
+    } else if (geometry instanceof Polygon) {
+      return clipPolygon((Polygon) geometry);
+    } else if (geometry instanceof MultiPolygon) {
+      List<Polygon> polygons = new ArrayList<>();
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        Polygon polygon = clipPolygon((Polygon) geometry.getGeometryN(i));
+        if (Objects.nonNull(polygon)) {
+          polygons.add(polygon);
+        }
+      }
+      return polygons.isEmpty()
+          ? null
+          : polygons.size() == 1
+              ? polygons.get(0)
+              : factory.createMultiPolygon(polygons.toArray(Polygon[]::new));
+    }
+
+    throw new IllegalArgumentException(
+        String.format("Geometry type not supported: %s", geometry.getGeometryType()));
+  }
+
+  private boolean isInside(Coordinate coordinate) {
+    return coordinate.x >= minX
+        && coordinate.x <= maxX
+        && coordinate.y >= minY
+        && coordinate.y <= maxY;
+  }
+
+  private static Geometry toLineal(List<LineString> lines, GeometryFactory factory) {
+    if (lines.isEmpty()) {
+      return null;
+    }
+    return lines.size() == 1
+        ? lines.get(0)
+        : factory.createMultiLineString(lines.toArray(LineString[]::new));
+  }
+
+  private void clipLine(Coordinate[] coordinates, GeometryFactory factory, List<LineString> lines) {
+    List<Coordinate> current = new ArrayList<>();
+    double[] range = new double[2];
+
+    for (int i = 0; i < coordinates.length - 1; i++) {
+      Coordinate from = coordinates[i];
+      Coordinate to = coordinates[i + 1];
+
+      // outside of the rectangle or only touching it
+      if (!clipSegment(from, to, range) || range[0] >= range[1]) {
+        finishLine(current, factory, lines);
+        continue;
+      }
+
+      // the segment enters the rectangle, so a previous part has ended
+      if (range[0] > 0) {
+        finishLine(current, factory, lines);
+      }
+      if (current.isEmpty()) {
+        current.add(range[0] > 0 ? interpolate(from, to, range[0]) : from);
+      }
+      current.add(range[1] < 1 ? interpolate(from, to, range[1]) : to);
+
+      // the segment leaves the rectangle
+      if (range[1] < 1) {
+        finishLine(current, factory, lines);
+      }
+    }
+
+    finishLine(current, factory, lines);
+  }
+
+  private static void finishLine(
+      List<Coordinate> current, GeometryFactory factory, List<LineString> lines) {
+    if (current.size() >= 2) {
+      lines.add(factory.createLineString(current.toArray(Coordinate[]::new)));
+    }
+    current.clear();
+  }
+
+  /**
+   * Liang–Barsky: finds the parameter range of the segment within the rectangle.
+   *
+   * @return false, if the segment is outside of the rectangle
+   */
+  private boolean clipSegment(Coordinate from, Coordinate to, double[] range) {
+    double dx = to.x - from.x;
+    double dy = to.y - from.y;
+    double[] p = {-dx, dx, -dy, dy};
+    double[] q = {from.x - minX, maxX - from.x, from.y - minY, maxY - from.y};
+    double t0 = 0;
+    double t1 = 1;
+
+    for (int k = 0; k < 4; k++) {
+      if (p[k] == 0) {
+        // parallel to the edge
+        if (q[k] < 0) {
+          return false;
+        }
+      } else {
+        double t = q[k] / p[k];
+        if (p[k] < 0) {
+          if (t > t1) {
+            return false;
+          }
+          t0 = Math.max(t0, t);
+        } else {
+          if (t < t0) {
+            return false;
+          }
+          t1 = Math.min(t1, t);
+        }
+      }
+    }
+
+    range[0] = t0;
+    range[1] = t1;
+
+    return true;
+  }
+
+  private Polygon clipPolygon(Polygon polygon) {
+    if (polygon.isEmpty()) {
+      return null;
+    }
+
+    GeometryFactory factory = polygon.getFactory();
+    LinearRing shell = clipRing(polygon.getExteriorRing(), factory);
+
+    if (Objects.isNull(shell)) {
+      return null;
+    }
+
+    List<LinearRing> holes = new ArrayList<>();
+    for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+      LinearRing hole = clipRing(polygon.getInteriorRingN(i), factory);
+      if (Objects.nonNull(hole)) {
+        holes.add(hole);
+      }
+    }
+
+    return factory.createPolygon(shell, holes.toArray(LinearRing[]::new));
+  }
+
+  /** Sutherland–Hodgman: clips the ring against each edge of the rectangle. */
+  private LinearRing clipRing(LinearRing ring, GeometryFactory factory) {
+    Coordinate[] coordinates = ring.getCoordinates();
+    List<Coordinate> input = new ArrayList<>(coordinates.length);
+    // without the closing coordinate
+    for (int i = 0; i < coordinates.length - 1; i++) {
+      input.add(coordinates[i]);
+    }
+
+    for (int edge = 0; edge < 4 && !input.isEmpty(); edge++) {
+      List<Coordinate> output = new ArrayList<>(input.size() + 4);
+      Coordinate previous = input.get(input.size() - 1);
+      boolean previousInside = isInside(previous, edge);
+
+      for (Coordinate current : input) {
+        boolean currentInside = isInside(current, edge);
+        if (currentInside) {
+          if (!previousInside) {
+            output.add(intersect(previous, current, edge));
+          }
+          output.add(current);
+        } else if (previousInside) {
+          output.add(intersect(previous, current, edge));
+        }
+        previous = current;
+        previousInside = currentInside;
+      }
+
+      input = output;
+    }
+
+    return repairRing(input, factory);
+  }
+
+  /**
+   * Removes repeated coordinates and spikes that the clipping leaves behind and closes the ring.
+   *
+   * @return the ring or null, if it has collapsed
+   */
+  private static LinearRing repairRing(List<Coordinate> coordinates, GeometryFactory factory) {
+    List<Coordinate> repaired = new ArrayList<>(coordinates.size() + 1);
+
+    for (Coordinate coordinate : coordinates) {
+      int size = repaired.size();
+      if (size > 0 && repaired.get(size - 1).equals2D(coordinate)) {
+        continue;
+      }
+      // A-B-A: the ring goes back to where it came from
+      if (size > 1 && repaired.get(size - 2).equals2D(coordinate)) {
+        repaired.remove(size - 1);
+        continue;
+      }
+      repaired.add(coordinate);
+    }
+
+    // the same at the start and end of the ring
+    boolean changed = true;
+    while (changed && repaired.size() > 2) {
+      changed = false;
+      int last = repaired.size() - 1;
+      if (repaired.get(last).equals2D(repaired.get(0))) {
+        repaired.remove(last);
+        changed = true;
+      } else if (repaired.get(last).equals2D(repaired.get(1))) {
+        repaired.remove(0);
+        repaired.remove(0);
+        changed = true;
+      } else if (repaired.get(last - 1).equals2D(repaired.get(0))) {
+        repaired.remove(last);
+        repaired.remove(last - 1);
+        changed = true;
+      }
+    }
+
+    if (repaired.size() < 3) {
+      return null;
+    }
+
+    repaired.add(new CoordinateXY(repaired.get(0)));
+    Coordinate[] ring = repaired.toArray(Coordinate[]::new);
+
+    if (Area.ofRing(ring) == 0) {
+      return null;
+    }
+
+    return factory.createLinearRing(ring);
+  }
+
+  private boolean isInside(Coordinate coordinate, int edge) {
+    switch (edge) {
+      case LEFT:
+        return coordinate.x >= minX;
+      case RIGHT:
+        return coordinate.x <= maxX;
+      case BOTTOM:
+        return coordinate.y >= minY;
+      default:
+        return coordinate.y <= maxY;
+    }
+  }
+
+  private Coordinate intersect(Coordinate from, Coordinate to, int edge) {
+    switch (edge) {
+      case LEFT:
+        return coordinate(minX, from.y + (to.y - from.y) * (minX - from.x) / (to.x - from.x));
+      case RIGHT:
+        return coordinate(maxX, from.y + (to.y - from.y) * (maxX - from.x) / (to.x - from.x));
+      case BOTTOM:
+        return coordinate(from.x + (to.x - from.x) * (minY - from.y) / (to.y - from.y), minY);
+      default:
+        return coordinate(from.x + (to.x - from.x) * (maxY - from.y) / (to.y - from.y), maxY);
+    }
+  }
+
+  private Coordinate interpolate(Coordinate from, Coordinate to, double t) {
+    return coordinate(from.x + (to.x - from.x) * t, from.y + (to.y - from.y) * t);
+  }
+
+  private Coordinate coordinate(double x, double y) {
+    return new CoordinateXY(precisionModel.makePrecise(x), precisionModel.makePrecise(y));
+  }
+}
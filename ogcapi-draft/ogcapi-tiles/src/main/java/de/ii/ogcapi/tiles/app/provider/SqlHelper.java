@@ -17,6 +17,9 @@ import java.sql.Statement;
 
 public class SqlHelper {
 
+  private static final long MMAP_SIZE = 256L * 1024 * 1024;
+  private static final int BUSY_TIMEOUT_MILLIS = 5_000;
+
   public static Connection getConnection(File mbtilesFile) {
     try {
       Class.forName("org.sqlite.JDBC");
@@ -27,6 +30,25 @@ public class SqlHelper {
     }
   }
 
+  /**
+   * Read-only connections never modify the file. The writer connection switches the file to WAL
+   * mode, so that readers neither block each other nor the writer.
+   */
+  public static Connection getConnection(File mbtilesFile, boolean readOnly) {
+    Connection connection = getConnection(mbtilesFile);
+
+    execute(connection, String.format("PRAGMA busy_timeout=%d", BUSY_TIMEOUT_MILLIS));
+    execute(connection, String.format("PRAGMA mmap_size=%d", MMAP_SIZE));
+    if (readOnly) {
+      execute(connection, "PRAGMA query_only=true");
+    } else {
+      execute(connection, "PRAGMA journal_mode=WAL");
+      execute(connection, "PRAGMA synchronous=NORMAL");
+    }
+
+    return connection;
+  }
+
   public static ResultSet executeQuery(Connection connection, String sql) {
     try {
       Statement statement = connection.createStatement();
@@ -11,33 +11,43 @@ import static de.ii.xtraplatform.base.domain.util.LambdaWithException.consumerMa
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Range;
+import com.google.common.primitives.Ints;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
 import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileResult;
 import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.ws.rs.core.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class TileCacheDynamic implements ChainedTileProvider {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileCacheDynamic.class);
+
   /** abstraction over fs */
   interface FileStore {
 
-    interface FileAttributes {
-      boolean isRegularFile();
-    }
-
     boolean has(Path path);
 
     Optional<InputStream> get(Path path) throws IOException;
@@ -48,11 +58,28 @@ public class TileCacheDynamic implements ChainedTileProvider {
 
     void delete(Path path) throws IOException;
 
-    Stream<Path> walk(int maxDepth, BiPredicate<Path, FileAttributes> matcher) throws IOException;
+    boolean deleteIfExists(Path path) throws IOException;
+
+    /**
+     * @return the value of the user-defined attribute of the file, if the file system supports
+     *     such attributes and the attribute exists
+     */
+    Optional<String> getAttribute(Path path, String name);
+
+    /** Ignored, if the file system does not support user-defined attributes. */
+    void putAttribute(Path path, String name, String value);
+
+    void deleteDirectory(Path path) throws IOException;
+
+    /**
+     * @return the names of the entries in the given directory
+     */
+    Stream<String> list(Path path) throws IOException;
   }
 
   static class FileStoreFs implements FileStore {
     private final Path rootDir;
+    private volatile boolean attributesSupported = true;
 
     FileStoreFs(Path rootDir) {
       this.rootDir = rootDir;
@@ -104,13 +131,94 @@ public class TileCacheDynamic implements ChainedTileProvider {
     }
 
     @Override
-    public Stream<Path> walk(int maxDepth, BiPredicate<Path, FileAttributes> matcher)
-        throws IOException {
-      return Files.find(
-          rootDir,
-          maxDepth,
-          ((path1, basicFileAttributes) ->
-              matcher.test(rootDir.relativize(path1), basicFileAttributes::isRegularFile)));
+    public boolean deleteIfExists(Path path) throws IOException {
+      return Files.deleteIfExists(full(path));
+    }
+
+    @Override
+    public Optional<String> getAttribute(Path path, String name) {
+      if (!attributesSupported) {
+        return Optional.empty();
+      }
+      try {
+        UserDefinedFileAttributeView view = attributeView(path);
+        ByteBuffer value = ByteBuffer.allocate(view.size(name));
+        view.read(name, value);
+        return Optional.of(new String(value.array(), 0, value.position(), StandardCharsets.UTF_8));
+      } catch (UnsupportedOperationException e) {
+        this.attributesSupported = false;
+        return Optional.empty();
+      } catch (IOException e) {
+        // attribute does not exist
+        return Optional.empty();
+      }
+    }
+
+    @Override
+    public void putAttribute(Path path, String name, String value) {
+      if (!attributesSupported) {
+        return;
+      }
+      try {
+        attributeView(path).write(name, StandardCharsets.UTF_8.encode(value));
+      } catch (UnsupportedOperationException | IOException e) {
+        LOGGER.debug(
+            "User-defined file attributes are not supported for the tile cache in {}, tiles are hashed when requested. Reason: {}",
+            rootDir,
+            e.getMessage());
+        this.attributesSupported = false;
+      }
+    }
+
+    private UserDefinedFileAttributeView attributeView(Path path) {
+      UserDefinedFileAttributeView view =
+          Files.getFileAttributeView(full(path), UserDefinedFileAttributeView.class);
+
+      if (Objects.isNull(view)) {
+        throw new UnsupportedOperationException("No user-defined file attributes");
+      }
+
+      return view;
+    }
+
+    @Override
+    public void deleteDirectory(Path path) throws IOException {
+      Path dirPath = full(path);
+
+      if (Files.notExists(dirPath)) {
+        return;
+      }
+
+      // deepest paths first, so that directories are empty when they are deleted
+      try (Stream<Path> paths = Files.walk(dirPath)) {
+        paths
+            .sorted(Comparator.reverseOrder())
+            .forEach(
+                consumerMayThrow(
+                    filePath -> {
+                      try {
+                        Files.delete(filePath);
+                      } catch (NoSuchFileException e) {
+                        // deleted concurrently
+                      }
+                    }));
+      } catch (RuntimeException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public Stream<String> list(Path path) throws IOException {
+      Path dirPath = full(path);
+
+      if (!Files.isDirectory(dirPath)) {
+        return Stream.empty();
+      }
+
+      return Files.list(dirPath).map(entry -> entry.getFileName().toString());
     }
 
     private Path full(Path path) {
@@ -125,12 +233,32 @@ public class TileCacheDynamic implements ChainedTileProvider {
     TileResult get(TileQuery tile) throws IOException;
 
     Optional<Boolean> isEmpty(TileQuery tile) throws IOException;
+
+    /**
+     * @return Empty or Full, if the tile was stored with that status
+     */
+    default Optional<TileResult.Status> getMarker(TileQuery tile) throws IOException {
+      return Optional.empty();
+    }
   }
 
   interface TileStore extends TileStoreReadOnly {
 
+    /**
+     * @return false, if single tiles are not stored, e.g. in archives that are only written as a
+     *     whole
+     */
+    default boolean isWritable() {
+      return true;
+    }
+
     void put(TileQuery tile, InputStream content) throws IOException;
 
+    /** Stores the tile content, stores that support markers also keep the status Empty or Full. */
+    default void put(TileQuery tile, TileResult result) throws IOException {
+      put(tile, new ByteArrayInputStream(result.getContent().orElseThrow()));
+    }
+
     void delete(TileQuery tile) throws IOException;
 
     void delete(String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits)
@@ -141,6 +269,19 @@ public class TileCacheDynamic implements ChainedTileProvider {
 
     private static Map<MediaType, String> EXTENSIONS =
         ImmutableMap.of(FeatureEncoderMVT.FORMAT, "pbf");
+    // zero-byte marker files next to the tile file, e.g. "5.empty" for "5.pbf"
+    private static Map<TileResult.Status, String> MARKERS =
+        ImmutableMap.of(TileResult.Status.Empty, "empty", TileResult.Status.Full, "full");
+
+    // extended file attribute with the content hash of a tile file
+    private static final String HASH_ATTRIBUTE = "ldproxy.hash";
+    // tile files and marker files that may exist for a column
+    private static final List<String> FILE_EXTENSIONS =
+        Stream.concat(EXTENSIONS.values().stream(), MARKERS.values().stream())
+            .distinct()
+            .collect(Collectors.toUnmodifiableList());
+    // for larger ranges a row directory is listed instead of probing every file
+    private static final int MAX_COLS_WITHOUT_LISTING = 64;
 
     private final FileStore fileStore;
 
@@ -161,7 +302,25 @@ public class TileCacheDynamic implements ChainedTileProvider {
         return TileResult.notFound();
       }
 
-      return TileResult.found(content.get().readAllBytes());
+      byte[] bytes;
+      try (InputStream inputStream = content.get()) {
+        bytes = inputStream.readAllBytes();
+      }
+
+      // the marker files are not checked here, they are only needed for the ancestors of tiles
+      // that are not cached, see getMarker()
+      return new ImmutableTileResult.Builder()
+          .status(TileResult.Status.Found)
+          .encodedContent(bytes)
+          .contentHash(fileStore.getAttribute(path(tile), HASH_ATTRIBUTE))
+          .build();
+    }
+
+    @Override
+    public Optional<TileResult.Status> getMarker(TileQuery tile) {
+      return MARKERS.keySet().stream()
+          .filter(status -> fileStore.has(markerPath(tile, status)))
+          .findFirst();
     }
 
     @Override
@@ -171,90 +330,136 @@ public class TileCacheDynamic implements ChainedTileProvider {
 
     @Override
     public void put(TileQuery tile, InputStream content) throws IOException {
-      fileStore.put(path(tile), content);
+      put(tile, TileResult.found(content.readAllBytes()));
+    }
+
+    @Override
+    public void put(TileQuery tile, TileResult result) throws IOException {
+      byte[] content = result.getContent().orElseThrow();
+      fileStore.put(path(tile), new ByteArrayInputStream(content));
+      // overwritten files keep their attributes, so the hash is always written
+      fileStore.putAttribute(
+          path(tile),
+          HASH_ATTRIBUTE,
+          result.getContentHash().orElseGet(() -> TileResult.contentHash(content)));
+      deleteMarkers(tile);
+
+      if (MARKERS.containsKey(result.getStatus())) {
+        fileStore.put(markerPath(tile, result.getStatus()), InputStream.nullInputStream());
+      }
     }
 
     @Override
     public void delete(TileQuery tile) throws IOException {
       fileStore.delete(path(tile));
+      deleteMarkers(tile);
     }
 
-    @Override
-    public void delete(String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits)
-        throws IOException {
-      try (Stream<Path> matchingFiles =
-          fileStore.walk(
-              5,
-              (path, fileAttributes) ->
-                  fileAttributes.isRegularFile()
-                      && shouldDeleteTileFile(path, layer, tileMatrixSet.getId(), limits))) {
-
-        try {
-          matchingFiles.forEach(consumerMayThrow(fileStore::delete));
-        } catch (RuntimeException e) {
-          if (e.getCause() instanceof IOException) {
-            throw (IOException) e.getCause();
-          }
-          throw e;
+    private void deleteMarkers(TileQuery tile) throws IOException {
+      for (TileResult.Status status : MARKERS.keySet()) {
+        Path markerPath = markerPath(tile, status);
+        if (fileStore.has(markerPath)) {
+          fileStore.delete(markerPath);
         }
       }
     }
 
-    private static Path path(TileQuery tile) {
-      return Path.of(
-          tile.getLayer(),
-          tile.getTileMatrixSet().getId(),
-          String.valueOf(tile.getLevel()),
-          String.valueOf(tile.getRow()),
-          String.format("%d.%s", tile.getCol(), EXTENSIONS.get(tile.getMediaType())));
-    }
+    /**
+     * Only the directories and files within the limits are visited. If the limits cover a whole
+     * level or row, the directory is deleted.
+     */
+    @Override
+    public void delete(String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits)
+        throws IOException {
+      int level = Integer.parseInt(limits.getTileMatrix());
+      Path levelDir = Path.of(layer, tileMatrixSet.getId(), limits.getTileMatrix());
 
-    @SuppressWarnings("UnstableApiUsage")
-    private static boolean shouldDeleteTileFile(
-        Path tilePath, String layer, String tileMatrixSet, TileMatrixSetLimits tmsLimits) {
-      if (tilePath.getNameCount() < 5) {
-        return false;
+      if (!fileStore.has(levelDir)) {
+        return;
       }
 
-      String layerSegment = tilePath.getName(0).toString();
+      boolean allRows =
+          limits.getMinTileRow() <= 0
+              && limits.getMaxTileRow() >= tileMatrixSet.getRows(level) - 1;
+      boolean allCols =
+          limits.getMinTileCol() <= 0
+              && limits.getMaxTileCol() >= tileMatrixSet.getCols(level) - 1;
 
-      if (!Objects.equals(layer, layerSegment)) {
-        return false;
+      if (allRows && allCols) {
+        fileStore.deleteDirectory(levelDir);
+        return;
       }
 
-      String tmsId = tilePath.getName(1).toString();
+      for (int row = limits.getMinTileRow(); row <= limits.getMaxTileRow(); row++) {
+        Path rowDir = levelDir.resolve(String.valueOf(row));
 
-      if (!Objects.equals(tileMatrixSet, tmsId)) {
-        return false;
+        if (allCols) {
+          fileStore.deleteDirectory(rowDir);
+        } else if (limits.getMaxTileCol() - limits.getMinTileCol() < MAX_COLS_WITHOUT_LISTING) {
+          deleteCols(rowDir, limits);
+        } else {
+          deleteListedCols(rowDir, limits);
+        }
       }
+    }
 
-      String level = tilePath.getName(2).toString();
-
-      if (!Objects.equals(tmsLimits.getTileMatrix(), level)) {
-        return false;
+    private void deleteCols(Path rowDir, TileMatrixSetLimits limits) throws IOException {
+      if (!fileStore.has(rowDir)) {
+        return;
       }
 
-      int row = Integer.parseInt(tilePath.getName(3).toString());
-
-      if (row < tmsLimits.getMinTileRow() || row > tmsLimits.getMaxTileRow()) {
-        return false;
+      for (int col = limits.getMinTileCol(); col <= limits.getMaxTileCol(); col++) {
+        for (String extension : FILE_EXTENSIONS) {
+          fileStore.deleteIfExists(rowDir.resolve(String.format("%d.%s", col, extension)));
+        }
       }
+    }
 
-      String file = tilePath.getName(4).toString();
-
-      int col = Integer.parseInt(com.google.common.io.Files.getNameWithoutExtension(file));
+    @SuppressWarnings("UnstableApiUsage")
+    private void deleteListedCols(Path rowDir, TileMatrixSetLimits limits) throws IOException {
+      List<String> files;
+      try (Stream<String> entries = fileStore.list(rowDir)) {
+        files =
+            entries
+                .filter(
+                    file -> {
+                      Integer col =
+                          Ints.tryParse(com.google.common.io.Files.getNameWithoutExtension(file));
+                      return Objects.nonNull(col)
+                          && col >= limits.getMinTileCol()
+                          && col <= limits.getMaxTileCol();
+                    })
+                .collect(Collectors.toList());
+      }
 
-      if (col < tmsLimits.getMinTileCol() || col > tmsLimits.getMaxTileCol()) {
-        return false;
+      for (String file : files) {
+        fileStore.deleteIfExists(rowDir.resolve(file));
       }
+    }
 
-      return true;
+    private static Path path(TileQuery tile) {
+      return Path.of(
+          tile.getLayer(),
+          tile.getTileMatrixSet().getId(),
+          String.valueOf(tile.getLevel()),
+          String.valueOf(tile.getRow()),
+          String.format("%d.%s", tile.getCol(), EXTENSIONS.get(tile.getMediaType())));
+    }
+
+    private static Path markerPath(TileQuery tile, TileResult.Status status) {
+      return path(tile).resolveSibling(String.format("%d.%s", tile.getCol(), MARKERS.get(status)));
     }
   }
 
+  // the misses of ancestors are remembered for a limited time, since the tiles may also be stored
+  // by other caches on the same store, e.g. during seeding
+  private static final int MAX_MISSING_ANCESTORS = 10_000;
+  private static final long MISSING_ANCESTOR_TTL_MILLIS = 60_000;
+
   private final TileStore tileStore;
   private final ChainedTileProvider delegate;
   private final Map<String, Map<String, Range<Integer>>> tmsRanges;
+  private final LinkedHashMap<String, Long> missingAncestors;
 
   public TileCacheDynamic(
       TileStore tileStore,
@@ -263,6 +468,13 @@ public class TileCacheDynamic implements ChainedTileProvider {
     this.tileStore = tileStore;
     this.delegate = delegate;
     this.tmsRanges = tmsRanges;
+    this.missingAncestors =
+        new LinkedHashMap<>(256, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_MISSING_ANCESTORS;
+          }
+        };
   }
 
   @Override
@@ -278,7 +490,13 @@ public class TileCacheDynamic implements ChainedTileProvider {
   @Override
   public TileResult getTile(TileQuery tile) throws IOException {
     if (shouldCache(tile)) {
-      return tileStore.get(tile);
+      TileResult tileResult = tileStore.get(tile);
+
+      if (tileResult.isNotFound()) {
+        return getFromAncestor(tile);
+      }
+
+      return tileResult;
     }
     return TileResult.notFound();
   }
@@ -287,14 +505,127 @@ public class TileCacheDynamic implements ChainedTileProvider {
   public TileResult processDelegateResult(TileQuery tile, TileResult tileResult)
       throws IOException {
     if (shouldCache(tile) && tileResult.isAvailable()) {
-      tileStore.put(tile, new ByteArrayInputStream(tileResult.getContent().get()));
+      // the hash is only computed once and then stored with the tile
+      TileResult withHash = TileResult.withContentHash(tileResult);
 
-      return tileStore.get(tile);
+      if (tileStore.isWritable()) {
+        tileStore.put(tile, withHash);
+        forgetMissing(tile);
+      }
+
+      return withHash;
     }
 
     return tileResult;
   }
 
+  /**
+   * Stores a tile that was not requested, but generated together with a requested tile, e.g. in
+   * the same metatile. The same checks apply as for the tiles from the delegate.
+   */
+  public void store(TileQuery tile, TileResult tileResult) throws IOException {
+    if (canProvide(tile)) {
+      processDelegateResult(tile, tileResult);
+    }
+  }
+
+  /**
+   * If an ancestor of the tile is marked as Empty or Full, the tile is identical to the ancestor.
+   * It is neither generated nor stored. The walk stops at the first cached ancestor, the
+   * descendants of a cached tile without a marker are generated as usual. Ancestors that are not
+   * cached are remembered, so that the misses of siblings do not look them up again.
+   */
+  private TileResult getFromAncestor(TileQuery tile) throws IOException {
+    Optional<TileQuery> ancestor = getParent(tile);
+
+    while (ancestor.isPresent()) {
+      if (isKnownMissing(ancestor.get())) {
+        ancestor = getParent(ancestor.get());
+        continue;
+      }
+
+      if (tileStore.has(ancestor.get())) {
+        Optional<TileResult.Status> marker = tileStore.getMarker(ancestor.get());
+
+        if (marker.isPresent() && marker.get() == TileResult.Status.Empty) {
+          return TileResult.empty(new byte[0]);
+        }
+        if (marker.isPresent() && marker.get() == TileResult.Status.Full) {
+          TileResult ancestorResult = tileStore.get(ancestor.get());
+
+          // the content is passed on as stored, i.e. possibly compressed
+          return ancestorResult.isAvailable()
+              ? ImmutableTileResult.copyOf(ancestorResult).withStatus(TileResult.Status.Full)
+              : TileResult.notFound();
+        }
+
+        return TileResult.notFound();
+      }
+
+      rememberMissing(ancestor.get());
+      ancestor = getParent(ancestor.get());
+    }
+
+    return TileResult.notFound();
+  }
+
+  private boolean isKnownMissing(TileQuery tile) {
+    synchronized (missingAncestors) {
+      Long since = missingAncestors.get(key(tile));
+
+      return Objects.nonNull(since)
+          && System.currentTimeMillis() - since < MISSING_ANCESTOR_TTL_MILLIS;
+    }
+  }
+
+  private void rememberMissing(TileQuery tile) {
+    synchronized (missingAncestors) {
+      missingAncestors.put(key(tile), System.currentTimeMillis());
+    }
+  }
+
+  private void forgetMissing(TileQuery tile) {
+    synchronized (missingAncestors) {
+      missingAncestors.remove(key(tile));
+    }
+  }
+
+  private static String key(TileQuery tile) {
+    return String.join(
+        "/",
+        tile.getLayer(),
+        tile.getTileMatrixSet().getId(),
+        String.valueOf(tile.getLevel()),
+        String.valueOf(tile.getRow()),
+        String.valueOf(tile.getCol()),
+        tile.getMediaType().toString());
+  }
+
+  /**
+   * @return the tile at the next lower zoom level that contains the tile, only if the tile matrix
+   *     set is a quadtree at these levels and the parent is cached
+   */
+  private Optional<TileQuery> getParent(TileQuery tile) {
+    TileMatrixSet tileMatrixSet = tile.getTileMatrixSet();
+    int level = tile.getLevel();
+
+    if (level <= tileMatrixSet.getMinLevel()
+        || tileMatrixSet.getCols(level) != 2 * tileMatrixSet.getCols(level - 1)
+        || tileMatrixSet.getRows(level) != 2 * tileMatrixSet.getRows(level - 1)) {
+      return Optional.empty();
+    }
+
+    TileQuery parent =
+        ImmutableTileQuery.builder()
+            .from(tile)
+            .level(level - 1)
+            .row(tile.getRow() / 2)
+            .col(tile.getCol() / 2)
+            .build();
+
+    return canProvide(parent) ? Optional.of(parent) : Optional.empty();
+  }
+
   private boolean shouldCache(TileQuery tileQuery) {
     return !tileQuery.isTransient();
   }
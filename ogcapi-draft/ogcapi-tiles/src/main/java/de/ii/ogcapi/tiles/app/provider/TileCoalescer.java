@@ -0,0 +1,160 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.google.common.collect.Range;
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deduplicates concurrent requests for the same tile. Only the first request is passed on to the
+ * provider chain, all other requests for the same tile wait for and share its result.
+ */
+public class TileCoalescer implements ChainedTileProvider {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileCoalescer.class);
+
+  private final ChainedTileProvider delegate;
+  private final long timeoutMillis;
+  private final Map<String, CompletableFuture<TileResult>> inFlight;
+  private final AtomicLong coalesced;
+  private final AtomicLong timedOut;
+
+  public TileCoalescer(ChainedTileProvider delegate, long timeoutMillis) {
+    this.delegate = delegate;
+    this.timeoutMillis = timeoutMillis;
+    this.inFlight = new ConcurrentHashMap<>();
+    this.coalesced = new AtomicLong();
+    this.timedOut = new AtomicLong();
+  }
+
+  @Override
+  public Map<String, Map<String, Range<Integer>>> getTmsRanges() {
+    return delegate.getTmsRanges();
+  }
+
+  @Override
+  public TileResult getTile(TileQuery tile) throws IOException {
+    return delegate.getTile(tile);
+  }
+
+  @Override
+  public Optional<ChainedTileProvider> getDelegate() {
+    return Optional.of(delegate);
+  }
+
+  @Override
+  public boolean canProvide(TileQuery tile) {
+    return delegate.canProvide(tile);
+  }
+
+  @Override
+  public TileResult get(TileQuery tile) {
+    // transient tiles depend on user parameters and are never shared
+    if (tile.isTransient()) {
+      return delegate.get(tile);
+    }
+
+    String key = key(tile);
+    CompletableFuture<TileResult> pending = new CompletableFuture<>();
+    CompletableFuture<TileResult> existing = inFlight.putIfAbsent(key, pending);
+
+    if (Objects.nonNull(existing)) {
+      return await(tile, existing);
+    }
+
+    try {
+      TileResult result = delegate.get(tile);
+      pending.complete(result);
+      return result;
+    } catch (Throwable e) {
+      pending.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, pending);
+    }
+  }
+
+  public long getCoalescedRequests() {
+    return coalesced.get();
+  }
+
+  public long getTimedOutRequests() {
+    return timedOut.get();
+  }
+
+  public int getInFlightRequests() {
+    return inFlight.size();
+  }
+
+  private TileResult await(TileQuery tile, CompletableFuture<TileResult> existing) {
+    long count = coalesced.incrementAndGet();
+
+    if (LOGGER.isTraceEnabled()) {
+      LOGGER.trace(
+          "Waiting for in-flight request of tile {}/{}/{}/{} for layer '{}' (coalesced requests: {}).",
+          tile.getTileMatrixSet().getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol(),
+          tile.getLayer(),
+          count);
+    }
+
+    try {
+      return existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      timedOut.incrementAndGet();
+      return TileResult.error(
+          String.format(
+              "Timeout after %dms while waiting for tile %s/%d/%d/%d for layer '%s'.",
+              timeoutMillis,
+              tile.getTileMatrixSet().getId(),
+              tile.getLevel(),
+              tile.getRow(),
+              tile.getCol(),
+              tile.getLayer()));
+    } catch (ExecutionException e) {
+      // propagate the failure of the in-flight request to all waiting requests
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      return TileResult.error(String.valueOf(e.getCause().getMessage()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return TileResult.error("Interrupted while waiting for tile.");
+    }
+  }
+
+  private static String key(TileQuery tile) {
+    return String.join(
+        "/",
+        tile.getLayer(),
+        tile.getTileMatrixSet().getId(),
+        String.valueOf(tile.getLevel()),
+        String.valueOf(tile.getRow()),
+        String.valueOf(tile.getCol()),
+        tile.getMediaType().toString());
+  }
+}
@@ -17,6 +17,7 @@ import de.ii.ogcapi.tiles.domain.provider.TileProviderFeaturesData;
 import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Objects;
@@ -25,9 +26,13 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import no.ecc.vectortile.VectorTileDecoder;
 import no.ecc.vectortile.VectorTileEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class TileEncoderMvt implements TileEncoder {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileEncoderMvt.class);
+
   public TileEncoderMvt() {}
 
   @Override
@@ -42,30 +47,62 @@ public class TileEncoderMvt implements TileEncoder {
     LayerOptionsFeatures combinedLayer = data.getLayers().get(tile.getLayer());
     List<String> subLayers =
         getSubLayers(data, combinedLayer, tile.getGenerationParametersTransient());
-    VectorTileEncoder encoder = new VectorTileEncoder(tile.getTileMatrixSet().getTileExtent());
-    VectorTileDecoder decoder = new VectorTileDecoder();
-
-    for (String subLayer : subLayers) {
-      TileQuery tileQuery = ImmutableTileQuery.builder().from(tile).layer(subLayer).build();
-      TileResult subTile = tileProvider.get(tileQuery);
+    List<TileQuery> subTileQueries =
+        subLayers.stream()
+            .map(subLayer -> ImmutableTileQuery.builder().from(tile).layer(subLayer).build())
+            .collect(Collectors.toList());
+    List<byte[]> subTiles = new ArrayList<>();
 
+    for (TileResult subTile : tileProvider.getAll(subTileQueries)) {
+      // an incomplete tile must not be cached
       if (subTile.isError()) {
-        // TODO
+        throw new IOException(subTile.getError().get());
       }
 
       if (subTile.isAvailable()) {
-        decoder
-            .decode(subTile.getContent().get())
-            .forEach(
-                feature ->
-                    encoder.addFeature(
-                        feature.getLayerName(),
-                        feature.getAttributes(),
-                        feature.getGeometry(),
-                        feature.getId()));
+        subTiles.add(subTile.getContent().get());
       }
     }
 
+    Optional<byte[]> combined = MvtSplicer.splice(subTiles);
+
+    if (combined.isPresent()) {
+      return combined.get();
+    }
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(
+          "Layers of tile {}/{}/{}/{} for layer '{}' cannot be copied, falling back to re-encoding the features.",
+          tile.getTileMatrixSet().getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol(),
+          tile.getLayer());
+    }
+
+    return reencode(subTiles, tile.getTileMatrixSet().getTileExtent());
+  }
+
+  /**
+   * Decodes all features of the tiles and encodes them in a new tile, features of layers with the
+   * same name are merged into a single layer.
+   */
+  static byte[] reencode(List<byte[]> tiles, int extent) throws IOException {
+    VectorTileEncoder encoder = new VectorTileEncoder(extent);
+    VectorTileDecoder decoder = new VectorTileDecoder();
+
+    for (byte[] tile : tiles) {
+      decoder
+          .decode(tile)
+          .forEach(
+              feature ->
+                  encoder.addFeature(
+                      feature.getLayerName(),
+                      feature.getAttributes(),
+                      feature.getGeometry(),
+                      feature.getId()));
+    }
+
     return encoder.encode();
   }
 
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.google.common.collect.Range;
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves multiple tiles concurrently, e.g. the tiles of the sub-layers of a combined tile. The
+ * latency of a cache miss is then the maximum instead of the sum of the generation times. All tiles
+ * have to be available before the deadline, otherwise an error is returned for the missing tiles.
+ */
+public class TileFetcherParallel implements ChainedTileProvider {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileFetcherParallel.class);
+
+  private final ChainedTileProvider delegate;
+  private final Executor executor;
+  private final long timeoutMillis;
+  private final Map<String, LayerStats> stats;
+
+  public TileFetcherParallel(ChainedTileProvider delegate, Executor executor, long timeoutMillis) {
+    this.delegate = delegate;
+    this.executor = executor;
+    this.timeoutMillis = timeoutMillis;
+    this.stats = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public Map<String, Map<String, Range<Integer>>> getTmsRanges() {
+    return delegate.getTmsRanges();
+  }
+
+  @Override
+  public TileResult getTile(TileQuery tile) throws IOException {
+    return delegate.getTile(tile);
+  }
+
+  @Override
+  public Optional<ChainedTileProvider> getDelegate() {
+    return Optional.of(delegate);
+  }
+
+  @Override
+  public boolean canProvide(TileQuery tile) {
+    return delegate.canProvide(tile);
+  }
+
+  @Override
+  public TileResult get(TileQuery tile) {
+    return delegate.get(tile);
+  }
+
+  @Override
+  public List<TileResult> getAll(List<TileQuery> tiles) {
+    if (tiles.size() <= 1) {
+      return tiles.stream().map(delegate::get).collect(Collectors.toList());
+    }
+
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long[] durations = new long[tiles.size()];
+    List<CompletableFuture<TileResult>> pending = new ArrayList<>(tiles.size());
+
+    for (int i = 0; i < tiles.size(); i++) {
+      TileQuery tile = tiles.get(i);
+      int index = i;
+      pending.add(
+          CompletableFuture.supplyAsync(
+              () -> {
+                long startTile = System.nanoTime();
+                TileResult result = delegate.get(tile);
+                durations[index] = System.nanoTime() - startTile;
+                return result;
+              },
+              executor));
+    }
+
+    List<TileResult> results = new ArrayList<>(tiles.size());
+    int critical = -1;
+
+    for (int i = 0; i < tiles.size(); i++) {
+      TileQuery tile = tiles.get(i);
+      LayerStats layerStats = stats.computeIfAbsent(tile.getLayer(), ignore -> new LayerStats());
+
+      try {
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        results.add(pending.get(i).get(remaining, TimeUnit.NANOSECONDS));
+
+        layerStats.requests.incrementAndGet();
+        layerStats.nanos.addAndGet(durations[i]);
+        if (critical < 0 || durations[i] > durations[critical]) {
+          critical = i;
+        }
+      } catch (TimeoutException e) {
+        // the retrieval is not cancelled, the tile may still be cached for subsequent requests
+        layerStats.timeouts.incrementAndGet();
+        results.add(
+            TileResult.error(
+                String.format(
+                    "Timeout after %dms while retrieving tile %s/%d/%d/%d for layer '%s'.",
+                    timeoutMillis,
+                    tile.getTileMatrixSet().getId(),
+                    tile.getLevel(),
+                    tile.getRow(),
+                    tile.getCol(),
+                    tile.getLayer())));
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        results.add(TileResult.error(String.valueOf(e.getCause().getMessage())));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        results.add(TileResult.error("Interrupted while retrieving tile."));
+      }
+    }
+
+    if (critical >= 0) {
+      LayerStats criticalStats = stats.get(tiles.get(critical).getLayer());
+      criticalStats.criticalPath.incrementAndGet();
+      criticalStats.criticalPathNanos.addAndGet(durations[critical]);
+
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace(
+            "Retrieved {} tiles for {}/{}/{}/{} in {}ms, critical path: layer '{}' with {}ms.",
+            tiles.size(),
+            tiles.get(critical).getTileMatrixSet().getId(),
+            tiles.get(critical).getLevel(),
+            tiles.get(critical).getRow(),
+            tiles.get(critical).getCol(),
+            (System.nanoTime() - start) / 1000000,
+            tiles.get(critical).getLayer(),
+            durations[critical] / 1000000);
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * @return statistics per layer, the critical path is the layer that took the longest for a
+   *     request and therefore determined the latency
+   */
+  public Map<String, LayerStats> getLayerStats() {
+    return Collections.unmodifiableMap(stats);
+  }
+
+  public static final class LayerStats {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong criticalPath = new AtomicLong();
+    private final AtomicLong criticalPathNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public long getRequests() {
+      return requests.get();
+    }
+
+    public long getDurationMillis() {
+      return nanos.get() / 1000000;
+    }
+
+    public long getCriticalPathRequests() {
+      return criticalPath.get();
+    }
+
+    public long getCriticalPathMillis() {
+      return criticalPathNanos.get() / 1000000;
+    }
+
+    public long getTimeouts() {
+      return timeouts.get();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.google.common.collect.Range;
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.ServiceUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the tile generation on a dedicated executor with a bounded number of threads and a bounded
+ * wait queue, so that a burst of cache misses cannot block the threads of the server. If the queue
+ * is full or if the generation of a tile does not start within the queue timeout, the request is
+ * rejected with a {@link ServiceUnavailableException} (503 with a Retry-After header).
+ */
+public class TileGenerationLimiter implements ChainedTileProvider {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileGenerationLimiter.class);
+
+  private final ChainedTileProvider delegate;
+  private final ThreadPoolExecutor executor;
+  private final long queueTimeoutMillis;
+  private final long retryAfterSeconds;
+  private final AtomicLong rejected;
+
+  /**
+   * @param maxConcurrent the maximum number of tiles that are generated concurrently
+   * @param queueSize the maximum number of tiles that wait for the generation
+   * @param queueTimeoutMillis the maximum time a tile waits for the generation
+   */
+  public TileGenerationLimiter(
+      ChainedTileProvider delegate,
+      String id,
+      int maxConcurrent,
+      int queueSize,
+      long queueTimeoutMillis) {
+    this.delegate = delegate;
+    this.executor = createExecutor(id, maxConcurrent, queueSize);
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queueTimeoutMillis));
+    this.rejected = new AtomicLong();
+  }
+
+  /**
+   * The number of threads is bounded, idle threads are released. If the queue is full, the task is
+   * rejected.
+   */
+  private static ThreadPoolExecutor createExecutor(String id, int maxConcurrent, int queueSize) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            maxConcurrent,
+            maxConcurrent,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(queueSize),
+            runnable -> {
+              Thread thread =
+                  new Thread(
+                      runnable,
+                      String.format("tiles-%s-generation-%d", id, threadCount.incrementAndGet()));
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
+  @Override
+  public Map<String, Map<String, Range<Integer>>> getTmsRanges() {
+    return delegate.getTmsRanges();
+  }
+
+  @Override
+  public TileResult getTile(TileQuery tile) throws IOException {
+    return delegate.getTile(tile);
+  }
+
+  @Override
+  public Optional<ChainedTileProvider> getDelegate() {
+    return Optional.of(delegate);
+  }
+
+  @Override
+  public boolean canProvide(TileQuery tile) {
+    return delegate.canProvide(tile);
+  }
+
+  @Override
+  public TileResult get(TileQuery tile) {
+    CountDownLatch started = new CountDownLatch(1);
+    FutureTask<TileResult> task =
+        new FutureTask<>(
+            () -> {
+              started.countDown();
+              return delegate.get(tile);
+            });
+
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      throw reject(tile, "the queue is full");
+    }
+
+    try {
+      // if the generation has started in the meantime, the task cannot be cancelled anymore and
+      // the result is awaited
+      if (!started.await(queueTimeoutMillis, TimeUnit.MILLISECONDS) && task.cancel(false)) {
+        executor.remove(task);
+        throw reject(
+            tile,
+            String.format("the generation did not start within %dms", queueTimeoutMillis));
+      }
+    } catch (InterruptedException e) {
+      task.cancel(false);
+      executor.remove(task);
+      Thread.currentThread().interrupt();
+      return TileResult.error("Interrupted while waiting for tile generation.");
+    }
+
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      return TileResult.error(String.valueOf(e.getCause().getMessage()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return TileResult.error("Interrupted while waiting for tile generation.");
+    }
+  }
+
+  /**
+   * Stops accepting new tiles and releases the threads once the running generations are done.
+   * Tiles that are requested afterwards are rejected.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * @return the number of tiles that are currently generated
+   */
+  public int getActiveGenerations() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * @return the number of tiles that are currently waiting for the generation
+   */
+  public int getQueuedGenerations() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return the number of tiles that have been rejected, because the queue was full or the queue
+   *     timeout was exceeded
+   */
+  public long getRejectedGenerations() {
+    return rejected.get();
+  }
+
+  private ServiceUnavailableException reject(TileQuery tile, String reason) {
+    long count = rejected.incrementAndGet();
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(
+          "Rejected generation of tile {}/{}/{}/{} for layer '{}', {} (active: {}, queued: {}, rejected: {}).",
+          tile.getTileMatrixSet().getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol(),
+          tile.getLayer(),
+          reason,
+          getActiveGenerations(),
+          getQueuedGenerations(),
+          count);
+    }
+
+    return new ServiceUnavailableException(
+        String.format(
+            "The server is currently generating too many tiles, %s. Please try again later.",
+            reason),
+        retryAfterSeconds);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
+import de.ii.ogcapi.tiles.domain.provider.LayerOptionsFeatures;
+import de.ii.ogcapi.tiles.domain.provider.LevelFilter;
+import de.ii.ogcapi.tiles.domain.provider.LevelTransformation;
+import de.ii.ogcapi.tiles.domain.provider.WithLevels;
+import de.ii.xtraplatform.cql.domain.Cql2Expression;
+import de.ii.xtraplatform.crs.domain.EpsgCrs;
+import de.ii.xtraplatform.features.domain.FeatureProvider2;
+import de.ii.xtraplatform.features.domain.FeatureProviderDataV2;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Everything that is needed to query the features of a tile and that only depends on the
+ * configuration of a layer: the feature provider, the parsed filters and the selected properties
+ * per zoom level and the conversion of the max allowable offset to the native CRS.
+ *
+ * <p>The plans are created when the tile provider starts. When the configuration changes, a new
+ * tile provider with new plans is created. When the feature provider is reloaded, the plan is no
+ * longer current and is created again, see {@link #isCurrent(FeatureProvider2)}.
+ */
+final class TileGenerationPlan {
+
+  private final String layer;
+  private final String featureType;
+  private final FeatureProvider2 featureProvider;
+  private final FeatureProviderDataV2 featureProviderData;
+  private final EpsgCrs nativeCrs;
+  private final String spatialProperty;
+  private final int featureLimit;
+  private final Map<String, Map<Integer, List<Cql2Expression>>> filters;
+  private final Map<String, Map<Integer, List<String>>> fields;
+  private final Function<EpsgCrs, Double> offsetFactor;
+  private final Map<String, Double> offsetFactors;
+
+  TileGenerationPlan(
+      LayerOptionsFeatures layer,
+      Map<String, ?> tileMatrixSets,
+      FeatureProvider2 featureProvider,
+      Function<LevelFilter, Cql2Expression> filterCompiler,
+      Function<EpsgCrs, Double> offsetFactor) {
+    this.layer = layer.getId();
+    this.featureType = layer.getFeatureType().orElse(layer.getId());
+    this.featureProvider = featureProvider;
+    this.featureProviderData = featureProvider.getData();
+    this.nativeCrs = featureProvider.crs().getNativeCrs();
+    this.spatialProperty =
+        Objects.requireNonNull(
+                featureProviderData.getTypes().get(featureType),
+                String.format("Feature type '%s' not found.", featureType))
+            .getPrimaryGeometry()
+            .orElseThrow(
+                () ->
+                    new IllegalStateException(
+                        String.format("Feature type '%s' has no geometry.", featureType)))
+            .getFullPathAsString();
+    this.featureLimit = layer.getFeatureLimit();
+    this.filters = byLevel(layer.getFilters(), filter -> List.of(filterCompiler.apply(filter)));
+    this.fields = byLevel(layer.getTransformations(), LevelTransformation::getProperties);
+    this.offsetFactor = offsetFactor;
+    this.offsetFactors = new ConcurrentHashMap<>();
+
+    for (String tileMatrixSetId : tileMatrixSets.keySet()) {
+      TileMatrixSet.fromWellKnownId(tileMatrixSetId)
+          .ifPresent(
+              tileMatrixSet ->
+                  offsetFactors.put(
+                      tileMatrixSetId, offsetFactor.apply(tileMatrixSet.getCrs())));
+    }
+  }
+
+  /**
+   * @return true, if the plan was created for the given instance of the feature provider and its
+   *     configuration did not change since then
+   */
+  boolean isCurrent(FeatureProvider2 featureProvider) {
+    return this.featureProvider == featureProvider
+        && this.featureProviderData == featureProvider.getData();
+  }
+
+  String getLayer() {
+    return layer;
+  }
+
+  String getFeatureType() {
+    return featureType;
+  }
+
+  FeatureProvider2 getFeatureProvider() {
+    return featureProvider;
+  }
+
+  EpsgCrs getNativeCrs() {
+    return nativeCrs;
+  }
+
+  String getSpatialProperty() {
+    return spatialProperty;
+  }
+
+  int getFeatureLimit() {
+    return featureLimit;
+  }
+
+  List<Cql2Expression> getFilters(TileMatrixSet tileMatrixSet, int level) {
+    return filters.getOrDefault(tileMatrixSet.getId(), Map.of()).getOrDefault(level, List.of());
+  }
+
+  boolean hasFilters(TileMatrixSet tileMatrixSet) {
+    return filters.containsKey(tileMatrixSet.getId());
+  }
+
+  List<String> getFields(TileMatrixSet tileMatrixSet, int level) {
+    return fields.getOrDefault(tileMatrixSet.getId(), Map.of()).getOrDefault(level, List.of());
+  }
+
+  boolean hasFields(TileMatrixSet tileMatrixSet) {
+    return fields.containsKey(tileMatrixSet.getId());
+  }
+
+  /** @return the max allowable offset of the tile in the units of the native CRS */
+  double getMaxAllowableOffset(TileMatrixSet tileMatrixSet, int level, int row, int col) {
+    // custom tile matrix sets are not known in advance
+    double factor =
+        offsetFactors.computeIfAbsent(
+            tileMatrixSet.getId(), ignore -> offsetFactor.apply(tileMatrixSet.getCrs()));
+
+    return tileMatrixSet.getMaxAllowableOffset(level, row, col) * factor;
+  }
+
+  private static <T extends WithLevels, U> Map<String, Map<Integer, List<U>>> byLevel(
+      Map<String, List<T>> rules, Function<T, List<U>> values) {
+    ImmutableMap.Builder<String, Map<Integer, List<U>>> byTileMatrixSet = ImmutableMap.builder();
+
+    for (Map.Entry<String, List<T>> entry : rules.entrySet()) {
+      Map<Integer, ImmutableList.Builder<U>> byLevel = new HashMap<>();
+
+      for (T rule : entry.getValue()) {
+        List<U> ruleValues = values.apply(rule);
+        for (int level = rule.getMin(); level <= rule.getMax(); level++) {
+          byLevel.computeIfAbsent(level, ignore -> ImmutableList.builder()).addAll(ruleValues);
+        }
+      }
+
+      ImmutableMap.Builder<Integer, List<U>> levels = ImmutableMap.builder();
+      byLevel.forEach((level, levelValues) -> levels.put(level, levelValues.build()));
+      byTileMatrixSet.put(entry.getKey(), levels.build());
+    }
+
+    return byTileMatrixSet.build();
+  }
+}
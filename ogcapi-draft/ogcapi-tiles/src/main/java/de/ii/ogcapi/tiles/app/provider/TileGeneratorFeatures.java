@@ -13,10 +13,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Range;
 import de.ii.ogcapi.foundation.domain.QueriesHandler;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
 import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
 import de.ii.ogcapi.tiles.domain.provider.ImmutableTileGenerationContext;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery;
 import de.ii.ogcapi.tiles.domain.provider.LayerOptionsFeatures;
-import de.ii.ogcapi.tiles.domain.provider.LevelTransformation;
 import de.ii.ogcapi.tiles.domain.provider.TileCoordinates;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationContext;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationParameters;
@@ -51,11 +53,13 @@ import de.ii.xtraplatform.geometries.domain.SimpleFeatureGeometry;
 import de.ii.xtraplatform.store.domain.entities.EntityRegistry;
 import de.ii.xtraplatform.streams.domain.Reactive.Sink;
 import de.ii.xtraplatform.streams.domain.Reactive.SinkReduced;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.measure.Unit;
 import javax.ws.rs.WebApplicationException;
@@ -85,13 +89,98 @@ public class TileGeneratorFeatures implements TileGenerator, ChainedTileProvider
   private final EntityRegistry entityRegistry;
   private final TileProviderFeaturesData data;
   private final Cql cql;
+  private final Consumer<Map<TileQuery, TileResult>> metatileConsumer;
+  private final Map<String, TileGenerationPlan> plans;
 
   public TileGeneratorFeatures(
-      TileProviderFeaturesData data, CrsInfo crsInfo, EntityRegistry entityRegistry, Cql cql) {
+      TileProviderFeaturesData data,
+      CrsInfo crsInfo,
+      EntityRegistry entityRegistry,
+      Cql cql,
+      Consumer<Map<TileQuery, TileResult>> metatileConsumer) {
     this.data = data;
     this.crsInfo = crsInfo;
     this.entityRegistry = entityRegistry;
     this.cql = cql;
+    this.metatileConsumer = metatileConsumer;
+    this.plans = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Creates the generation plans for all layers that are not combined. If a feature provider is
+   * not available yet, the plans of its layers are created with the first tile.
+   */
+  void init() {
+    for (LayerOptionsFeatures layer : data.getLayers().values()) {
+      if (layer.isCombined()) {
+        continue;
+      }
+      try {
+        getPlan(layer.getId());
+      } catch (Throwable e) {
+        LOGGER.debug(
+            "Could not prepare the tile generation for layer '{}'. Reason: {}",
+            layer.getId(),
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * The feature provider is looked up for every tile. If it was reloaded since the plan was
+   * created, the plan is created again for the current instance.
+   */
+  private TileGenerationPlan getPlan(String layerId) {
+    FeatureProvider2 featureProvider = getFeatureProvider(layerId);
+    TileGenerationPlan plan = plans.get(layerId);
+
+    if (Objects.isNull(plan) || !plan.isCurrent(featureProvider)) {
+      // not cached, if the plan cannot be created
+      plan =
+          plans.compute(
+              layerId,
+              (ignore, previous) ->
+                  Objects.nonNull(previous) && previous.isCurrent(featureProvider)
+                      ? previous
+                      : createPlan(layerId, featureProvider));
+    }
+
+    return plan;
+  }
+
+  private FeatureProvider2 getFeatureProvider(String layerId) {
+    // TODO: merge defaults into layers
+    LayerOptionsFeatures layer = data.getLayers().get(layerId);
+
+    // TODO: from TilesProviders
+    String featureProviderId =
+        layer.getFeatureProvider().orElse(data.getId().replace("-tiles", ""));
+
+    return entityRegistry
+        .getEntity(FeatureProvider2.class, featureProviderId)
+        .orElseThrow(
+            () ->
+                new IllegalStateException(
+                    String.format("Feature provider with id '%s' not found.", featureProviderId)));
+  }
+
+  private TileGenerationPlan createPlan(String layerId, FeatureProvider2 featureProvider) {
+    if (!featureProvider.supportsQueries()) {
+      throw new IllegalStateException("Feature provider has no Queries support.");
+    }
+    if (!featureProvider.supportsCrs()) {
+      throw new IllegalStateException("Feature provider has no CRS support.");
+    }
+
+    EpsgCrs nativeCrs = featureProvider.crs().getNativeCrs();
+
+    return new TileGenerationPlan(
+        data.getLayers().get(layerId),
+        data.getTmsRanges().getOrDefault(layerId, Map.of()),
+        featureProvider,
+        filter ->
+            filter.isParsed() ? filter.getCqlFilter() : cql.read(filter.getFilter(), Format.TEXT),
+        tmsCrs -> getOffsetFactor(tmsCrs, nativeCrs));
   }
 
   @Override
@@ -107,7 +196,7 @@ public class TileGeneratorFeatures implements TileGenerator, ChainedTileProvider
 
   @Override
   public TileResult getTile(TileQuery tile) {
-    return TileResult.found(generateTile(tile));
+    return generate(tile);
   }
 
   @Override
@@ -118,27 +207,200 @@ public class TileGeneratorFeatures implements TileGenerator, ChainedTileProvider
   // TODO: streaming?
   @Override
   public byte[] generateTile(TileQuery tileQuery) {
+    return generate(tileQuery).getContent().get();
+  }
+
+  /**
+   * @return the generated tile, the status is Empty or Full if that also applies to all tiles at
+   *     more detailed zoom levels, otherwise Found
+   */
+  private TileResult generate(TileQuery tileQuery) {
     if (!ENCODERS.containsKey(tileQuery.getMediaType())) {
       throw new IllegalArgumentException(
           String.format("Encoding not supported: %s", tileQuery.getMediaType()));
     }
 
-    FeatureStream tileSource = getTileSource(tileQuery);
+    List<TileQuery> metatile = getMetatile(tileQuery);
+
+    if (metatile.size() > 1) {
+      return generateMetatile(tileQuery, metatile);
+    }
 
-    TileGenerationContext tileGenerationContext =
-        new ImmutableTileGenerationContext.Builder()
-            .parameters(data.getLayerDefaults())
-            .coordinates(tileQuery)
-            .collectionId(tileQuery.getLayer())
-            // .fields
-            // .limit(query.getLimit())
-            .build();
+    return generateSingle(tileQuery);
+  }
+
+  private TileResult generateSingle(TileQuery tileQuery) {
+    FeatureStream tileSource = getTileSource(tileQuery);
 
     FeatureTokenEncoder<?> encoder =
-        ENCODERS.get(tileQuery.getMediaType()).apply(tileGenerationContext);
+        ENCODERS.get(tileQuery.getMediaType()).apply(getGenerationContext(tileQuery));
+
+    ResultReduced<byte[]> resultReduced =
+        generateTile(tileSource, encoder, tileQuery, getPropertyTransformations(tileQuery));
+
+    if (encoder instanceof FeatureEncoderMVT) {
+      return ((FeatureEncoderMVT) encoder).toResult(resultReduced.reduced());
+    }
+
+    return TileResult.found(resultReduced.reduced());
+  }
+
+  /**
+   * Generates all tiles of the metatile with a single query. The requested tile is returned, the
+   * other tiles are passed on to the metatile consumer. The feature limit of a tile applies to each
+   * tile of the metatile. If the limit of the query is reached, the tiles that have not reached
+   * their own limit may be incomplete. These are not passed on and the requested tile is generated
+   * on its own in that case.
+   */
+  private TileResult generateMetatile(TileQuery tileQuery, List<TileQuery> metatile) {
+    int tileLimit = getPlan(tileQuery.getLayer()).getFeatureLimit();
+    int featureLimit = (int) Math.min(Integer.MAX_VALUE, (long) tileLimit * metatile.size());
+    FeatureStream tileSource = getTileSource(tileQuery, getBoundingBox(metatile), featureLimit);
+
+    FeatureEncoderMVTMetatile encoder =
+        new FeatureEncoderMVTMetatile(getGenerationContext(tileQuery), metatile, tileLimit);
 
-    LayerOptionsFeatures layer = data.getLayers().get(tileQuery.getLayer());
-    String featureType = layer.getFeatureType().orElse(layer.getId());
+    ResultReduced<byte[]> resultReduced =
+        generateTile(tileSource, encoder, tileQuery, getPropertyTransformations(tileQuery));
+
+    if (resultReduced.isSuccess()) {
+      boolean truncated = encoder.getFeatureCount() >= featureLimit;
+      Map<TileQuery, TileResult> completeTiles =
+          encoder.getTiles().entrySet().stream()
+              .filter(entry -> !truncated || encoder.isLimitReached(entry.getKey()))
+              .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
+
+      metatileConsumer.accept(
+          completeTiles.entrySet().stream()
+              .filter(entry -> !Objects.equals(entry.getKey(), tileQuery))
+              .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue)));
+
+      if (completeTiles.containsKey(tileQuery)) {
+        return completeTiles.get(tileQuery);
+      }
+
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug(
+            "Feature limit {} reached for the metatile of tile {}/{}/{}/{} in collection {}, generating the tile on its own.",
+            featureLimit,
+            tileQuery.getTileMatrixSet().getId(),
+            tileQuery.getLevel(),
+            tileQuery.getRow(),
+            tileQuery.getCol(),
+            tileQuery.getLayer());
+      }
+      return generateSingle(tileQuery);
+    }
+
+    return TileResult.found(resultReduced.reduced());
+  }
+
+  /**
+   * Metatiles are only used for MVT tiles that are cached, transient tiles are always generated
+   * individually.
+   *
+   * @return the tiles of the metatile that contains the tile, only the tile itself if metatiles
+   *     are not used
+   */
+  private List<TileQuery> getMetatile(TileQuery tileQuery) {
+    int metatileSize = data.getLayerDefaults().getMetatileSize();
+
+    if (metatileSize <= 1
+        || tileQuery.isTransient()
+        || data.getCaches().isEmpty()
+        || !Objects.equals(tileQuery.getMediaType(), FeatureEncoderMVT.FORMAT)) {
+      return List.of(tileQuery);
+    }
+
+    TileMatrixSet tileMatrixSet = tileQuery.getTileMatrixSet();
+    int level = tileQuery.getLevel();
+    int minRow = tileQuery.getRow() / metatileSize * metatileSize;
+    int minCol = tileQuery.getCol() / metatileSize * metatileSize;
+    int maxRow = Math.min(minRow + metatileSize, tileMatrixSet.getRows(level)) - 1;
+    int maxCol = Math.min(minCol + metatileSize, tileMatrixSet.getCols(level)) - 1;
+
+    // tiles outside of the limits will never be requested, so there is no need to generate them
+    BoundingBox boundingBox =
+        tileQuery
+            .getGenerationParameters()
+            .flatMap(TileGenerationParameters::getClipBoundingBox)
+            .orElse(tileMatrixSet.getBoundingBox());
+    TileMatrixSetLimits limits = tileMatrixSet.getLimits(level, boundingBox);
+
+    ImmutableList.Builder<TileQuery> metatile = ImmutableList.builder();
+
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int col = minCol; col <= maxCol; col++) {
+        if (row == tileQuery.getRow() && col == tileQuery.getCol()) {
+          metatile.add(tileQuery);
+        } else if (limits.contains(row, col)) {
+          metatile.add(ImmutableTileQuery.builder().from(tileQuery).row(row).col(col).build());
+        }
+      }
+    }
+
+    return metatile.build();
+  }
+
+  private static BoundingBox getBoundingBox(List<TileQuery> metatile) {
+    double xmin = Double.MAX_VALUE;
+    double ymin = Double.MAX_VALUE;
+    double xmax = -Double.MAX_VALUE;
+    double ymax = -Double.MAX_VALUE;
+
+    for (TileQuery tile : metatile) {
+      BoundingBox bbox = tile.getBoundingBox();
+      xmin = Math.min(xmin, bbox.getXmin());
+      ymin = Math.min(ymin, bbox.getYmin());
+      xmax = Math.max(xmax, bbox.getXmax());
+      ymax = Math.max(ymax, bbox.getYmax());
+    }
+
+    // include the features in the buffer of the outer tiles
+    TileMatrixSet tileMatrixSet = metatile.get(0).getTileMatrixSet();
+    BoundingBox tileBbox = metatile.get(0).getBoundingBox();
+    double bufferX =
+        (tileBbox.getXmax() - tileBbox.getXmin())
+            * FeatureEncoderMVT.BUFFER
+            / tileMatrixSet.getTileSize();
+    double bufferY =
+        (tileBbox.getYmax() - tileBbox.getYmin())
+            * FeatureEncoderMVT.BUFFER
+            / tileMatrixSet.getTileSize();
+
+    return BoundingBox.of(
+        xmin - bufferX, ymin - bufferY, xmax + bufferX, ymax + bufferY, tileMatrixSet.getCrs());
+  }
+
+  private TileGenerationContext getGenerationContext(TileQuery tileQuery) {
+    return new ImmutableTileGenerationContext.Builder()
+        .parameters(data.getLayerDefaults())
+        .coordinates(tileQuery)
+        .collectionId(tileQuery.getLayer())
+        .detectEmptyAndFull(isLevelIndependent(tileQuery))
+        // .fields
+        // .limit(query.getLimit())
+        .build();
+  }
+
+  /**
+   * Filters and transformations for the tile matrix set may select different features or
+   * properties per zoom level. Transient tiles depend on user parameters.
+   *
+   * @return true, if the features of the tile are the same at all zoom levels
+   */
+  private boolean isLevelIndependent(TileQuery tileQuery) {
+    TileGenerationPlan plan = getPlan(tileQuery.getLayer());
+    TileMatrixSet tileMatrixSet = tileQuery.getTileMatrixSet();
+
+    return !tileQuery.isTransient()
+        && !plan.hasFilters(tileMatrixSet)
+        && !plan.hasFields(tileMatrixSet)
+        && !data.getLayerDefaults().getTransformations().containsKey(tileMatrixSet.getId());
+  }
+
+  private Map<String, PropertyTransformations> getPropertyTransformations(TileQuery tileQuery) {
+    String featureType = getPlan(tileQuery.getLayer()).getFeatureType();
     PropertyTransformations propertyTransformations =
         tileQuery
             .getGenerationParameters()
@@ -146,50 +408,32 @@ public class TileGeneratorFeatures implements TileGenerator, ChainedTileProvider
             .map(pt -> pt.mergeInto(TRANSFORMATIONS.get(tileQuery.getMediaType())))
             .orElse(TRANSFORMATIONS.get(tileQuery.getMediaType()));
 
-    ResultReduced<byte[]> resultReduced =
-        generateTile(tileSource, encoder, tileQuery, Map.of(featureType, propertyTransformations));
-
-    return resultReduced.reduced();
+    return Map.of(featureType, propertyTransformations);
   }
 
   @Override
   public FeatureStream getTileSource(TileQuery tileQuery) {
-    // TODO: merge defaults into layers
-    LayerOptionsFeatures layer = data.getLayers().get(tileQuery.getLayer());
-
-    // TODO: from TilesProviders
-    String featureProviderId =
-        layer.getFeatureProvider().orElse(data.getId().replace("-tiles", ""));
-    FeatureProvider2 featureProvider =
-        entityRegistry
-            .getEntity(FeatureProvider2.class, featureProviderId)
-            .orElseThrow(
-                () ->
-                    new IllegalStateException(
-                        String.format(
-                            "Feature provider with id '%s' not found.", featureProviderId)));
-
-    if (!featureProvider.supportsQueries()) {
-      throw new IllegalStateException("Feature provider has no Queries support.");
-    }
-    if (!featureProvider.supportsCrs()) {
-      throw new IllegalStateException("Feature provider has no CRS support.");
-    }
+    return getTileSource(
+        tileQuery,
+        tileQuery.getBoundingBox(),
+        getPlan(tileQuery.getLayer()).getFeatureLimit());
+  }
 
-    EpsgCrs nativeCrs = featureProvider.crs().getNativeCrs();
-    Map<String, FeatureSchema> types = featureProvider.getData().getTypes();
+  private FeatureStream getTileSource(
+      TileQuery tileQuery, BoundingBox tileBoundingBox, int featureLimit) {
+    TileGenerationPlan plan = getPlan(tileQuery.getLayer());
     FeatureQuery featureQuery =
         getFeatureQuery(
             tileQuery,
-            layer,
-            types,
-            nativeCrs,
+            tileBoundingBox,
+            featureLimit,
+            plan,
             tileQuery
                 .getGenerationParameters()
                 .flatMap(TileGenerationParameters::getClipBoundingBox),
             tileQuery.getGenerationParametersTransient());
 
-    return featureProvider.queries().getFeatureStream(featureQuery);
+    return plan.getFeatureProvider().queries().getFeatureStream(featureQuery);
   }
 
   private ResultReduced<byte[]> generateTile(
@@ -286,34 +530,29 @@ public class TileGeneratorFeatures implements TileGenerator, ChainedTileProvider
 
   private FeatureQuery getFeatureQuery(
       TileQuery tile,
-      LayerOptionsFeatures layer,
-      Map<String, FeatureSchema> featureTypes,
-      EpsgCrs nativeCrs,
+      BoundingBox tileBoundingBox,
+      int featureLimit,
+      TileGenerationPlan plan,
       Optional<BoundingBox> bounds,
       Optional<TileGenerationParametersTransient> userParameters) {
-    String featureType = layer.getFeatureType().orElse(layer.getId());
-    // TODO: from TilesProviders with orThrow
-    FeatureSchema featureSchema = featureTypes.get(featureType);
+    TileMatrixSet tileMatrixSet = tile.getTileMatrixSet();
 
     ImmutableFeatureQuery.Builder queryBuilder =
         ImmutableFeatureQuery.builder()
-            .type(featureType)
-            .limit(layer.getFeatureLimit())
+            .type(plan.getFeatureType())
+            .limit(featureLimit)
             .offset(0)
-            .crs(tile.getTileMatrixSet().getCrs())
-            .maxAllowableOffset(getMaxAllowableOffset(tile, nativeCrs));
-
-    if (layer.getFilters().containsKey(tile.getTileMatrixSet().getId())) {
-      layer.getFilters().get(tile.getTileMatrixSet().getId()).stream()
-          .filter(levelFilter -> levelFilter.matches(tile.getLevel()))
-          // TODO: parse and validate filter, preferably in hydration or provider startup
-          .forEach(filter -> queryBuilder.addFilters(cql.read(filter.getFilter(), Format.TEXT)));
-    }
+            .crs(tileMatrixSet.getCrs())
+            .maxAllowableOffset(
+                plan.getMaxAllowableOffset(
+                    tileMatrixSet, tile.getLevel(), tile.getRow(), tile.getCol()));
 
-    String spatialProperty = featureSchema.getPrimaryGeometry().orElseThrow().getFullPathAsString();
-    BoundingBox bbox = clip(tile.getBoundingBox(), bounds);
+    queryBuilder.addAllFilters(plan.getFilters(tileMatrixSet, tile.getLevel()));
+
+    BoundingBox bbox = clip(tileBoundingBox, bounds);
     Cql2Expression spatialPredicate =
-        SIntersects.of(Property.of(spatialProperty), SpatialLiteral.of(Envelope.of(bbox)));
+        SIntersects.of(
+            Property.of(plan.getSpatialProperty()), SpatialLiteral.of(Envelope.of(bbox)));
     queryBuilder.addFilters(spatialPredicate);
 
     if (userParameters.isPresent()) {
@@ -324,30 +563,32 @@ public class TileGeneratorFeatures implements TileGenerator, ChainedTileProvider
       }
     }
 
-    if ((userParameters.isEmpty() || userParameters.get().getFields().isEmpty())
-        && layer.getTransformations().containsKey(tile.getTileMatrixSet().getId())) {
-      layer.getTransformations().get(tile.getTileMatrixSet().getId()).stream()
-          .filter(rule -> rule.matches(tile.getLevel()))
-          .map(LevelTransformation::getProperties)
-          .flatMap(Collection::stream)
-          .forEach(queryBuilder::addFields);
+    if (userParameters.isEmpty() || userParameters.get().getFields().isEmpty()) {
+      queryBuilder.addAllFields(plan.getFields(tileMatrixSet, tile.getLevel()));
     }
 
     return queryBuilder.build();
   }
 
   public double getMaxAllowableOffset(TileCoordinates tile, EpsgCrs nativeCrs) {
-    double maxAllowableOffsetTileMatrixSet =
-        tile.getTileMatrixSet()
-            .getMaxAllowableOffset(tile.getLevel(), tile.getRow(), tile.getCol());
-    Unit<?> tmsCrsUnit = crsInfo.getUnit(tile.getTileMatrixSet().getCrs());
+    return tile.getTileMatrixSet()
+            .getMaxAllowableOffset(tile.getLevel(), tile.getRow(), tile.getCol())
+        * getOffsetFactor(tile.getTileMatrixSet().getCrs(), nativeCrs);
+  }
+
+  /**
+   * @return the factor to convert a distance in the units of the tile matrix set CRS to the units
+   *     of the native CRS, 0 if the units cannot be converted
+   */
+  private double getOffsetFactor(EpsgCrs tmsCrs, EpsgCrs nativeCrs) {
+    Unit<?> tmsCrsUnit = crsInfo.getUnit(tmsCrs);
     Unit<?> nativeCrsUnit = crsInfo.getUnit(nativeCrs);
     if (tmsCrsUnit.equals(nativeCrsUnit)) {
-      return maxAllowableOffsetTileMatrixSet;
+      return 1.0;
     } else if (tmsCrsUnit.equals(Units.DEGREE) && nativeCrsUnit.equals(Units.METRE)) {
-      return maxAllowableOffsetTileMatrixSet * 111333.0;
+      return 111333.0;
     } else if (tmsCrsUnit.equals(Units.METRE) && nativeCrsUnit.equals(Units.DEGREE)) {
-      return maxAllowableOffsetTileMatrixSet / 111333.0;
+      return 1 / 111333.0;
     }
 
     LOGGER.warn(
@@ -10,6 +10,9 @@ package de.ii.ogcapi.tiles.app.provider;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.LinearRing;
@@ -22,7 +25,6 @@ import org.locationtech.jts.geom.util.AffineTransformation;
 import org.locationtech.jts.geom.util.GeometryFixer;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
-import org.locationtech.jts.precision.GeometryPrecisionReducer;
 import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,37 +39,80 @@ public class TileGeometryUtil {
       Geometry clipGeometry,
       PrecisionModel precisionModel,
       double minimumSizeInPixel) {
+    return getTileGeometry(
+        geom,
+        toTileGrid(affineTransformation, precisionModel),
+        clipGeometry,
+        precisionModel,
+        minimumSizeInPixel);
+  }
+
+  /**
+   * @param tileTransformation the transformation to the tile grid from {@link #toTileGrid}, it
+   *     only depends on the tile
+   */
+  public static Geometry getTileGeometry(
+      Geometry geom,
+      CoordinateSequenceFilter tileTransformation,
+      Geometry clipGeometry,
+      PrecisionModel precisionModel,
+      double minimumSizeInPixel) {
 
     // The following changes are applied:
     // 1. The coordinates are converted to the tile coordinate system (0/0 is top left, 256/256 is
-    // bottom right)
+    // bottom right) and snapped to the grid
     // 2. Small rings or line strings are dropped (small in the context of the tile, one pixel or
     // less). The idea
     //    is to simply drop them as early as possible and before the next processing steps which may
     // depend on
     //    having valid geometries and removing everything that will eventually be removed anyway
     // helps.
-    // 3. Remove unnecessary vertices and snap coordinates to the grid.
-    // 4. If the resulting geometry is invalid polygonal geometry, try to make it valid.
-    // 5. Hopefully we have a valid geometry now, so try to clip it to the tile.
+    // 3. Clip the geometry to the tile, if the tile is a rectangle, so that the vertices outside
+    //    of the tile are not processed by the next steps.
+    // 4. Remove unnecessary vertices, the remaining vertices are still on the grid.
+    // 5. If the resulting geometry is invalid polygonal geometry, try to make it valid.
+    // 6. If the geometry has not been clipped yet, hopefully we have a valid geometry now, so try
+    // to clip it to the tile.
     //
     // After each step, check, if we still have a geometry or the resulting tile geometry was too
     // small for
     // the tile. In that case the feature is ignored.
 
-    // 1 convert to the tile coordinate system
-    geom.apply(affineTransformation);
+    // 1 convert to the tile coordinate system and the tile grid, in place
+    geom.apply(tileTransformation);
+
+    return getTileGeometry(geom, clipGeometry, precisionModel, minimumSizeInPixel);
+  }
+
+  /**
+   * The steps 2 to 6 of {@link #getTileGeometry(Geometry, CoordinateSequenceFilter, Geometry,
+   * PrecisionModel, double)} for a geometry that already is in the tile coordinate system.
+   */
+  public static Geometry getTileGeometry(
+      Geometry geom,
+      Geometry clipGeometry,
+      PrecisionModel precisionModel,
+      double minimumSizeInPixel) {
 
     // 2 remove small rings or line strings (small in the context of the tile)
     geom = removeSmallPieces(geom, minimumSizeInPixel);
     if (Objects.isNull(geom) || geom.isEmpty()) return null;
 
-    // 3 simplify the geometry
-    geom = TopologyPreservingSimplifier.simplify(geom, 1.0 / precisionModel.getScale());
-    if (Objects.isNull(geom) || geom.isEmpty()) return null;
+    // 3 limit the coordinates to the tile with a buffer, nothing to do, if the geometry is inside
+    boolean clipped = false;
+    if (clipGeometry.isRectangle()) {
+      Envelope clipEnvelope = clipGeometry.getEnvelopeInternal();
+      if (clipEnvelope.contains(geom.getEnvelopeInternal())) {
+        clipped = true;
+      } else if (RectangleClipper.canClip(geom)) {
+        geom = new RectangleClipper(clipEnvelope, precisionModel).clip(geom);
+        if (Objects.isNull(geom) || geom.isEmpty()) return null;
+        clipped = true;
+      }
+    }
 
-    // 4 reduce the geometry to the tile grid
-    geom = GeometryPrecisionReducer.reducePointwise(geom, precisionModel);
+    // 4 simplify the geometry
+    geom = TopologyPreservingSimplifier.simplify(geom, 1.0 / precisionModel.getScale());
     if (Objects.isNull(geom) || geom.isEmpty()) return null;
 
     // 5 if the resulting geometry is invalid, try to make it valid
@@ -76,13 +121,76 @@ public class TileGeometryUtil {
       if (Objects.isNull(geom) || geom.isEmpty()) return null;
     }
 
-    // 6 limit the coordinates to the tile with a buffer
-    geom = clipGeometry(geom, clipGeometry);
-    if (Objects.isNull(geom) || geom.isEmpty()) return null;
+    // 6 limit the coordinates to the tile with a buffer, if not done before
+    if (!clipped) {
+      geom = clipGeometry(geom, clipGeometry);
+      if (Objects.isNull(geom) || geom.isEmpty()) return null;
+    }
 
     return geom;
   }
 
+  /**
+   * Checks if a geometry in the tile coordinate system covers the whole clip geometry. This has to
+   * be decided before small holes are removed and the geometry is simplified, otherwise a small
+   * hole within the tile would be lost in all tiles of the higher zoom levels that are derived from
+   * a full tile.
+   *
+   * @return true, if the geometry is polygonal, covers the clip geometry and has no hole that may
+   *     intersect the clip geometry
+   */
+  public static boolean coversTile(Geometry geom, Geometry clipGeometry) {
+    if (!(geom instanceof Polygon) && !(geom instanceof MultiPolygon)) {
+      return false;
+    }
+
+    Envelope clipEnvelope = clipGeometry.getEnvelopeInternal();
+    if (!geom.getEnvelopeInternal().covers(clipEnvelope)) {
+      return false;
+    }
+
+    for (int i = 0; i < geom.getNumGeometries(); i++) {
+      Polygon polygon = (Polygon) geom.getGeometryN(i);
+      for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+        if (polygon.getInteriorRingN(j).getEnvelopeInternal().intersects(clipEnvelope)) {
+          return false;
+        }
+      }
+    }
+
+    try {
+      return geom.covers(clipGeometry);
+    } catch (TopologyException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return a filter that converts coordinates to the tile coordinate system and snaps them to the
+   *     tile grid in a single pass, without copying the geometry
+   */
+  public static CoordinateSequenceFilter toTileGrid(
+      AffineTransformation affineTransformation, PrecisionModel precisionModel) {
+    return new CoordinateSequenceFilter() {
+      @Override
+      public void filter(CoordinateSequence seq, int i) {
+        affineTransformation.transform(seq, i);
+        seq.setOrdinate(i, CoordinateSequence.X, precisionModel.makePrecise(seq.getX(i)));
+        seq.setOrdinate(i, CoordinateSequence.Y, precisionModel.makePrecise(seq.getY(i)));
+      }
+
+      @Override
+      public boolean isDone() {
+        return false;
+      }
+
+      @Override
+      public boolean isGeometryChanged() {
+        return true;
+      }
+    };
+  }
+
   static List<Polygon> splitMultiPolygon(MultiPolygon geom) {
     List<Polygon> patches = new ArrayList<>();
     for (int i = 0; i < geom.getNumGeometries(); i++) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
+import de.ii.ogcapi.tilematrixsets.domain.ImmutableTileMatrixSetLimits;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves Mapbox Vector Tiles at the zoom levels beyond the maximum zoom level of a layer. The tile
+ * is derived from the ancestor tile at the maximum zoom level, which is retrieved from the provider
+ * chain, i.e. usually from a cache. The geometries of the ancestor are scaled and clipped to the
+ * tile, see {@link MvtOverzoom}. If the ancestor is empty or full, so is the tile.
+ */
+public class TileOverzoom implements ChainedTileProvider {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileOverzoom.class);
+
+  private final Function<TileQuery, TileResult> ancestorProvider;
+  private final Map<String, Map<String, Range<Integer>>> maxLevels;
+  private final Map<String, Map<String, Range<Integer>>> tmsRanges;
+
+  /**
+   * @param ancestorProvider retrieves the ancestor tiles at the maximum zoom level
+   * @param tmsRanges the zoom levels of the layers
+   * @param maxOverzoomLevels the number of zoom levels beyond the maximum zoom level of a layer
+   */
+  public TileOverzoom(
+      Function<TileQuery, TileResult> ancestorProvider,
+      Map<String, Map<String, Range<Integer>>> tmsRanges,
+      int maxOverzoomLevels) {
+    this.ancestorProvider = ancestorProvider;
+    this.maxLevels = tmsRanges;
+    this.tmsRanges = getOverzoomRanges(tmsRanges, maxOverzoomLevels);
+  }
+
+  /**
+   * @return the zoom levels beyond the maximum zoom level of each layer and tile matrix set
+   */
+  static Map<String, Map<String, Range<Integer>>> getOverzoomRanges(
+      Map<String, Map<String, Range<Integer>>> tmsRanges, int maxOverzoomLevels) {
+    return tmsRanges.entrySet().stream()
+        .map(
+            layer ->
+                new SimpleImmutableEntry<>(
+                    layer.getKey(),
+                    layer.getValue().entrySet().stream()
+                        .filter(tms -> tms.getValue().hasUpperBound() && maxOverzoomLevels > 0)
+                        .collect(
+                            Collectors.toMap(
+                                Map.Entry::getKey,
+                                tms ->
+                                    Range.closed(
+                                        tms.getValue().upperEndpoint() + 1,
+                                        tms.getValue().upperEndpoint() + maxOverzoomLevels)))))
+        .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
+  }
+
+  @Override
+  public Map<String, Map<String, Range<Integer>>> getTmsRanges() {
+    return tmsRanges;
+  }
+
+  @Override
+  public boolean canProvide(TileQuery tile) {
+    return ChainedTileProvider.super.canProvide(tile)
+        && Objects.equals(tile.getMediaType(), FeatureEncoderMVT.FORMAT)
+        && getAncestor(tile).isPresent();
+  }
+
+  @Override
+  public TileResult getTile(TileQuery tile) {
+    Optional<TileQuery> ancestor = getAncestor(tile);
+
+    if (ancestor.isEmpty()) {
+      return TileResult.notFound();
+    }
+
+    TileResult ancestorResult = ancestorProvider.apply(ancestor.get());
+
+    if (ancestorResult.isEmpty()) {
+      return TileResult.empty(new byte[0]);
+    }
+    if (ancestorResult.isFull()) {
+      return ancestorResult;
+    }
+    if (!ancestorResult.isAvailable()) {
+      return ancestorResult;
+    }
+
+    TileMatrixSet tileMatrixSet = tile.getTileMatrixSet();
+    int levels = tile.getLevel() - ancestor.get().getLevel();
+    int mask = (1 << levels) - 1;
+    int buffer =
+        FeatureEncoderMVT.BUFFER * tileMatrixSet.getTileExtent() / tileMatrixSet.getTileSize();
+
+    try {
+      byte[] content =
+          MvtOverzoom.overzoom(
+              ancestorResult.getContent().get(),
+              levels,
+              tile.getRow() & mask,
+              tile.getCol() & mask,
+              buffer);
+
+      return content.length == 0 ? TileResult.empty(content) : TileResult.found(content);
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug(
+          "Could not derive tile {}/{}/{}/{} for layer '{}' from tile {}/{}/{}. Reason: {}",
+          tileMatrixSet.getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol(),
+          tile.getLayer(),
+          ancestor.get().getLevel(),
+          ancestor.get().getRow(),
+          ancestor.get().getCol(),
+          e.getMessage());
+
+      return TileResult.error(
+          String.format(
+              "The tile could not be derived from the tile at level %d.",
+              ancestor.get().getLevel()));
+    }
+  }
+
+  /**
+   * @return the limits of the derived tiles at all zoom levels beyond the maximum zoom level, if
+   *     the limits are at the maximum zoom level of the layer, otherwise an empty list
+   */
+  List<TileMatrixSetLimits> getOverzoomLimits(
+      String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits) {
+    Range<Integer> range = tmsRanges.getOrDefault(layer, Map.of()).get(tileMatrixSet.getId());
+    List<TileMatrixSetLimits> overzoomLimits = new ArrayList<>();
+
+    if (Objects.isNull(range)
+        || !Objects.equals(limits.getTileMatrix(), String.valueOf(range.lowerEndpoint() - 1))) {
+      return overzoomLimits;
+    }
+
+    for (int level = range.lowerEndpoint(); level <= range.upperEndpoint(); level++) {
+      int levels = level - range.lowerEndpoint() + 1;
+      overzoomLimits.add(
+          new ImmutableTileMatrixSetLimits.Builder()
+              .tileMatrix(String.valueOf(level))
+              .minTileRow(limits.getMinTileRow() << levels)
+              .maxTileRow(((limits.getMaxTileRow() + 1) << levels) - 1)
+              .minTileCol(limits.getMinTileCol() << levels)
+              .maxTileCol(((limits.getMaxTileCol() + 1) << levels) - 1)
+              .build());
+    }
+
+    return overzoomLimits;
+  }
+
+  /**
+   * @return the tile at the maximum zoom level of the layer that contains the tile, only if the
+   *     tile matrix set is a quadtree at these levels
+   */
+  Optional<TileQuery> getAncestor(TileQuery tile) {
+    Range<Integer> range =
+        maxLevels
+            .getOrDefault(tile.getLayer(), Map.of())
+            .get(tile.getTileMatrixSet().getId());
+
+    if (Objects.isNull(range) || !range.hasUpperBound()) {
+      return Optional.empty();
+    }
+
+    TileMatrixSet tileMatrixSet = tile.getTileMatrixSet();
+    int maxLevel = range.upperEndpoint();
+    int levels = tile.getLevel() - maxLevel;
+
+    if (levels <= 0 || tile.getLevel() > tileMatrixSet.getMaxLevel()) {
+      return Optional.empty();
+    }
+
+    for (int level = maxLevel + 1; level <= tile.getLevel(); level++) {
+      if (tileMatrixSet.getCols(level) != 2 * tileMatrixSet.getCols(level - 1)
+          || tileMatrixSet.getRows(level) != 2 * tileMatrixSet.getRows(level - 1)) {
+        return Optional.empty();
+      }
+    }
+
+    return Optional.of(
+        ImmutableTileQuery.builder()
+            .from(tile)
+            .level(maxLevel)
+            .row(tile.getRow() >> levels)
+            .col(tile.getCol() >> levels)
+            .build());
+  }
+}
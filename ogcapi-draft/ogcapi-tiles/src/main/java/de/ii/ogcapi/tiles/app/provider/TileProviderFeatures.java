@@ -21,6 +21,7 @@ import de.ii.ogcapi.tiles.domain.provider.Cache.Storage;
 import de.ii.ogcapi.tiles.domain.provider.Cache.Type;
 import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider;
 import de.ii.ogcapi.tiles.domain.provider.LayerOptionsFeatures;
+import de.ii.ogcapi.tiles.domain.provider.TileArchiveWriter;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerationSchema;
 import de.ii.ogcapi.tiles.domain.provider.TileGenerator;
 import de.ii.ogcapi.tiles.domain.provider.TileProvider;
@@ -28,6 +29,7 @@ import de.ii.ogcapi.tiles.domain.provider.TileProviderFeaturesData;
 import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import de.ii.xtraplatform.base.domain.AppContext;
+import de.ii.xtraplatform.base.domain.LogContext;
 import de.ii.xtraplatform.cql.domain.Cql;
 import de.ii.xtraplatform.crs.domain.CrsInfo;
 import de.ii.xtraplatform.store.domain.entities.AbstractPersistentEntity;
@@ -41,8 +43,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.ws.rs.core.MediaType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,12 +59,19 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TileProviderFeatures.class);
   private static final String TILES_DIR_NAME = "tiles";
+  private static final long COALESCING_TIMEOUT_MILLIS = 60_000;
 
   private final TileGeneratorFeatures tileGenerator;
+  private final TileGenerationLimiter generationLimiter;
   private final TileEncoders tileEncoders;
-  private final ChainedTileProvider generatorProviderChain;
-  private final ChainedTileProvider combinerProviderChain;
+  private final TileCoalescer generatorProviderChain;
+  private final TileCoalescer combinerProviderChain;
+  private final TileOverzoom tileOverzoom;
+  private final TileCoalescer overzoomProviderChain;
+  private final ExecutorService subLayerExecutor;
+  private final TileFetcherParallel subLayerFetcher;
   private final List<TileCacheDynamic.TileStore> tileCaches;
+  private final List<TileCacheDynamic> generatorCaches;
 
   @AssistedInject
   public TileProviderFeatures(
@@ -67,10 +82,20 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
       @Assisted TileProviderFeaturesData data) {
     super(data);
 
-    this.tileGenerator = new TileGeneratorFeatures(data, crsInfo, entityRegistry, cql);
+    this.tileGenerator =
+        new TileGeneratorFeatures(data, crsInfo, entityRegistry, cql, this::storeTiles);
     this.tileCaches = new ArrayList<>();
+    this.generatorCaches = new ArrayList<>();
 
-    ChainedTileProvider current = tileGenerator;
+    this.generationLimiter =
+        new TileGenerationLimiter(
+            tileGenerator,
+            data.getId(),
+            data.getMaxConcurrentGenerations(),
+            data.getGenerationQueueSize(),
+            TimeUnit.SECONDS.toMillis(data.getGenerationQueueTimeout()));
+
+    ChainedTileProvider current = generationLimiter;
     Path cacheRootDir =
         appContext
             .getDataDir()
@@ -78,13 +103,15 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
             .resolve(TILES_DIR_NAME)
             .resolve(data.getId().replace("-tiles", ""));
 
+    // memory caches do not have a directory, so they are not counted
+    long persistentCaches =
+        data.getCaches().stream().filter(cache -> cache.getStorage() != Storage.MEMORY).count();
+
     for (int i = 0; i < data.getCaches().size(); i++) {
       Cache cache = data.getCaches().get(i);
       // TODO: stay backwards compatible? or move to new dir?
       Path cacheDir =
-          data.getCaches().size() == 1
-              ? cacheRootDir
-              : cacheRootDir.resolve(String.format("cache_%d", i));
+          persistentCaches == 1 ? cacheRootDir : cacheRootDir.resolve(String.format("cache_%d", i));
 
       if (cache.getType() == Type.DYNAMIC) {
         if (cache.getStorage() == Storage.FILES) {
@@ -92,21 +119,45 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
           TileStore tileStore = new TileStoreFiles(fileStore);
           tileCaches.add(tileStore);
           // TODO: cacheLevels
-          current = new TileCacheDynamic(tileStore, current, data.getTmsRanges());
+          generatorCaches.add(new TileCacheDynamic(tileStore, current, data.getTmsRanges()));
+          current = generatorCaches.get(generatorCaches.size() - 1);
         } else if (cache.getStorage() == Storage.MBTILES) {
           TileStore tileStore =
               TileStoreMbTiles.readWrite(
                   cacheDir, data.getId(), getTileSchemas(tileGenerator, data.getLayers()));
           tileCaches.add(tileStore);
           // TODO: cacheLevels
-          current = new TileCacheDynamic(tileStore, current, data.getTmsRanges());
+          generatorCaches.add(new TileCacheDynamic(tileStore, current, data.getTmsRanges()));
+          current = generatorCaches.get(generatorCaches.size() - 1);
+        } else if (cache.getStorage() == Storage.PMTILES) {
+          TileStore tileStore =
+              new TileStorePmTiles(cacheDir, getTileSchemas(tileGenerator, data.getLayers()));
+          tileCaches.add(tileStore);
+          // TODO: cacheLevels
+          generatorCaches.add(new TileCacheDynamic(tileStore, current, data.getTmsRanges()));
+          current = generatorCaches.get(generatorCaches.size() - 1);
+        } else if (cache.getStorage() == Storage.MEMORY) {
+          TileStore tileStore = new TileStoreMemory(cache.getMaxBytes(), cache.getMaxTileBytes());
+          tileCaches.add(tileStore);
+          // TODO: cacheLevels
+          generatorCaches.add(new TileCacheDynamic(tileStore, current, data.getTmsRanges()));
+          current = generatorCaches.get(generatorCaches.size() - 1);
         }
       }
     }
 
-    this.generatorProviderChain = current;
+    this.generatorProviderChain = new TileCoalescer(current, COALESCING_TIMEOUT_MILLIS);
+
+    this.subLayerExecutor =
+        createSubLayerExecutor(
+            data.getId(), data.getMaxConcurrentSubLayers(), data.getSubLayerQueueSize());
+    this.subLayerFetcher =
+        new TileFetcherParallel(
+            generatorProviderChain,
+            subLayerExecutor,
+            TimeUnit.SECONDS.toMillis(data.getSubLayerTimeout()));
 
-    this.tileEncoders = new TileEncoders(data, generatorProviderChain);
+    this.tileEncoders = new TileEncoders(data, subLayerFetcher);
     current = tileEncoders;
 
     for (int i = 0; i < data.getCaches().size(); i++) {
@@ -118,7 +169,56 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
       }
     }
 
-    this.combinerProviderChain = current;
+    this.combinerProviderChain = new TileCoalescer(current, COALESCING_TIMEOUT_MILLIS);
+
+    // the ancestor at the maximum zoom level is retrieved like any other tile, i.e. from the caches
+    // or generated
+    this.tileOverzoom =
+        new TileOverzoom(
+            ancestor ->
+                data.getLayers().get(ancestor.getLayer()).isCombined()
+                    ? combinerProviderChain.get(ancestor)
+                    : generatorProviderChain.get(ancestor),
+            data.getTmsRanges(),
+            data.getMaxOverzoomLevels());
+    current = tileOverzoom;
+
+    for (int i = 0; i < data.getCaches().size(); i++) {
+      Cache cache = data.getCaches().get(i);
+
+      if (cache.getType() == Type.DYNAMIC) {
+        current = new TileCacheDynamic(tileCaches.get(i), current, tileOverzoom.getTmsRanges());
+      }
+    }
+
+    this.overzoomProviderChain = new TileCoalescer(current, COALESCING_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * The number of threads is bounded, idle threads are released. If the queue is full, the
+   * sub-layer tile is retrieved by the requesting thread.
+   */
+  static ExecutorService createSubLayerExecutor(String id, int threads, int queueSize) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(queueSize),
+            runnable -> {
+              Thread thread =
+                  new Thread(
+                      runnable,
+                      String.format("tiles-%s-sublayers-%d", id, threadCount.incrementAndGet()));
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
   }
 
   private static Map<String, Map<String, TileGenerationSchema>> getTileSchemas(
@@ -155,14 +255,28 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
 
   @Override
   protected boolean onStartup() throws InterruptedException {
+    tileGenerator.init();
+
     return super.onStartup();
   }
 
+  /** A reload creates a new tile provider, so the threads of this instance are released. */
+  @Override
+  protected void onStopped() {
+    subLayerExecutor.shutdown();
+    generationLimiter.shutdown();
+
+    super.onStopped();
+  }
+
   @Override
   public TileResult getTile(TileQuery tile) {
     Optional<TileResult> error = validate(tile);
 
     if (error.isPresent()) {
+      if (error.get().isOutsideLimits() && tileOverzoom.canProvide(tile)) {
+        return getOverzoomTile(tile, error.get());
+      }
       return error.get();
     }
 
@@ -177,19 +291,143 @@ public class TileProviderFeatures extends AbstractPersistentEntity<TileProviderF
     return result;
   }
 
+  /**
+   * Tiles beyond the maximum zoom level are only served, if the ancestor at the maximum zoom level
+   * is within the limits.
+   */
+  private TileResult getOverzoomTile(TileQuery tile, TileResult outsideLimits) {
+    Optional<TileResult> ancestorError = tileOverzoom.getAncestor(tile).flatMap(this::validate);
+
+    if (ancestorError.isPresent()) {
+      return outsideLimits;
+    }
+
+    return overzoomProviderChain.get(tile);
+  }
+
+  /**
+   * @return the number of tile requests that did not trigger a generation or cache lookup of their
+   *     own, but waited for a concurrent request for the same tile
+   */
+  public long getCoalescedRequests() {
+    return generatorProviderChain.getCoalescedRequests()
+        + combinerProviderChain.getCoalescedRequests();
+  }
+
+  /**
+   * @return the number of tiles that are currently generated
+   */
+  public int getActiveGenerations() {
+    return generationLimiter.getActiveGenerations();
+  }
+
+  /**
+   * @return the number of tiles that are currently waiting for a free generation slot
+   */
+  public int getQueuedGenerations() {
+    return generationLimiter.getQueuedGenerations();
+  }
+
+  /**
+   * @return the number of tile generations that have been rejected with status 503
+   */
+  public long getRejectedGenerations() {
+    return generationLimiter.getRejectedGenerations();
+  }
+
+  /**
+   * Stores the other tiles of a metatile in all caches of the generated tiles, with the same checks
+   * as for the tile that was requested. The tile that was requested is stored by the provider
+   * chain.
+   */
+  private void storeTiles(Map<TileQuery, TileResult> tiles) {
+    for (TileCacheDynamic cache : generatorCaches) {
+      for (Map.Entry<TileQuery, TileResult> entry : tiles.entrySet()) {
+        TileQuery tile = entry.getKey();
+        try {
+          cache.store(tile, entry.getValue());
+        } catch (IOException e) {
+          LOGGER.warn(
+              "Failed to write tile {}/{}/{}/{} for layer '{}' to the cache. Reason: {}",
+              tile.getTileMatrixSet().getId(),
+              tile.getLevel(),
+              tile.getRow(),
+              tile.getCol(),
+              tile.getLayer(),
+              e.getMessage());
+          if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+            LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return statistics per layer about the retrieval of sub-layer tiles for combined tiles
+   */
+  public Map<String, TileFetcherParallel.LayerStats> getSubLayerStats() {
+    return subLayerFetcher.getLayerStats();
+  }
+
   // TODO: add to TileCacheDynamic, use canProvide + clip limits
   @Override
   public void deleteFromCache(
       String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits) {
+    // the tiles beyond the maximum zoom level are derived from the tiles at the maximum zoom level
+    List<TileMatrixSetLimits> overzoomLimits =
+        tileOverzoom.getOverzoomLimits(layer, tileMatrixSet, limits);
+
     for (TileStore cache : tileCaches) {
       try {
         cache.delete(layer, tileMatrixSet, limits);
+        for (TileMatrixSetLimits levelLimits : overzoomLimits) {
+          cache.delete(layer, tileMatrixSet, levelLimits);
+        }
       } catch (IOException e) {
 
       }
     }
   }
 
+  @Override
+  public List<String> compactCache() {
+    List<String> report = new ArrayList<>();
+    for (TileStore cache : tileCaches) {
+      if (cache instanceof TileStoreMbTiles) {
+        try {
+          report.addAll(((TileStoreMbTiles) cache).compact());
+        } catch (IOException e) {
+          LOGGER.warn("Failed to compact tile cache. Reason: {}", e.getMessage());
+          if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+            LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
+          }
+          report.add(String.format("Failed to compact tile cache: %s", e.getMessage()));
+        }
+      }
+    }
+    return report;
+  }
+
+  @Override
+  public Optional<TileArchiveWriter> getArchiveWriter(
+      String layer, TileMatrixSet tileMatrixSet, MediaType mediaType) {
+    for (TileStore cache : tileCaches) {
+      if (cache instanceof TileStorePmTiles) {
+        try {
+          return ((TileStorePmTiles) cache).writer(layer, tileMatrixSet, mediaType);
+        } catch (IOException e) {
+          LOGGER.warn(
+              "Failed to create tile archive for layer '{}'. Reason: {}", layer, e.getMessage());
+          if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+            LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace:", e);
+          }
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
   @Override
   public boolean supportsGeneration() {
     return true;
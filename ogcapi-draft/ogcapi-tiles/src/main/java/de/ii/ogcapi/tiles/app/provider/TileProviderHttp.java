@@ -18,6 +18,8 @@ import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import de.ii.xtraplatform.store.domain.entities.AbstractPersistentEntity;
 import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,6 +32,7 @@ public class TileProviderHttp extends AbstractPersistentEntity<TileProviderHttpD
     implements TileProvider {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TileProviderHttp.class);
+
   private final ChainedTileProvider providerChain;
 
   @AssistedInject
@@ -45,7 +48,21 @@ public class TileProviderHttp extends AbstractPersistentEntity<TileProviderHttpD
                 })
             .collect(Collectors.toMap(Entry::getKey, Entry::getValue));
 
-    TileStoreReadOnly tileStore = new TileStoreHttp(layerSources);
+    // one client per provider, so that connections to the tile server are reused
+    HttpClient httpClient =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(data.getConnectTimeout()))
+            .build();
+
+    TileStoreReadOnly tileStore =
+        new TileStoreHttp(
+            layerSources,
+            httpClient,
+            Duration.ofSeconds(data.getRequestTimeout()),
+            data.getMaxConcurrentRequests(),
+            data.getMaxRevalidationBytes());
 
     this.providerChain =
         new ChainedTileProvider() {
@@ -13,16 +13,37 @@ import de.ii.ogcapi.tiles.domain.provider.TileQuery;
 import de.ii.ogcapi.tiles.domain.provider.TileResult;
 import de.ii.xtraplatform.strings.domain.StringTemplateFilters;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import javax.ws.rs.client.ClientBuilder;
+import java.util.OptionalLong;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Read-only tile store for tiles from a tile server. All requests of a provider share one {@link
+ * HttpClient}, so that connections are reused, and the number of concurrent requests is bounded.
+ *
+ * <p>Tiles with an ETag or Last-Modified header are kept in a size-bounded LRU map. When such a
+ * tile is requested again, the request is conditional and the kept tile is used, if the tile
+ * server responds with 304.
+ */
 public class TileStoreHttp implements TileStoreReadOnly {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TileStoreHttp.class);
@@ -38,20 +59,55 @@ public class TileStoreHttp implements TileStoreReadOnly {
           "tiff",
           new MediaType("image", "webp"),
           "webp");
+  // rough estimate of the memory used per revalidation entry in addition to the tile content
+  private static final long ENTRY_OVERHEAD = 256;
 
   private final Map<String, String> layerSources;
+  private final HttpClient httpClient;
+  private final Duration requestTimeout;
+  private final Semaphore requestSlots;
+  private final long maxRevalidationBytes;
+  private final LinkedHashMap<String, Revalidation> revalidations;
+  private final AtomicLong requests;
+  private final AtomicLong revalidated;
+  private long currentRevalidationBytes;
 
-  public TileStoreHttp(Map<String, String> layerSources) {
+  public TileStoreHttp(
+      Map<String, String> layerSources,
+      HttpClient httpClient,
+      Duration requestTimeout,
+      int maxConcurrentRequests,
+      long maxRevalidationBytes) {
     this.layerSources = layerSources;
+    this.httpClient = httpClient;
+    this.requestTimeout = requestTimeout;
+    this.requestSlots = new Semaphore(Math.max(1, maxConcurrentRequests), true);
+    this.maxRevalidationBytes = maxRevalidationBytes;
+    this.revalidations = new LinkedHashMap<>(256, 0.75f, true);
+    this.requests = new AtomicLong();
+    this.revalidated = new AtomicLong();
+    this.currentRevalidationBytes = 0;
   }
 
-  // TODO
   @Override
   public boolean has(TileQuery tile) {
-    return false;
+    if (!layerSources.containsKey(tile.getLayer())) {
+      return false;
+    }
+
+    try {
+      HttpResponse<Void> response = head(tile);
+
+      return response.statusCode() == 200 || response.statusCode() == 204;
+    } catch (IOException e) {
+      LOGGER.debug("Failed to check tile on tile server. Reason: {}", e.getMessage());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
   }
 
-  // TODO: use HttpClient
   @Override
   public TileResult get(TileQuery tile) throws IOException {
     if (!layerSources.containsKey(tile.getLayer())) {
@@ -60,30 +116,139 @@ public class TileStoreHttp implements TileStoreReadOnly {
 
     try {
       String url = getUrl(tile, layerSources.get(tile.getLayer()));
+      Revalidation revalidation = getRevalidation(url);
+      HttpRequest.Builder request = request(url, tile).GET();
 
-      Response response = ClientBuilder.newClient().target(url).request(tile.getMediaType()).get();
+      if (Objects.nonNull(revalidation)) {
+        revalidation.etag.ifPresent(etag -> request.header(HttpHeaders.IF_NONE_MATCH, etag));
+        revalidation.lastModified.ifPresent(
+            lastModified -> request.header(HttpHeaders.IF_MODIFIED_SINCE, lastModified));
+      }
+
+      HttpResponse<byte[]> response = send(request.build(), BodyHandlers.ofByteArray());
 
-      if (response.getStatus() == 200) {
-        return TileResult.found(response.readEntity(InputStream.class).readAllBytes());
+      if (response.statusCode() == 304 && Objects.nonNull(revalidation)) {
+        revalidated.incrementAndGet();
+        return revalidation.result;
+      }
+      if (response.statusCode() == 200) {
+        TileResult result = TileResult.withContentHash(TileResult.found(response.body()));
+        putRevalidation(url, response, result);
+        return result;
+      }
+      if (response.statusCode() == 204) {
+        return TileResult.empty(new byte[0]);
+      }
+      if (response.statusCode() == 404) {
+        return TileResult.notFound();
       }
 
       return TileResult.error(
           String.format(
               "Could not get tile: %s %s",
-              response.getStatus(),
-              response.hasEntity()
-                  ? new String(
-                      response.readEntity(InputStream.class).readAllBytes(), StandardCharsets.UTF_8)
-                  : ""));
+              response.statusCode(), new String(response.body(), StandardCharsets.UTF_8)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return TileResult.error(e.getMessage());
     } catch (Throwable e) {
       return TileResult.error(e.getMessage());
     }
   }
 
-  // TODO
   @Override
   public Optional<Boolean> isEmpty(TileQuery tile) throws IOException {
-    return Optional.empty();
+    if (!layerSources.containsKey(tile.getLayer())) {
+      return Optional.empty();
+    }
+
+    try {
+      HttpResponse<Void> response = head(tile);
+
+      if (response.statusCode() == 204) {
+        return Optional.of(true);
+      }
+      if (response.statusCode() == 200) {
+        OptionalLong contentLength =
+            response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH);
+
+        return Optional.of(contentLength.isPresent() && contentLength.getAsLong() == 0);
+      }
+
+      return Optional.empty();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  long getRequests() {
+    return requests.get();
+  }
+
+  long getRevalidated() {
+    return revalidated.get();
+  }
+
+  private HttpResponse<Void> head(TileQuery tile) throws IOException, InterruptedException {
+    String url = getUrl(tile, layerSources.get(tile.getLayer()));
+
+    return send(
+        request(url, tile).method("HEAD", BodyPublishers.noBody()).build(),
+        BodyHandlers.discarding());
+  }
+
+  private HttpRequest.Builder request(String url, TileQuery tile) {
+    return HttpRequest.newBuilder(URI.create(url))
+        .timeout(requestTimeout)
+        .header(HttpHeaders.ACCEPT, tile.getMediaType().toString());
+  }
+
+  private <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> bodyHandler)
+      throws IOException, InterruptedException {
+    if (!requestSlots.tryAcquire(requestTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+      throw new IOException(
+          String.format(
+              "No free request slot for the tile server within %d seconds.",
+              requestTimeout.toSeconds()));
+    }
+
+    try {
+      requests.incrementAndGet();
+      return httpClient.send(request, bodyHandler);
+    } finally {
+      requestSlots.release();
+    }
+  }
+
+  private Revalidation getRevalidation(String url) {
+    synchronized (revalidations) {
+      return revalidations.get(url);
+    }
+  }
+
+  private void putRevalidation(String url, HttpResponse<?> response, TileResult result) {
+    Optional<String> etag = response.headers().firstValue(HttpHeaders.ETAG);
+    Optional<String> lastModified = response.headers().firstValue(HttpHeaders.LAST_MODIFIED);
+
+    if (maxRevalidationBytes <= 0 || (etag.isEmpty() && lastModified.isEmpty())) {
+      return;
+    }
+
+    Revalidation revalidation = new Revalidation(etag, lastModified, result);
+
+    synchronized (revalidations) {
+      Revalidation previous = revalidations.put(url, revalidation);
+      if (Objects.nonNull(previous)) {
+        currentRevalidationBytes -= previous.weight();
+      }
+      currentRevalidationBytes += revalidation.weight();
+
+      Iterator<Revalidation> leastRecentlyUsed = revalidations.values().iterator();
+      while (currentRevalidationBytes > maxRevalidationBytes && leastRecentlyUsed.hasNext()) {
+        currentRevalidationBytes -= leastRecentlyUsed.next().weight();
+        leastRecentlyUsed.remove();
+      }
+    }
   }
 
   private static String getUrl(TileQuery tile, String template) {
@@ -104,4 +269,20 @@ public class TileStoreHttp implements TileStoreReadOnly {
                 EXTENSIONS.get(tile.getMediaType()))
             ::get);
   }
+
+  private static final class Revalidation {
+    private final Optional<String> etag;
+    private final Optional<String> lastModified;
+    private final TileResult result;
+
+    private Revalidation(Optional<String> etag, Optional<String> lastModified, TileResult result) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.result = result;
+    }
+
+    private long weight() {
+      return result.getEncodedContent().map(content -> content.length).orElse(0) + ENTRY_OVERHEAD;
+    }
+  }
 }
@@ -25,11 +25,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -99,16 +102,35 @@ public class TileStoreMbTiles implements TileStore {
     }
 
     try {
-      Optional<InputStream> content = tileSets.get(key(tile)).getTile(tile);
+      // compressed tiles are passed on as stored, they are only decompressed if needed
+      return tileSets.get(key(tile)).getTileResult(tile);
+    } catch (SQLException e) {
+      return TileResult.error(e.getMessage());
+    }
+  }
 
-      if (content.isEmpty()) {
-        return TileResult.notFound();
+  @Override
+  public Optional<TileResult.Status> getMarker(TileQuery tile) throws IOException {
+    try {
+      if (tileSets.containsKey(key(tile))) {
+        return tileSets.get(key(tile)).getMarker(tile);
       }
-
-      return TileResult.found(content.get().readAllBytes());
     } catch (SQLException e) {
-      return TileResult.error(e.getMessage());
+      if (LOGGER.isWarnEnabled()) {
+        LOGGER.warn(
+            "Failed to retrieve marker of tile {}/{}/{}/{} for layer '{}'. Reason: {}",
+            tile.getTileMatrixSet().getId(),
+            tile.getLevel(),
+            tile.getRow(),
+            tile.getCol(),
+            tile.getLayer(),
+            e.getMessage());
+        if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+          LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+        }
+      }
     }
+    return Optional.empty();
   }
 
   @Override
@@ -137,6 +159,18 @@ public class TileStoreMbTiles implements TileStore {
 
   @Override
   public void put(TileQuery tile, InputStream content) throws IOException {
+    put(tile, TileResult.found(content.readAllBytes()));
+  }
+
+  /**
+   * Compressed tiles are written as they are, if the tiles are stored compressed in the file, see
+   * {@link MbtilesTileset#isGzipped(TileQuery)}.
+   */
+  @Override
+  public void put(TileQuery tile, TileResult result) throws IOException {
+    Optional<TileResult.Status> marker =
+        result.isEmpty() || result.isFull() ? Optional.of(result.getStatus()) : Optional.empty();
+
     try {
       synchronized (tileSets) {
         if (!tileSets.containsKey(key(tile))) {
@@ -149,7 +183,15 @@ public class TileStoreMbTiles implements TileStore {
                   getVectorLayers(tile.getLayer())));
         }
       }
-      tileSets.get(key(tile)).writeTile(tile, content.readAllBytes());
+      MbtilesTileset tileSet = tileSets.get(key(tile));
+
+      if (tileSet.isGzipped(tile)
+          && Objects.equals(result.getContentEncoding().orElse(null), TileResult.GZIP)) {
+        tileSet.writeEncodedTile(
+            tile, result.getEncodedContent().orElseThrow(), result.getContentHash(), marker);
+      } else {
+        tileSet.writeTile(tile, result.getContent().orElseThrow(), marker);
+      }
 
     } catch (SQLException e) {
       if (LOGGER.isWarnEnabled()) {
@@ -217,6 +259,47 @@ public class TileStoreMbTiles implements TileStore {
     }
   }
 
+  /**
+   * Deduplicates and compacts all MBTiles files of the store, including files that have not been
+   * opened yet.
+   *
+   * @return a report line per file
+   */
+  public List<String> compact() throws IOException {
+    if (Objects.nonNull(rootDir) && Files.isDirectory(rootDir)) {
+      try (Stream<Path> files = Files.walk(rootDir, 2)) {
+        for (Path path :
+            files
+                .filter(path -> path.getFileName().toString().endsWith(".mbtiles"))
+                .collect(Collectors.toList())) {
+          String layer = rootDir.relativize(path).getName(0).toString();
+          String tileMatrixSetId = path.getFileName().toString().replace(".mbtiles", "");
+          synchronized (tileSets) {
+            tileSets.computeIfAbsent(
+                key(layer, tileMatrixSetId), ignore -> new MbtilesTileset(path));
+          }
+        }
+      }
+    }
+
+    List<String> report = new ArrayList<>();
+    for (MbtilesTileset tileSet : List.copyOf(tileSets.values())) {
+      try {
+        MbtilesTileset.Compaction compaction = tileSet.compact();
+        LOGGER.info("Compacted MBTiles file {}", compaction);
+        report.add(compaction.toString());
+      } catch (SQLException e) {
+        LOGGER.warn("Failed to compact MBTiles file. Reason: {}", e.getMessage());
+        if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+          LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+        }
+        report.add(String.format("Failed to compact MBTiles file: %s", e.getMessage()));
+      }
+    }
+
+    return report;
+  }
+
   private List<VectorLayer> getVectorLayers(String layer) {
     return tileSchemas.get(layer).entrySet().stream()
         .map(entry -> getVectorLayer(entry.getKey(), entry.getValue()))
@@ -224,7 +307,7 @@ public class TileStoreMbTiles implements TileStore {
   }
 
   // TODO: fields, minzoom, maxzoom
-  private VectorLayer getVectorLayer(String subLayer, TileGenerationSchema generationSchema) {
+  static VectorLayer getVectorLayer(String subLayer, TileGenerationSchema generationSchema) {
 
     ImmutableVectorLayer.Builder builder =
         ImmutableVectorLayer.builder().id(subLayer).fields(generationSchema.getProperties());
@@ -282,6 +365,10 @@ public class TileStoreMbTiles implements TileStore {
   }
 
   private static String key(String layer, TileMatrixSet tileMatrixSet) {
-    return String.join("/", layer, tileMatrixSet.getId());
+    return key(layer, tileMatrixSet.getId());
+  }
+
+  private static String key(String layer, String tileMatrixSetId) {
+    return String.join("/", layer, tileMatrixSetId);
   }
 }
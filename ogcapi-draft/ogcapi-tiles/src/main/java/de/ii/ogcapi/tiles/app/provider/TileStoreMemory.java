@@ -0,0 +1,235 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
+import de.ii.ogcapi.tiles.app.provider.TileCacheDynamic.TileStore;
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileResult;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import de.ii.ogcapi.tiles.domain.provider.TileResult.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import javax.ws.rs.core.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size-bounded LRU tile store that keeps the most recently used tiles in memory. The bound is the
+ * total number of bytes of all tiles, not the number of tiles.
+ *
+ * <p>Compressed tiles are kept compressed. The stored results are never passed on, every read gets
+ * a copy, so that the content that is decompressed by a consumer is not kept in memory.
+ */
+public class TileStoreMemory implements TileStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileStoreMemory.class);
+  // rough estimate of the memory used per entry in addition to the tile content
+  private static final long ENTRY_OVERHEAD = 128;
+
+  private final long maxBytes;
+  private final long maxTileBytes;
+  private final LinkedHashMap<Key, TileResult> tiles;
+  private long currentBytes;
+
+  TileStoreMemory(long maxBytes, long maxTileBytes) {
+    this.maxBytes = maxBytes;
+    this.maxTileBytes = maxTileBytes;
+    this.tiles = new LinkedHashMap<>(256, 0.75f, true);
+    this.currentBytes = 0;
+  }
+
+  @Override
+  public boolean has(TileQuery tile) {
+    synchronized (tiles) {
+      return tiles.containsKey(Key.of(tile));
+    }
+  }
+
+  @Override
+  public TileResult get(TileQuery tile) throws IOException {
+    TileResult result;
+    synchronized (tiles) {
+      result = tiles.get(Key.of(tile));
+    }
+
+    if (Objects.isNull(result)) {
+      return TileResult.notFound();
+    }
+
+    return copy(result, result.getStatus());
+  }
+
+  @Override
+  public Optional<Boolean> isEmpty(TileQuery tile) throws IOException {
+    // compressed content is decompressed outside of the lock
+    TileResult result = get(tile);
+
+    return result.isNotFound()
+        ? Optional.empty()
+        : Optional.of(result.getContent().get().length == 0);
+  }
+
+  @Override
+  public Optional<TileResult.Status> getMarker(TileQuery tile) throws IOException {
+    synchronized (tiles) {
+      TileResult result = tiles.get(Key.of(tile));
+
+      return Objects.nonNull(result) && (result.isEmpty() || result.isFull())
+          ? Optional.of(result.getStatus())
+          : Optional.empty();
+    }
+  }
+
+  @Override
+  public void put(TileQuery tile, InputStream content) throws IOException {
+    put(tile, TileResult.found(content.readAllBytes()));
+  }
+
+  @Override
+  public void put(TileQuery tile, TileResult result) throws IOException {
+    // compressed tiles are kept compressed
+    byte[] bytes = result.getEncodedContent().orElseThrow();
+
+    if (bytes.length > maxTileBytes) {
+      return;
+    }
+
+    Key key = Key.of(tile);
+    TileResult stored =
+        copy(result, result.isEmpty() || result.isFull() ? result.getStatus() : Status.Found);
+
+    synchronized (tiles) {
+      TileResult previous = tiles.put(key, stored);
+      if (Objects.nonNull(previous)) {
+        currentBytes -= weight(previous);
+      }
+      currentBytes += weight(stored);
+
+      evict();
+    }
+  }
+
+  @Override
+  public void delete(TileQuery tile) throws IOException {
+    synchronized (tiles) {
+      TileResult previous = tiles.remove(Key.of(tile));
+      if (Objects.nonNull(previous)) {
+        currentBytes -= weight(previous);
+      }
+    }
+  }
+
+  @Override
+  public void delete(String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits)
+      throws IOException {
+    int level = Integer.parseInt(limits.getTileMatrix());
+
+    synchronized (tiles) {
+      Iterator<Map.Entry<Key, TileResult>> iterator = tiles.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Key, TileResult> entry = iterator.next();
+        Key key = entry.getKey();
+        if (Objects.equals(key.layer, layer)
+            && Objects.equals(key.tileMatrixSet, tileMatrixSet.getId())
+            && key.level == level
+            && limits.contains(key.row, key.col)) {
+          currentBytes -= weight(entry.getValue());
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  private void evict() {
+    Iterator<TileResult> leastRecentlyUsed = tiles.values().iterator();
+    int evicted = 0;
+
+    while (currentBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+      currentBytes -= weight(leastRecentlyUsed.next());
+      leastRecentlyUsed.remove();
+      evicted++;
+    }
+
+    if (evicted > 0 && LOGGER.isTraceEnabled()) {
+      LOGGER.trace(
+          "Evicted {} tiles from memory cache, {} tiles with {} bytes remaining.",
+          evicted,
+          tiles.size(),
+          currentBytes);
+    }
+  }
+
+  /**
+   * @return a new result without the decompressed content, the encoded content is shared
+   */
+  private static TileResult copy(TileResult result, Status status) {
+    return new ImmutableTileResult.Builder().from(result).status(status).build();
+  }
+
+  private static long weight(TileResult result) {
+    return result.getEncodedContent().get().length + ENTRY_OVERHEAD;
+  }
+
+  private static final class Key {
+    private final String layer;
+    private final String tileMatrixSet;
+    private final int level;
+    private final int row;
+    private final int col;
+    private final MediaType mediaType;
+
+    private Key(
+        String layer, String tileMatrixSet, int level, int row, int col, MediaType mediaType) {
+      this.layer = layer;
+      this.tileMatrixSet = tileMatrixSet;
+      this.level = level;
+      this.row = row;
+      this.col = col;
+      this.mediaType = mediaType;
+    }
+
+    static Key of(TileQuery tile) {
+      return new Key(
+          tile.getLayer(),
+          tile.getTileMatrixSet().getId(),
+          tile.getLevel(),
+          tile.getRow(),
+          tile.getCol(),
+          tile.getMediaType());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return level == key.level
+          && row == key.row
+          && col == key.col
+          && layer.equals(key.layer)
+          && tileMatrixSet.equals(key.tileMatrixSet)
+          && mediaType.equals(key.mediaType);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(layer, tileMatrixSet, level, row, col, mediaType);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
+import de.ii.ogcapi.tiles.app.provider.TileCacheDynamic.TileStore;
+import de.ii.ogcapi.tiles.domain.VectorLayer;
+import de.ii.ogcapi.tiles.domain.provider.TileArchiveWriter;
+import de.ii.ogcapi.tiles.domain.provider.TileGenerationSchema;
+import de.ii.ogcapi.tiles.domain.provider.TileQuery;
+import de.ii.ogcapi.tiles.domain.provider.TileResult;
+import de.ii.ogcapi.tiles.domain.provider.TileResult.Status;
+import de.ii.xtraplatform.base.domain.LogContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import javax.ws.rs.core.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the tiles of a layer from a PMTiles v3 archive in the cache directory, e.g. {@code
+ * <layer>/WebMercatorQuad.pmtiles}. Only vector tiles in the tile matrix set WebMercatorQuad are
+ * supported.
+ *
+ * <p>An archive cannot be changed, it is only written as a whole by the seeding, see {@link
+ * #writer(String, TileMatrixSet, MediaType)}. So single tiles are neither stored nor deleted, after
+ * changes to the features the tiles are only updated when the seeding is run again. While the
+ * seeding writes the archive of a layer, no tiles of the layer and of its sub-layers are served from
+ * the store, so that the seeding does not copy the previous archives. The other layers are served
+ * as usual.
+ *
+ * <p>Empty tiles are not stored in an archive, so a tile within the zoom levels of the archive that
+ * is not in the archive is empty. The status Full is not stored, either.
+ */
+public class TileStorePmTiles implements TileStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileStorePmTiles.class);
+  private static final String TILE_MATRIX_SET = "WebMercatorQuad";
+  private static final String EXTENSION = ".pmtiles";
+
+  private final Path rootDir;
+  private final Map<String, Map<String, TileGenerationSchema>> tileSchemas;
+  private final Map<String, Optional<PmTilesArchive>> archives;
+  // the number of active writers per layer that is written or that is a sub-layer of such a layer
+  private final Map<String, Integer> activeWriters;
+
+  TileStorePmTiles(Path rootDir, Map<String, Map<String, TileGenerationSchema>> tileSchemas) {
+    this.rootDir = rootDir;
+    this.tileSchemas = tileSchemas;
+    this.archives = new ConcurrentHashMap<>();
+    this.activeWriters = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public boolean has(TileQuery tile) {
+    try {
+      return get(tile).isAvailable();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public TileResult get(TileQuery tile) throws IOException {
+    if (activeWriters.containsKey(tile.getLayer())
+        || !isSupported(tile.getTileMatrixSet(), tile.getMediaType())) {
+      return TileResult.notFound();
+    }
+
+    Optional<PmTilesArchive> archive = getArchive(tile.getLayer());
+
+    if (archive.isEmpty()
+        || tile.getLevel() < archive.get().getMinZoom()
+        || tile.getLevel() > archive.get().getMaxZoom()) {
+      return TileResult.notFound();
+    }
+
+    Optional<byte[]> content =
+        archive.get().getTile(tile.getLevel(), tile.getCol(), tile.getRow());
+
+    if (content.isEmpty()) {
+      return TileResult.empty(new byte[0]);
+    }
+
+    // compressed tiles are passed on as stored, they are only decompressed if needed
+    return archive.get().getTileCompression() == PmTiles.COMPRESSION_GZIP
+        ? TileResult.gzipped(Status.Found, content.get())
+        : TileResult.found(content.get());
+  }
+
+  @Override
+  public Optional<Boolean> isEmpty(TileQuery tile) throws IOException {
+    TileResult result = get(tile);
+
+    return result.isAvailable() ? Optional.of(result.isEmpty()) : Optional.empty();
+  }
+
+  /** The archive is only written by the seeding. */
+  @Override
+  public boolean isWritable() {
+    return false;
+  }
+
+  /** The archive is only written by the seeding. */
+  @Override
+  public void put(TileQuery tile, InputStream content) throws IOException {}
+
+  /** The archive is only written by the seeding. */
+  @Override
+  public void put(TileQuery tile, TileResult result) throws IOException {}
+
+  /** The archive is only replaced by the seeding. */
+  @Override
+  public void delete(TileQuery tile) throws IOException {}
+
+  /** The archive is only replaced by the seeding. */
+  @Override
+  public void delete(String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits)
+      throws IOException {}
+
+  /**
+   * @return a writer that replaces the archive of the layer when it is finished, if the tile matrix
+   *     set and the format are supported; until the writer is finished or aborted, the store does
+   *     not serve the tiles of the layer and of its sub-layers
+   */
+  Optional<TileArchiveWriter> writer(
+      String layer, TileMatrixSet tileMatrixSet, MediaType mediaType) throws IOException {
+    if (!isSupported(tileMatrixSet, mediaType) || !tileSchemas.containsKey(layer)) {
+      return Optional.empty();
+    }
+
+    // combined tiles are derived from the tiles of the sub-layers
+    Set<String> layers =
+        ImmutableSet.<String>builder().add(layer).addAll(tileSchemas.get(layer).keySet()).build();
+
+    TileArchiveWriter writer =
+        new PmTilesWriter(
+            getPath(layer),
+            getMetadata(layer),
+            () -> {
+              // the next request opens the new archive
+              Optional<PmTilesArchive> previous = archives.remove(layer);
+              if (Objects.nonNull(previous) && previous.isPresent()) {
+                close(previous.get());
+              }
+              layers.forEach(
+                  writtenLayer ->
+                      activeWriters.computeIfPresent(
+                          writtenLayer, (ignore, count) -> count > 1 ? count - 1 : null));
+            });
+    layers.forEach(writtenLayer -> activeWriters.merge(writtenLayer, 1, Integer::sum));
+
+    return Optional.of(writer);
+  }
+
+  private Optional<PmTilesArchive> getArchive(String layer) {
+    return archives.computeIfAbsent(
+        layer,
+        ignore -> {
+          Path path = getPath(layer);
+
+          if (!Files.isRegularFile(path)) {
+            return Optional.empty();
+          }
+
+          try {
+            return Optional.of(PmTilesArchive.open(path));
+          } catch (IOException e) {
+            if (LOGGER.isWarnEnabled()) {
+              LOGGER.warn(
+                  "Failed to open PMTiles archive '{}'. Reason: {}", path, e.getMessage());
+              if (LOGGER.isDebugEnabled(LogContext.MARKER.STACKTRACE)) {
+                LOGGER.debug(LogContext.MARKER.STACKTRACE, "Stacktrace: ", e);
+              }
+            }
+            return Optional.empty();
+          }
+        });
+  }
+
+  private Path getPath(String layer) {
+    return rootDir.resolve(layer).resolve(TILE_MATRIX_SET + EXTENSION);
+  }
+
+  private byte[] getMetadata(String layer) throws IOException {
+    List<VectorLayer> vectorLayers =
+        tileSchemas.get(layer).entrySet().stream()
+            .map(entry -> TileStoreMbTiles.getVectorLayer(entry.getKey(), entry.getValue()))
+            .collect(Collectors.toList());
+
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.registerModule(new Jdk8Module());
+
+    return mapper.writeValueAsBytes(
+        ImmutableMap.of("name", layer, "format", "pbf", "vector_layers", vectorLayers));
+  }
+
+  private static boolean isSupported(TileMatrixSet tileMatrixSet, MediaType mediaType) {
+    return Objects.equals(tileMatrixSet.getId(), TILE_MATRIX_SET)
+        && FeatureEncoderMVT.FORMAT.isCompatible(mediaType);
+  }
+
+  private static void close(PmTilesArchive archive) {
+    try {
+      archive.close();
+    } catch (IOException e) {
+      LOGGER.debug("Failed to close PMTiles archive '{}'. Reason: {}", archive.getPath(), e);
+    }
+  }
+}
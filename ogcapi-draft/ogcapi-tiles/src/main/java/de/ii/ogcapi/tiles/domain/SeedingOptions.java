@@ -71,6 +71,64 @@ public interface SeedingOptions {
     return Objects.equals(getPurge(), true);
   }
 
+  /**
+   * @langEn If enabled, the tiles below a tile that is full, i.e. its content is identical for all
+   *     tiles at more detailed zoom levels, are not seeded. Requests for these tiles are answered
+   *     with the content of the full tile. Tiles below an empty tile are never seeded.
+   * @langDe Steuert, ob die Kacheln unterhalb einer vollen Kachel, d.h. einer Kachel, deren Inhalt
+   *     für alle Kacheln auf detaillierteren Zoomstufen identisch ist, beim Seeding übersprungen
+   *     werden. Anfragen nach diesen Kacheln werden mit dem Inhalt der vollen Kachel beantwortet.
+   *     Kacheln unterhalb einer leeren Kachel werden nie erzeugt.
+   * @default `false`
+   */
+  @Nullable
+  Boolean getPruneFull();
+
+  @Value.Lazy
+  @JsonIgnore
+  default boolean shouldPruneFull() {
+    return Objects.equals(getPruneFull(), true);
+  }
+
+  /**
+   * @langEn Changes of features are collected for this number of seconds, before the affected tiles
+   *     are deleted from the cache in the background. Multiple changes of a collection within this
+   *     time are combined to a single deletion.
+   * @langDe Änderungen von Features werden für diese Anzahl an Sekunden gesammelt, bevor die
+   *     betroffenen Kacheln im Hintergrund aus dem Cache gelöscht werden. Mehrere Änderungen einer
+   *     Collection innerhalb dieser Zeit werden zu einer einzigen Löschung zusammengefasst.
+   * @default `10`
+   */
+  @Nullable
+  Integer getInvalidationDelay();
+
+  @Value.Lazy
+  @JsonIgnore
+  default int getEffectiveInvalidationDelay() {
+    return Objects.isNull(getInvalidationDelay()) || getInvalidationDelay() < 0
+        ? 10
+        : getInvalidationDelay();
+  }
+
+  /**
+   * @langEn If enabled, the tiles that were deleted from the cache after a change of features are
+   *     seeded again in the background with low priority. Tiles in PMTiles archives are not
+   *     deleted after changes, they are only replaced by the next seeding.
+   * @langDe Steuert, ob die Kacheln, die nach einer Änderung von Features aus dem Cache gelöscht
+   *     wurden, im Hintergrund mit niedriger Priorität erneut erzeugt werden. Kacheln in
+   *     PMTiles-Archiven werden nach Änderungen nicht gelöscht, sie werden erst beim nächsten
+   *     Seeding ersetzt.
+   * @default `false`
+   */
+  @Nullable
+  Boolean getReseedOnChange();
+
+  @Value.Lazy
+  @JsonIgnore
+  default boolean shouldReseedOnChange() {
+    return Objects.equals(getReseedOnChange(), true);
+  }
+
   /**
    * @langEn The maximum number of threads the seeding is allowed to use. The actual number of
    *     threads used depends on the number of available background task threads when the seeding is
@@ -233,6 +233,21 @@ public abstract class TileProviderFeatures extends TileProvider {
   @Nullable
   public abstract Double getMinimumSizeInPixel();
 
+  /**
+   * @langEn Number of tiles per row and column of a metatile. With a value greater than 1, e.g. 4
+   *     or 8, the features for all tiles of a metatile are fetched with a single query and all
+   *     tiles are stored in the tile cache. This reduces the number of queries when seeding or
+   *     when neighbouring tiles are requested. The value `1` disables metatiles.
+   * @langDe Anzahl der Kacheln pro Zeile und Spalte einer Metakachel. Bei einem Wert größer 1,
+   *     z.B. 4 oder 8, werden die Features für alle Kacheln einer Metakachel mit einer einzigen
+   *     Abfrage gelesen und alle Kacheln im Kachel-Cache gespeichert. Dies reduziert die Anzahl der
+   *     Abfragen beim Seeding oder wenn benachbarte Kacheln abgerufen werden. Der Wert `1`
+   *     deaktiviert Metakacheln.
+   * @default 1
+   */
+  @Nullable
+  public abstract Integer getMetatileSize();
+
   @Override
   @JsonIgnore
   @Value.Default
@@ -221,6 +221,7 @@ public interface TilesConfiguration extends SfFlatConfiguration, CachingConfigur
   enum TileCacheType {
     FILES,
     MBTILES,
+    PMTILES,
     NONE
   }
 
@@ -248,11 +249,16 @@ public interface TilesConfiguration extends SfFlatConfiguration, CachingConfigur
   /**
    * @langEn `FILES` stores each tile as a file in the file system. `MBTILES` stores the tiles in an
    *     MBTiles file (one MBTiles file per tileset). It is recommended to use `MBTILES`. It is
-   *     planned to change the default to `MBTILES` with version 4.0.
+   *     planned to change the default to `MBTILES` with version 4.0. `PMTILES` serves the tiles
+   *     from a PMTiles archive (one archive per tileset) that is only written by the seeding, tiles
+   *     that are generated on request are not stored. Only vector tiles in `WebMercatorQuad` are
+   *     supported.
    * @langDe `FILES` speichert jede Kachel als Datei im Dateisystem. `MBTILES` speichert die Kacheln
    *     in einer MBTiles-Datei (eine MBTiles-Datei pro Tileset). Es wird die Verwendung von
    *     `MBTILES` empfohlen. Es ist geplant, den Default mit der Version 4.0 auf `MBTILES`
-   *     zuändern.
+   *     zuändern. `PMTILES` liefert die Kacheln aus einem PMTiles-Archiv (ein Archiv pro Tileset),
+   *     das nur beim Seeding geschrieben wird, bei Anfragen erzeugte Kacheln werden nicht
+   *     gespeichert. Unterstützt werden nur Vector Tiles in `WebMercatorQuad`.
    * @default `FILES`
    */
   @Nullable
@@ -586,6 +592,19 @@ public interface TilesConfiguration extends SfFlatConfiguration, CachingConfigur
             MINIMUM_SIZE_IN_PIXEL));
   }
 
+  @Value.Auxiliary
+  @Value.Derived
+  @JsonIgnore
+  default int getMetatileSizeDerived() {
+    return Math.max(
+        1,
+        Objects.requireNonNullElse(
+            getTileProvider() instanceof TileProviderFeatures
+                ? ((TileProviderFeatures) getTileProvider()).getMetatileSize()
+                : null,
+            1));
+  }
+
   abstract class Builder extends ExtensionConfiguration.Builder {}
 
   @Override
@@ -56,4 +56,30 @@ public interface TilesProviders {
       Optional<String> collectionId,
       Optional<String> tileMatrixSetId,
       Optional<BoundingBox> boundingBox);
+
+  /**
+   * Queues the deletion of the tiles of a collection, that are affected by a change. Changes of the
+   * same collection that are queued within the invalidation delay are combined and deleted in the
+   * background. Afterwards the listeners are notified, e.g. to seed the tiles again.
+   *
+   * @param boundingBox the extent of the change, empty for the whole collection
+   */
+  void invalidateTiles(OgcApi api, String collectionId, Optional<BoundingBox> boundingBox);
+
+  void addInvalidationListener(InvalidationListener listener);
+
+  /**
+   * @return the number of combined changes that are waiting for or in the process of deletion
+   */
+  long getInvalidationQueueDepth();
+
+  /**
+   * @return the time between the first queued change and the completed deletion of the last
+   *     invalidation
+   */
+  long getInvalidationLagMillis();
+
+  interface InvalidationListener {
+    void onInvalidated(OgcApi api, String collectionId, Optional<BoundingBox> boundingBox);
+  }
 }
@@ -21,7 +21,9 @@ public interface Cache extends WithTmsLevels {
 
   enum Storage {
     FILES,
-    MBTILES
+    MBTILES,
+    MEMORY,
+    PMTILES
   }
 
   Type getType();
@@ -33,6 +35,31 @@ public interface Cache extends WithTmsLevels {
     return false;
   }
 
+  /**
+   * @langEn Only applies to the storage `MEMORY`. Maximum total size in bytes of all tiles that are
+   *     held in memory. The least recently used tiles are removed first.
+   * @langDe Gilt nur für die Speicherart `MEMORY`. Maximale Gesamtgröße in Bytes aller Kacheln, die
+   *     im Speicher gehalten werden. Die am längsten nicht verwendeten Kacheln werden zuerst
+   *     entfernt.
+   * @default `67108864`
+   */
+  @Value.Default
+  default long getMaxBytes() {
+    return 64L * 1024 * 1024;
+  }
+
+  /**
+   * @langEn Only applies to the storage `MEMORY`. Maximum size in bytes of a tile that is held in
+   *     memory, larger tiles are not held in memory.
+   * @langDe Gilt nur für die Speicherart `MEMORY`. Maximale Größe in Bytes einer Kachel, die im
+   *     Speicher gehalten wird, größere Kacheln werden nicht im Speicher gehalten.
+   * @default `1048576`
+   */
+  @Value.Default
+  default long getMaxTileBytes() {
+    return 1024L * 1024;
+  }
+
   @Override
   Map<String, MinMax> getLevels();
 }
@@ -10,8 +10,10 @@ package de.ii.ogcapi.tiles.domain.provider;
 import com.google.common.collect.Range;
 import de.ii.xtraplatform.base.domain.LogContext;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,6 +75,14 @@ public interface ChainedTileProvider {
     return tileResult;
   }
 
+  /**
+   * @return the results for all tiles in the same order, providers may retrieve the tiles
+   *     concurrently
+   */
+  default List<TileResult> getAll(List<TileQuery> tiles) {
+    return tiles.stream().map(this::get).collect(Collectors.toList());
+  }
+
   default Optional<ChainedTileProvider> getDelegate() {
     return Optional.empty();
   }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.domain.provider;
+
+import java.io.IOException;
+
+/**
+ * Collects all tiles of a layer and tile matrix set for a tile archive that is written as a whole,
+ * e.g. by the seeding. The previous archive is only replaced, when the writer is finished.
+ */
+public interface TileArchiveWriter {
+
+  /**
+   * Adds the tile to the archive, may be called concurrently. Empty tiles are not stored, a tile
+   * with an error prevents that the archive is written.
+   */
+  void put(TileQuery tile, TileResult result) throws IOException;
+
+  /**
+   * Writes the archive and replaces the previous archive.
+   *
+   * @throws IOException if the archive could not be written or if a tile had an error
+   */
+  void finish() throws IOException;
+
+  /** Discards the collected tiles, the previous archive is kept. */
+  void abort();
+}
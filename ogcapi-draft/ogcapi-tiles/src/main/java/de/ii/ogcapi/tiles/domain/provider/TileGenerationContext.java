@@ -17,5 +17,12 @@ public interface TileGenerationContext extends EncodingContextSfFlat {
 
   TileGenerationOptions getParameters();
 
+  // Empty and Full also apply to all tiles at more detailed zoom levels, so they are only detected
+  // if the features of a tile do not depend on the zoom level
+  @Value.Default
+  default boolean getDetectEmptyAndFull() {
+    return false;
+  }
+
   // String getCollectionId(); // TODO: layer
 }
@@ -28,5 +28,11 @@ public interface TileGenerationOptions {
     return false;
   }
 
+  // number of tiles per row and column that are generated together, 1 disables metatiles
+  @Value.Default
+  default int getMetatileSize() {
+    return 1;
+  }
+
   Map<String, List<LevelTransformation>> getTransformations();
 }
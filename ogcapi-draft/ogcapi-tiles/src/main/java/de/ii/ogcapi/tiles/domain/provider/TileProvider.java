@@ -12,8 +12,10 @@ import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet;
 import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits;
 import de.ii.xtraplatform.crs.domain.BoundingBox;
 import de.ii.xtraplatform.store.domain.entities.PersistentEntity;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import javax.ws.rs.core.MediaType;
 
 public interface TileProvider extends PersistentEntity {
 
@@ -31,6 +33,22 @@ public interface TileProvider extends PersistentEntity {
   default void deleteFromCache(
       String layer, TileMatrixSet tileMatrixSet, TileMatrixSetLimits limits) {}
 
+  /**
+   * @return a report line per compacted cache file
+   */
+  default List<String> compactCache() {
+    return List.of();
+  }
+
+  /**
+   * @return a writer for the tile archive of the layer and tile matrix set, if the tiles are cached
+   *     in an archive that can only be written as a whole
+   */
+  default Optional<TileArchiveWriter> getArchiveWriter(
+      String layer, TileMatrixSet tileMatrixSet, MediaType mediaType) {
+    return Optional.empty();
+  }
+
   // TODO: generation? source? dynamic?
   default boolean supportsGeneration() {
     return this instanceof TileGenerator;
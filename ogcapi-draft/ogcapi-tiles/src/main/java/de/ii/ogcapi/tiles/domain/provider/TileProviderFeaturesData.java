@@ -51,6 +51,101 @@ public interface TileProviderFeaturesData extends TileProviderData, WithCaches {
   @Override
   Map<String, LayerOptionsFeatures> getLayers();
 
+  /**
+   * @langEn Maximum number of tiles that are generated concurrently. Tiles that are not in a cache
+   *     wait for a free slot. The default is the number of available processors.
+   * @langDe Maximale Anzahl von Kacheln, die gleichzeitig erzeugt werden. Kacheln, die sich nicht
+   *     in einem Cache befinden, warten auf einen freien Slot. Der Standardwert ist die Anzahl der
+   *     verfügbaren Prozessoren.
+   * @default number of processors
+   */
+  @Value.Default
+  default int getMaxConcurrentGenerations() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @langEn Maximum number of tiles that wait for a free slot for the generation. If the queue is
+   *     full, further requests are rejected with status 503 and a `Retry-After` header.
+   * @langDe Maximale Anzahl von Kacheln, die auf einen freien Slot für die Erzeugung warten. Ist
+   *     die Warteschlange voll, werden weitere Anfragen mit Status 503 und einem
+   *     `Retry-After`-Header abgelehnt.
+   * @default `64`
+   */
+  @Value.Default
+  default int getGenerationQueueSize() {
+    return 64;
+  }
+
+  /**
+   * @langEn Maximum time in seconds that a tile waits for a free slot for the generation. If the
+   *     timeout is exceeded, the request is rejected with status 503 and a `Retry-After` header.
+   * @langDe Maximale Zeit in Sekunden, die eine Kachel auf einen freien Slot für die Erzeugung
+   *     wartet. Wird die Zeit überschritten, wird die Anfrage mit Status 503 und einem
+   *     `Retry-After`-Header abgelehnt.
+   * @default `10`
+   */
+  @Value.Default
+  default int getGenerationQueueTimeout() {
+    return 10;
+  }
+
+  /**
+   * @langEn Maximum number of sub-layer tiles of combined tiles that are retrieved concurrently. If
+   *     all threads are busy and the queue is full, the sub-layer tile is retrieved by the
+   *     requesting thread. The default is the number of available processors, but at least 2.
+   * @langDe Maximale Anzahl von Kacheln der Teil-Ebenen kombinierter Kacheln, die gleichzeitig
+   *     abgerufen werden. Sind alle Threads belegt und ist die Warteschlange voll, wird die Kachel
+   *     der Teil-Ebene vom anfragenden Thread abgerufen. Der Standardwert ist die Anzahl der
+   *     verfügbaren Prozessoren, mindestens aber 2.
+   * @default number of processors
+   */
+  @Value.Default
+  default int getMaxConcurrentSubLayers() {
+    return Math.max(2, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @langEn Maximum number of sub-layer tiles of combined tiles that wait for a free thread.
+   * @langDe Maximale Anzahl von Kacheln der Teil-Ebenen kombinierter Kacheln, die auf einen freien
+   *     Thread warten.
+   * @default `1024`
+   */
+  @Value.Default
+  default int getSubLayerQueueSize() {
+    return 1024;
+  }
+
+  /**
+   * @langEn Maximum time in seconds to retrieve the sub-layer tiles of a combined tile. Sub-layers
+   *     that are not available within that time are missing in the combined tile.
+   * @langDe Maximale Zeit in Sekunden, um die Kacheln der Teil-Ebenen einer kombinierten Kachel
+   *     abzurufen. Teil-Ebenen, die in dieser Zeit nicht verfügbar sind, fehlen in der kombinierten
+   *     Kachel.
+   * @default `30`
+   */
+  @Value.Default
+  default int getSubLayerTimeout() {
+    return 30;
+  }
+
+  /**
+   * @langEn Number of zoom levels beyond the maximum zoom level of a layer that are served for
+   *     Mapbox Vector Tiles. These tiles are not generated from the features, they are derived from
+   *     the tile at the maximum zoom level by scaling and clipping the geometries and are then
+   *     cached like generated tiles. With `0` no such tiles are served.
+   * @langDe Anzahl der Zoomstufen jenseits der maximalen Zoomstufe einer Ebene, die für Mapbox
+   *     Vector Tiles ausgeliefert werden. Diese Kacheln werden nicht aus den Features erzeugt,
+   *     sondern aus der Kachel der maximalen Zoomstufe durch Skalieren und Beschneiden der
+   *     Geometrien abgeleitet und dann wie erzeugte Kacheln gecacht. Bei `0` werden keine solchen
+   *     Kacheln ausgeliefert.
+   * @default `0`
+   */
+  @Value.Default
+  default int getMaxOverzoomLevels() {
+    return 0;
+  }
+
   @Override
   default TileProviderData mergeInto(TileProviderData source) {
     if (Objects.isNull(source) || !(source instanceof TileProviderFeaturesData)) return this;
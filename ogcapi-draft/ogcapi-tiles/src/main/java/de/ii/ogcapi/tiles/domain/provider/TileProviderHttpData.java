@@ -60,6 +60,53 @@ public interface TileProviderHttpData extends TileProviderData {
   @Override
   Map<String, LayerOptionsHttp> getLayers();
 
+  /**
+   * @langEn Timeout in seconds for establishing a connection to the tile server.
+   * @langDe Timeout in Sekunden für den Aufbau einer Verbindung zum Kachel-Server.
+   * @default `10`
+   */
+  @Value.Default
+  default int getConnectTimeout() {
+    return 10;
+  }
+
+  /**
+   * @langEn Timeout in seconds for a tile request to the tile server, including the time waiting
+   *     for a free request slot.
+   * @langDe Timeout in Sekunden für eine Kachel-Anfrage an den Kachel-Server, einschließlich der
+   *     Wartezeit auf einen freien Anfrage-Slot.
+   * @default `30`
+   */
+  @Value.Default
+  default int getRequestTimeout() {
+    return 30;
+  }
+
+  /**
+   * @langEn Maximum number of concurrent requests to the tile server.
+   * @langDe Maximale Anzahl gleichzeitiger Anfragen an den Kachel-Server.
+   * @default `16`
+   */
+  @Value.Default
+  default int getMaxConcurrentRequests() {
+    return 16;
+  }
+
+  /**
+   * @langEn Maximum total size in bytes of the tiles that are kept in memory, so that they can be
+   *     revalidated with a conditional request to the tile server. The least recently used tiles
+   *     are removed first. With `0` no tiles are kept and every tile is requested again.
+   * @langDe Maximale Gesamtgröße in Bytes der Kacheln, die im Speicher gehalten werden, damit sie
+   *     mit einer bedingten Anfrage an den Kachel-Server revalidiert werden können. Die am längsten
+   *     nicht verwendeten Kacheln werden zuerst entfernt. Bei `0` werden keine Kacheln gehalten und
+   *     jede Kachel wird erneut angefragt.
+   * @default `67108864`
+   */
+  @Value.Default
+  default long getMaxRevalidationBytes() {
+    return 64L * 1024 * 1024;
+  }
+
   @Override
   default TileProviderData mergeInto(TileProviderData source) {
     if (Objects.isNull(source) || !(source instanceof TileProviderHttpData)) return this;
@@ -8,7 +8,13 @@
 package de.ii.ogcapi.tiles.domain.provider;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.zip.GZIPInputStream;
 import org.immutables.value.Value;
 
 @Value.Immutable
@@ -31,6 +37,8 @@ public interface TileResult {
     Error
   }
 
+  String GZIP = "gzip";
+
   TileResult NOT_FOUND = new ImmutableTileResult.Builder().status(Status.NotFound).build();
 
   static TileResult notFound() {
@@ -38,19 +46,54 @@ public interface TileResult {
   }
 
   static TileResult notFound(byte[] content) {
-    return new ImmutableTileResult.Builder().status(Status.NotFound).content(content).build();
+    return new ImmutableTileResult.Builder()
+        .status(Status.NotFound)
+        .encodedContent(content)
+        .build();
   }
 
   static TileResult empty(byte[] content) {
-    return new ImmutableTileResult.Builder().status(Status.Empty).content(content).build();
+    return new ImmutableTileResult.Builder().status(Status.Empty).encodedContent(content).build();
   }
 
   static TileResult full(byte[] content) {
-    return new ImmutableTileResult.Builder().status(Status.Full).content(content).build();
+    return new ImmutableTileResult.Builder().status(Status.Full).encodedContent(content).build();
   }
 
   static TileResult found(byte[] content) {
-    return new ImmutableTileResult.Builder().status(Status.Found).content(content).build();
+    return new ImmutableTileResult.Builder().status(Status.Found).encodedContent(content).build();
+  }
+
+  /**
+   * @param status the status of the tile
+   * @param content the gzip compressed content of the tile
+   */
+  static TileResult gzipped(Status status, byte[] content) {
+    return new ImmutableTileResult.Builder()
+        .status(status)
+        .encodedContent(content)
+        .contentEncoding(GZIP)
+        .build();
+  }
+
+  /**
+   * @return the hash of the uncompressed content of a tile, see {@link #getContentHash()}
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  static String contentHash(byte[] content) {
+    return String.format("%016x", Hashing.murmur3_128().hashBytes(content).asLong());
+  }
+
+  /**
+   * @return the result with the content hash, if it is not already present
+   */
+  static TileResult withContentHash(TileResult result) {
+    if (result.getContentHash().isPresent() || result.getContent().isEmpty()) {
+      return result;
+    }
+
+    return ImmutableTileResult.copyOf(result)
+        .withContentHash(contentHash(result.getContent().get()));
   }
 
   static TileResult outsideLimits(String message) {
@@ -63,13 +106,56 @@ public interface TileResult {
 
   Status getStatus();
 
-  Optional<byte[]> getContent();
+  /**
+   * @return the content of the tile as it was stored, i.e. compressed if a content encoding is
+   *     present
+   */
+  Optional<byte[]> getEncodedContent();
+
+  /**
+   * @return the content encoding of {@link #getEncodedContent()}, currently only "gzip" is
+   *     supported
+   */
+  Optional<String> getContentEncoding();
+
+  /**
+   * @return the uncompressed content of the tile, decompressed on first access
+   */
+  @Value.Lazy
+  default Optional<byte[]> getContent() {
+    if (getEncodedContent().isEmpty() || getContentEncoding().isEmpty()) {
+      return getEncodedContent();
+    }
+
+    try (InputStream inputStream =
+        new GZIPInputStream(new ByteArrayInputStream(getEncodedContent().get()))) {
+      return Optional.of(inputStream.readAllBytes());
+    } catch (IOException e) {
+      throw new IllegalStateException(
+          String.format("Could not decompress tile content. Reason: %s", e.getMessage()), e);
+    }
+  }
+
+  /**
+   * @return the gzip compressed content of the tile, if it is stored compressed
+   */
+  default Optional<byte[]> getGzipContent() {
+    return Objects.equals(getContentEncoding().orElse(null), GZIP)
+        ? getEncodedContent()
+        : Optional.empty();
+  }
+
+  /**
+   * @return a strong hash of the uncompressed content that is computed when the tile is stored in
+   *     a cache, so that it can be used as entity tag without reading the content again
+   */
+  Optional<String> getContentHash();
 
   Optional<String> getError();
 
   @Value.Derived
   default boolean isAvailable() {
-    return getContent().isPresent();
+    return getEncodedContent().isPresent();
   }
 
   @Value.Derived
@@ -99,12 +185,21 @@ public interface TileResult {
 
   @Value.Check
   default void check() {
+    if (getContentEncoding().isPresent()) {
+      Preconditions.checkState(
+          Objects.equals(getContentEncoding().get(), GZIP),
+          "unsupported content encoding '%s'",
+          getContentEncoding().get());
+    }
     if (getStatus() == Status.Found) {
-      Preconditions.checkState(getContent().isPresent(), "content is required for status 'Found'");
+      Preconditions.checkState(
+          getEncodedContent().isPresent(), "content is required for status 'Found'");
     } else if (getStatus() == Status.Empty) {
-      Preconditions.checkState(getContent().isPresent(), "content is required for status 'Empty'");
+      Preconditions.checkState(
+          getEncodedContent().isPresent(), "content is required for status 'Empty'");
     } else if (getStatus() == Status.Full) {
-      Preconditions.checkState(getContent().isPresent(), "content is required for status 'Full'");
+      Preconditions.checkState(
+          getEncodedContent().isPresent(), "content is required for status 'Full'");
     } else if (getStatus() == Status.OutsideLimits) {
       Preconditions.checkState(
           getError().isPresent(), "error is required for status 'OutsideLimits'");
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app
+
+import de.ii.ogcapi.tilematrixsets.domain.ImmutableTileMatrixSetLimits
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits
+import de.ii.ogcapi.tiles.app.TileSeedingJob.Range
+import de.ii.ogcapi.tiles.app.TileSeedingJob.TileVisitor
+import de.ii.ogcapi.tiles.app.TileSeedingJob.Visit
+import de.ii.ogcapi.tiles.domain.TileFormatExtension
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import de.ii.xtraplatform.services.domain.TaskContext
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.function.BooleanSupplier
+import java.util.function.DoubleConsumer
+import spock.lang.Specification
+
+class TileSeedingJobSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+        getCols(_ as Integer) >> { int level -> 1 << level }
+        getRows(_ as Integer) >> { int level -> 1 << level }
+    }
+
+    TileFormatExtension outputFormat = Stub() {
+        getExtension() >> "mvt"
+    }
+
+    def 'The children of pruned tiles are not visited'() {
+
+        given: "a job for all tiles of the levels 0 to 6, where tile 1/0/0 is empty"
+
+        def progressFile = Files.createTempDirectory("seeding").resolve("test.progress")
+        def job = new TileSeedingJob("test", [range(0, 6)], false, progressFile)
+        def visited = ConcurrentHashMap.newKeySet()
+        TileVisitor visitor = { Range range, int level, int row, int col ->
+            visited.add("${level}/${row}/${col}".toString())
+            return level == 1 && row == 0 && col == 0 ? Visit.PRUNE : Visit.NEXT
+        }
+
+        when: "the job is processed by four partials"
+
+        def executor = Executors.newFixedThreadPool(4)
+        def completed = executor.invokeAll((0..<4).collect {
+            { -> job.work(taskContext(), visitor) } as Callable<Boolean>
+        }).collect { it.get() }
+        executor.shutdown()
+
+        then: "only the tiles outside of the subtree of the empty tile are visited"
+
+        completed.every()
+        visited.size() == job.total - job.pruned
+        visited.contains("1/0/1")
+        visited.contains("6/63/63")
+        !visited.any { tile -> isDescendant(tile, 1, 0, 0) }
+        job.pruned == (2..6).sum { level -> 1L << (2 * (level - 1)) }
+        !job.isActive()
+        !Files.exists(progressFile)
+
+        cleanup:
+
+        progressFile.parent.toFile().deleteDir()
+    }
+
+    def 'The subtrees of empty tiles and, if enabled, of full tiles are skipped and counted'() {
+
+        given: "a job for all tiles of the levels 0 to 6, where tile 1/0/0 is empty and tile 1/1/1 is full"
+
+        def job = new TileSeedingJob("test", [range(0, 6)], pruneFull)
+        def visited = ConcurrentHashMap.newKeySet()
+        TileVisitor visitor = { Range range, int level, int row, int col ->
+            visited.add("${level}/${row}/${col}".toString())
+            def result = level == 1 && row == 0 && col == 0
+                    ? TileResult.empty(new byte[0])
+                    : level == 1 && row == 1 && col == 1 ? TileResult.full([1] as byte[]) : TileResult.found([1] as byte[])
+            return TileSeedingBackgroundTask.nextVisit(result, pruneFull, { -> false } as BooleanSupplier)
+        }
+
+        when:
+
+        def completed = job.work(taskContext(), visitor)
+
+        then: "the descendants of the skipped subtrees are not visited, but they are counted as pruned"
+
+        completed
+        !visited.any { tile -> isDescendant(tile, 1, 0, 0) }
+        visited.any { tile -> isDescendant(tile, 1, 1, 1) } == !pruneFull
+        job.pruned == prunedSubtrees * (2..6).sum { level -> 1L << (2 * (level - 1)) }
+        job.processed == visited.size()
+        job.processed + job.pruned == job.total
+
+        where:
+
+        pruneFull || prunedSubtrees
+        false     || 1
+        true      || 2
+    }
+
+    def 'The next visit depends on the tile result'() {
+
+        expect:
+
+        TileSeedingBackgroundTask.nextVisit(result, pruneFull, { -> stopped } as BooleanSupplier) == visit
+
+        where:
+
+        result                            | pruneFull | stopped || visit
+        TileResult.found([1] as byte[])   | true      | false   || Visit.NEXT
+        TileResult.empty(new byte[0])     | false     | false   || Visit.PRUNE
+        TileResult.full([1] as byte[])    | false     | false   || Visit.NEXT
+        TileResult.full([1] as byte[])    | true      | false   || Visit.PRUNE
+        TileResult.error("failed")        | true      | false   || Visit.NEXT
+        TileResult.empty(new byte[0])     | true      | true    || Visit.STOP
+    }
+
+    def 'An interrupted job resumes with the incomplete blocks'() {
+
+        given: "a job for all tiles of the levels 5 to 7, that is stopped after 1000 tiles"
+
+        def progressFile = Files.createTempDirectory("seeding").resolve("test.progress")
+        def visited = []
+        def stopped = false
+        def taskContext = Stub(TaskContext) {
+            isStopped() >> { stopped }
+        }
+        def job = new TileSeedingJob("test", [range(5, 7)], false, progressFile)
+        TileVisitor visitor = { Range range, int level, int row, int col ->
+            visited << "${level}/${row}/${col}".toString()
+            stopped = visited.size() >= 1000
+            return stopped ? Visit.STOP : Visit.NEXT
+        }
+
+        when: "the job is resumed"
+
+        def interrupted = job.work(taskContext, visitor)
+        def visitedBefore = visited.size()
+        stopped = false
+        def resumedJob = new TileSeedingJob("test", [range(5, 7)], false, progressFile)
+        visitor = { Range range, int level, int row, int col ->
+            visited << "${level}/${row}/${col}".toString()
+            return Visit.NEXT
+        }
+        def completed = resumedJob.work(taskContext, visitor)
+
+        then: "only the tiles of the incomplete blocks are visited again"
+
+        !interrupted
+        !job.isActive()
+        completed
+        visited.toSet().size() == (5..7).sum { level -> 1L << (2 * level) }
+        visited.size() - visited.toSet().size() < TileSeedingJob.BLOCK_SIZE * TileSeedingJob.BLOCK_SIZE
+        resumedJob.total < job.total
+        visitedBefore == 1000
+
+        cleanup:
+
+        progressFile.parent.toFile().deleteDir()
+    }
+
+    def 'A job that is interrupted twice resumes with the incomplete blocks'() {
+
+        given: "a job for all tiles of the levels 5 to 7, that is stopped after 1000 tiles in the first and in the second run"
+
+        def progressFile = Files.createTempDirectory("seeding").resolve("test.progress")
+        def visited = []
+        def stopAfter = 1000
+        def taskContext = Stub(TaskContext) {
+            isStopped() >> { visited.size() >= stopAfter }
+        }
+        TileVisitor visitor = { Range range, int level, int row, int col ->
+            visited << "${level}/${row}/${col}".toString()
+            return visited.size() >= stopAfter ? Visit.STOP : Visit.NEXT
+        }
+
+        when: "the job is resumed twice"
+
+        def first = new TileSeedingJob("test", [range(5, 7)], false, progressFile)
+        def firstCompleted = first.work(taskContext, visitor)
+        stopAfter = 2000
+        def second = new TileSeedingJob("test", [range(5, 7)], false, progressFile)
+        def secondCompleted = second.work(taskContext, visitor)
+        stopAfter = Integer.MAX_VALUE
+        def third = new TileSeedingJob("test", [range(5, 7)], false, progressFile)
+        def thirdCompleted = third.work(taskContext, visitor)
+
+        then: "the blocks completed in the first run are not visited again in the third run"
+
+        !firstCompleted
+        !secondCompleted
+        thirdCompleted
+        visited.toSet().size() == (5..7).sum { level -> 1L << (2 * level) }
+        visited.size() - visited.toSet().size() < 2 * TileSeedingJob.BLOCK_SIZE * TileSeedingJob.BLOCK_SIZE
+        third.total < second.total
+        second.total < first.total
+        !Files.exists(progressFile)
+
+        cleanup:
+
+        progressFile.parent.toFile().deleteDir()
+    }
+
+    def 'A job without a progress file stops between tiles'() {
+
+        given: "a job for all tiles of the levels 0 to 6 without a progress file, that is stopped after 100 tiles"
+
+        def visited = []
+        def job = new TileSeedingJob("reseed", [range(0, 6)], false)
+        TileVisitor visitor = { Range range, int level, int row, int col ->
+            visited << "${level}/${row}/${col}".toString()
+            return Visit.NEXT
+        }
+
+        when:
+
+        def completed = job.work({ -> visited.size() >= 100 } as BooleanSupplier, { double completeness -> } as DoubleConsumer, visitor)
+
+        then: "no more tiles are visited after the stop"
+
+        !completed
+        !job.isActive()
+        visited.size() == 100
+    }
+
+    TaskContext taskContext() {
+        return Stub(TaskContext) {
+            isStopped() >> false
+        }
+    }
+
+    Range range(int minLevel, int maxLevel) {
+        return new Range("layer", outputFormat, tileMatrixSet, (minLevel..maxLevel).collect { level -> limits(level) })
+    }
+
+    static TileMatrixSetLimits limits(int level) {
+        return new ImmutableTileMatrixSetLimits.Builder()
+                .tileMatrix(String.valueOf(level))
+                .minTileRow(0)
+                .maxTileRow((1 << level) - 1)
+                .minTileCol(0)
+                .maxTileCol((1 << level) - 1)
+                .build()
+    }
+
+    static boolean isDescendant(String tile, int level, int row, int col) {
+        def (tileLevel, tileRow, tileCol) = tile.split("/").collect { it as int }
+        int diff = tileLevel - level
+        return diff > 0 && (tileRow >> diff) == row && (tileCol >> diff) == col
+    }
+}
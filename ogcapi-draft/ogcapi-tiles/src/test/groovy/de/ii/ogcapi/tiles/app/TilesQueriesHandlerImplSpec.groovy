@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app
+
+import de.ii.ogcapi.features.core.domain.FeaturesQuery
+import de.ii.ogcapi.foundation.domain.ApiRequestContext
+import de.ii.ogcapi.foundation.domain.FeatureTypeConfigurationOgcApi
+import de.ii.ogcapi.foundation.domain.OgcApi
+import de.ii.ogcapi.foundation.domain.OgcApiDataV2
+import de.ii.ogcapi.foundation.domain.QueryParameterSet
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.TileFormatExtension
+import de.ii.ogcapi.tiles.domain.TilesQueriesHandler.QueryInputTile
+import de.ii.ogcapi.tiles.domain.provider.TileGenerationSchema
+import de.ii.ogcapi.tiles.domain.provider.TileGenerator
+import de.ii.ogcapi.tiles.domain.provider.TileProvider
+import de.ii.ogcapi.tiles.domain.provider.TileGenerationParameters
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.xtraplatform.crs.domain.BoundingBox
+import de.ii.xtraplatform.crs.domain.OgcCrs
+import java.util.concurrent.atomic.AtomicLong
+import spock.lang.Requires
+import spock.lang.Specification
+
+class TilesQueriesHandlerImplSpec extends Specification {
+
+    static final int ITERATIONS = 100_000
+
+    def 'The clip bounding box follows changes of the spatial extent'() {
+
+        given: "a collection without a spatial extent yet, the extent is changed in place like the changing data of an API"
+
+        BoundingBox extent = null
+        def tileMatrixSet = TileMatrixSet.fromWellKnownId("WebMercatorQuad").orElseThrow()
+        FeatureTypeConfigurationOgcApi collectionData = Stub() {
+            getExtension(_) >> Optional.empty()
+        }
+        OgcApiDataV2 apiData = Stub() {
+            getId() >> "api"
+            getCollectionData("buildings") >> Optional.of(collectionData)
+        }
+        OgcApi api = Stub() {
+            getData() >> apiData
+            getSpatialExtent(_) >> { Optional.ofNullable(extent) }
+            getSpatialExtent(_, _) >> { Optional.ofNullable(extent) }
+        }
+        ApiRequestContext requestContext = Stub() {
+            getApi() >> api
+            getApiUri() >> "http://localhost/api"
+        }
+        TileProvider tileProvider = Stub() {
+            supportsGeneration() >> false
+        }
+        FeaturesQuery featuresQuery = Stub() {
+            getQueryableTypes(_, _) >> [:]
+        }
+        TileFormatExtension outputFormat = Stub() {
+            getMediaType() >> TileFormatMVT.MEDIA_TYPE
+        }
+        QueryInputTile queryInput = Stub() {
+            getCollectionId() >> Optional.of("buildings")
+            getOutputFormat() >> outputFormat
+            getParameters() >> Stub(QueryParameterSet)
+            getTileMatrixSet() >> tileMatrixSet
+            getLevel() >> 12
+            getRow() >> 1400
+            getCol() >> 2100
+            getBoundingBox() >> tileMatrixSet.getTileBoundingBox(12, 2100, 1400)
+        }
+        def handler = new TilesQueriesHandlerImpl(null, null, null, null, null, null, null, null, featuresQuery)
+        def initial = BoundingBox.of(7.0, 50.0, 8.0, 51.0, OgcCrs.CRS84)
+        def extended = BoundingBox.of(6.0, 50.0, 8.0, 52.0, OgcCrs.CRS84)
+
+        when: "tiles are requested before the extent is computed, after it is computed and after features outside of it were added"
+
+        def beforeStartup = clipBoundingBox(handler.getTileQuery(queryInput, requestContext, tileProvider))
+        extent = initial
+        def afterStartup = clipBoundingBox(handler.getTileQuery(queryInput, requestContext, tileProvider))
+        extent = extended
+        def afterChange = clipBoundingBox(handler.getTileQuery(queryInput, requestContext, tileProvider))
+
+        then: "the current extent is used for every request"
+
+        beforeStartup.isEmpty()
+        afterStartup == Optional.of(initial)
+        afterChange == Optional.of(extended)
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark deriving the tile query of a tile request'() {
+
+        given: "a handler for a collection, that counts the derivations from the configuration"
+
+        def derivations = new AtomicLong()
+        def tileMatrixSet = TileMatrixSet.fromWellKnownId("WebMercatorQuad").orElseThrow()
+        FeatureTypeConfigurationOgcApi collectionData = Stub() {
+            getExtension(_) >> Optional.empty()
+        }
+        OgcApiDataV2 apiData = Stub() {
+            getId() >> "api"
+            getCollectionData("buildings") >> Optional.of(collectionData)
+        }
+        OgcApi api = Stub() {
+            getData() >> apiData
+            getSpatialExtent(_, _) >> { derivations.incrementAndGet(); Optional.empty() }
+        }
+        ApiRequestContext requestContext = Stub() {
+            getApi() >> api
+            getApiUri() >> "http://localhost/api"
+        }
+        TileGenerator tileGenerator = Stub() {
+            getGenerationSchema(_, _) >> { derivations.incrementAndGet(); Stub(TileGenerationSchema) }
+        }
+        TileProvider tileProvider = Stub() {
+            supportsGeneration() >> true
+            generator() >> tileGenerator
+        }
+        FeaturesQuery featuresQuery = Stub() {
+            getQueryableTypes(_, _) >> { derivations.incrementAndGet(); [:] }
+        }
+        TileFormatExtension outputFormat = Stub() {
+            getMediaType() >> TileFormatMVT.MEDIA_TYPE
+        }
+        QueryInputTile queryInput = Stub() {
+            getCollectionId() >> Optional.of("buildings")
+            getOutputFormat() >> outputFormat
+            getParameters() >> Stub(QueryParameterSet)
+            getTileMatrixSet() >> tileMatrixSet
+            getLevel() >> 12
+            getRow() >> 1400
+            getCol() >> 2100
+            getBoundingBox() >> tileMatrixSet.getTileBoundingBox(12, 2100, 1400)
+        }
+        def handler = new TilesQueriesHandlerImpl(null, null, null, null, null, null, null, null, featuresQuery)
+
+        when: "the tile query is derived with and without the precomputed context"
+
+        def before = measure {
+            handler.tileSetContexts.clear()
+            handler.getTileQuery(queryInput, requestContext, tileProvider)
+        }
+        def derivationsBefore = derivations.getAndSet(0)
+        def after = measure { handler.getTileQuery(queryInput, requestContext, tileProvider) }
+        def derivationsAfter = derivations.get()
+
+        println "deriving ${ITERATIONS} tile queries, derived for every request: ${before.durationMs}ms, precomputed: ${after.durationMs}ms"
+
+        then: "with the precomputed context, nothing is derived again"
+
+        // three derivations per request, including the warm-up
+        derivationsBefore == 3 * 2 * ITERATIONS
+        derivationsAfter == 0
+        before.query == after.query
+    }
+
+    static Optional<BoundingBox> clipBoundingBox(TileQuery tileQuery) {
+        return tileQuery.generationParameters.flatMap { TileGenerationParameters parameters -> parameters.clipBoundingBox }
+    }
+
+    static Map<String, Object> measure(Closure<TileQuery> getTileQuery) {
+        TileQuery query = null
+        // warm-up
+        (0..<ITERATIONS).each { query = getTileQuery() }
+
+        def start = System.nanoTime()
+        (0..<ITERATIONS).each { query = getTileQuery() }
+        def durationMs = (System.nanoTime() - start).intdiv(1000000)
+
+        return [durationMs: durationMs, query: query]
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tiles.domain.ImmutableMvtFeature
+import de.ii.ogcapi.tiles.domain.MvtFeature
+import org.locationtech.jts.geom.Coordinate
+import org.locationtech.jts.geom.Geometry
+import org.locationtech.jts.geom.GeometryFactory
+import spock.lang.Specification
+
+class ClusterAnalysisSpec extends Specification {
+
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory()
+
+    def 'Cluster assignments are identical to the pairwise comparison'() {
+
+        given: "random features"
+
+        def features = boundary ? lineStrings(seed, 300) : polygons(seed, 300)
+
+        when: "the clusters are determined"
+
+        def actual = ClusterAnalysis.analyse(features, boundary)
+        def expected = analysePairwise(features, boundary)
+
+        then: "the result is the same as with the previous implementation"
+
+        actual.clusters == expected.clusters
+        actual.inCluster == expected.inCluster
+        actual.standalone == expected.standalone
+
+        where:
+        seed | boundary
+        1    | false
+        2    | false
+        3    | false
+        1    | true
+        2    | true
+        3    | true
+    }
+
+    def 'Overlapping features form a cluster'() {
+
+        given: "two overlapping squares and a separate square"
+
+        def features = [
+                feature(1, square(0, 0, 2)),
+                feature(2, square(1, 1, 2)),
+                feature(3, square(10, 10, 2))]
+
+        when: "the clusters are determined"
+
+        def result = ClusterAnalysis.analyse(features, false)
+
+        then: "the separate square is standalone"
+
+        result.clusters.get(features[0]) == [features[1]]
+        result.inCluster == [(features[1]): features[0]]
+        result.standalone == [features[2]] as Set
+    }
+
+    // the implementation before the spatial index was introduced
+    static ClusterAnalysis analysePairwise(List<MvtFeature> features, boolean boundary) {
+        ClusterAnalysis clusterResult = new ClusterAnalysis()
+        for (int i = 0; i < features.size(); i++) {
+            MvtFeature fi = features.get(i)
+            Geometry gi = fi.getGeometry()
+            Optional<MvtFeature> cluster = Optional.ofNullable(clusterResult.inCluster.get(fi))
+            for (int j = i + 1; j < features.size(); j++) {
+                MvtFeature fj = features.get(j)
+                Geometry gj = fj.getGeometry()
+                boolean clustered =
+                        boundary ? gi.getBoundary().intersects(gj.getBoundary()) : gi.intersects(gj)
+                if (clustered) {
+                    if (cluster.isPresent()) {
+                        clusterResult.clusters.put(cluster.get(), fj)
+                        clusterResult.inCluster.put(fj, cluster.get())
+                    } else {
+                        clusterResult.clusters.put(fi, fj)
+                        clusterResult.inCluster.put(fj, fi)
+                    }
+                }
+            }
+            if (cluster.isEmpty() && !clusterResult.clusters.containsKey(fi)) {
+                clusterResult.standalone.add(fi)
+            }
+        }
+        return clusterResult
+    }
+
+    static List<MvtFeature> polygons(long seed, int count) {
+        def random = new Random(seed)
+        (1..count).collect {
+            feature(it, square(random.nextInt(250), random.nextInt(250), 1 + random.nextInt(12)))
+        }
+    }
+
+    static List<MvtFeature> lineStrings(long seed, int count) {
+        def random = new Random(seed)
+        (1..count).collect {
+            def x = random.nextInt(50) * 5
+            def y = random.nextInt(50) * 5
+            def line = GEOMETRY_FACTORY.createLineString([
+                    new Coordinate(x, y),
+                    new Coordinate(x + random.nextInt(3) * 5, y + random.nextInt(3) * 5 + 5)] as Coordinate[])
+            feature(it, line)
+        }
+    }
+
+    static Geometry square(int x, int y, int size) {
+        GEOMETRY_FACTORY.createPolygon([
+                new Coordinate(x, y),
+                new Coordinate(x + size, y),
+                new Coordinate(x + size, y + size),
+                new Coordinate(x, y + size),
+                new Coordinate(x, y)] as Coordinate[])
+    }
+
+    static MvtFeature feature(long id, Geometry geometry) {
+        new ImmutableMvtFeature.Builder()
+                .id(id)
+                .properties([:])
+                .geometry(geometry)
+                .build()
+    }
+}
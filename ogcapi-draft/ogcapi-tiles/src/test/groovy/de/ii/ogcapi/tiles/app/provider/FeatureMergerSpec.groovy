@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tiles.domain.ImmutableMvtFeature
+import de.ii.ogcapi.tiles.domain.MvtFeature
+import org.locationtech.jts.geom.Coordinate
+import org.locationtech.jts.geom.GeometryFactory
+import org.locationtech.jts.geom.PrecisionModel
+import spock.lang.Requires
+import spock.lang.Specification
+
+class FeatureMergerSpec extends Specification {
+
+    static final PrecisionModel PRECISION_MODEL = new PrecisionModel(16.0d)
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(PRECISION_MODEL)
+
+    def 'Adjacent parcels with the same values are merged'() {
+
+        given: "a grid of 4x4 parcels with the same land use"
+
+        def features = parcels(4) { col, row -> [landuse: "residential"] }
+
+        when: "the parcels are merged"
+
+        def merged = merger(["landuse"]).merge(features)
+
+        then: "there is a single feature that covers the grid"
+
+        merged.size() == 1
+        merged[0].geometry.area == 16.0d
+        merged[0].properties == [landuse: "residential"]
+    }
+
+    def 'Parcels are only merged with connected parcels of the same group'() {
+
+        given: "a grid of 4x4 parcels with alternating land use per column"
+
+        def features = parcels(4) { col, row -> [landuse: col % 2 == 0 ? "residential" : "forest"] }
+
+        when: "the parcels are merged"
+
+        def merged = merger(["landuse"]).merge(features)
+
+        then: "every column is a separate feature"
+
+        merged.size() == 4
+        merged.every { it.geometry.area == 4.0d }
+        merged.count { it.properties.landuse == "forest" } == 2
+    }
+
+    def 'Parcels without the groupBy attribute are merged, too'() {
+
+        given: "a row of parcels, some without land use"
+
+        def features = parcels(4) { col, row -> row == 0 ? [:] : [landuse: "forest"] }
+
+        when: "the parcels are merged"
+
+        def merged = merger(["landuse"]).merge(features)
+
+        then: "the parcels without land use form a separate feature"
+
+        merged.size() == 2
+        merged.find { !it.properties.containsKey("landuse") }.geometry.area == 4.0d
+        merged.find { it.properties.landuse == "forest" }.geometry.area == 12.0d
+    }
+
+    def 'Properties that differ are dropped from the merged feature'() {
+
+        given: "two adjacent parcels with different names"
+
+        def features = parcels(2) { col, row -> [landuse: "forest", name: "parcel ${col}/${row}".toString()] }
+
+        when: "the parcels are merged"
+
+        def merged = merger(["landuse"]).merge(features)
+
+        then: "only the common properties are kept"
+
+        merged.size() == 1
+        merged[0].properties == [landuse: "forest"]
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark merging of parcels'() {
+
+        given: "a grid of 150x150 parcels with five land use classes in blocks"
+
+        def random = new Random(42)
+        def features = parcels(150) { col, row -> [landuse: "class${(col.intdiv(5) * 7 + row.intdiv(5) * 3 + random.nextInt(2)) % 5}".toString()] }
+        def iterations = 5
+
+        when: "the parcels are merged repeatedly"
+
+        merger(["landuse"]).merge(features)
+
+        def start = System.nanoTime()
+        def merged = null
+        (0..<iterations).each { merged = merger(["landuse"]).merge(features) }
+        def durationMs = (System.nanoTime() - start) / 1000000 / iterations
+
+        println "merging ${features.size()} parcels into ${merged.size()} features: ${durationMs}ms"
+
+        then: "the total area is unchanged"
+
+        Math.abs(merged.sum { it.geometry.area } - 150 * 150) < 0.001d
+    }
+
+    static FeatureMerger merger(List<String> groupBy) {
+        new FeatureMerger(groupBy, true, ["*"], GEOMETRY_FACTORY, PRECISION_MODEL, "test")
+    }
+
+    static Set<MvtFeature> parcels(int size, Closure<Map<String, Object>> properties) {
+        def features = new LinkedHashSet<MvtFeature>()
+        long id = 0
+
+        (0..<size).each { col ->
+            (0..<size).each { row ->
+                def polygon = GEOMETRY_FACTORY.createPolygon([
+                        new Coordinate(col, row),
+                        new Coordinate(col + 1, row),
+                        new Coordinate(col + 1, row + 1),
+                        new Coordinate(col, row + 1),
+                        new Coordinate(col, row)] as Coordinate[])
+                features.add(new ImmutableMvtFeature.Builder()
+                        .id(++id)
+                        .properties(properties(col, row))
+                        .geometry(polygon)
+                        .build())
+            }
+        }
+
+        return features
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import com.google.common.collect.Range
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import spock.lang.Specification
+
+class GzippedTilesSpec extends Specification {
+
+    static final byte[] CONTENT = ("mvt" * 100).getBytes(StandardCharsets.UTF_8)
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+        getMinLevel() >> 0
+        getMaxLevel() >> 24
+        getCols(_ as Integer) >> { int level -> 1 << level }
+        getRows(_ as Integer) >> { int level -> 1 << level }
+        getTmsRow(_ as Integer, _ as Integer) >> { int level, int row -> (1 << level) - 1 - row }
+    }
+
+    def 'Tiles from a MBTiles file are passed on as stored'() {
+
+        given: "a MBTiles file with a vector tile"
+
+        def path = Files.createTempDirectory("mbtiles").resolve("test.mbtiles")
+        def metadata = ImmutableMbtilesMetadata.builder()
+                .name("test")
+                .format(MbtilesMetadata.MbtilesFormat.pbf)
+                .build()
+        def tileset = new MbtilesTileset(path, metadata)
+        tileset.writeTile(tile(10, 300, 500), CONTENT)
+
+        when:
+
+        def result = tileset.getTileResult(tile(10, 300, 500))
+
+        then: "the content is the gzip compressed content of the file and is decompressed on access"
+
+        result.getContentEncoding().get() == TileResult.GZIP
+        result.getGzipContent().get() == tileset.getEncodedTile(tile(10, 300, 500)).get()
+        result.getEncodedContent().get() != CONTENT
+        gunzip(result.getEncodedContent().get()) == CONTENT
+        result.getContent().get() == CONTENT
+
+        cleanup:
+
+        path.parent.toFile().deleteDir()
+    }
+
+    def 'Compressed content is only decompressed when it is accessed'() {
+
+        given: "a result with content that is not valid gzip"
+
+        def invalid = "not gzip".getBytes(StandardCharsets.UTF_8)
+
+        when:
+
+        def result = TileResult.gzipped(TileResult.Status.Found, invalid)
+
+        then: "the compressed content is available"
+
+        result.isAvailable()
+        result.getGzipContent().get() == invalid
+
+        when: "the content is accessed"
+
+        result.getContent()
+
+        then: "it is decompressed"
+
+        thrown(IllegalStateException)
+    }
+
+    def 'Uncompressed content has no gzip content'() {
+
+        when:
+
+        def result = TileResult.found(CONTENT)
+
+        then:
+
+        result.getContentEncoding().isEmpty()
+        result.getGzipContent().isEmpty()
+        result.getContent().get() == CONTENT
+    }
+
+    def 'Compressed tiles are kept compressed by the memory cache'() {
+
+        given: "a cache in memory and a delegate that returns a compressed tile"
+
+        def gzipped = gzip(CONTENT)
+        def store = new TileStoreMemory(1_000_000, 100_000)
+        ChainedTileProvider delegate = Stub() {
+            get(_ as TileQuery) >> TileResult.gzipped(TileResult.Status.Found, gzipped)
+        }
+        def cache = new TileCacheDynamic(store, delegate, ["layer": ["WebMercatorQuad": Range.closed(0, 16)]])
+
+        when: "the tile is requested twice"
+
+        def generated = cache.get(tile(10, 300, 500))
+        def cached = cache.get(tile(10, 300, 500))
+
+        then: "the stored and the cached tile are passed on as compressed"
+
+        generated.getGzipContent().get() == gzipped
+        store.get(tile(10, 300, 500)).getGzipContent().get() == gzipped
+        cached.getGzipContent().get() == gzipped
+        cached.getContent().get() == CONTENT
+    }
+
+    def 'Descendants of full tiles are passed on as compressed'() {
+
+        given: "a cache with a compressed full tile at level 10"
+
+        def gzipped = gzip(CONTENT)
+        def store = new TileStoreMemory(1_000_000, 100_000)
+        store.put(tile(10, 300, 500), TileResult.gzipped(TileResult.Status.Full, gzipped))
+        def cache = new TileCacheDynamic(store, Mock(ChainedTileProvider), ["layer": ["WebMercatorQuad": Range.closed(0, 16)]])
+
+        when: "a child is requested"
+
+        def result = cache.get(tile(11, 601, 1000))
+
+        then: "it has the compressed content of the full tile"
+
+        result.isFull()
+        result.getGzipContent().get() == gzipped
+        result.getContent().get() == CONTENT
+    }
+
+    static byte[] gzip(byte[] content) {
+        def bytes = new ByteArrayOutputStream()
+        new GZIPOutputStream(bytes).withCloseable { it.write(content) }
+        return bytes.toByteArray()
+    }
+
+    static byte[] gunzip(byte[] content) {
+        return new GZIPInputStream(new ByteArrayInputStream(content)).withCloseable { it.readAllBytes() }
+    }
+
+    TileQuery tile(int level, int row, int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(level)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
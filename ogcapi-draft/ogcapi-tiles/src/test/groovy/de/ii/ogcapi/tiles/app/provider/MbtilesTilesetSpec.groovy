@@ -0,0 +1,191 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.zip.GZIPOutputStream
+import spock.lang.Requires
+import spock.lang.Specification
+
+class MbtilesTilesetSpec extends Specification {
+
+    static final int LEVEL = 10
+    static final int TILES = 32
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+        getTmsRow(_ as Integer, _ as Integer) >> { int level, int row -> (1 << level) - 1 - row }
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark parallel tile reads'() {
+
+        given: "a MBTiles file with ${TILES * TILES} tiles"
+
+        def path = Files.createTempDirectory("mbtiles").resolve("benchmark.mbtiles")
+        def metadata = ImmutableMbtilesMetadata.builder()
+                .name("benchmark")
+                .format(MbtilesMetadata.MbtilesFormat.pbf)
+                .build()
+        def tileset = new MbtilesTileset(path, metadata)
+        def random = new Random(42)
+        def tiles = []
+        (0..<TILES).each { row ->
+            (0..<TILES).each { col ->
+                def content = new byte[16 * 1024]
+                random.nextBytes(content)
+                tileset.writeTile(tile(row, col), content)
+                tiles << tile(row, col)
+            }
+        }
+        def iterations = 5
+
+        when: "all tiles are read with one thread and with eight threads"
+
+        def sequential = readAll(tileset, tiles, 1, iterations)
+        def parallel = readAll(tileset, tiles, 8, iterations)
+
+        println "reading ${tiles.size() * iterations} tiles with 1 thread: ${sequential.durationMs}ms, with 8 threads: ${parallel.durationMs}ms, speedup: ${sequential.durationMs / Math.max(1, parallel.durationMs)}"
+
+        then: "all tiles are found"
+
+        sequential.found == tiles.size() * iterations
+        parallel.found == tiles.size() * iterations
+
+        cleanup:
+
+        path.parent.toFile().deleteDir()
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark deduplicated tile writes'() {
+
+        given: "${TILES * TILES} tiles, of which only every tenth tile is unique"
+
+        def path = Files.createTempDirectory("mbtiles").resolve("benchmark.mbtiles")
+        def metadata = ImmutableMbtilesMetadata.builder()
+                .name("benchmark")
+                .format(MbtilesMetadata.MbtilesFormat.pbf)
+                .build()
+        def tileset = new MbtilesTileset(path, metadata)
+        def random = new Random(42)
+        def duplicate = new byte[16 * 1024]
+        random.nextBytes(duplicate)
+
+        when: "the tiles are written"
+
+        def start = System.nanoTime()
+        (0..<TILES).each { row ->
+            (0..<TILES).each { col ->
+                def content = duplicate
+                if ((row * TILES + col) % 10 == 0) {
+                    content = new byte[16 * 1024]
+                    random.nextBytes(content)
+                }
+                tileset.writeTile(tile(row, col), content)
+            }
+        }
+        def durationMs = (System.nanoTime() - start).intdiv(1000000)
+
+        println "writing ${TILES * TILES} tiles: ${durationMs}ms, deduplicated: ${tileset.deduplicatedWrites}, saved: ${tileset.deduplicatedBytes.intdiv(1024)}kB, file size: ${Files.size(path).intdiv(1024)}kB"
+
+        then: "the duplicates share a blob"
+
+        tileset.deduplicatedWrites == (0..<TILES * TILES).count { it % 10 != 0 } - 1
+
+        when: "one of the duplicates is deleted"
+
+        tileset.deleteTile(tile(0, 1))
+
+        then: "the other duplicates are still available"
+
+        !tileset.tileExists(tile(0, 1))
+        tileset.getTile(tile(0, 2)).get().readAllBytes() == duplicate
+
+        cleanup:
+
+        path.parent.toFile().deleteDir()
+    }
+
+    def 'Compressed tiles are written without compressing them again'() {
+
+        given: "a MBTiles file and a compressed tile"
+
+        def path = Files.createTempDirectory("mbtiles").resolve("encoded.mbtiles")
+        def metadata = ImmutableMbtilesMetadata.builder()
+                .name("encoded")
+                .format(MbtilesMetadata.MbtilesFormat.pbf)
+                .build()
+        def tileset = new MbtilesTileset(path, metadata)
+        def content = [1, 2, 3] as byte[]
+        def data = gzip(content)
+
+        when: "the compressed tile and a compressed empty tile are written"
+
+        tileset.writeEncodedTile(tile(0, 0), data, Optional.empty(), Optional.empty())
+        tileset.writeEncodedTile(tile(0, 1), gzip(new byte[0]), Optional.empty(), Optional.empty())
+
+        then: "the compressed bytes are stored as they are, with the hash of the uncompressed content"
+
+        tileset.getEncodedTile(tile(0, 0)).get() == data
+        tileset.getTile(tile(0, 0)).get().readAllBytes() == content
+        tileset.getTileResult(tile(0, 0)).getContentHash() == Optional.of(TileResult.contentHash(content))
+        tileset.tileIsEmpty(tile(0, 1)) == Optional.of(true)
+
+        cleanup:
+
+        path.parent.toFile().deleteDir()
+    }
+
+    static byte[] gzip(byte[] content) {
+        def bytes = new ByteArrayOutputStream()
+        new GZIPOutputStream(bytes).withCloseable { it.write(content) }
+        return bytes.toByteArray()
+    }
+
+    static Map<String, Long> readAll(MbtilesTileset tileset, List<TileQuery> tiles, int threads, int iterations) {
+        def executor = Executors.newFixedThreadPool(threads)
+        def tasks = (0..<threads).collect { thread ->
+            { ->
+                long found = 0
+                (0..<iterations).each {
+                    tiles.eachWithIndex { tile, i ->
+                        if (i % threads == thread && tileset.getTile(tile).map { it.readAllBytes() }.isPresent()) {
+                            found++
+                        }
+                    }
+                }
+                found
+            } as Callable<Long>
+        }
+
+        def start = System.nanoTime()
+        def found = executor.invokeAll(tasks).sum { it.get() }
+        def durationMs = (System.nanoTime() - start).intdiv(1000000)
+        executor.shutdown()
+
+        return [found: found, durationMs: durationMs]
+    }
+
+    TileQuery tile(int row, int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(LEVEL)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
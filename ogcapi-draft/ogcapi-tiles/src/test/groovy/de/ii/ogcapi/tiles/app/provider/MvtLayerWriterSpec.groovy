@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import no.ecc.vectortile.VectorTileDecoder
+import no.ecc.vectortile.VectorTileEncoder
+import org.locationtech.jts.geom.Geometry
+import org.locationtech.jts.geom.GeometryFactory
+import org.locationtech.jts.geom.PrecisionModel
+import org.locationtech.jts.io.WKTReader
+import spock.lang.Requires
+import spock.lang.Specification
+
+class MvtLayerWriterSpec extends Specification {
+
+    static final int EXTENT = 4096
+    static final double SCALE = 16.0d
+    static final WKTReader WKT_READER = new WKTReader(new GeometryFactory(new PrecisionModel(SCALE)))
+
+    def 'The decoded features are the same as with VectorTileEncoder'() {
+
+        given: "a feature"
+
+        def geometry = WKT_READER.read(wkt)
+        def properties = [name: "feature", count: 42L, length: 12.5d, small: 7, ratio: 0.25f, flag: true]
+
+        when: "the feature is encoded with both encoders"
+
+        def writer = new MvtLayerWriter("layer", EXTENT, SCALE)
+        writer.addFeature(geometry.copy(), properties, 17L)
+        def encoder = new VectorTileEncoder(EXTENT)
+        encoder.addFeature("layer", properties, geometry.copy(), 17L)
+
+        then: "the decoder returns the same feature"
+
+        features(writer.encode()) == features(encoder.encode())
+
+        where:
+
+        wkt << [
+                "POINT (10 20)",
+                "MULTIPOINT ((10 20), (30.5 40.25), (10 20))",
+                "LINESTRING (10 10, 100 10, 100 10, 100 200.0625, 250 250)",
+                "MULTILINESTRING ((10 10, 100 10), (100 200, 250 250, 5 7))",
+                // the exterior ring is counter-clockwise, the hole clockwise in the tile
+                "POLYGON ((10 10, 10 200, 200 200, 200 10, 10 10), (50 50, 100 50, 100 100, 50 100, 50 50))",
+                "POLYGON ((10 10, 200 10, 200 200, 10 200, 10 10), (50 50, 50 100, 100 100, 100 50, 50 50))",
+                "MULTIPOLYGON (((10 10, 20 10, 20 20, 10 20, 10 10)), ((100 100, 200 100, 200 200, 100 100)))",
+        ]
+    }
+
+    def 'The keys and values are shared by the features of the layer'() {
+
+        given: "features with the same properties"
+
+        def writer = new MvtLayerWriter("layer", EXTENT, SCALE)
+        def encoder = new VectorTileEncoder(EXTENT)
+
+        when: "the features are encoded with both encoders"
+
+        (0..<100).each { i ->
+            def geometry = WKT_READER.read("POINT (${i} ${i})")
+            def properties = [id: (long) i, group: "group ${i % 3}".toString(), even: i % 2 == 0, value: (i % 5) / 2.0d]
+            writer.addFeature(geometry.copy(), properties, null)
+            encoder.addFeature("layer", properties, geometry.copy())
+        }
+        def tile = writer.encode()
+
+        then: "the decoder returns the same features and the tile is not larger"
+
+        writer.featureCount == 100
+        features(tile) == features(encoder.encode())
+        tile.length <= encoder.encode().length
+    }
+
+    def 'Collapsed geometries are skipped'() {
+
+        given: "a line and a polygon that collapse in the tile extent"
+
+        def writer = new MvtLayerWriter("layer", EXTENT, SCALE)
+
+        when: "the features are added"
+
+        def line = writer.addFeature(WKT_READER.read("LINESTRING (10 10, 10.01 10.01)"), [:], null)
+        def polygon = writer.addFeature(WKT_READER.read("POLYGON ((10 10, 20 10, 30 10, 10 10))"), [:], null)
+
+        then: "no feature is written and the tile is empty"
+
+        !line
+        !polygon
+        writer.encode().length == 0
+    }
+
+    def 'Geometry collections are split into features'() {
+
+        given: "a geometry collection"
+
+        def writer = new MvtLayerWriter("layer", EXTENT, SCALE)
+
+        when: "the collection is added"
+
+        writer.addFeature(WKT_READER.read("GEOMETRYCOLLECTION (POINT (10 20), LINESTRING (10 10, 100 10))"), [name: "a"], 3L)
+
+        then: "there is a feature per member"
+
+        writer.featureCount == 2
+        features(writer.encode()).collect { it[3] } == ["POINT (10 20)", "LINESTRING (10 10, 100 10)"]
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark writing a layer versus VectorTileEncoder'() {
+
+        given: "polygons with many vertices"
+
+        def random = new Random(42)
+        def polygons = (0..<200).collect {
+            TileGeometryUtilSpec.coastline(random, random.nextInt(256), random.nextInt(256), 10 + random.nextInt(50), 200)
+        }
+        def iterations = 200
+
+        when: "the tile is encoded repeatedly with both encoders"
+
+        (0..<20).each { writeLayer(polygons); encodeTile(polygons) }
+
+        def startWriter = System.nanoTime()
+        (0..<iterations).each { writeLayer(polygons) }
+        def writerMs = (System.nanoTime() - startWriter) / 1000000 / iterations
+
+        def startEncoder = System.nanoTime()
+        (0..<iterations).each { encodeTile(polygons) }
+        def encoderMs = (System.nanoTime() - startEncoder) / 1000000 / iterations
+
+        println "layer writer: ${writerMs}ms/tile, VectorTileEncoder: ${encoderMs}ms/tile"
+
+        then: "the layer writer is faster"
+
+        writerMs < encoderMs
+    }
+
+    static byte[] writeLayer(List<Geometry> geometries) {
+        def writer = new MvtLayerWriter("layer", EXTENT, SCALE)
+        geometries.eachWithIndex { geometry, i -> writer.addFeature(geometry, [id: (long) i, name: "feature"], (long) i) }
+        return writer.encode()
+    }
+
+    static byte[] encodeTile(List<Geometry> geometries) {
+        def encoder = new VectorTileEncoder(EXTENT)
+        geometries.eachWithIndex { geometry, i -> encoder.addFeature("layer", [id: (long) i, name: "feature"], geometry, (long) i) }
+        return encoder.encode()
+    }
+
+    static List features(byte[] tile) {
+        new VectorTileDecoder().decode(tile).asList().collect {
+            [it.layerName, it.id, it.attributes, it.geometry.toText()]
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import no.ecc.vectortile.VectorTileDecoder
+import org.locationtech.jts.geom.GeometryFactory
+import org.locationtech.jts.geom.PrecisionModel
+import org.locationtech.jts.io.WKTReader
+import spock.lang.Specification
+
+class MvtOverzoomSpec extends Specification {
+
+    static final int EXTENT = 4096
+    static final WKTReader WKT_READER = new WKTReader(new GeometryFactory(new PrecisionModel(1.0d)))
+
+    def 'The geometries are scaled to the tile'() {
+
+        given: "a tile with a feature"
+
+        def tile = tile(wkt)
+
+        when: "the tile one level below is derived"
+
+        def result = MvtOverzoom.overzoom(tile, 1, row, col, 0)
+
+        then: "the geometry is scaled and clipped to the tile"
+
+        features(result).collect { it[3] } == [expected]
+
+        where:
+
+        wkt                                  | row | col || expected
+        "POINT (3000 1000)"                  | 0   | 1   || "POINT (1904 2000)"
+        "LINESTRING (0 0, 4096 4096)"        | 0   | 0   || "LINESTRING (0 0, 4096 4096)"
+        "LINESTRING (0 0, 4096 4096)"        | 1   | 1   || "LINESTRING (0 0, 4096 4096)"
+        "MULTIPOINT ((100 100), (3000 100))" | 0   | 0   || "POINT (200 200)"
+    }
+
+    def 'Polygons keep their holes'() {
+
+        given: "a tile with a polygon with a hole"
+
+        def tile = tile("POLYGON ((100 100, 1000 100, 1000 1000, 100 1000, 100 100), (200 200, 200 300, 300 300, 300 200, 200 200))")
+
+        when: "the tile two levels below is derived"
+
+        def result = MvtOverzoom.overzoom(tile, 2, 0, 0, 0)
+        def geometry = features(result).first()[3]
+
+        then: "the polygon and the hole are scaled"
+
+        WKT_READER.read(geometry).area == 3600 * 3600 - 400 * 400
+    }
+
+    def 'The id and the properties are copied'() {
+
+        given: "a tile with a feature"
+
+        def writer = new MvtLayerWriter("layer", EXTENT, 1.0d)
+        writer.addFeature(WKT_READER.read("POINT (10 20)"), [name: "feature", count: 42L], 17L)
+
+        when: "the tile one level below is derived"
+
+        def result = MvtOverzoom.overzoom(writer.encode(), 1, 0, 0, 0)
+
+        then: "the feature has the same id and properties"
+
+        features(result) == [["layer", 17L, [name: "feature", count: 42L], "POINT (20 40)"]]
+    }
+
+    def 'Layers without features in the tile are dropped'() {
+
+        given: "a tile with a feature in the upper left quarter"
+
+        def tile = tile("LINESTRING (100 100, 1000 1000)")
+
+        when: "the lower right quarter is derived"
+
+        def result = MvtOverzoom.overzoom(tile, 1, 1, 1, 64)
+
+        then: "the tile is empty"
+
+        result.length == 0
+    }
+
+    def 'Invalid tiles are rejected'() {
+
+        when: "a tile that is not a vector tile is derived"
+
+        MvtOverzoom.overzoom([0x1a, 0x05, 0x01] as byte[], 1, 0, 0, 0)
+
+        then:
+
+        thrown(IllegalArgumentException)
+    }
+
+    static byte[] tile(String wkt) {
+        def writer = new MvtLayerWriter("layer", EXTENT, 1.0d)
+        writer.addFeature(WKT_READER.read(wkt), [:], null)
+        return writer.encode()
+    }
+
+    static List features(byte[] tile) {
+        def decoder = new VectorTileDecoder()
+        decoder.setAutoScale(false)
+        decoder.decode(tile).asList().collect {
+            [it.layerName, it.id, it.attributes, it.geometry.toText()]
+        }
+    }
+}
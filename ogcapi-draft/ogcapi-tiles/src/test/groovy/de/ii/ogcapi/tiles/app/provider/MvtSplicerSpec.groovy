@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import no.ecc.vectortile.VectorTileDecoder
+import no.ecc.vectortile.VectorTileEncoder
+import org.locationtech.jts.geom.Coordinate
+import org.locationtech.jts.geom.GeometryFactory
+import spock.lang.Requires
+import spock.lang.Specification
+
+class MvtSplicerSpec extends Specification {
+
+    static final int EXTENT = 4096
+
+    def 'Splicing yields the same features as re-encoding'() {
+
+        given: "two tiles with different layers"
+
+        def tiles = [createTile("buildings", 20), createTile("roads", 30)]
+
+        when: "the tiles are spliced and re-encoded"
+
+        def spliced = MvtSplicer.splice(tiles)
+        def reencoded = TileEncoderMvt.reencode(tiles, EXTENT)
+
+        then: "both tiles contain the same features"
+
+        spliced.isPresent()
+        features(spliced.get()) == features(reencoded)
+    }
+
+    def 'Splicing skips empty tiles'() {
+
+        given: "a tile and an empty tile"
+
+        def tile = createTile("buildings", 5)
+        def tiles = [new byte[0], tile, new VectorTileEncoder(EXTENT).encode()]
+
+        when: "the tiles are spliced"
+
+        def spliced = MvtSplicer.splice(tiles)
+
+        then: "the result is the non-empty tile"
+
+        spliced.isPresent()
+        spliced.get() == tile
+    }
+
+    def 'Splicing is not possible for layers with the same name'() {
+
+        given: "two tiles with the same layer name"
+
+        def tiles = [createTile("buildings", 20), createTile("buildings", 30)]
+
+        when: "the tiles are spliced"
+
+        def spliced = MvtSplicer.splice(tiles)
+
+        then: "the fallback has to be used"
+
+        spliced.isEmpty()
+    }
+
+    def 'Splicing is not possible for invalid tiles'() {
+
+        given: "a truncated tile"
+
+        def tile = createTile("buildings", 20)
+        def tiles = [Arrays.copyOf(tile, tile.length - 3)]
+
+        when: "the tiles are spliced"
+
+        def spliced = MvtSplicer.splice(tiles)
+
+        then: "the fallback has to be used"
+
+        spliced.isEmpty()
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark splicing versus re-encoding'() {
+
+        given: "ten tiles with 500 features each"
+
+        def tiles = (0..<10).collect { createTile("layer${it}", 500) }
+        def iterations = 200
+
+        when: "both variants are executed repeatedly"
+
+        (0..<20).each { MvtSplicer.splice(tiles); TileEncoderMvt.reencode(tiles, EXTENT) }
+
+        def startSplice = System.nanoTime()
+        (0..<iterations).each { MvtSplicer.splice(tiles) }
+        def spliceMs = (System.nanoTime() - startSplice) / 1000000 / iterations
+
+        def startReencode = System.nanoTime()
+        (0..<iterations).each { TileEncoderMvt.reencode(tiles, EXTENT) }
+        def reencodeMs = (System.nanoTime() - startReencode) / 1000000 / iterations
+
+        println "splice: ${spliceMs}ms/tile, re-encode: ${reencodeMs}ms/tile"
+
+        then: "splicing is faster"
+
+        spliceMs < reencodeMs
+    }
+
+    static byte[] createTile(String layer, int numberOfFeatures) {
+        def factory = new GeometryFactory()
+        def encoder = new VectorTileEncoder(EXTENT)
+
+        (0..<numberOfFeatures).each { i ->
+            def x = (i * 37) % 250
+            def y = (i * 53) % 250
+            def line = factory.createLineString([
+                    new Coordinate(x, y),
+                    new Coordinate(x + 3, y + 5),
+                    new Coordinate(x + 8, y + 2)] as Coordinate[])
+            encoder.addFeature(layer, [id: i, name: "feature ${i}".toString()], line, i)
+        }
+
+        return encoder.encode()
+    }
+
+    static List features(byte[] tile) {
+        new VectorTileDecoder().decode(tile).asList().collect {
+            [it.layerName, it.id, it.attributes, it.geometry.toText()]
+        }
+    }
+}
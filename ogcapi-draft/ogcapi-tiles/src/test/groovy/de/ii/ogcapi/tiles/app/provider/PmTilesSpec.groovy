@@ -0,0 +1,267 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileGenerationSchema
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import spock.lang.Specification
+
+class PmTilesSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+    }
+
+    TileGenerationSchema schema = Stub() {
+        getProperties() >> [:]
+        getGeometryType() >> Optional.empty()
+    }
+
+    Path dir
+
+    def setup() {
+        dir = Files.createTempDirectory("pmtiles")
+    }
+
+    def cleanup() {
+        dir.toFile().deleteDir()
+    }
+
+    def 'Tile ids on the Hilbert curve'() {
+
+        expect:
+
+        PmTiles.tileId(z, x, y) == tileId
+
+        where:
+
+        z | x | y || tileId
+        0 | 0 | 0 || 0
+        1 | 0 | 0 || 1
+        1 | 0 | 1 || 2
+        1 | 1 | 1 || 3
+        1 | 1 | 0 || 4
+        2 | 0 | 0 || 5
+        3 | 0 | 0 || 21
+    }
+
+    def 'Written tiles are read from the archive'() {
+
+        given: "an archive with all tiles up to level 4, the tiles on the diagonal are empty"
+
+        def path = dir.resolve("layer.pmtiles")
+        def writer = new PmTilesWriter(path, "{}".bytes, {})
+        eachTile(4) { int z, int x, int y ->
+            def result = x == y ? TileResult.empty(new byte[0]) : TileResult.found(content(z, x, y))
+            writer.put(tile(z, x, y), result)
+        }
+        writer.finish()
+
+        when:
+
+        def archive = PmTilesArchive.open(path)
+
+        then: "the tiles are found, empty tiles are not in the archive"
+
+        archive.getMinZoom() == 0
+        archive.getMaxZoom() == 4
+        archive.getTile(3, 2, 5).get() == content(3, 2, 5)
+        archive.getTile(4, 15, 0).get() == content(4, 15, 0)
+        archive.getTile(3, 2, 2).isEmpty()
+        archive.getTile(5, 0, 1).isEmpty()
+
+        and: "the spool file is deleted"
+
+        Files.list(dir).count() == 1
+
+        cleanup:
+
+        archive?.close()
+    }
+
+    def 'Archives with many tiles use leaf directories'() {
+
+        given: "an archive with all tiles up to level 8, the tiles are picked randomly from 1000 tiles, so that the directory does not compress well"
+
+        def path = dir.resolve("layer.pmtiles")
+        def writer = new PmTilesWriter(path, "{}".bytes, {})
+        eachTile(8) { int z, int x, int y ->
+            writer.put(tile(z, x, y), TileResult.found(randomContent(z, x, y)))
+        }
+        writer.finish()
+
+        when:
+
+        def archive = PmTilesArchive.open(path)
+        def header = readHeader(path)
+        def missing = 0
+        eachTile(8) { int z, int x, int y ->
+            if (archive.getTile(z, x, y).orElse(null) != randomContent(z, x, y)) {
+                missing++
+            }
+        }
+
+        then:
+
+        header.leafDirectoriesLength > 0
+        header.rootOffset + header.rootLength <= 16384
+        header.addressedTiles == 87381
+        header.tileContents == 1000
+        missing == 0
+
+        cleanup:
+
+        archive?.close()
+    }
+
+    def 'Identical tiles are stored once and consecutive tiles share an entry'() {
+
+        given: "an archive where all tiles on level 6 are identical"
+
+        def path = dir.resolve("layer.pmtiles")
+        def writer = new PmTilesWriter(path, "{}".bytes, {})
+        eachTile(6) { int z, int x, int y ->
+            def content = z < 6 ? content(z, x, y) : "ocean".getBytes(StandardCharsets.UTF_8)
+            writer.put(tile(z, x, y), TileResult.found(content))
+        }
+        writer.finish()
+
+        when:
+
+        def header = readHeader(path)
+        def archive = PmTilesArchive.open(path)
+
+        then: "level 6 is a single entry and a single tile"
+
+        header.addressedTiles == 5461
+        header.tileContents == 1365 + 1
+        header.tileEntries == 1365 + 1
+        header.clustered
+        archive.getTile(6, 17, 42).get() == "ocean".getBytes(StandardCharsets.UTF_8)
+
+        cleanup:
+
+        archive?.close()
+    }
+
+    def 'An archive is not written, if a tile failed'() {
+
+        given:
+
+        def path = dir.resolve("layer.pmtiles")
+        def writer = new PmTilesWriter(path, "{}".bytes, {})
+        writer.put(tile(0, 0, 0), TileResult.found(content(0, 0, 0)))
+        writer.put(tile(1, 0, 0), TileResult.error("failed"))
+
+        when:
+
+        writer.finish()
+
+        then:
+
+        thrown(IOException)
+        !Files.exists(path)
+        Files.list(dir).count() == 0
+    }
+
+    def 'The store serves the tiles of the archive'() {
+
+        given: "an archive written by the store"
+
+        def store = new TileStorePmTiles(dir, ["layer": [:]])
+        def writer = store.writer("layer", tileMatrixSet, FeatureEncoderMVT.FORMAT).get()
+        eachTile(2) { int z, int x, int y ->
+            def result = x == 0 ? TileResult.empty(new byte[0]) : TileResult.found(content(z, x, y))
+            writer.put(tile(z, x, y), result)
+        }
+
+        expect: "no tiles are served while the archive is written"
+
+        store.get(tile(1, 1, 1)).isNotFound()
+
+        when:
+
+        writer.finish()
+
+        then:
+
+        store.get(tile(1, 1, 1)).getContent().get() == content(1, 1, 1)
+        store.get(tile(1, 0, 1)).isEmpty()
+        store.get(tile(3, 1, 1)).isNotFound()
+        Files.exists(dir.resolve("layer").resolve("WebMercatorQuad.pmtiles"))
+    }
+
+    def 'Only the layer that is written is not served'() {
+
+        given: "a store with an archive for the layer 'other' and a combined layer with the sub-layer 'layer'"
+
+        def store = new TileStorePmTiles(dir, ["layer": ["layer": schema], "other": ["other": schema], "combined": ["layer": schema]])
+        def otherWriter = store.writer("other", tileMatrixSet, FeatureEncoderMVT.FORMAT).get()
+        otherWriter.put(tile(0, 0, 0, "other"), TileResult.found(content(0, 0, 0)))
+        otherWriter.finish()
+
+        when: "the archive of the combined layer is written"
+
+        def writer = store.writer("combined", tileMatrixSet, FeatureEncoderMVT.FORMAT).get()
+
+        then: "the tiles of the combined layer and its sub-layers are not served, the other layer is served"
+
+        store.get(tile(0, 0, 0, "combined")).isNotFound()
+        store.get(tile(0, 0, 0, "layer")).isNotFound()
+        store.get(tile(0, 0, 0, "other")).getContent().get() == content(0, 0, 0)
+
+        when: "the writer is aborted"
+
+        writer.abort()
+
+        then: "there is still no archive for the combined layer"
+
+        store.get(tile(0, 0, 0, "combined")).isNotFound()
+        !Files.exists(dir.resolve("combined").resolve("WebMercatorQuad.pmtiles"))
+    }
+
+    static byte[] content(int z, int x, int y) {
+        return "${z}/${x}/${y}".getBytes(StandardCharsets.UTF_8)
+    }
+
+    static byte[] randomContent(int z, int x, int y) {
+        return "tile ${new Random(PmTiles.tileId(z, x, y)).nextInt(1000)}".getBytes(StandardCharsets.UTF_8)
+    }
+
+    static void eachTile(int maxZoom, Closure closure) {
+        (0..maxZoom).each { int z ->
+            (0..<(1 << z)).each { int x ->
+                (0..<(1 << z)).each { int y -> closure(z, x, y) }
+            }
+        }
+    }
+
+    static PmTiles.Header readHeader(Path path) {
+        def bytes = new byte[PmTiles.HEADER_LENGTH]
+        path.withInputStream { it.read(bytes) }
+        return PmTiles.Header.read(ByteBuffer.wrap(bytes))
+    }
+
+    TileQuery tile(int level, int col, int row, String layer = "layer") {
+        return ImmutableTileQuery.builder()
+                .layer(layer)
+                .tileMatrixSet(tileMatrixSet)
+                .level(level)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import com.google.common.collect.Range
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import spock.lang.Specification
+
+class TileCacheDynamicSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+        getMinLevel() >> 0
+        getMaxLevel() >> 24
+        getCols(_ as Integer) >> { int level -> 1 << level }
+        getRows(_ as Integer) >> { int level -> 1 << level }
+    }
+
+    Map<String, Map<String, Range<Integer>>> tmsRanges = ["layer": ["WebMercatorQuad": Range.closed(0, 16)]]
+
+    def 'Tiles below an empty tile are not generated'() {
+
+        given: "a cache with an empty tile at level 10"
+
+        def delegate = Mock(ChainedTileProvider)
+        def store = new TileStoreMemory(1_000_000, 100_000)
+        store.put(tile(10, 300, 500), TileResult.empty(new byte[0]))
+        def cache = new TileCacheDynamic(store, delegate, tmsRanges)
+
+        when: "a descendant at level 13 is requested"
+
+        def result = cache.get(tile(13, 2403, 4005))
+
+        then: "the tile is empty and the delegate is not asked"
+
+        result.isEmpty()
+        result.getContent().get().length == 0
+        0 * delegate.get(_)
+        !store.has(tile(13, 2403, 4005))
+    }
+
+    def 'Tiles below a full tile are identical'() {
+
+        given: "a cache with a full tile at level 10"
+
+        def content = [1, 2, 3] as byte[]
+        def delegate = Mock(ChainedTileProvider)
+        def store = new TileStoreMemory(1_000_000, 100_000)
+        store.put(tile(10, 300, 500), TileResult.full(content))
+        def cache = new TileCacheDynamic(store, delegate, tmsRanges)
+
+        when: "a child is requested"
+
+        def result = cache.get(tile(11, 601, 1000))
+
+        then: "the content of the full tile is returned and the delegate is not asked"
+
+        result.isFull()
+        result.getContent().get() == content
+        0 * delegate.get(_)
+    }
+
+    def 'Tiles outside of an empty tile are generated'() {
+
+        given: "a cache with an empty tile at level 10"
+
+        def content = [1, 2, 3] as byte[]
+        def delegate = Mock(ChainedTileProvider)
+        def store = new TileStoreMemory(1_000_000, 100_000)
+        store.put(tile(10, 300, 500), TileResult.empty(new byte[0]))
+        def cache = new TileCacheDynamic(store, delegate, tmsRanges)
+
+        when: "a tile that is not a descendant is requested"
+
+        def result = cache.get(tile(11, 602, 1000))
+
+        then: "the tile is generated and stored"
+
+        1 * delegate.get(_) >> TileResult.found(content)
+        result.getStatus() == TileResult.Status.Found
+        result.getContent().get() == content
+        store.has(tile(11, 602, 1000))
+    }
+
+    def 'The ancestors are only checked up to the first cached tile'() {
+
+        given: "a cache with an empty tile at level 10 and a tile with content at level 12 below it"
+
+        def content = [1, 2, 3] as byte[]
+        def delegate = Mock(ChainedTileProvider)
+        def store = Spy(new TileStoreMemory(1_000_000, 100_000))
+        store.put(tile(10, 300, 500), TileResult.empty(new byte[0]))
+        store.put(tile(12, 1201, 2002), TileResult.found(content))
+        def cache = new TileCacheDynamic(store, delegate, tmsRanges)
+
+        when: "a child of the tile at level 12 is requested"
+
+        def result = cache.get(tile(13, 2403, 4005))
+
+        then: "the tile is generated and the empty tile at level 10 is not checked"
+
+        1 * delegate.get(_) >> TileResult.found(content)
+        0 * store.getMarker(tile(10, 300, 500))
+        0 * store.has(tile(10, 300, 500))
+        result.getStatus() == TileResult.Status.Found
+    }
+
+    def 'Ancestors that are not cached are only looked up once'() {
+
+        given: "a cache with an empty tile at level 10"
+
+        def delegate = Mock(ChainedTileProvider)
+        def store = Spy(new TileStoreMemory(1_000_000, 100_000))
+        store.put(tile(10, 300, 500), TileResult.empty(new byte[0]))
+        def cache = new TileCacheDynamic(store, delegate, tmsRanges)
+
+        when: "two siblings at level 13 are requested"
+
+        def first = cache.get(tile(13, 2403, 4005))
+        def second = cache.get(tile(13, 2403, 4004))
+
+        then: "the ancestors at level 12 and 11 are looked up only for the first sibling"
+
+        first.isEmpty()
+        second.isEmpty()
+        1 * store.has(tile(12, 1201, 2002))
+        1 * store.has(tile(11, 600, 1001))
+        2 * store.has(tile(10, 300, 500))
+        0 * delegate.get(_)
+    }
+
+    def 'Ancestors that are stored later are found'() {
+
+        given: "a cache without tiles"
+
+        def content = [1, 2, 3] as byte[]
+        def delegate = Mock(ChainedTileProvider)
+        def store = new TileStoreMemory(1_000_000, 100_000)
+        def cache = new TileCacheDynamic(store, delegate, tmsRanges)
+
+        when: "a tile at level 11 is requested, then its empty parent is generated and the tile is requested again"
+
+        cache.get(tile(11, 600, 1001))
+        store.delete(tile(11, 600, 1001))
+        cache.get(tile(10, 300, 500))
+        def result = cache.get(tile(11, 600, 1001))
+
+        then: "the second request finds the empty parent"
+
+        1 * delegate.get(tile(11, 600, 1001)) >> TileResult.found(content)
+        1 * delegate.get(tile(10, 300, 500)) >> TileResult.empty(new byte[0])
+        result.isEmpty()
+    }
+
+    TileQuery tile(int level, int row, int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(level)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
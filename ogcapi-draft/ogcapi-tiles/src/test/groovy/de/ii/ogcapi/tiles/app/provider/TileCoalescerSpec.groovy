@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import spock.lang.Specification
+
+class TileCoalescerSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+    }
+
+    CountDownLatch release = new CountDownLatch(1)
+    CountDownLatch generating = new CountDownLatch(1)
+    AtomicInteger calls = new AtomicInteger()
+    RuntimeException failure = null
+
+    ChainedTileProvider delegate = Stub() {
+        get(_ as TileQuery) >> {
+            calls.incrementAndGet()
+            generating.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            if (failure != null) {
+                throw failure
+            }
+            TileResult.found([1, 2, 3] as byte[])
+        }
+    }
+
+    def 'Concurrent requests for the same tile are answered by a single call of the delegate'() {
+
+        given: "a request for a tile that is in flight and three more requests for the same tile"
+
+        def coalescer = new TileCoalescer(delegate, 10_000)
+        def first = CompletableFuture.supplyAsync { coalescer.get(tile(0)) }
+        generating.await(10, TimeUnit.SECONDS)
+        def others = (0..<3).collect { CompletableFuture.supplyAsync { coalescer.get(tile(0)) } }
+        while (coalescer.coalescedRequests < 3) Thread.sleep(10)
+
+        when: "the tile is generated"
+
+        release.countDown()
+        def results = ([first] + others).collect { it.get(10, TimeUnit.SECONDS) }
+
+        then: "the delegate was called once and all requests get the tile"
+
+        calls.get() == 1
+        results.every { it.getContent().get() == [1, 2, 3] as byte[] }
+        coalescer.coalescedRequests == 3
+        coalescer.inFlightRequests == 0
+    }
+
+    def 'Requests for different tiles are not coalesced'() {
+
+        given:
+
+        def coalescer = new TileCoalescer(delegate, 10_000)
+        release.countDown()
+
+        when:
+
+        coalescer.get(tile(0))
+        coalescer.get(tile(1))
+
+        then:
+
+        calls.get() == 2
+        coalescer.coalescedRequests == 0
+    }
+
+    def 'The failure of the in-flight request is passed on to the waiting requests'() {
+
+        given: "a request for a tile that fails and two more requests for the same tile"
+
+        failure = new IllegalStateException("generation failed")
+        def coalescer = new TileCoalescer(delegate, 10_000)
+        def first = CompletableFuture.supplyAsync { coalescer.get(tile(0)) }
+        generating.await(10, TimeUnit.SECONDS)
+        def others = (0..<2).collect { CompletableFuture.supplyAsync { coalescer.get(tile(0)) } }
+        while (coalescer.coalescedRequests < 2) Thread.sleep(10)
+
+        when: "the generation fails"
+
+        release.countDown()
+        def errors = ([first] + others).collect { future ->
+            try {
+                future.join()
+                return null
+            } catch (CompletionException e) {
+                return e.cause
+            }
+        }
+
+        then: "all requests fail with the same exception and the tile is no longer in flight"
+
+        calls.get() == 1
+        errors.every { it instanceof IllegalStateException && it.message == "generation failed" }
+        coalescer.inFlightRequests == 0
+    }
+
+    TileQuery tile(int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(0)
+                .row(0)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+class TileFetcherParallelSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+    }
+
+    CountDownLatch release = new CountDownLatch(1)
+    Map<String, Thread> threads = new ConcurrentHashMap<>()
+
+    def 'A sub-layer that exceeds the deadline returns an error, the other sub-layers are returned'() {
+
+        given: "a delegate where the sub-layer 'slow' does not finish before the deadline of 100ms"
+
+        ChainedTileProvider delegate = Stub() {
+            get(_ as TileQuery) >> { TileQuery tile ->
+                if (tile.layer == "slow") {
+                    release.await(10, TimeUnit.SECONDS)
+                }
+                TileResult.found(content(tile.layer))
+            }
+        }
+        def executor = Executors.newCachedThreadPool()
+        def fetcher = new TileFetcherParallel(delegate, executor, 100)
+
+        when:
+
+        def results = fetcher.getAll([tile("fast"), tile("slow"), tile("other")])
+
+        then: "the slow sub-layer has a timeout error and is counted"
+
+        results.size() == 3
+        results[0].getContent().get() == content("fast")
+        results[1].isError()
+        results[1].getError().get().startsWith("Timeout after 100ms")
+        results[2].getContent().get() == content("other")
+        fetcher.layerStats["slow"].timeouts == 1
+        fetcher.layerStats["slow"].requests == 0
+        fetcher.layerStats["fast"].timeouts == 0
+        fetcher.layerStats["fast"].requests == 1
+
+        cleanup:
+
+        release.countDown()
+        executor.shutdown()
+    }
+
+    def 'A sub-layer is retrieved by the requesting thread, if the queue is full'() {
+
+        given: "an executor with a single thread and a queue for a single task, the first sub-layer blocks the thread until the last sub-layer is retrieved"
+
+        ChainedTileProvider delegate = Stub() {
+            get(_ as TileQuery) >> { TileQuery tile ->
+                threads.put(tile.layer, Thread.currentThread())
+                if (tile.layer == "first") {
+                    release.await(10, TimeUnit.SECONDS)
+                }
+                if (tile.layer == "third") {
+                    release.countDown()
+                }
+                TileResult.found(content(tile.layer))
+            }
+        }
+        def executor = TileProviderFeatures.createSubLayerExecutor("test", 1, 1)
+        def fetcher = new TileFetcherParallel(delegate, executor, 10_000)
+
+        when:
+
+        def results = fetcher.getAll([tile("first"), tile("second"), tile("third")])
+
+        then: "the third sub-layer is retrieved by the requesting thread and all sub-layers are returned"
+
+        results.collect { it.getContent().get() } == [content("first"), content("second"), content("third")]
+        threads["third"] == Thread.currentThread()
+        threads["first"] != Thread.currentThread()
+        threads["second"] == threads["first"]
+
+        cleanup:
+
+        executor.shutdown()
+    }
+
+    static byte[] content(String layer) {
+        return layer.getBytes(StandardCharsets.UTF_8)
+    }
+
+    TileQuery tile(String layer) {
+        return ImmutableTileQuery.builder()
+                .layer(layer)
+                .tileMatrixSet(tileMatrixSet)
+                .level(10)
+                .row(0)
+                .col(0)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ChainedTileProvider
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import javax.ws.rs.ServiceUnavailableException
+import spock.lang.Specification
+
+class TileGenerationLimiterSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+    }
+
+    CountDownLatch release = new CountDownLatch(1)
+    CountDownLatch generating = new CountDownLatch(1)
+
+    ChainedTileProvider generator = Stub() {
+        get(_ as TileQuery) >> {
+            generating.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            TileResult.found([1, 2, 3] as byte[])
+        }
+    }
+
+    def 'Tiles are generated on the executor'() {
+
+        given: "a limiter without load"
+
+        def limiter = new TileGenerationLimiter(generator, "test", 1, 1, 1_000)
+        release.countDown()
+
+        when: "a tile is requested"
+
+        def result = limiter.get(tile(0))
+
+        then: "the generated tile is returned"
+
+        result.getContent().get() == [1, 2, 3] as byte[]
+        limiter.rejectedGenerations == 0
+    }
+
+    def 'Requests are rejected, if the queue is full'() {
+
+        given: "a limiter with one active and one queued generation"
+
+        def limiter = new TileGenerationLimiter(generator, "test", 1, 1, 10_000)
+        def active = CompletableFuture.supplyAsync { limiter.get(tile(0)) }
+        generating.await(10, TimeUnit.SECONDS)
+        def queued = CompletableFuture.supplyAsync { limiter.get(tile(1)) }
+        while (limiter.queuedGenerations == 0) Thread.sleep(10)
+
+        when: "another tile is requested"
+
+        limiter.get(tile(2))
+
+        then: "the request is rejected with a Retry-After header"
+
+        def e = thrown(ServiceUnavailableException)
+        e.response.status == 503
+        e.hasRetryAfter()
+        limiter.activeGenerations == 1
+        limiter.queuedGenerations == 1
+        limiter.rejectedGenerations == 1
+
+        cleanup:
+
+        release.countDown()
+        active.join()
+        queued.join()
+    }
+
+    def 'Requests are rejected, if the generation does not start within the queue timeout'() {
+
+        given: "a limiter with one active generation"
+
+        def limiter = new TileGenerationLimiter(generator, "test", 1, 10, 100)
+        def active = CompletableFuture.supplyAsync { limiter.get(tile(0)) }
+        generating.await(10, TimeUnit.SECONDS)
+
+        when: "another tile is requested"
+
+        limiter.get(tile(1))
+
+        then: "the request is rejected and removed from the queue"
+
+        thrown(ServiceUnavailableException)
+        limiter.queuedGenerations == 0
+        limiter.rejectedGenerations == 1
+
+        cleanup:
+
+        release.countDown()
+        active.join()
+    }
+
+    TileQuery tile(int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(10)
+                .row(0)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import com.sun.management.ThreadMXBean
+import java.lang.management.ManagementFactory
+import org.locationtech.jts.geom.Coordinate
+import org.locationtech.jts.geom.Geometry
+import org.locationtech.jts.geom.GeometryFactory
+import org.locationtech.jts.geom.MultiLineString
+import org.locationtech.jts.geom.Polygon
+import org.locationtech.jts.geom.PrecisionModel
+import org.locationtech.jts.geom.util.AffineTransformation
+import org.locationtech.jts.precision.GeometryPrecisionReducer
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier
+import spock.lang.Requires
+import spock.lang.Specification
+
+class TileGeometryUtilSpec extends Specification {
+
+    static final PrecisionModel PRECISION_MODEL = new PrecisionModel(16.0d)
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(PRECISION_MODEL)
+    static final int ITERATIONS = 200
+
+    // the buffered tile, as a rectangle and with an additional vertex, which uses the overlay
+    static final Polygon RECTANGLE = polygon([[-8, -8], [264, -8], [264, 264], [-8, 264], [-8, -8]])
+    static final Polygon NOT_A_RECTANGLE = polygon([[-8, -8], [128, -8], [264, -8], [264, 264], [-8, 264], [-8, -8]])
+
+    def 'Lines are split where they leave the tile'() {
+
+        given: "a line that crosses the tile three times"
+
+        def line = GEOMETRY_FACTORY.createLineString([
+                new Coordinate(-50, 10), new Coordinate(100, 10), new Coordinate(100, 300),
+                new Coordinate(200, 300), new Coordinate(200, 100), new Coordinate(400, 100)] as Coordinate[])
+
+        when: "the line is clipped"
+
+        def clipped = tileGeometry(line, RECTANGLE)
+
+        then: "there are two parts within the buffered tile"
+
+        clipped instanceof MultiLineString
+        clipped.numGeometries == 2
+        clipped.getGeometryN(0).coordinates.first() == new Coordinate(-8, 10)
+        clipped.getGeometryN(0).coordinates.last() == new Coordinate(100, 264)
+        clipped.getGeometryN(1).coordinates.first() == new Coordinate(200, 264)
+        clipped.getGeometryN(1).coordinates.last() == new Coordinate(264, 100)
+    }
+
+    def 'Clipped polygons match the overlay'() {
+
+        expect: "the same area with the rectangle clipper and with the overlay"
+
+        def fast = tileGeometry(polygon.copy(), RECTANGLE)
+        def overlay = tileGeometry(polygon.copy(), NOT_A_RECTANGLE)
+
+        fast.valid
+        Math.abs(fast.area - overlay.area) < 0.01 * overlay.area
+        fast.symDifference(overlay).area < 0.01 * overlay.area
+
+        where:
+
+        polygon << [
+                // a U-shaped polygon, that is only connected outside of the tile
+                polygon([[50, 100], [50, 400], [200, 400], [200, 100], [150, 100], [150, 350], [100, 350], [100, 100], [50, 100]]),
+                // a polygon with a hole that is partly outside of the tile
+                GEOMETRY_FACTORY.createPolygon(
+                        polygon([[-100, -100], [300, -100], [300, 300], [-100, 300], [-100, -100]]).exteriorRing,
+                        polygon([[200, 50], [400, 50], [400, 150], [200, 150], [200, 50]]).exteriorRing),
+                coastline(new Random(1), 128, 128, 300, 2000),
+        ]
+    }
+
+    def 'Geometries inside of the tile are not clipped'() {
+
+        given: "a polygon inside of the tile"
+
+        def inside = polygon([[10, 10], [100, 10], [100, 100], [10, 100], [10, 10]])
+
+        when: "the tile geometry is derived"
+
+        def clipped = tileGeometry(inside.copy(), RECTANGLE)
+
+        then: "it is unchanged"
+
+        clipped.equalsExact(inside)
+    }
+
+    def 'Polygons with a small hole within the tile do not cover the tile'() {
+
+        given: "a polygon that covers the buffered tile and has a hole smaller than the minimum size"
+
+        def holed = GEOMETRY_FACTORY.createPolygon(
+                polygon([[-100, -100], [300, -100], [300, 300], [-100, 300], [-100, -100]]).exteriorRing,
+                polygon([[100, 100], [100.25, 100], [100.25, 100.25], [100, 100.25], [100, 100]]).exteriorRing)
+
+        when: "the tile geometry is derived"
+
+        def tileGeometry = tileGeometry(holed.copy(), RECTANGLE)
+
+        then: "the hole is removed from the tile geometry, but the polygon does not cover the tile"
+
+        tileGeometry.equalsTopo(RECTANGLE)
+        !TileGeometryUtil.coversTile(holed, RECTANGLE)
+    }
+
+    def 'Polygons cover the tile, if their holes are outside of the tile'() {
+
+        expect:
+
+        TileGeometryUtil.coversTile(geometry, RECTANGLE) == covers
+
+        where:
+
+        geometry << [
+                polygon([[-100, -100], [300, -100], [300, 300], [-100, 300], [-100, -100]]),
+                GEOMETRY_FACTORY.createPolygon(
+                        polygon([[-100, -100], [400, -100], [400, 400], [-100, 400], [-100, -100]]).exteriorRing,
+                        polygon([[300, 300], [350, 300], [350, 350], [300, 350], [300, 300]]).exteriorRing),
+                polygon([[0, 0], [256, 0], [256, 256], [0, 256], [0, 0]]),
+                GEOMETRY_FACTORY.createLineString([new Coordinate(-100, -100), new Coordinate(300, 300)] as Coordinate[]),
+        ]
+        covers << [true, true, false, false]
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark clipping polygons to a tile'() {
+
+        given: "polygons with many vertices, that are partially outside of the tile"
+
+        def random = new Random(42)
+        def polygons = (0..<50).collect {
+            coastline(random, random.nextInt(256), random.nextInt(256), 100 + random.nextInt(400), 5000)
+        }
+
+        when: "the tile geometries are derived with the rectangle clipper and with the overlay"
+
+        def overlay = measure(polygons, NOT_A_RECTANGLE)
+        def fast = measure(polygons, RECTANGLE)
+
+        println "deriving ${ITERATIONS * polygons.size()} tile geometries, overlay: ${overlay.durationMs}ms, rectangle clipper: ${fast.durationMs}ms"
+
+        then: "the results cover the same area"
+
+        Math.abs(fast.area - overlay.area) < 0.01 * overlay.area
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark allocations of the tile transformation'() {
+
+        given: "polygons in a world coordinate system and the transformation of a tile"
+
+        def random = new Random(42)
+        def polygons = (0..<50).collect {
+            coastline(random, 1000 + random.nextInt(256) * 10, 1000 + random.nextInt(256) * 10, 1000 + random.nextInt(4000), 5000)
+        }
+        def transformation = new AffineTransformation(0.1, 0, -100, 0, -0.1, 356)
+        def tileTransformation = TileGeometryUtil.toTileGrid(transformation, PRECISION_MODEL)
+
+        when: "the geometries are transformed, simplified and reduced to the grid in separate steps, with a transformation per feature"
+
+        def separate = allocations(polygons) { Geometry geometry ->
+            geometry.apply(new AffineTransformation(0.1, 0, -100, 0, -0.1, 356))
+            def simplified = TopologyPreservingSimplifier.simplify(geometry, 1.0 / PRECISION_MODEL.scale)
+            GeometryPrecisionReducer.reducePointwise(simplified, PRECISION_MODEL)
+        }
+
+        and: "the geometries are quantized during the transformation of the tile"
+
+        def quantized = allocations(polygons) { Geometry geometry ->
+            geometry.apply(tileTransformation)
+            TopologyPreservingSimplifier.simplify(geometry, 1.0 / PRECISION_MODEL.scale)
+        }
+
+        println "allocated per tile geometry, separate steps: ${separate.intdiv(1024)}kB, quantized: ${quantized.intdiv(1024)}kB"
+
+        then: "less memory is allocated"
+
+        quantized < separate
+    }
+
+    /**
+     * @return the bytes allocated by the current thread per geometry, the copies of the geometries
+     *     are created before the measurement
+     */
+    static long allocations(List<Polygon> polygons, Closure<Geometry> pipeline) {
+        def threads = (ThreadMXBean) ManagementFactory.getThreadMXBean()
+        long total = 0
+        // the first iteration is the warm-up
+        (0..ITERATIONS).each { iteration ->
+            def copies = polygons.collect { it.copy() }
+            long start = threads.getThreadAllocatedBytes(Thread.currentThread().id)
+            copies.each { pipeline(it) }
+            if (iteration > 0) {
+                total += threads.getThreadAllocatedBytes(Thread.currentThread().id) - start
+            }
+        }
+
+        return total.intdiv(ITERATIONS * polygons.size())
+    }
+
+    static Map<String, Object> measure(List<Polygon> polygons, Polygon clipGeometry) {
+        double area = 0
+        // warm-up
+        (0..<ITERATIONS).each { polygons.each { tileGeometry(it.copy(), clipGeometry) } }
+
+        def start = System.nanoTime()
+        (0..<ITERATIONS).each {
+            area = polygons.sum { polygon -> tileGeometry(polygon.copy(), clipGeometry)?.area ?: 0 }
+        }
+        def durationMs = (System.nanoTime() - start).intdiv(1000000)
+
+        return [durationMs: durationMs, area: area]
+    }
+
+    static Geometry tileGeometry(Geometry geometry, Polygon clipGeometry) {
+        return TileGeometryUtil.getTileGeometry(geometry, new AffineTransformation(), clipGeometry, PRECISION_MODEL, 0.5)
+    }
+
+    static Polygon polygon(List<List<Integer>> coordinates) {
+        return GEOMETRY_FACTORY.createPolygon(coordinates.collect { new Coordinate(it[0], it[1]) } as Coordinate[])
+    }
+
+    /**
+     * A star-shaped polygon with a jagged outline similar to a coastline, the radius varies by a
+     * random walk.
+     */
+    static Polygon coastline(Random random, double centerX, double centerY, double radius, int vertices) {
+        double factor = 1.0
+        def coordinates = (0..<vertices).collect { i ->
+            factor = Math.max(0.5, Math.min(1.5, factor + (random.nextDouble() - 0.5) * 0.1))
+            double angle = 2 * Math.PI * i / vertices
+            new Coordinate(centerX + Math.cos(angle) * radius * factor, centerY + Math.sin(angle) * radius * factor)
+        }
+        coordinates << new Coordinate(coordinates[0])
+
+        return GEOMETRY_FACTORY.createPolygon(coordinates as Coordinate[])
+    }
+}
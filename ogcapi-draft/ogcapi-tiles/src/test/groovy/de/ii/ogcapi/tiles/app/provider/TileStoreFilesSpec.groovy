@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.ImmutableTileMatrixSetLimits
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSetLimits
+import de.ii.ogcapi.tiles.app.provider.TileCacheDynamic.FileStore
+import de.ii.ogcapi.tiles.app.provider.TileCacheDynamic.FileStoreFs
+import de.ii.ogcapi.tiles.app.provider.TileCacheDynamic.TileStoreFiles
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicLong
+import java.util.stream.IntStream
+import java.util.stream.Stream
+import spock.lang.Requires
+import spock.lang.Specification
+
+class TileStoreFilesSpec extends Specification {
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+        getCols(_ as Integer) >> { int level -> 1 << level }
+        getRows(_ as Integer) >> { int level -> 1 << level }
+    }
+
+    def 'Only tiles within the limits are deleted'() {
+
+        given: "a file cache with all tiles of level 3 and a marker"
+
+        def rootDir = Files.createTempDirectory("tiles")
+        def store = new TileStoreFiles(new FileStoreFs(rootDir))
+        (0..<8).each { row ->
+            (0..<8).each { col ->
+                store.put(tile(3, row, col), TileResult.found([1, 2, 3] as byte[]))
+            }
+        }
+        store.put(tile(3, 2, 2), TileResult.empty(new byte[0]))
+
+        when: "the tiles in rows 1 to 2 and cols 2 to 4 are deleted"
+
+        store.delete("layer", tileMatrixSet, limits(3, 1, 2, 2, 4))
+
+        then: "the tiles and markers in the range are deleted, all others are kept"
+
+        (0..<8).every { row ->
+            (0..<8).every { col ->
+                store.has(tile(3, row, col)) == !(row in 1..2 && col in 2..4)
+            }
+        }
+        !Files.exists(rootDir.resolve("layer/WebMercatorQuad/3/2/2.empty"))
+
+        cleanup:
+
+        rootDir.toFile().deleteDir()
+    }
+
+    def 'Limits that cover a level delete the level directory'() {
+
+        given: "a file cache with tiles at level 2 and 3"
+
+        def rootDir = Files.createTempDirectory("tiles")
+        def store = new TileStoreFiles(new FileStoreFs(rootDir))
+        store.put(tile(2, 1, 1), TileResult.found([1] as byte[]))
+        store.put(tile(3, 1, 1), TileResult.found([1] as byte[]))
+
+        when: "all tiles of level 3 are deleted"
+
+        store.delete("layer", tileMatrixSet, limits(3, 0, 7, 0, 7))
+
+        then: "the level directory is removed"
+
+        !Files.exists(rootDir.resolve("layer/WebMercatorQuad/3"))
+        store.has(tile(2, 1, 1))
+
+        cleanup:
+
+        rootDir.toFile().deleteDir()
+    }
+
+    @Requires({env['BENCHMARK'] != null})
+    def 'Benchmark deleting a range in a large file cache'() {
+
+        given: "a synthetic file cache with about 10M tiles"
+
+        def fileStore = new SyntheticFileStore(12, 1400)
+        def store = new TileStoreFiles(fileStore)
+
+        when: "the deletion of small and large ranges is measured"
+
+        def results = [
+                "4x4 tiles at level 12"    : limits(12, 100, 103, 2000, 2003),
+                "200x300 tiles at level 12": limits(12, 500, 699, 1000, 1299),
+                "all tiles at level 11"    : limits(11, 0, 2047, 0, 2047)
+        ].collectEntries { name, range ->
+            fileStore.operations.set(0)
+            def rangeStart = System.nanoTime()
+            store.delete("layer", tileMatrixSet, range)
+            [(name): [durationMs: (System.nanoTime() - rangeStart).intdiv(1000000), operations: fileStore.operations.get()]]
+        }
+
+        println "file cache with ${fileStore.files()} files"
+        results.each { name, result -> println "deleting ${name}: ${result.durationMs}ms, ${result.operations} file system operations" }
+
+        then: "deleting a range only touches the files in the range"
+
+        results["4x4 tiles at level 12"].operations < 100
+        results["all tiles at level 11"].operations < 10
+        !store.has(tile(12, 101, 2001))
+        store.has(tile(12, 104, 2001))
+    }
+
+    TileMatrixSetLimits limits(int level, int minRow, int maxRow, int minCol, int maxCol) {
+        return new ImmutableTileMatrixSetLimits.Builder()
+                .tileMatrix(String.valueOf(level))
+                .minTileRow(minRow)
+                .maxTileRow(maxRow)
+                .minTileCol(minCol)
+                .maxTileCol(maxCol)
+                .build()
+    }
+
+    TileQuery tile(int level, int row, int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(level)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+
+    /**
+     * A tile pyramid for layer "layer" and WebMercatorQuad up to maxLevel with at most maxRows rows
+     * per level, that only exists in memory and counts the file system operations.
+     */
+    static class SyntheticFileStore implements FileStore {
+
+        final int maxLevel
+        final int maxRows
+        final Set<Path> deleted = new HashSet<>()
+        final AtomicLong operations = new AtomicLong()
+
+        SyntheticFileStore(int maxLevel, int maxRows) {
+            this.maxLevel = maxLevel
+            this.maxRows = maxRows
+        }
+
+        @Override
+        boolean has(Path path) {
+            operations.incrementAndGet()
+            if (path.nameCount > 5 || (0..<path.nameCount).any { deleted.contains(path.subpath(0, it + 1)) }) {
+                return false
+            }
+            if (path.nameCount < 3) {
+                return true
+            }
+            int level = path.getName(2).toString() as int
+            if (level > maxLevel) {
+                return false
+            }
+            if (path.nameCount < 4) {
+                return true
+            }
+            int row = path.getName(3).toString() as int
+            if (row >= Math.min(1 << level, maxRows)) {
+                return false
+            }
+            if (path.nameCount < 5) {
+                return true
+            }
+            def file = path.getName(4).toString()
+            int col = file.takeWhile { it != '.' } as int
+            return file.endsWith(".pbf") && col < (1 << level)
+        }
+
+        @Override
+        Optional<InputStream> get(Path path) {
+            return has(path) ? Optional.of(new ByteArrayInputStream(new byte[0])) : Optional.empty()
+        }
+
+        @Override
+        Optional<Boolean> isEmpty(Path path) {
+            return has(path) ? Optional.of(true) : Optional.empty()
+        }
+
+        @Override
+        void put(Path path, InputStream content) {
+            throw new UnsupportedOperationException()
+        }
+
+        @Override
+        void delete(Path path) {
+            deleteIfExists(path)
+        }
+
+        @Override
+        boolean deleteIfExists(Path path) {
+            if (!has(path)) {
+                return false
+            }
+            deleted.add(path)
+            return true
+        }
+
+        @Override
+        Optional<String> getAttribute(Path path, String name) {
+            return Optional.empty()
+        }
+
+        @Override
+        void putAttribute(Path path, String name, String value) {
+        }
+
+        @Override
+        void deleteDirectory(Path path) {
+            deleteIfExists(path)
+        }
+
+        @Override
+        Stream<String> list(Path path) {
+            if (path.nameCount != 4 || !has(path)) {
+                return Stream.empty()
+            }
+            int level = path.getName(2).toString() as int
+            return IntStream.range(0, 1 << level)
+                    .peek { operations.incrementAndGet() }
+                    .mapToObj { col -> "${col}.pbf".toString() }
+                    .filter { file -> !deleted.contains(path.resolve(file)) }
+        }
+
+        long files() {
+            return (0..maxLevel).sum { int level -> (long) Math.min(1 << level, maxRows) * (1 << level) }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.net.http.HttpClient
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import spock.lang.Shared
+import spock.lang.Specification
+
+class TileStoreHttpSpec extends Specification {
+
+    static final byte[] TILE = [1, 2, 3, 4] as byte[]
+
+    @Shared
+    HttpServer server
+
+    @Shared
+    List<String> conditionalRequests = new CopyOnWriteArrayList<>()
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+    }
+
+    TileStoreHttp store
+
+    def setupSpec() {
+        // stand-in for a tile server: 1/0/0 exists with an ETag, 1/0/1 is empty, all others are missing
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        server.createContext("/tiles", { HttpExchange exchange -> respond(exchange) })
+        server.start()
+    }
+
+    def cleanupSpec() {
+        server.stop(0)
+    }
+
+    def setup() {
+        conditionalRequests.clear()
+        def url = "http://localhost:${server.address.port}/tiles/{{tileMatrix}}/{{tileRow}}/{{tileCol}}.{{fileExtension}}"
+        store = new TileStoreHttp(["layer": url.toString()], HttpClient.newHttpClient(), Duration.ofSeconds(5), 2, 1024 * 1024)
+    }
+
+    def 'Tiles are fetched from the tile server'() {
+
+        when: "existing, empty and missing tiles are requested"
+
+        def found = store.get(tile(1, 0, 0))
+        def empty = store.get(tile(1, 0, 1))
+        def missing = store.get(tile(1, 1, 1))
+
+        then: "the results reflect the responses of the tile server"
+
+        found.isAvailable()
+        found.content.get() == TILE
+        found.contentHash.get() == TileResult.contentHash(TILE)
+        empty.isEmpty()
+        missing.isNotFound()
+    }
+
+    def 'Tiles with an ETag are revalidated'() {
+
+        when: "a tile is requested twice"
+
+        def first = store.get(tile(1, 0, 0))
+        def second = store.get(tile(1, 0, 0))
+
+        then: "the second request is conditional and the kept tile is used"
+
+        conditionalRequests == ['"v1"']
+        store.getRequests() == 2
+        store.getRevalidated() == 1
+        second.content.get() == first.content.get()
+    }
+
+    def 'Tiles are not revalidated, if no tiles are kept'() {
+
+        given: "a store that keeps no tiles for revalidation"
+
+        def url = "http://localhost:${server.address.port}/tiles/{{tileMatrix}}/{{tileRow}}/{{tileCol}}.{{fileExtension}}"
+        def noRevalidation = new TileStoreHttp(["layer": url.toString()], HttpClient.newHttpClient(), Duration.ofSeconds(5), 2, 0)
+
+        when: "a tile is requested twice"
+
+        noRevalidation.get(tile(1, 0, 0))
+        def second = noRevalidation.get(tile(1, 0, 0))
+
+        then: "both requests fetch the tile"
+
+        conditionalRequests.isEmpty()
+        noRevalidation.getRequests() == 2
+        noRevalidation.getRevalidated() == 0
+        second.content.get() == TILE
+    }
+
+    def 'The existence of tiles is checked without fetching them'() {
+
+        expect: "has and isEmpty use the status of the tile server"
+
+        store.has(tile(1, 0, 0))
+        store.has(tile(1, 0, 1))
+        !store.has(tile(1, 1, 1))
+        store.isEmpty(tile(1, 0, 1)) == Optional.of(true)
+        store.isEmpty(tile(1, 1, 1)) == Optional.empty()
+        !store.has(ImmutableTileQuery.builder().from(tile(1, 0, 0)).layer("other").build())
+    }
+
+    void respond(HttpExchange exchange) {
+        def path = exchange.requestURI.path
+        def head = exchange.requestMethod == "HEAD"
+
+        if (path == "/tiles/1/0/0.pbf") {
+            def ifNoneMatch = exchange.requestHeaders.getFirst("If-None-Match")
+            if (ifNoneMatch != null) {
+                conditionalRequests << ifNoneMatch
+            }
+            exchange.responseHeaders.add("ETag", '"v1"')
+            if (ifNoneMatch == '"v1"') {
+                exchange.sendResponseHeaders(304, -1)
+            } else if (head) {
+                exchange.sendResponseHeaders(200, -1)
+            } else {
+                exchange.sendResponseHeaders(200, TILE.length)
+                exchange.responseBody.write(TILE)
+            }
+        } else if (path == "/tiles/1/0/1.pbf") {
+            exchange.sendResponseHeaders(204, -1)
+        } else {
+            exchange.sendResponseHeaders(404, -1)
+        }
+        exchange.close()
+    }
+
+    TileQuery tile(int level, int row, int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(level)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 interactive instruments GmbH
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package de.ii.ogcapi.tiles.app.provider
+
+import de.ii.ogcapi.tilematrixsets.domain.TileMatrixSet
+import de.ii.ogcapi.tiles.domain.provider.ImmutableTileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileQuery
+import de.ii.ogcapi.tiles.domain.provider.TileResult
+import java.util.zip.GZIPOutputStream
+import spock.lang.Specification
+
+class TileStoreMemorySpec extends Specification {
+
+    // the content of a tile plus the estimated overhead per entry
+    static final long WEIGHT = 1000 + 128
+
+    TileMatrixSet tileMatrixSet = Stub() {
+        getId() >> "WebMercatorQuad"
+    }
+
+    def 'The least recently used tiles are evicted, when the bytes exceed the maximum'() {
+
+        given: "a store for three tiles of 1000 bytes with three tiles, the first tile was read last"
+
+        def store = new TileStoreMemory(3 * WEIGHT, 2000)
+        store.put(tile(5, 0, 0), TileResult.found(new byte[1000]))
+        store.put(tile(5, 0, 1), TileResult.found(new byte[1000]))
+        store.put(tile(5, 0, 2), TileResult.found(new byte[1000]))
+        store.get(tile(5, 0, 0))
+
+        when: "a fourth tile is stored"
+
+        store.put(tile(5, 0, 3), TileResult.found(new byte[1000]))
+
+        then: "only the least recently used tile is evicted"
+
+        store.has(tile(5, 0, 0))
+        !store.has(tile(5, 0, 1))
+        store.has(tile(5, 0, 2))
+        store.has(tile(5, 0, 3))
+    }
+
+    def 'Small tiles do not evict a large tile before it is the least recently used'() {
+
+        given: "a store with a large tile and many small tiles that fit"
+
+        def store = new TileStoreMemory(2000 + 10 * (100 + 128), 2000)
+        store.put(tile(5, 1, 0), TileResult.found(new byte[2000 - 128]))
+        (0..<10).each { col -> store.put(tile(6, 0, col), TileResult.found(new byte[100])) }
+
+        when: "another small tile is stored"
+
+        store.put(tile(6, 0, 10), TileResult.found(new byte[100]))
+
+        then: "the large tile is evicted, all small tiles are kept"
+
+        !store.has(tile(5, 1, 0))
+        (0..10).every { col -> store.has(tile(6, 0, col)) }
+    }
+
+    def 'Tiles larger than the maximum tile size are not stored'() {
+
+        given: "a store with a tile"
+
+        def store = new TileStoreMemory(10 * WEIGHT, 2000)
+        store.put(tile(5, 0, 0), TileResult.found(new byte[1000]))
+
+        when: "a tile that is larger than the maximum tile size is stored"
+
+        store.put(tile(5, 0, 1), TileResult.found(new byte[2001]))
+
+        then: "it is not stored and no other tile is evicted"
+
+        !store.has(tile(5, 0, 1))
+        store.get(tile(5, 0, 1)).isNotFound()
+        store.has(tile(5, 0, 0))
+    }
+
+    def 'Compressed tiles are decompressed by the reader, not in the store'() {
+
+        given: "a store with a compressed tile"
+
+        def content = new byte[1000]
+        def gzipped = new ByteArrayOutputStream()
+        new GZIPOutputStream(gzipped).withCloseable { it.write(content) }
+        def store = new TileStoreMemory(10 * WEIGHT, 2000)
+        store.put(tile(5, 0, 0), TileResult.gzipped(TileResult.Status.Found, gzipped.toByteArray()))
+
+        when: "the tile is read and decompressed"
+
+        def first = store.get(tile(5, 0, 0))
+        first.getContent()
+        def second = store.get(tile(5, 0, 0))
+
+        then: "every read gets its own copy of the compressed tile"
+
+        !first.is(second)
+        second.getGzipContent().get() == gzipped.toByteArray()
+        second.getContent().get() == content
+        store.isEmpty(tile(5, 0, 0)) == Optional.of(false)
+    }
+
+    TileQuery tile(int level, int row, int col) {
+        return ImmutableTileQuery.builder()
+                .layer("layer")
+                .tileMatrixSet(tileMatrixSet)
+                .level(level)
+                .row(row)
+                .col(col)
+                .mediaType(FeatureEncoderMVT.FORMAT)
+                .build()
+    }
+}
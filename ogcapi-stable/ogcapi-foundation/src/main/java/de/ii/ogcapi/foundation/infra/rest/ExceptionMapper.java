@@ -197,6 +197,23 @@ public class ExceptionMapper extends LoggingExceptionMapper<Throwable> {
                   new ApiErrorMessage(
                       response.getStatus(), response.getStatusInfo().getReasonPhrase(), msg)))
           .build();
+    } else if (response.getStatus() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+      // the server is overloaded, this is not an error to be logged and the headers of the
+      // response, e.g. Retry-After, are kept
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug(
+            "Service unavailable, HTTP status {}, Request path {}: {}",
+            response.getStatus(),
+            getRequestPath(true),
+            exception.getMessage());
+      }
+      return Response.fromResponse(response)
+          .type(exceptionFormat.getMediaType().type())
+          .entity(
+              exceptionFormat.getExceptionEntity(
+                  new ApiErrorMessage(
+                      response.getStatus(), response.getStatusInfo().getReasonPhrase(), msg)))
+          .build();
     }
 
     // family.equals(Response.Status.Family.SERVER_ERROR)